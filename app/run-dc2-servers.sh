@@ -4,17 +4,20 @@
 set -e
 cd "$(dirname "$0")/.."
 
+# All vtgates, so each server can fail over and route by data locality
+export DB_ENDPOINTS="dc1/cell1=jdbc:mysql://127.0.0.1:15306/,dc1/cell2=jdbc:mysql://127.0.0.1:15307/,dc2/cell1=jdbc:mysql://127.0.0.1:25306/,dc2/cell2=jdbc:mysql://127.0.0.1:25307/"
+
 echo "=== Starting DC2 Servers ==="
 
 # Server 1: DC2 Cell1 - VTGate port 25306
 echo "Starting DC2 Server 1 (Cell1)..."
-DB_URL="jdbc:mysql://127.0.0.1:25306/" PORT=8091 bazel run //app:runserver &
+DB_URL="jdbc:mysql://127.0.0.1:25306/" LOCAL_DC=dc2 LOCAL_CELL=cell1 PORT=8091 bazel run //app:runserver &
 PID1=$!
 echo "DC2 Server 1 started with PID $PID1 on port 8091 (DB: vtgate_cell1_dc2:25306)"
 
 # Server 2: DC2 Cell2 - VTGate port 25307
 echo "Starting DC2 Server 2 (Cell2)..."
-DB_URL="jdbc:mysql://127.0.0.1:25307/" PORT=8092 bazel run //app:runserver &
+DB_URL="jdbc:mysql://127.0.0.1:25307/" LOCAL_DC=dc2 LOCAL_CELL=cell2 PORT=8092 bazel run //app:runserver &
 PID2=$!
 echo "DC2 Server 2 started with PID $PID2 on port 8092 (DB: vtgate_cell2_dc2:25307)"
 
@@ -4,17 +4,20 @@
 set -e
 cd "$(dirname "$0")/.."
 
+# All vtgates, so each server can fail over and route by data locality
+export DB_ENDPOINTS="dc1/cell1=jdbc:mysql://127.0.0.1:15306/,dc1/cell2=jdbc:mysql://127.0.0.1:15307/,dc2/cell1=jdbc:mysql://127.0.0.1:25306/,dc2/cell2=jdbc:mysql://127.0.0.1:25307/"
+
 echo "=== Starting Primary Servers (DC1) ==="
 
 # Server 1: DC1 Cell1 (Beijing) - VTGate port 15306
 echo "Starting Server 1 (DC1 Cell1 - Beijing)..."
-DB_URL="jdbc:mysql://127.0.0.1:15306/" PORT=8081 bazel run //app:runserver &
+DB_URL="jdbc:mysql://127.0.0.1:15306/" LOCAL_DC=dc1 LOCAL_CELL=cell1 PORT=8081 bazel run //app:runserver &
 PID1=$!
 echo "Server 1 started with PID $PID1 on port 8081 (DB: vtgate_cell1:15306)"
 
 # Server 2: DC1 Cell2 (HongKong) - VTGate port 15307
 echo "Starting Server 2 (DC1 Cell2 - HongKong)..."
-DB_URL="jdbc:mysql://127.0.0.1:15307/" PORT=8082 bazel run //app:runserver &
+DB_URL="jdbc:mysql://127.0.0.1:15307/" LOCAL_DC=dc1 LOCAL_CELL=cell2 PORT=8082 bazel run //app:runserver &
 PID2=$!
 echo "Server 2 started with PID $PID2 on port 8082 (DB: vtgate_cell2:15307)"
 
@@ -0,0 +1,313 @@
+package helvetia.main;
+
+import helvetia.AggregateResult;
+import helvetia.AggregateRow;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A grouped aggregate query (?groupBy=region,aid&metrics=count,sum(readTimeLength)) and the
+ * merging of its per-shard partial results.
+ *
+ * Each shard runs one GROUP BY query returning mergeable partials: COUNT(*), SUM, COUNT(col),
+ * MIN and MAX. The coordinator adds up counts and sums and folds minimums and maximums per group;
+ * averages are derived from the merged SUM and COUNT(col), never averaged across shards.
+ *
+ * Groups are ordered by the group columns as MySQL orders them (strings by their collation weight,
+ * taken from WEIGHT_STRING), and each shard returns only its first limit+1 groups. Any group among
+ * the first {@code limit} overall is also among the first {@code limit} of every shard that has it,
+ * so those groups merge exactly; a shard that fills its limit+1 only means the result is truncated.
+ */
+public class Aggregation {
+    private static final Set<String> FUNCTIONS = Set.of("count", "sum", "avg", "min", "max");
+    // Prefix of the per-group-column collation weights appended to the per-shard query
+    private static final String WEIGHT_COLUMN = "group_weight_";
+
+    /** How a partial column combines across shards */
+    private enum Merge { ADD, MIN, MAX }
+
+    /** One SELECT expression of the per-shard query */
+    private record Partial(String sql, Merge merge) {}
+
+    /** A requested metric; column is null for count */
+    private record Metric(String function, String column) {
+        String label() {
+            return column == null ? function : function + "(" + column + ")";
+        }
+    }
+
+    private final List<String> groupBy;
+    private final List<Metric> metrics;
+    private final int limit;
+
+    private final List<Partial> partials = new ArrayList<>();
+    // Per metric, the indexes of the partials it is computed from
+    private final List<int[]> sources = new ArrayList<>();
+
+    private Aggregation(List<String> groupBy, List<Metric> metrics, int limit) {
+        this.groupBy = groupBy;
+        this.metrics = metrics;
+        this.limit = limit;
+
+        Map<String, Integer> seen = new HashMap<>();
+        for (Metric m : metrics) {
+            String col = m.column() == null ? null : "`" + m.column() + "`";
+            sources.add(switch (m.function()) {
+                case "count" -> new int[] {partial(seen, "COUNT(*)", Merge.ADD)};
+                case "sum" -> new int[] {partial(seen, "SUM(" + col + ")", Merge.ADD)};
+                case "avg" -> new int[] {partial(seen, "SUM(" + col + ")", Merge.ADD),
+                                         partial(seen, "COUNT(" + col + ")", Merge.ADD)};
+                case "min" -> new int[] {partial(seen, "MIN(" + col + ")", Merge.MIN)};
+                default -> new int[] {partial(seen, "MAX(" + col + ")", Merge.MAX)};
+            });
+        }
+    }
+
+    private int partial(Map<String, Integer> seen, String sql, Merge merge) {
+        return seen.computeIfAbsent(sql, k -> {
+            partials.add(new Partial(sql, merge));
+            return partials.size() - 1;
+        });
+    }
+
+    /**
+     * Parse the request parameters. Column names are checked later against the entity's
+     * columns by {@link #validate}.
+     * @param groupBy Comma-separated group columns, or null for a single overall group
+     * @param metrics Comma-separated metrics: count, sum(col), avg(col), min(col), max(col)
+     * @param limit Maximum number of groups returned
+     * @throws IllegalArgumentException for malformed metrics or a non-positive limit
+     */
+    public static Aggregation parse(String groupBy, String metrics, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        Set<String> groups = new LinkedHashSet<>();
+        if (groupBy != null) {
+            for (String g : groupBy.split(",")) {
+                if (!g.isBlank()) {
+                    groups.add(g.trim());
+                }
+            }
+        }
+
+        Set<Metric> parsed = new LinkedHashSet<>();
+        for (String m : (metrics == null || metrics.isBlank() ? "count" : metrics).split(",")) {
+            String spec = m.replace(" ", "");
+            int open = spec.indexOf('(');
+            Metric metric;
+            if (open < 0) {
+                metric = new Metric(spec.toLowerCase(), null);
+            } else if (spec.endsWith(")")) {
+                String column = spec.substring(open + 1, spec.length() - 1);
+                metric = new Metric(spec.substring(0, open).toLowerCase(), column.isEmpty() || column.equals("*") ? null : column);
+            } else {
+                throw new IllegalArgumentException("Malformed metric: " + m);
+            }
+            if (!FUNCTIONS.contains(metric.function())) {
+                throw new IllegalArgumentException("Unknown metric function: " + metric.function());
+            }
+            if (metric.column() == null && !metric.function().equals("count")) {
+                throw new IllegalArgumentException(metric.function() + " needs a column");
+            }
+            if (metric.column() != null && metric.function().equals("count")) {
+                // count(col) is not offered; count means rows
+                throw new IllegalArgumentException("count takes no column");
+            }
+            parsed.add(metric);
+        }
+        return new Aggregation(List.copyOf(groups), List.copyOf(parsed), limit);
+    }
+
+    /**
+     * @param numericColumns Columns with a numeric value (numbers, booleans, DATETIMEs); only these
+     * may be summed, averaged or have a min or max
+     * @throws IllegalArgumentException if a group or metric column is not filterable on the entity,
+     * or a metric column is not numeric
+     */
+    public void validate(Set<String> allowedColumns, Set<String> numericColumns) {
+        for (String g : groupBy) {
+            if (!allowedColumns.contains(g)) {
+                throw new IllegalArgumentException("Invalid groupBy column: " + g);
+            }
+        }
+        for (Metric m : metrics) {
+            if (m.column() != null && !allowedColumns.contains(m.column())) {
+                throw new IllegalArgumentException("Invalid metric column: " + m.column());
+            }
+            if (m.column() != null && !numericColumns.contains(m.column())) {
+                throw new IllegalArgumentException(m.function() + " needs a numeric column, not " + m.column());
+            }
+        }
+    }
+
+    /**
+     * Normalised form for cache keys: equivalent requests (spacing, case of function names,
+     * repeated entries) map to the same string.
+     */
+    public String canonical() {
+        List<String> labels = new ArrayList<>();
+        for (Metric m : metrics) {
+            labels.add(m.label());
+        }
+        return "g=" + String.join(",", groupBy) + ":m=" + String.join(",", labels) + ":l=" + limit;
+    }
+
+    /**
+     * The per-shard query: group columns first, then the partials, then the group columns'
+     * collation weights; at most limit+1 groups, in group column order.
+     * @param table Table name, keyspace-qualified or not depending on the connection
+     * @param where WHERE clause from {@link RsqlToSql}
+     */
+    public String partialSql(String table, String where) {
+        List<String> select = new ArrayList<>();
+        for (String g : groupBy) {
+            select.add("`" + g + "`");
+        }
+        List<String> groups = List.copyOf(select);
+        for (Partial p : partials) {
+            select.add(p.sql());
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            select.add("WEIGHT_STRING(" + groups.get(i) + ") AS " + WEIGHT_COLUMN + i);
+        }
+        String sql = "SELECT " + String.join(", ", select) + " FROM " + table + " WHERE " + where;
+        if (!groups.isEmpty()) {
+            String columns = String.join(", ", groups);
+            sql += " GROUP BY " + columns + " ORDER BY " + columns + " LIMIT " + (limit + 1);
+        }
+        return sql;
+    }
+
+    /**
+     * Merge partial rows (from one or many shards) into the final result.
+     * @param rows Rows of {@link #partialSql}, as column values
+     */
+    public AggregateResult merge(Collection<Object[]> rows) {
+        Map<List<Object>, double[]> groups = new HashMap<>();
+        // The group's values as first seen, for the response
+        Map<List<Object>, List<String>> labels = new HashMap<>();
+        int g = groupBy.size();
+        for (Object[] row : rows) {
+            List<Object> key = new ArrayList<>(g);
+            List<String> label = new ArrayList<>(g);
+            for (int i = 0; i < g; i++) {
+                key.add(orderKey(row, i));
+                label.add(row[i] == null ? "" : String.valueOf(row[i]));
+            }
+            labels.putIfAbsent(key, label);
+            double[] acc = groups.computeIfAbsent(key, k -> initial());
+            for (int i = 0; i < partials.size(); i++) {
+                Object v = row[g + i];
+                if (v == null) {
+                    continue;
+                }
+                double d = toDouble(v);
+                acc[i] = switch (partials.get(i).merge()) {
+                    case ADD -> acc[i] + d;
+                    case MIN -> Double.isNaN(acc[i]) ? d : Math.min(acc[i], d);
+                    case MAX -> Double.isNaN(acc[i]) ? d : Math.max(acc[i], d);
+                };
+            }
+        }
+
+        List<List<Object>> keys = new ArrayList<>(groups.keySet());
+        keys.sort(KEY_ORDER);
+
+        AggregateResult.Builder out = AggregateResult.newBuilder().addAllGroupBy(groupBy);
+        for (Metric m : metrics) {
+            out.addMetrics(m.label());
+        }
+        for (List<Object> key : keys.subList(0, Math.min(limit, keys.size()))) {
+            double[] acc = groups.get(key);
+            AggregateRow.Builder row = AggregateRow.newBuilder().addAllKeys(labels.get(key));
+            for (int i = 0; i < metrics.size(); i++) {
+                int[] src = sources.get(i);
+                if (metrics.get(i).function().equals("avg")) {
+                    row.addValues(acc[src[1]] == 0 ? Double.NaN : acc[src[0]] / acc[src[1]]);
+                } else {
+                    row.addValues(acc[src[0]]);
+                }
+            }
+            out.addRows(row);
+        }
+        return out.setTruncated(keys.size() > limit).build();
+    }
+
+    /**
+     * The value group column {@code i} sorts and groups by: the collation weight for strings, so
+     * values the collation treats as equal ("Beijing", "beijing") are one group, else the value.
+     */
+    private Object orderKey(Object[] row, int i) {
+        Object v = row[i];
+        int weight = groupBy.size() + partials.size() + i;
+        if (v instanceof String && weight < row.length && row[weight] instanceof byte[] w) {
+            // ByteBuffer for equals and hashCode over the contents
+            return ByteBuffer.wrap(w);
+        }
+        return v;
+    }
+
+    // MySQL's ORDER BY: NULL first, strings by weight, numbers and times by value
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Comparator<Object> VALUE_ORDER = (a, b) -> {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a instanceof ByteBuffer x && b instanceof ByteBuffer y) {
+            return Arrays.compareUnsigned(x.array(), y.array());
+        }
+        if (a instanceof Number x && b instanceof Number y) {
+            return new BigDecimal(x.toString()).compareTo(new BigDecimal(y.toString()));
+        }
+        if (a instanceof Comparable x && a.getClass() == b.getClass()) {
+            return x.compareTo(b);
+        }
+        return String.valueOf(a).compareTo(String.valueOf(b));
+    };
+
+    private static final Comparator<List<Object>> KEY_ORDER = (a, b) -> {
+        for (int i = 0; i < a.size(); i++) {
+            int c = VALUE_ORDER.compare(a.get(i), b.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    };
+
+    private double[] initial() {
+        double[] acc = new double[partials.size()];
+        for (int i = 0; i < acc.length; i++) {
+            acc[i] = partials.get(i).merge() == Merge.ADD ? 0 : Double.NaN;
+        }
+        return acc;
+    }
+
+    private static double toDouble(Object v) {
+        if (v instanceof Number n) {
+            return n.doubleValue();
+        }
+        if (v instanceof Boolean b) {
+            return b ? 1 : 0;
+        }
+        if (v instanceof Timestamp t) {
+            return t.getTime();
+        }
+        if (v instanceof java.time.LocalDateTime t) {
+            return Timestamp.valueOf(t).getTime();
+        }
+        return Double.parseDouble(v.toString());
+    }
+}
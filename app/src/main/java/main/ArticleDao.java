@@ -1,6 +1,8 @@
 package helvetia.main;
 
+import com.google.protobuf.FieldMask;
 import helvetia.Article;
+import java.util.Collection;
 import java.util.List;
 
 public interface ArticleDao {
@@ -26,9 +28,80 @@ public interface ArticleDao {
      */
     List<Article> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
     
+    /**
+     * The same page as {@link #list(String, int, int, String, String)}, each row encoded
+     * straight from the result set in Article wire format
+     */
+    List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
+    
+    /**
+     * The same page as {@link #listEncoded(String, int, int, String, String)}, except that with
+     * {@code fromIndex} a filter the in-process indexes answer on their own is paged in memory, so
+     * only the page's ids reach the database. Such a page may lag writes made on other instances
+     * until the indexes next refresh; only for callers that accept estimates (?count=approx).
+     */
+    List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                             boolean fromIndex) throws Exception;
+    
     /**
      * Count total articles matching filter
      * @param rsqlFilter RSQL filter string, or null for no filtering
      */
     long count(String rsqlFilter) throws Exception;
+    
+    /**
+     * Estimate the total number of articles, unfiltered, from table statistics
+     * @return The estimate, or null if statistics are unavailable
+     */
+    Long estimateCount() throws Exception;
+    
+    /**
+     * Count articles matching the filter from the in-process indexes alone, with the same lag as
+     * {@link #listEncoded(String, int, int, String, String, boolean)}
+     * @return The count, or null if the filter needs the database
+     */
+    Long indexedCount(String rsqlFilter) throws Exception;
+    
+    /**
+     * Update only the columns named in the field mask
+     * @param a Article carrying the id and the new values
+     * @param mask Proto field names to write; id and the shard key cannot be patched
+     * @return true if a row with this id exists
+     */
+    boolean patch(Article a, FieldMask mask) throws Exception;
+    
+    /**
+     * Insert the article, or update only the masked columns if it already exists
+     * (INSERT ... ON DUPLICATE KEY UPDATE)
+     * @param a Complete Article, including id and shard key
+     * @param mask Proto field names to overwrite when the row already exists
+     */
+    void upsert(Article a, FieldMask mask) throws Exception;
+    
+    /**
+     * Point one media path column at a new file, reading the path it replaces in the same
+     * transaction (SELECT ... FOR UPDATE + UPDATE), so concurrent replacements each see the
+     * path they actually replaced
+     * @param field textPath, imagePath or videoPath
+     * @return The replaced path ("" if there was none), or null if no article has this id
+     */
+    String replaceMediaPath(long id, String field, String path) throws Exception;
+    
+    /**
+     * Point lookup by aid, routed through the aid lookup vindex
+     * @return The matching Article, or null if none
+     */
+    Article getByAid(String aid) throws Exception;
+    
+    /**
+     * Batch lookup by id in a single query, e.g. to hydrate search results
+     * @return The matching rows in no particular order; unknown ids are skipped
+     */
+    List<Article> getByIds(Collection<Long> ids) throws Exception;
+    
+    /**
+     * Batch lookup by aid in a single query, routed through the aid lookup vindex
+     * @return The matching rows in no particular order; unknown aids are skipped
+     */
+    List<Article> getByAids(Collection<String> aids) throws Exception;
 }
@@ -1,17 +1,28 @@
 package helvetia.main;
 
 import helvetia.Article;
+import com.google.protobuf.FieldMask;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ArticleDaoImpl implements ArticleDao {
 
     private final DB db;
+    private final ScatterGather scatter;
+    // Row-to-wire encoder for list pages; download URLs are derived from the paths like fromResultSet does
+    private final RowEncoder encoder = new RowEncoder(Article.getDescriptor())
+        .derive("textUrl", "textPath", (path, rs) -> generateDownloadUrl(rs.getLong("id"), "text", path))
+        .derive("imageUrl", "imagePath", (path, rs) -> generateDownloadUrl(rs.getLong("id"), "image", path))
+        .derive("videoUrl", "videoPath", (path, rs) -> generateDownloadUrl(rs.getLong("id"), "video", path));
     private final Gson gson = new Gson();
     
     // WebHDFS base URL for generating download links
@@ -20,14 +31,72 @@ public class ArticleDaoImpl implements ArticleDao {
         "WEBHDFS_BASE_URL", 
         "http://localhost:9870/webhdfs/v1"
     );
+
+    // Serve media through GET /articles/:id/media/:kind (see HdfsMediaProxy) rather than linking
+    // clients to WebHDFS; MEDIA_URL_BASE prefixes those links, e.g. with the public host
+    private static final boolean MEDIA_PROXY = Boolean.parseBoolean(
+        System.getenv().getOrDefault("MEDIA_PROXY", "true"));
+    private static final String MEDIA_URL_BASE = System.getenv().getOrDefault("MEDIA_URL_BASE", "");
     
-    // RSQL to SQL converter with allowed columns
-    private final RsqlToSql rsqlConverter = new RsqlToSql(Set.of(
-        "id", "timestamp", "aid", "title", "category", "abstract", "language"
-    ));
+    // RSQL to SQL converter with allowed columns; =match= is answered by the search index
+    // and =contains=/=containsAny= by the tag index
+    private final RsqlToSql rsqlConverter;
+
+    // Full-text index kept in step with this DAO's writes, or null if search is disabled
+    private final ArticleSearchIndex searchIndex;
+
+    // Bitmap index over the JSON array columns, or null if disabled
+    private final TagBitmapIndex tagIndex;
+    public static final List<String> TAG_FIELDS = List.of("articleTags", "authors");
+    private static final Set<String> MEDIA_PATH_COLUMNS = Set.of("textPath", "imagePath", "videoPath");
+
+    // Columns PATCH may write, keyed by proto field name.
+    // Id and category form the primary vindex (category_vdx) and cannot be patched.
+    private final Map<String, FieldMaskUpdate.Binder<Article>> mutableColumns = Map.of(
+        "title", (st, i, a) -> st.setString(i, a.getTitle()),
+        "abstract", (st, i, a) -> st.setString(i, emptyToNull(a.getAbstract())),
+        "articleTags", (st, i, a) -> st.setString(i, gson.toJson(a.getArticleTagsList())),
+        "authors", (st, i, a) -> st.setString(i, gson.toJson(a.getAuthorsList())),
+        "language", (st, i, a) -> st.setString(i, emptyToNull(a.getLanguage())),
+        "textPath", (st, i, a) -> st.setString(i, emptyToNull(a.getTextPath())),
+        "imagePath", (st, i, a) -> st.setString(i, emptyToNull(a.getImagePath())),
+        "videoPath", (st, i, a) -> st.setString(i, emptyToNull(a.getVideoPath()))
+    );
+
+    private static final String INSERT_SQL = """
+        INSERT INTO article_keyspace.article (id, timestamp, aid, title, category, abstract, articleTags, authors, language, textPath, imagePath, videoPath)
+        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+        """;
+
+    // Per-shard list query for the ScatterGather coordinator (no keyspace qualifier)
+    private static final String SHARD_LIST_SQL = "SELECT id, timestamp, aid, title, category, abstract, articleTags, authors, language, textPath, imagePath, videoPath FROM article";
 
     public ArticleDaoImpl(DB db) {
+        this(db, null, null);
+    }
+
+    public ArticleDaoImpl(DB db, ArticleSearchIndex searchIndex, TagBitmapIndex tagIndex) {
         this.db = db;
+        this.scatter = ScatterGather.fromEnv(db, "article_keyspace");
+        this.searchIndex = searchIndex;
+        this.tagIndex = tagIndex;
+        this.rsqlConverter = new RsqlToSql(Set.of(
+            "id", "timestamp", "aid", "title", "category", "abstract", "language"
+        ));
+        if (searchIndex != null) {
+            rsqlConverter.withIndex(RsqlToSql.MATCH, (field, args) -> {
+                if (!searchIndex.ready()) {
+                    throw new IndexLoadingException("Search index is still loading");
+                }
+                Roaring64NavigableMap ids = new Roaring64NavigableMap();
+                searchIndex.matchIds(field, String.join(" ", args)).forEach(ids::addLong);
+                return ids;
+            });
+        }
+        if (tagIndex != null) {
+            rsqlConverter.withIndex(RsqlToSql.CONTAINS, tagIndex.resolver(true));
+            rsqlConverter.withIndex(RsqlToSql.CONTAINS_ANY, tagIndex.resolver(false));
+        }
     }
 
     Article fromResultSet(ResultSet rs) throws SQLException {
@@ -61,24 +130,36 @@ public class ArticleDaoImpl implements ArticleDao {
         String textPath = rs.getString("textPath");
         if (textPath != null && !textPath.isEmpty()) {
             builder.setTextPath(textPath);
-            builder.setTextUrl(generateHdfsDownloadUrl(textPath));
+            builder.setTextUrl(generateDownloadUrl(rs.getLong("id"), "text", textPath));
         }
         
         String imagePath = rs.getString("imagePath");
         if (imagePath != null && !imagePath.isEmpty()) {
             builder.setImagePath(imagePath);
-            builder.setImageUrl(generateHdfsDownloadUrl(imagePath));
+            builder.setImageUrl(generateDownloadUrl(rs.getLong("id"), "image", imagePath));
         }
         
         String videoPath = rs.getString("videoPath");
         if (videoPath != null && !videoPath.isEmpty()) {
             builder.setVideoPath(videoPath);
-            builder.setVideoUrl(generateHdfsDownloadUrl(videoPath));
+            builder.setVideoUrl(generateDownloadUrl(rs.getLong("id"), "video", videoPath));
         }
 
         return builder.build();
     }
     
+    /**
+     * Generate the download URL for an article's media: the proxy route, or WebHDFS directly
+     * when MEDIA_PROXY=false.
+     * @param kind text, image or video
+     */
+    private String generateDownloadUrl(long id, String kind, String hdfsPath) {
+        if (MEDIA_PROXY) {
+            return MEDIA_URL_BASE + "/articles/" + id + "/media/" + kind;
+        }
+        return generateHdfsDownloadUrl(hdfsPath);
+    }
+
     /**
      * Generate a WebHDFS download URL for an HDFS path.
      * The URL uses the OPEN operation which redirects to the DataNode for streaming.
@@ -100,27 +181,33 @@ public class ArticleDaoImpl implements ArticleDao {
 
     @Override
     public void create(Article a) throws Exception {
-        String sql = """
-            INSERT INTO article_keyspace.article (id, timestamp, aid, title, category, abstract, articleTags, authors, language, textPath, imagePath, videoPath)
-            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-        """;
-
         try (Connection conn = db.getConnection();
-            PreparedStatement st = conn.prepareStatement(sql)) {
+            PreparedStatement st = conn.prepareStatement(INSERT_SQL)) {
             st.setLong(1, a.getId());
             fillStatement(a, st, 2);
             st.executeUpdate();
         }
+        index(a);
     }
 
     @Override
     public Article get(long id) throws Exception {
         String sql = "SELECT id, timestamp, aid, title, category, abstract, articleTags, authors, language, textPath, imagePath, videoPath FROM article_keyspace.article WHERE id = ?";
 
+        // Idempotent point read: hedge to another vtgate if this one is slow
+        return db.hedgedReads().query("article_get", "article_keyspace", sql, id,
+            rs -> rs.next() ? fromResultSet(rs) : null);
+    }
+
+    @Override
+    public Article getByAid(String aid) throws Exception {
+        // The article_lookup vindex on aid routes this to a single shard
+        String sql = "SELECT id, timestamp, aid, title, category, abstract, articleTags, authors, language, textPath, imagePath, videoPath FROM article_keyspace.article WHERE aid = ?";
+
         try (Connection conn = db.getConnection();
              PreparedStatement st = conn.prepareStatement(sql)) {
 
-            st.setLong(1, id);
+            st.setString(1, aid);
             ResultSet rs = st.executeQuery();
             if (!rs.next()) return null;
 
@@ -128,6 +215,56 @@ public class ArticleDaoImpl implements ArticleDao {
         }
     }
 
+    @Override
+    public List<Article> getByIds(Collection<Long> ids) throws Exception {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        // id is not the sharding key, so this goes to every shard, but as a single round trip
+        String sql = "SELECT id, timestamp, aid, title, category, abstract, articleTags, authors, language, textPath, imagePath, videoPath FROM article_keyspace.article WHERE id IN ("
+            + String.join(", ", Collections.nCopies(ids.size(), "?")) + ")";
+
+        try (Connection conn = db.getReadConnection("article_keyspace");
+             PreparedStatement st = conn.prepareStatement(sql)) {
+
+            int paramIndex = 1;
+            for (long id : ids) {
+                st.setLong(paramIndex++, id);
+            }
+            ResultSet rs = st.executeQuery();
+            List<Article> out = new ArrayList<>();
+            while (rs.next()) {
+                out.add(fromResultSet(rs));
+            }
+            return out;
+        }
+    }
+
+    @Override
+    public List<Article> getByAids(Collection<String> aids) throws Exception {
+        if (aids.isEmpty()) {
+            return List.of();
+        }
+        // The article_lookup vindex resolves each aid to its shard, so only those shards are queried
+        String sql = "SELECT id, timestamp, aid, title, category, abstract, articleTags, authors, language, textPath, imagePath, videoPath FROM article_keyspace.article WHERE aid IN ("
+            + String.join(", ", Collections.nCopies(aids.size(), "?")) + ")";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+
+            int paramIndex = 1;
+            for (String aid : aids) {
+                st.setString(paramIndex++, aid);
+            }
+            ResultSet rs = st.executeQuery();
+            List<Article> out = new ArrayList<>();
+            while (rs.next()) {
+                out.add(fromResultSet(rs));
+            }
+            return out;
+        }
+    }
+
     @Override
     public void update(Article a) throws Exception {
         // Note: id and category are part of the primary vindex (category_vdx) and cannot be updated
@@ -148,7 +285,9 @@ public class ArticleDaoImpl implements ArticleDao {
             st.setString(7, emptyToNull(a.getImagePath()));
             st.setString(8, emptyToNull(a.getVideoPath()));
             st.setLong(9, a.getId());
-            st.executeUpdate();
+            if (st.executeUpdate() > 0) {
+                index(a);
+            }
         }
     }
 
@@ -172,6 +311,133 @@ public class ArticleDaoImpl implements ArticleDao {
         return (s == null || s.isEmpty()) ? null : s;
     }
 
+    @Override
+    public boolean patch(Article a, FieldMask mask) throws Exception {
+        FieldMaskUpdate<Article> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = "UPDATE article_keyspace.article SET " + update.setClause() + " WHERE id = ?";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            int i = update.bind(st, 1, a);
+            st.setLong(i, a.getId());
+            if (st.executeUpdate() == 0) {
+                return false;
+            }
+        }
+        reindex(a.getId(), mask);
+        return true;
+    }
+
+    @Override
+    public void upsert(Article a, FieldMask mask) throws Exception {
+        FieldMaskUpdate<Article> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = INSERT_SQL + " ON DUPLICATE KEY UPDATE " + update.setClause();
+
+        try (Connection conn = db.getConnection();
+            PreparedStatement st = conn.prepareStatement(sql)) {
+            st.setLong(1, a.getId());
+            fillStatement(a, st, 2);
+            update.bind(st, 13, a);
+            st.executeUpdate();
+        }
+        // The row may have been inserted with every field, whatever the mask says
+        reindex(a.getId(), null);
+    }
+
+    @Override
+    public String replaceMediaPath(long id, String field, String path) throws Exception {
+        if (!MEDIA_PATH_COLUMNS.contains(field)) {
+            throw new IllegalArgumentException("Not a media path column: " + field);
+        }
+
+        // Single-shard transaction: the id routes both statements to the article's shard
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                String previous;
+                try (PreparedStatement st = conn.prepareStatement(
+                        "SELECT " + field + " FROM article_keyspace.article WHERE id = ? FOR UPDATE")) {
+                    st.setLong(1, id);
+                    ResultSet rs = st.executeQuery();
+                    if (!rs.next()) {
+                        conn.rollback();
+                        return null;
+                    }
+                    previous = rs.getString(1);
+                }
+                try (PreparedStatement st = conn.prepareStatement(
+                        "UPDATE article_keyspace.article SET " + field + " = ? WHERE id = ?")) {
+                    st.setString(1, path);
+                    st.setLong(2, id);
+                    st.executeUpdate();
+                }
+                conn.commit();
+                return previous == null ? "" : previous;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Re-read a partially written article into the in-process indexes if the mask touched an
+     * indexed field.
+     * @param mask The written fields, or null if any may have changed
+     */
+    private void reindex(long id, FieldMask mask) throws Exception {
+        if (searchIndex == null && tagIndex == null) {
+            return;
+        }
+        if (mask != null && mask.getPathsList().stream()
+                .noneMatch(p -> ArticleSearchIndex.Field.of(p) != null || TAG_FIELDS.contains(p))) {
+            return;
+        }
+        Article current = get(id);
+        if (current != null) {
+            index(current);
+        }
+    }
+
+    private void index(Article a) {
+        if (searchIndex != null) searchIndex.put(a);
+        if (tagIndex != null) tagIndex.put(a.getId(), tagValues(a));
+    }
+
+    static Map<String, List<String>> tagValues(Article a) {
+        return Map.of("articleTags", a.getArticleTagsList(), "authors", a.getAuthorsList());
+    }
+
+    /**
+     * Tag index rows for a rebuild: only the array columns, in id order.
+     */
+    public List<TagBitmapIndex.Entry> tagEntries(long afterId, int limit) throws Exception {
+        String sql = "SELECT id, articleTags, authors FROM article_keyspace.article WHERE id > ? ORDER BY id LIMIT ?";
+
+        try (Connection conn = db.getReadConnection("article_keyspace");
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            st.setLong(1, afterId);
+            st.setInt(2, limit);
+            ResultSet rs = st.executeQuery();
+            List<TagBitmapIndex.Entry> out = new ArrayList<>();
+            while (rs.next()) {
+                out.add(new TagBitmapIndex.Entry(rs.getLong("id"), Map.of(
+                    "articleTags", jsonList(rs.getString("articleTags")),
+                    "authors", jsonList(rs.getString("authors")))));
+            }
+            return out;
+        }
+    }
+
+    private List<String> jsonList(String json) {
+        if (json == null || json.isEmpty()) {
+            return List.of();
+        }
+        return gson.fromJson(json, new TypeToken<List<String>>(){}.getType());
+    }
+
     @Override
     public boolean delete(long id) throws Exception {
         String sql = "DELETE FROM article_keyspace.article WHERE id = ?";
@@ -180,7 +446,12 @@ public class ArticleDaoImpl implements ArticleDao {
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             st.setLong(1, id);
-            return st.executeUpdate() > 0;
+            boolean deleted = st.executeUpdate() > 0;
+            if (deleted) {
+                if (searchIndex != null) searchIndex.remove(id);
+                if (tagIndex != null) tagIndex.remove(id);
+            }
+            return deleted;
         }
     }
 
@@ -196,11 +467,45 @@ public class ArticleDaoImpl implements ArticleDao {
     
     @Override
     public List<Article> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, false, this::fromResultSet);
+    }
+
+    @Override
+    public List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, false, encoder::encode);
+    }
+
+    @Override
+    public List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                                    boolean fromIndex) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, fromIndex, encoder::encode);
+    }
+
+    private <T> List<T> listPage(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                                 boolean fromIndex, ShardRouter.RowMapper<T> mapper) throws Exception {
         // Base query with HDFS path fields
         String baseSql = "SELECT id, timestamp, aid, title, category, abstract, articleTags, authors, language, textPath, imagePath, videoPath FROM article_keyspace.article";
         
-        // Convert RSQL to SQL WHERE clause
-        RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+        // Convert RSQL to SQL WHERE clause. Index comparisons become an id IN list, so the page and
+        // its count come from the same rows; with fromIndex a filter the in-process indexes answer
+        // on their own is paged here in id order, so only that page's ids are sent to the database.
+        RsqlToSql.SqlResult filterResult;
+        Roaring64NavigableMap ids = fromIndex && idOrdered(sortBy) ? rsqlConverter.resolveIds(rsqlFilter) : null;
+        if (ids != null) {
+            boolean descending = "id".equals(sortBy) && "desc".equalsIgnoreCase(sortDir);
+            filterResult = RsqlToSql.idPage(ids, limit, offset, descending);
+            offset = 0;
+        } else {
+            filterResult = rsqlConverter.convert(rsqlFilter);
+        }
+
+        if (scatter.enabled()) {
+            List<T> page = scatter.list(SHARD_LIST_SQL, filterResult, sortBy, sortDir,
+                rsqlConverter.getAllowedColumns(), limit, offset, mapper);
+            if (page != null) {
+                return page;
+            }
+        }
         
         // Validate and build ORDER BY clause
         String orderBy = buildOrderByClause(sortBy, sortDir);
@@ -208,7 +513,7 @@ public class ArticleDaoImpl implements ArticleDao {
         // Build final query with offset-based pagination
         String sql = baseSql + " WHERE " + filterResult.whereClause + orderBy + " LIMIT ? OFFSET ?";
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("article_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -231,26 +536,44 @@ public class ArticleDaoImpl implements ArticleDao {
             st.setInt(paramIndex, offset);
 
             ResultSet rs = st.executeQuery();
-            List<Article> out = new ArrayList<>();
+            List<T> out = new ArrayList<>();
 
             while (rs.next()) {
-                out.add(fromResultSet(rs));
+                out.add(mapper.map(rs));
             }
 
             return out;
         }
     }
     
+    @Override
+    public Long estimateCount() throws Exception {
+        return scatter.estimateRows("article");
+    }
+    
+    @Override
+    public Long indexedCount(String rsqlFilter) throws Exception {
+        Roaring64NavigableMap ids = rsqlConverter.resolveIds(rsqlFilter);
+        return ids == null ? null : ids.getLongCardinality();
+    }
+    
     @Override
     public long count(String rsqlFilter) throws Exception {
         String baseSql = "SELECT COUNT(*) FROM article_keyspace.article";
         
         // Convert RSQL to SQL WHERE clause
         RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        if (scatter.enabled()) {
+            Long total = scatter.count("SELECT COUNT(*) FROM article", filterResult);
+            if (total != null) {
+                return total;
+            }
+        }
         
         String sql = baseSql + " WHERE " + filterResult.whereClause;
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("article_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -276,6 +599,12 @@ public class ArticleDaoImpl implements ArticleDao {
         }
     }
     
+    /** Whether buildOrderByClause sorts by id */
+    private boolean idOrdered(String sortBy) {
+        return sortBy == null || sortBy.isEmpty() || sortBy.equals("id")
+            || !rsqlConverter.getAllowedColumns().contains(sortBy);
+    }
+    
     /**
      * Build a safe ORDER BY clause, validating the column name against allowed columns
      */
@@ -0,0 +1,403 @@
+package helvetia.main;
+
+import helvetia.Article;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over article title, abstract, articleTags and authors, used for
+ * GET /articles/search and the RSQL =match= operator instead of LIKE '%...%' scans.
+ *
+ * Each term (see {@link TextTokenizer}) maps to a sorted list of document numbers, each with
+ * its per-field term frequencies packed into one int. Ranking is BM25 over the field-boosted
+ * term frequency, so a term in the title outweighs the same term in the abstract.
+ *
+ * The DAO keeps the index in step with its own writes. Writes made by other server instances
+ * only show up at the next rebuild, which {@link #start} runs at startup and then every
+ * SEARCH_INDEX_REFRESH_MS. A rebuild loads a fresh copy off to the side, replays the writes
+ * that raced with it, and swaps it in.
+ */
+public class ArticleSearchIndex {
+    private static final Logger log = LogManager.getLogger(ArticleSearchIndex.class);
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int REBUILD_PAGE = 1000;
+    private static final long RETRY_MILLIS = 30_000;
+
+    /** Indexed fields, with the boost a term match in each gets when ranking */
+    public enum Field {
+        TITLE("title", 3),
+        ABSTRACT("abstract", 1),
+        TAGS("articleTags", 2),
+        AUTHORS("authors", 2);
+
+        final String column;
+        final int boost;
+
+        Field(String column, int boost) {
+            this.column = column;
+            this.boost = boost;
+        }
+
+        /** @return The field with this column name, or null */
+        public static Field of(String column) {
+            for (Field f : values()) {
+                if (f.column.equals(column)) return f;
+            }
+            return null;
+        }
+
+        int tf(int packed) {
+            return (packed >>> (8 * ordinal())) & 0xff;
+        }
+    }
+
+    /** Pseudo-field for =match= across all indexed fields */
+    public static final String ANY_FIELD = "text";
+
+    public record Hit(long id, double score) {}
+
+    /**
+     * @param hits The requested page, best first
+     * @param total Number of articles matching any query term
+     */
+    public record Result(List<Hit> hits, int total) {}
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Segment live = new Segment();
+    // Writes made while a rebuild is loading (an Article to put or a Long id to remove), replayed
+    // onto the rebuilt segment before the swap; null when no rebuild is running
+    private List<Object> pending;
+    private volatile boolean ready;
+
+    private final Metrics.Timer searchTimer = Metrics.timer("helvetia_article_search_seconds",
+        "Full-text article search latency, excluding hydration");
+
+    public ArticleSearchIndex() {
+        Metrics.gauge("helvetia_article_search_documents", "Articles in the full-text index", () -> live.docNos.size());
+        Metrics.gauge("helvetia_article_search_terms", "Distinct terms in the full-text index", () -> live.postings.size());
+    }
+
+    /**
+     * Create an index unless SEARCH_INDEX=false.
+     * @return The index, or null if disabled
+     */
+    public static ArticleSearchIndex fromEnv() {
+        if (!Boolean.parseBoolean(System.getenv().getOrDefault("SEARCH_INDEX", "true"))) {
+            return null;
+        }
+        return new ArticleSearchIndex();
+    }
+
+    /**
+     * Load the index from the database in the background, then reload it every
+     * SEARCH_INDEX_REFRESH_MS (default 5 minutes; 0 loads once) to pick up writes made through
+     * other instances.
+     */
+    public void start(ArticleDao dao) {
+        long refreshMillis = Long.parseLong(System.getenv().getOrDefault("SEARCH_INDEX_REFRESH_MS", "300000"));
+        ScheduledExecutorService loader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "article-search-index");
+            t.setDaemon(true);
+            return t;
+        });
+        loader.scheduleWithFixedDelay(() -> {
+            if (ready && refreshMillis <= 0) return;
+            try {
+                long start = System.nanoTime();
+                rebuild(dao);
+                log.info("Search index loaded {} articles, {} terms in {} ms", live.docNos.size(),
+                    live.postings.size(), (System.nanoTime() - start) / 1_000_000);
+            } catch (Exception e) {
+                log.error("Search index rebuild failed", e);
+            }
+        }, 0, refreshMillis > 0 ? refreshMillis : RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Whether the first load has completed; until then results would be incomplete
+     */
+    public boolean ready() {
+        return ready;
+    }
+
+    /**
+     * Replace the contents with every article in the database, paging by id.
+     */
+    public void rebuild(ArticleDao dao) throws Exception {
+        lock.writeLock().lock();
+        try {
+            if (pending != null) {
+                throw new IllegalStateException("Rebuild already running");
+            }
+            pending = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            Segment fresh = new Segment();
+            String filter = null;
+            List<Article> page;
+            do {
+                page = dao.list(filter, REBUILD_PAGE, 0, "id", "asc");
+                for (Article a : page) {
+                    fresh.put(a);
+                }
+                if (!page.isEmpty()) {
+                    filter = "id=gt=" + page.get(page.size() - 1).getId();
+                }
+            } while (page.size() == REBUILD_PAGE);
+
+            lock.writeLock().lock();
+            try {
+                for (Object write : pending) {
+                    if (write instanceof Article a) {
+                        fresh.put(a);
+                    } else {
+                        fresh.remove((Long) write);
+                    }
+                }
+                live = fresh;
+                ready = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            lock.writeLock().lock();
+            pending = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index an article, replacing any previous version with the same id.
+     */
+    public void put(Article a) {
+        lock.writeLock().lock();
+        try {
+            live.put(a);
+            if (pending != null) pending.add(a);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            live.remove(id);
+            if (pending != null) pending.add(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rank articles against a free-text query. An article matches if it contains any query term;
+     * those containing more of them, rarer ones, or in boosted fields come first.
+     */
+    public Result search(String query, int limit, int offset) {
+        long start = System.nanoTime();
+        List<String> terms = distinctTerms(query);
+        lock.readLock().lock();
+        try {
+            Segment seg = live;
+            int n = seg.docNos.size();
+            if (terms.isEmpty() || n == 0) {
+                return new Result(List.of(), 0);
+            }
+            double avgLength = Math.max(1.0, (double) seg.totalLength / n);
+            double[] scores = new double[seg.docs.size()];
+            int[] matched = new int[64];
+            int total = 0;
+            for (String term : terms) {
+                Postings p = seg.postings.get(term);
+                if (p == null) continue;
+                double idf = Math.log(1 + (n - p.size + 0.5) / (p.size + 0.5));
+                for (int i = 0; i < p.size; i++) {
+                    int docNo = p.docs[i];
+                    double tf = weightedTf(p.freqs[i]);
+                    double norm = K1 * (1 - B + B * seg.docs.get(docNo).length / avgLength);
+                    if (scores[docNo] == 0) {
+                        if (total == matched.length) matched = Arrays.copyOf(matched, total * 2);
+                        matched[total++] = docNo;
+                    }
+                    scores[docNo] += idf * tf * (K1 + 1) / (tf + norm);
+                }
+            }
+
+            int k = offset + limit;
+            Comparator<Hit> order = Comparator.comparingDouble(Hit::score).thenComparingLong(h -> -h.id());
+            PriorityQueue<Hit> top = new PriorityQueue<>(Math.max(1, Math.min(k, total)), order);
+            for (int i = 0; i < total && k > 0; i++) {
+                int docNo = matched[i];
+                Hit hit = new Hit(seg.docs.get(docNo).id, scores[docNo]);
+                if (top.size() < k) {
+                    top.add(hit);
+                } else if (order.compare(hit, top.peek()) > 0) {
+                    top.poll();
+                    top.add(hit);
+                }
+            }
+            List<Hit> ranked = new ArrayList<>(top);
+            ranked.sort(order.reversed());
+            List<Hit> hits = offset >= ranked.size() ? List.of() : ranked.subList(offset, ranked.size());
+            return new Result(hits, total);
+        } finally {
+            lock.readLock().unlock();
+            searchTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * Ids of the articles containing every term of the query in the given field, for =match=.
+     * @param field An indexed column name, or {@link #ANY_FIELD} for any of them
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public List<Long> matchIds(String field, String query) {
+        Field only = Field.of(field);
+        if (only == null && !ANY_FIELD.equals(field)) {
+            throw new IllegalArgumentException("Field " + field + " has no full-text index");
+        }
+        List<String> terms = distinctTerms(query);
+        lock.readLock().lock();
+        try {
+            Segment seg = live;
+            List<Postings> lists = new ArrayList<>(terms.size());
+            for (String term : terms) {
+                Postings p = seg.postings.get(term);
+                if (p == null) return List.of();
+                lists.add(p);
+            }
+            if (lists.isEmpty()) return List.of();
+            // Walk the rarest term and probe the others
+            lists.sort(Comparator.comparingInt(p -> p.size));
+            Postings first = lists.get(0);
+            List<Long> ids = new ArrayList<>();
+            candidates:
+            for (int i = 0; i < first.size; i++) {
+                int docNo = first.docs[i];
+                if (!inField(first.freqs[i], only)) continue;
+                for (int j = 1; j < lists.size(); j++) {
+                    Postings p = lists.get(j);
+                    int at = Arrays.binarySearch(p.docs, 0, p.size, docNo);
+                    if (at < 0 || !inField(p.freqs[at], only)) continue candidates;
+                }
+                ids.add(seg.docs.get(docNo).id);
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static List<String> distinctTerms(String query) {
+        return new ArrayList<>(new LinkedHashSet<>(TextTokenizer.tokenize(query)));
+    }
+
+    private static boolean inField(int packed, Field only) {
+        return only == null || only.tf(packed) > 0;
+    }
+
+    private static double weightedTf(int packed) {
+        double tf = 0;
+        for (Field f : Field.values()) {
+            tf += f.boost * f.tf(packed);
+        }
+        return tf;
+    }
+
+    private static String fieldText(Article a, Field f) {
+        return switch (f) {
+            case TITLE -> a.getTitle();
+            case ABSTRACT -> a.getAbstract();
+            case TAGS -> String.join(" \n ", a.getArticleTagsList());
+            case AUTHORS -> String.join(" \n ", a.getAuthorsList());
+        };
+    }
+
+    private record Doc(long id, String[] terms, int length) {}
+
+    /** Sorted document numbers containing a term, with packed per-field frequencies */
+    private static final class Postings {
+        int[] docs = new int[2];
+        int[] freqs = new int[2];
+        int size;
+
+        void add(int docNo, int packed) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = docNo;
+            freqs[size++] = packed;
+        }
+
+        void remove(int docNo) {
+            int at = Arrays.binarySearch(docs, 0, size, docNo);
+            if (at < 0) return;
+            System.arraycopy(docs, at + 1, docs, at, size - at - 1);
+            System.arraycopy(freqs, at + 1, freqs, at, size - at - 1);
+            size--;
+        }
+    }
+
+    /**
+     * One generation of the index. Document numbers only grow, so postings stay sorted by
+     * appending; a replaced or removed article leaves a null slot until the next rebuild.
+     */
+    private static final class Segment {
+        final List<Doc> docs = new ArrayList<>();
+        final Map<Long, Integer> docNos = new HashMap<>();
+        final Map<String, Postings> postings = new HashMap<>();
+        long totalLength;
+
+        void put(Article a) {
+            remove(a.getId());
+            Map<String, Integer> freqs = new HashMap<>();
+            int length = 0;
+            for (Field f : Field.values()) {
+                List<String> tokens = TextTokenizer.tokenize(fieldText(a, f));
+                length += f.boost * tokens.size();
+                int shift = 8 * f.ordinal();
+                for (String t : tokens) {
+                    // Saturate each field's count at 255 rather than carry into the next field
+                    freqs.merge(t, 1 << shift, (old, one) -> ((old >>> shift) & 0xff) == 0xff ? old : old + one);
+                }
+            }
+            int docNo = docs.size();
+            docs.add(new Doc(a.getId(), freqs.keySet().toArray(new String[0]), length));
+            docNos.put(a.getId(), docNo);
+            totalLength += length;
+            for (Map.Entry<String, Integer> e : freqs.entrySet()) {
+                postings.computeIfAbsent(e.getKey(), k -> new Postings()).add(docNo, e.getValue());
+            }
+        }
+
+        void remove(long id) {
+            Integer docNo = docNos.remove(id);
+            if (docNo == null) return;
+            Doc doc = docs.set(docNo, null);
+            totalLength -= doc.length;
+            for (String term : doc.terms) {
+                Postings p = postings.get(term);
+                p.remove(docNo);
+                if (p.size == 0) postings.remove(term);
+            }
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package helvetia.main;
 
+import com.google.protobuf.FieldMask;
+import helvetia.AggregateResult;
 import helvetia.BeRead;
+import java.util.Collection;
 import java.util.List;
 
 public interface BeReadDao {
@@ -26,9 +29,71 @@ public interface BeReadDao {
      */
     List<BeRead> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
     
+    /**
+     * The same page as {@link #list(String, int, int, String, String)}, each row encoded
+     * straight from the result set in BeRead wire format
+     */
+    List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
+    
     /**
      * Count total beread records matching filter
      * @param rsqlFilter RSQL filter string, or null for no filtering
      */
     long count(String rsqlFilter) throws Exception;
+    
+    /**
+     * Estimate the total number of beread records, unfiltered, from table statistics
+     * @return The estimate, or null if statistics are unavailable
+     */
+    Long estimateCount() throws Exception;
+    
+    /**
+     * Read the serialized engagement bitmaps for a beread record
+     * @param id BeRead id
+     * @return Serialized bitmaps, or null if the row is missing or has none yet
+     */
+    byte[] getEngagementBitmaps(long id) throws Exception;
+    
+    /**
+     * Store serialized engagement bitmaps for a beread record
+     * @param id BeRead id
+     * @param data Serialized bitmaps (see EngagementBitmaps.serialize)
+     */
+    void setEngagementBitmaps(long id, byte[] data) throws Exception;
+    
+    /**
+     * Update only the columns named in the field mask
+     * @param b BeRead carrying the id and the new values
+     * @param mask Proto field names to write; id and the shard key cannot be patched
+     * @return true if a row with this id exists
+     */
+    boolean patch(BeRead b, FieldMask mask) throws Exception;
+    
+    /**
+     * Insert the beread record, or update only the masked columns if it already exists
+     * (INSERT ... ON DUPLICATE KEY UPDATE)
+     * @param b Complete BeRead, including id and shard key
+     * @param mask Proto field names to overwrite when the row already exists
+     */
+    void upsert(BeRead b, FieldMask mask) throws Exception;
+    
+    /**
+     * Point lookup by aid, routed through the aid lookup vindex
+     * @return The matching BeRead, or null if none
+     */
+    BeRead getByAid(String aid) throws Exception;
+    
+    /**
+     * Batch lookup by aid in a single query, routed through the aid lookup vindex
+     * @return The matching rows in no particular order; unknown aids are skipped
+     */
+    List<BeRead> getByAids(Collection<String> aids) throws Exception;
+    
+    /**
+     * Grouped aggregates over beread records matching the filter, computed per shard and merged
+     * @param aggregation Group columns and metrics
+     * @param rsqlFilter RSQL filter string, or null for no filtering
+     * @throws IllegalArgumentException for columns that are not allowed
+     */
+    AggregateResult aggregate(Aggregation aggregation, String rsqlFilter) throws Exception;
 }
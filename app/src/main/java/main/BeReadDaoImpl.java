@@ -1,17 +1,25 @@
 package helvetia.main;
 
 import helvetia.BeRead;
+import helvetia.AggregateResult;
+import com.google.protobuf.FieldMask;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class BeReadDaoImpl implements BeReadDao {
 
     private final DB db;
+    private final ScatterGather scatter;
+    private final RowEncoder encoder = new RowEncoder(BeRead.getDescriptor());
+    private final ShardRouter shards;
     private final Gson gson = new Gson();
     
     // RSQL to SQL converter with allowed columns
@@ -19,8 +27,39 @@ public class BeReadDaoImpl implements BeReadDao {
         "id", "timestamp", "aid", "category", "readNum", "commentNum", "agreeNum", "shareNum"
     ));
 
+    // Filterable columns that aggregate metrics (sum, avg, min, max) may use
+    private static final Set<String> NUMERIC_COLUMNS = Set.of(
+        "id", "timestamp", "readNum", "commentNum", "agreeNum", "shareNum"
+    );
+
+    // Columns PATCH may write, keyed by proto field name.
+    // Id and category form the primary vindex (category_vdx) and cannot be patched.
+    private final Map<String, FieldMaskUpdate.Binder<BeRead>> mutableColumns = Map.of(
+        "readNum", (st, i, b) -> st.setInt(i, b.getReadNum()),
+        "readUidList", (st, i, b) -> st.setString(i, gson.toJson(b.getReadUidListList())),
+        "commentNum", (st, i, b) -> st.setInt(i, b.getCommentNum()),
+        "commentUidList", (st, i, b) -> st.setString(i, gson.toJson(b.getCommentUidListList())),
+        "agreeNum", (st, i, b) -> st.setInt(i, b.getAgreeNum()),
+        "agreeUidList", (st, i, b) -> st.setString(i, gson.toJson(b.getAgreeUidListList())),
+        "shareNum", (st, i, b) -> st.setInt(i, b.getShareNum()),
+        "shareUidList", (st, i, b) -> st.setString(i, gson.toJson(b.getShareUidListList()))
+    );
+
+    private static final String INSERT_SQL = """
+        INSERT INTO beread_keyspace.beread (id, aid, category, readNum, readUidList, commentNum, commentUidList, agreeNum, agreeUidList, shareNum, shareUidList)
+        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+        """;
+
+    // Point read sent straight to the owning shard by ShardRouter (no keyspace qualifier)
+    private static final String SHARD_GET_SQL = "SELECT id, timestamp, aid, category, readNum, readUidList, commentNum, commentUidList, agreeNum, agreeUidList, shareNum, shareUidList FROM beread WHERE id = ?";
+
+    // Per-shard list query for the ScatterGather coordinator (no keyspace qualifier)
+    private static final String SHARD_LIST_SQL = "SELECT id, timestamp, aid, category, readNum, readUidList, commentNum, commentUidList, agreeNum, agreeUidList, shareNum, shareUidList FROM beread";
+
     public BeReadDaoImpl(DB db) {
         this.db = db;
+        this.scatter = ScatterGather.fromEnv(db, "beread_keyspace");
+        this.shards = ShardRouter.fromEnv(db, "beread_keyspace");
     }
 
     BeRead fromResultSet(ResultSet rs) throws SQLException {
@@ -74,21 +113,20 @@ public class BeReadDaoImpl implements BeReadDao {
 
     @Override
     public void create(BeRead b) throws Exception {
-        String sql = """
-            INSERT INTO beread_keyspace.beread (id, aid, category, readNum, readUidList, commentNum, commentUidList, agreeNum, agreeUidList, shareNum, shareUidList)
-            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-        """;
-
-        try (Connection conn = db.getConnection();
-            PreparedStatement st = conn.prepareStatement(sql)) {
+        try (Connection conn = db.getConnectionNear(keyspaceId(b));
+            PreparedStatement st = conn.prepareStatement(INSERT_SQL)) {
             st.setLong(1, b.getId());
             fillStatement(b, st, 2);
             st.executeUpdate();
         }
+        shards.remember(b.getId(), keyspaceId(b));
     }
 
     @Override
     public BeRead get(long id) throws Exception {
+        BeRead targeted = shards.get(id, SHARD_GET_SQL, this::fromResultSet);
+        if (targeted != null) return targeted;
+
         String sql = "SELECT id, timestamp, aid, category, readNum, readUidList, commentNum, commentUidList, agreeNum, agreeUidList, shareNum, shareUidList FROM beread_keyspace.beread WHERE id = ?";
 
         try (Connection conn = db.getConnection();
@@ -98,10 +136,53 @@ public class BeReadDaoImpl implements BeReadDao {
             ResultSet rs = st.executeQuery();
             if (!rs.next()) return null;
 
+            BeRead b = fromResultSet(rs);
+            shards.remember(id, keyspaceId(b));
+            return b;
+        }
+    }
+
+    @Override
+    public BeRead getByAid(String aid) throws Exception {
+        // The beread_aid_lookup vindex on aid routes this to a single shard
+        String sql = "SELECT id, timestamp, aid, category, readNum, readUidList, commentNum, commentUidList, agreeNum, agreeUidList, shareNum, shareUidList FROM beread_keyspace.beread WHERE aid = ?";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+
+            st.setString(1, aid);
+            ResultSet rs = st.executeQuery();
+            if (!rs.next()) return null;
+
             return fromResultSet(rs);
         }
     }
 
+    @Override
+    public List<BeRead> getByAids(Collection<String> aids) throws Exception {
+        if (aids.isEmpty()) {
+            return List.of();
+        }
+        // The beread_aid_lookup vindex resolves each aid to its shard, so only those shards are queried
+        String sql = "SELECT id, timestamp, aid, category, readNum, readUidList, commentNum, commentUidList, agreeNum, agreeUidList, shareNum, shareUidList FROM beread_keyspace.beread WHERE aid IN ("
+            + String.join(", ", Collections.nCopies(aids.size(), "?")) + ")";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+
+            int paramIndex = 1;
+            for (String aid : aids) {
+                st.setString(paramIndex++, aid);
+            }
+            ResultSet rs = st.executeQuery();
+            List<BeRead> out = new ArrayList<>();
+            while (rs.next()) {
+                out.add(fromResultSet(rs));
+            }
+            return out;
+        }
+    }
+
     @Override
     public void update(BeRead b) throws Exception {
         String sql = """
@@ -139,11 +220,44 @@ public class BeReadDaoImpl implements BeReadDao {
         st.setString(i++, gson.toJson(b.getShareUidListList()));
     }
 
+    /** Keyspace id of the row under the category-based primary vindex */
+    private byte[] keyspaceId(BeRead b) {
+        return KeyspaceIds.regionJson(b.getId(), b.getCategory(), KeyspaceIds.CATEGORY_MAP);
+    }
+
     /** Convert empty strings to null for nullable DB columns */
     private String emptyToNull(String s) {
         return (s == null || s.isEmpty()) ? null : s;
     }
 
+    @Override
+    public boolean patch(BeRead b, FieldMask mask) throws Exception {
+        FieldMaskUpdate<BeRead> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = "UPDATE beread_keyspace.beread SET " + update.setClause() + " WHERE id = ?";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            int i = update.bind(st, 1, b);
+            st.setLong(i, b.getId());
+            return st.executeUpdate() > 0;
+        }
+    }
+
+    @Override
+    public void upsert(BeRead b, FieldMask mask) throws Exception {
+        FieldMaskUpdate<BeRead> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = INSERT_SQL + " ON DUPLICATE KEY UPDATE " + update.setClause();
+
+        try (Connection conn = db.getConnectionNear(keyspaceId(b));
+            PreparedStatement st = conn.prepareStatement(sql)) {
+            st.setLong(1, b.getId());
+            fillStatement(b, st, 2);
+            update.bind(st, 12, b);
+            st.executeUpdate();
+        }
+        shards.remember(b.getId(), keyspaceId(b));
+    }
+
     @Override
     public boolean delete(long id) throws Exception {
         String sql = "DELETE FROM beread_keyspace.beread WHERE id = ?";
@@ -152,10 +266,38 @@ public class BeReadDaoImpl implements BeReadDao {
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             st.setLong(1, id);
+            shards.forget(id);
             return st.executeUpdate() > 0;
         }
     }
 
+    @Override
+    public byte[] getEngagementBitmaps(long id) throws Exception {
+        String sql = "SELECT engagementBitmaps FROM beread_keyspace.beread WHERE id = ?";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+
+            st.setLong(1, id);
+            ResultSet rs = st.executeQuery();
+            if (!rs.next()) return null;
+
+            return rs.getBytes(1);
+        }
+    }
+
+    @Override
+    public void setEngagementBitmaps(long id, byte[] data) throws Exception {
+        String sql = "UPDATE beread_keyspace.beread SET engagementBitmaps = ? WHERE id = ?";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            st.setBytes(1, data);
+            st.setLong(2, id);
+            st.executeUpdate();
+        }
+    }
+
     @Override
     public List<BeRead> list() throws Exception {
         return list(null);
@@ -168,10 +310,28 @@ public class BeReadDaoImpl implements BeReadDao {
     
     @Override
     public List<BeRead> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, this::fromResultSet);
+    }
+
+    @Override
+    public List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, encoder::encode);
+    }
+
+    private <T> List<T> listPage(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                                 ShardRouter.RowMapper<T> mapper) throws Exception {
         String baseSql = "SELECT id, timestamp, aid, category, readNum, readUidList, commentNum, commentUidList, agreeNum, agreeUidList, shareNum, shareUidList FROM beread_keyspace.beread";
         
         // Convert RSQL to SQL WHERE clause
         RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        if (scatter.enabled()) {
+            List<T> page = scatter.list(SHARD_LIST_SQL, filterResult, sortBy, sortDir,
+                rsqlConverter.getAllowedColumns(), limit, offset, mapper);
+            if (page != null) {
+                return page;
+            }
+        }
         
         // Validate and build ORDER BY clause
         String orderBy = buildOrderByClause(sortBy, sortDir);
@@ -179,7 +339,7 @@ public class BeReadDaoImpl implements BeReadDao {
         // Build final query with offset-based pagination
         String sql = baseSql + " WHERE " + filterResult.whereClause + orderBy + " LIMIT ? OFFSET ?";
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("beread_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -202,26 +362,38 @@ public class BeReadDaoImpl implements BeReadDao {
             st.setInt(paramIndex, offset);
 
             ResultSet rs = st.executeQuery();
-            List<BeRead> out = new ArrayList<>();
+            List<T> out = new ArrayList<>();
 
             while (rs.next()) {
-                out.add(fromResultSet(rs));
+                out.add(mapper.map(rs));
             }
 
             return out;
         }
     }
     
+    @Override
+    public Long estimateCount() throws Exception {
+        return scatter.estimateRows("beread");
+    }
+    
     @Override
     public long count(String rsqlFilter) throws Exception {
         String baseSql = "SELECT COUNT(*) FROM beread_keyspace.beread";
         
         // Convert RSQL to SQL WHERE clause
         RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        if (scatter.enabled()) {
+            Long total = scatter.count("SELECT COUNT(*) FROM beread", filterResult);
+            if (total != null) {
+                return total;
+            }
+        }
         
         String sql = baseSql + " WHERE " + filterResult.whereClause;
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("beread_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -247,6 +419,25 @@ public class BeReadDaoImpl implements BeReadDao {
         }
     }
     
+    @Override
+    public AggregateResult aggregate(Aggregation aggregation, String rsqlFilter) throws Exception {
+        aggregation.validate(rsqlConverter.getAllowedColumns(), NUMERIC_COLUMNS);
+        RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        List<Object[]> rows = scatter.gather(aggregation.partialSql("beread", filterResult.whereClause),
+            filterResult, "aggregate");
+        if (rows == null) {
+            // Shards overlap mid-reshard: let vtgate group across them instead
+            String sql = aggregation.partialSql("beread_keyspace.beread", filterResult.whereClause);
+            try (Connection conn = db.getReadConnection("beread_keyspace");
+                 PreparedStatement st = conn.prepareStatement(sql)) {
+                ScatterGather.bind(st, 1, filterResult.parameters);
+                rows = ScatterGather.rows(st.executeQuery());
+            }
+        }
+        return aggregation.merge(rows);
+    }
+    
     /**
      * Build a safe ORDER BY clause, validating the column name against allowed columns
      */
@@ -0,0 +1,167 @@
+package helvetia.main;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import helvetia.Column;
+import helvetia.ColumnarPage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transposes list pages (UserList, ReadList, ...) into a {@link ColumnarPage} and back.
+ *
+ * Driven by the row message's descriptor, so every list message works unchanged: each field
+ * becomes one column of packed values. int64 columns are delta-encoded, which shrinks ids and
+ * timestamps of a sorted page to a byte or two, and string columns with few distinct values are
+ * dictionary-encoded, so "Beijing" is sent once per page rather than once per row.
+ */
+public final class Columnar {
+    // Dictionary-encode a string column when at most this share of its values are distinct
+    private static final double DICTIONARY_MAX_DISTINCT = 0.5;
+
+    private Columnar() {}
+
+    /**
+     * @param page A list message: a repeated message field of rows plus an int64 totalCount
+     * @throws IllegalArgumentException for a message that is not a list, or rows with field types
+     * other than scalars and repeated strings
+     */
+    public static ColumnarPage encode(Message page) {
+        FieldDescriptor rowsField = rowsField(page.getDescriptorForType());
+        FieldDescriptor countField = page.getDescriptorForType().findFieldByName("totalCount");
+        int n = page.getRepeatedFieldCount(rowsField);
+        List<Message> rows = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            rows.add((Message) page.getRepeatedField(rowsField, i));
+        }
+
+        ColumnarPage.Builder out = ColumnarPage.newBuilder()
+            .setRowCount(n)
+            .setTotalCount(countField != null ? (Long) page.getField(countField) : n);
+        for (FieldDescriptor f : rowsField.getMessageType().getFields()) {
+            Column.Builder c = Column.newBuilder().setName(f.getName());
+            if (f.isRepeated()) {
+                if (f.getJavaType() != FieldDescriptor.JavaType.STRING) {
+                    throw new IllegalArgumentException("Unsupported repeated field " + f.getFullName());
+                }
+                List<String> elements = new ArrayList<>();
+                for (Message row : rows) {
+                    int count = row.getRepeatedFieldCount(f);
+                    c.addLengths(count);
+                    for (int i = 0; i < count; i++) {
+                        elements.add((String) row.getRepeatedField(f, i));
+                    }
+                }
+                addStrings(c, elements);
+            } else {
+                switch (f.getJavaType()) {
+                    case LONG -> {
+                        c.setDelta(true);
+                        long previous = 0;
+                        for (Message row : rows) {
+                            long v = (Long) row.getField(f);
+                            c.addInts(v - previous);
+                            previous = v;
+                        }
+                    }
+                    case INT -> rows.forEach(row -> c.addInts((Integer) row.getField(f)));
+                    case BOOLEAN -> rows.forEach(row -> c.addBools((Boolean) row.getField(f)));
+                    case DOUBLE, FLOAT -> rows.forEach(row -> c.addDoubles(((Number) row.getField(f)).doubleValue()));
+                    case STRING -> {
+                        List<String> values = new ArrayList<>(n);
+                        rows.forEach(row -> values.add((String) row.getField(f)));
+                        addStrings(c, values);
+                    }
+                    default -> throw new IllegalArgumentException("Unsupported field " + f.getFullName());
+                }
+            }
+            out.addColumns(c);
+        }
+        return out.build();
+    }
+
+    private static void addStrings(Column.Builder c, List<String> values) {
+        Map<String, Integer> codes = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] encoded = new int[values.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = codes.computeIfAbsent(values.get(i), v -> {
+                dictionary.add(v);
+                return dictionary.size() - 1;
+            });
+            if (dictionary.size() > values.size() * DICTIONARY_MAX_DISTINCT) {
+                c.addAllStrings(values);
+                return;
+            }
+        }
+        c.addAllDictionary(dictionary);
+        for (int code : encoded) {
+            c.addCodes(code);
+        }
+    }
+
+    /**
+     * Rebuild the rows of a columnar page, for Java clients and tests. Columns the row message
+     * does not know are ignored.
+     * @param prototype Default instance of the row message, e.g. Read.getDefaultInstance()
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Message> List<T> decode(ColumnarPage page, T prototype) {
+        int n = page.getRowCount();
+        List<Message.Builder> builders = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            builders.add(prototype.newBuilderForType());
+        }
+        Descriptor type = prototype.getDescriptorForType();
+        for (Column c : page.getColumnsList()) {
+            FieldDescriptor f = type.findFieldByName(c.getName());
+            if (f == null) {
+                continue;
+            }
+            if (f.isRepeated()) {
+                int next = 0;
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < c.getLengths(i); j++) {
+                        builders.get(i).addRepeatedField(f, string(c, next++));
+                    }
+                }
+                continue;
+            }
+            long running = 0;
+            for (int i = 0; i < n; i++) {
+                Object v = switch (f.getJavaType()) {
+                    case LONG -> c.getDelta() ? (running += c.getInts(i)) : c.getInts(i);
+                    case INT -> (int) c.getInts(i);
+                    case BOOLEAN -> c.getBools(i);
+                    case DOUBLE -> c.getDoubles(i);
+                    case FLOAT -> (float) c.getDoubles(i);
+                    case STRING -> string(c, i);
+                    default -> throw new IllegalArgumentException("Unsupported field " + f.getFullName());
+                };
+                builders.get(i).setField(f, v);
+            }
+        }
+        List<T> rows = new ArrayList<>(n);
+        for (Message.Builder b : builders) {
+            rows.add((T) b.build());
+        }
+        return rows;
+    }
+
+    private static String string(Column c, int i) {
+        return c.getDictionaryCount() > 0 ? c.getDictionary(c.getCodes(i)) : c.getStrings(i);
+    }
+
+    private static FieldDescriptor rowsField(Descriptor list) {
+        for (FieldDescriptor f : list.getFields()) {
+            if (f.isRepeated() && f.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+                return f;
+            }
+        }
+        throw new IllegalArgumentException(list.getFullName() + " is not a list message");
+    }
+}
@@ -0,0 +1,101 @@
+package helvetia.main;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive concurrency limit for one route, in the style of Netflix's Gradient2 limiter.
+ *
+ * Two exponentially weighted latency averages are kept: a short one tracking current latency and
+ * a long one tracking the baseline. Their ratio is the gradient; when current latency rises above
+ * the baseline (vtgate slowing down, requests queueing on the pool) the gradient drops below 1 and
+ * the limit shrinks, and while latency stays at the baseline the limit grows by a queue allowance
+ * of sqrt(limit). Requests above the limit are refused immediately rather than queued, so a slow
+ * backend costs rejected requests instead of piling threads into {@link DB#getConnection()}.
+ */
+public class ConcurrencyLimiter {
+    // Latency may exceed the baseline by this factor before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double SHORT_ALPHA = 0.1;
+    private static final double LONG_ALPHA = 1.0 / 600;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile double limit;
+    private double shortRtt;
+    private double longRtt;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * A limiter that never adapts, for routes whose latency measures the client rather than the
+     * backend.
+     */
+    public static ConcurrencyLimiter fixed(int limit) {
+        return new ConcurrencyLimiter(limit, limit, limit);
+    }
+
+    /**
+     * @return true if the request may proceed; it must then call {@link #release} exactly once
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Finish a request admitted by {@link #tryAcquire} and feed its latency into the limit.
+     */
+    public void release(long rttNanos) {
+        int wasInFlight = inFlight.getAndDecrement();
+        sample(rttNanos, wasInFlight);
+    }
+
+    synchronized void sample(long rttNanos, int wasInFlight) {
+        double rtt = Math.max(1, rttNanos);
+        if (longRtt == 0) {
+            shortRtt = rtt;
+            longRtt = rtt;
+            return;
+        }
+        shortRtt += SHORT_ALPHA * (rtt - shortRtt);
+        longRtt += LONG_ALPHA * (rtt - longRtt);
+
+        // After a sustained slowdown the baseline has crept up; let it recover quickly once
+        // latency returns to normal, so the limit can grow again
+        if (longRtt / shortRtt > 2) {
+            longRtt *= 0.95;
+        }
+
+        // Only grow while the limit is actually being used; an idle route keeps its limit
+        if (wasInFlight < limit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double next = limit * gradient + Math.sqrt(limit);
+        next = limit * (1 - SMOOTHING) + next * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    public int limit() {
+        return (int) limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+}
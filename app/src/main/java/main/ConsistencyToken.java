@@ -0,0 +1,66 @@
+package helvetia.main;
+
+/**
+ * Read-your-writes token carried by the current request.
+ *
+ * A successful write returns the server time it completed at in the {@value #HEADER} response
+ * header. A client that sends the token back on a later read can only be served by a replica that
+ * has applied everything up to that time (see {@link ReplicaReads}); otherwise the read goes to
+ * the primary.
+ *
+ * Shared caches are filled by any request, so a page read from a lagging replica could be
+ * cached right after a write invalidated it and then served to a request holding that write's
+ * token. {@link #cacheable()} keeps both kinds of read away from the list caches.
+ */
+public final class ConsistencyToken {
+    public static final String HEADER = "X-Consistency-Token";
+
+    private static final ThreadLocal<Long> CURRENT = new ThreadLocal<>();
+    // Set once the current request has routed a read to replicas
+    private static final ThreadLocal<Boolean> REPLICA_READ = new ThreadLocal<>();
+
+    private ConsistencyToken() {}
+
+    /** Token for a write completing now */
+    public static long issue() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Bind the request's token to this thread. A missing or malformed header binds nothing.
+     */
+    public static void set(String header) {
+        if (header == null || header.isBlank()) {
+            return;
+        }
+        try {
+            CURRENT.set(Long.parseLong(header.trim()));
+        } catch (NumberFormatException e) {
+            // Treat an unparseable token as absent rather than failing the read
+        }
+    }
+
+    /** @return The bound token, or 0 if the request carried none */
+    public static long current() {
+        Long t = CURRENT.get();
+        return t == null ? 0 : t;
+    }
+
+    /** Note that the current request read from replicas; see {@link DB#getReadConnection} */
+    public static void markReplicaRead() {
+        REPLICA_READ.set(Boolean.TRUE);
+    }
+
+    /**
+     * @return Whether the request may use shared caches: it carries no token, which a cached
+     * page cannot be checked against, and none of its reads so far went to replicas
+     */
+    public static boolean cacheable() {
+        return current() == 0 && REPLICA_READ.get() == null;
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+        REPLICA_READ.remove();
+    }
+}
@@ -1,30 +1,327 @@
 package helvetia.main;
 
 import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Connection source over one or more vtgates.
+ *
+ * Each vtgate is a {@link VtgateEndpoint} with its own pool, tagged with its datacenter and cell.
+ * Endpoints are ranked healthy before unhealthy and local datacenter before remote; within the
+ * leading tier the {@link P2cBalancer} picks by latency and in-flight load, favouring the cell that
+ * hosts the data's shard primary. If borrowing fails the next endpoint is tried, so losing a vtgate
+ * degrades to another one instead of failing requests.
+ */
 public class DB {
-    private final HikariDataSource ds;
+    private static final Logger log = LogManager.getLogger(DB.class);
+
+    /** A deferred connection borrow, e.g. for an attempt run on another thread */
+    @FunctionalInterface
+    public interface ConnectionSource {
+        Connection open() throws SQLException;
+    }
+
+    /** A borrowed connection and the vtgate it came from */
+    public record Borrowed(Connection connection, VtgateEndpoint endpoint) {}
+
+    private final List<VtgateEndpoint> endpoints;
     private final String keyspace;
+    private final String localDc;
+    private final String localCell;
+    // Shard name (e.g. "-80") -> cell hosting its primary tablet
+    private final Map<String, String> shardCells;
+    private final ScheduledExecutorService healthChecker;
+    // Null unless READ_PREFERENCE=replica
+    private volatile ReplicaReads replicaReads;
+    private final HedgedReads hedgedReads;
+    private final P2cBalancer balancer = P2cBalancer.fromEnv();
+
+    private final Metrics.Counter primaryReads = Metrics.counter("helvetia_db_reads_total",
+        "List/count reads by the tablet type they were sent to", "tablet_type", "primary");
+    private final Metrics.Counter replicaReadCount = Metrics.counter("helvetia_db_reads_total",
+        "List/count reads by the tablet type they were sent to", "tablet_type", "replica");
 
+    /**
+     * Single-vtgate DB, as used by tests and tools.
+     */
     public DB(HikariConfig cfg, String keyspace) {
-        this.ds = new HikariDataSource(cfg);
+        this(List.of(new VtgateEndpoint("default", "", "", cfg, cfg.getJdbcUrl())),
+            keyspace, "", "", Map.of(), 0);
+    }
+
+    /**
+     * @param healthIntervalMillis Probe period, or 0 to disable health checks
+     */
+    public DB(List<VtgateEndpoint> endpoints, String keyspace, String localDc, String localCell,
+              Map<String, String> shardCells, long healthIntervalMillis) {
+        this.endpoints = endpoints;
         this.keyspace = keyspace;
+        this.localDc = localDc;
+        this.localCell = localCell;
+        this.shardCells = shardCells;
+        this.hedgedReads = HedgedReads.fromEnv(this);
+
+        if (healthIntervalMillis > 0 && endpoints.size() > 1) {
+            this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "vtgate-health");
+                t.setDaemon(true);
+                return t;
+            });
+            healthChecker.scheduleWithFixedDelay(this::probeAll, 0, healthIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.healthChecker = null;
+        }
+    }
+
+    /**
+     * Build from the environment. DB_ENDPOINTS lists vtgates as comma-separated
+     * "dc/cell=jdbcUrl" entries, e.g.
+     * "dc1/cell1=jdbc:mysql://127.0.0.1:15306/,dc1/cell2=jdbc:mysql://127.0.0.1:15307/".
+     * Without it the single vtgate from the base config's JDBC URL (DB_URL) is used.
+     * LOCAL_DC and LOCAL_CELL tag this instance; SHARD_CELLS maps shards to their primary's cell.
+     * READ_PREFERENCE=replica lets list and count reads use replicas (see {@link ReplicaReads}).
+     */
+    public static DB fromEnv(HikariConfig base, String keyspace) {
+        DB db = endpointsFromEnv(base, keyspace);
+        if ("replica".equalsIgnoreCase(System.getenv().getOrDefault("READ_PREFERENCE", "primary"))) {
+            ReplicaReads replicas = ReplicaReads.fromEnv(db);
+            replicas.start();
+            db.replicaReads = replicas;
+        }
+        return db;
+    }
+
+    private static DB endpointsFromEnv(HikariConfig base, String keyspace) {
+        String spec = System.getenv("DB_ENDPOINTS");
+        if (spec == null || spec.isBlank()) {
+            return new DB(base, keyspace);
+        }
+
+        // Fail over quickly instead of waiting Hikari's default 30s on a dead vtgate
+        base.setConnectionTimeout(Long.parseLong(System.getenv().getOrDefault("DB_CONNECT_TIMEOUT_MS", "2000")));
+
+        List<VtgateEndpoint> endpoints = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] nameAndUrl = entry.trim().split("=", 2);
+            String[] dcAndCell = nameAndUrl[0].split("/", 2);
+            if (nameAndUrl.length != 2 || dcAndCell.length != 2) {
+                throw new IllegalArgumentException("DB_ENDPOINTS entry must be dc/cell=jdbcUrl: " + entry);
+            }
+            endpoints.add(new VtgateEndpoint(nameAndUrl[0], dcAndCell[0], dcAndCell[1], base, nameAndUrl[1]));
+        }
+
+        String localDc = System.getenv().getOrDefault("LOCAL_DC", "dc1");
+        String localCell = System.getenv().getOrDefault("LOCAL_CELL", "cell1");
+        long healthMs = Long.parseLong(System.getenv().getOrDefault("DB_HEALTH_INTERVAL_MS", "2000"));
+        Map<String, String> shardCells = parseMap(System.getenv().getOrDefault("SHARD_CELLS", "-80=cell1,80-=cell2"));
+
+        log.info("Using {} vtgates (local {}/{})", endpoints.size(), localDc, localCell);
+        return new DB(endpoints, keyspace, localDc, localCell, shardCells, healthMs);
     }
 
+    /**
+     * Borrow a connection from the best endpoint for this instance's own cell.
+     */
     public Connection getConnection() throws SQLException {
-        Connection conn = ds.getConnection();
-        if (keyspace != null && !keyspace.isEmpty()) {
+        return connect(localCell, keyspace).connection();
+    }
+
+    /**
+     * Like {@link #getConnection()}, also reporting which vtgate was chosen, so that a hedge can
+     * avoid it (see {@link #alternateFor}).
+     */
+    public Borrowed borrow() throws SQLException {
+        return connect(localCell, keyspace);
+    }
+
+    /**
+     * Borrow a connection for a list or count query on {@code readKeyspace}. The session targets
+     * @replica tablets when replica reads are enabled and {@link ReplicaReads#canServe} allows it
+     * for the current request's consistency token; otherwise it is a normal primary connection.
+     */
+    public Connection getReadConnection(String readKeyspace) throws SQLException {
+        ReplicaReads replicas = replicaReads;
+        if (replicas != null && replicas.canServe(readKeyspace)) {
+            replicaReadCount.inc();
+            ConsistencyToken.markReplicaRead();
+            return connect(localCell, "`" + keyspace + "@replica`").connection();
+        }
+        primaryReads.inc();
+        return getConnection();
+    }
+
+    /**
+     * Decide, for a read about to be sent to {@code readKeyspace}, whether replicas may serve it.
+     * A true answer marks the request as having read from replicas.
+     */
+    public boolean replicaReadable(String readKeyspace) {
+        ReplicaReads replicas = replicaReads;
+        if (replicas != null && replicas.canServe(readKeyspace)) {
+            ConsistencyToken.markReplicaRead();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Where a hedged duplicate of a point read on {@code readKeyspace} can go: the best healthy
+     * vtgate other than {@code first}, the one the slow attempt is using, or else an @replica
+     * session on {@code first} if {@link ReplicaReads} allows it for the current request. Chosen
+     * by local datacenter, then balancer cost, without a balancer pick of its own. Decided now,
+     * on the request thread; borrowed when opened.
+     * @return null if there is no alternate target
+     */
+    public ConnectionSource alternateFor(String readKeyspace, VtgateEndpoint first) {
+        VtgateEndpoint alt = null;
+        for (VtgateEndpoint e : endpoints) {
+            if (e == first || !e.healthy()) {
+                continue;
+            }
+            if (alt == null || (isLocal(e) && !isLocal(alt))
+                    || (isLocal(e) == isLocal(alt) && balancer.cost(e, localCell) < balancer.cost(alt, localCell))) {
+                alt = e;
+            }
+        }
+        if (alt != null) {
+            VtgateEndpoint target = alt;
+            return () -> open(target, keyspace);
+        }
+        ReplicaReads replicas = replicaReads;
+        if (replicas != null && replicas.canServe(readKeyspace)) {
+            return () -> open(first, "`" + keyspace + "@replica`");
+        }
+        return null;
+    }
+
+    /** Hedging policy for idempotent point reads through this DB */
+    public HedgedReads hedgedReads() {
+        return hedgedReads;
+    }
+
+    /**
+     * Borrow a connection, preferring vtgates in the cell that hosts the primary for this
+     * keyspace id (see {@link KeyspaceIds}). A null keyspace id behaves like {@link #getConnection()}.
+     */
+    public Connection getConnectionNear(byte[] keyspaceId) throws SQLException {
+        String cell = null;
+        if (keyspaceId != null) {
+            for (var e : shardCells.entrySet()) {
+                if (ShardMap.parse(e.getKey()).contains(keyspaceId)) {
+                    cell = e.getValue();
+                    break;
+                }
+            }
+        }
+        return connect(cell != null ? cell : localCell, keyspace).connection();
+    }
+
+    /**
+     * Borrow a connection whose session targets a single shard, e.g. "read_keyspace:-80".
+     * vtgate sends its queries straight to that shard without vindex routing; table names
+     * must not be keyspace-qualified. The next {@link #getConnection()} restores the default.
+     */
+    public Connection getConnection(String target) throws SQLException {
+        String shard = target.substring(target.indexOf(':') + 1).split("@", 2)[0];
+        return connect(shardCells.getOrDefault(shard, localCell), "`" + target + "`").connection();
+    }
+
+    /**
+     * Endpoints in preference order for data homed in {@code cell}: the balancer's pick first,
+     * then the rest as failover candidates.
+     */
+    List<VtgateEndpoint> ranked(String cell) {
+        List<VtgateEndpoint> order = new ArrayList<>(endpoints);
+        order.sort(Comparator
+            .comparing((VtgateEndpoint e) -> !e.healthy())
+            .thenComparing(e -> !isLocal(e))
+            .thenComparing(e -> !e.cell().equals(cell))
+            .thenComparingDouble(VtgateEndpoint::latencyNanos));
+
+        if (order.size() > 1) {
+            // Balance within the leading tier: same health and datacenter standing as the best
+            VtgateEndpoint best = order.get(0);
+            List<VtgateEndpoint> tier = order.stream()
+                .filter(e -> e.healthy() == best.healthy() && isLocal(e) == isLocal(best))
+                .toList();
+            VtgateEndpoint pick = balancer.pick(tier, cell);
+            order.remove(pick);
+            order.add(0, pick);
+        }
+        return order;
+    }
+
+    private boolean isLocal(VtgateEndpoint e) {
+        return localDc.isEmpty() || localDc.equals(e.dc());
+    }
+
+    private Borrowed connect(String cell, String useTarget) throws SQLException {
+        SQLException last = null;
+        for (VtgateEndpoint e : ranked(cell)) {
+            Connection conn;
+            try {
+                conn = e.borrow();
+            } catch (SQLException ex) {
+                Deadline deadline = Deadline.current();
+                if (deadline != null && deadline.expired()) {
+                    // Out of request time; another vtgate would not help
+                    throw ex;
+                }
+                log.warn("vtgate {} unavailable, trying next: {}", e.name(), ex.getMessage());
+                last = ex;
+                continue;
+            }
+            return new Borrowed(use(conn, useTarget), e);
+        }
+        throw last != null ? last : new SQLException("No vtgate endpoints configured");
+    }
+
+    private Connection open(VtgateEndpoint e, String useTarget) throws SQLException {
+        return use(e.borrow(), useTarget);
+    }
+
+    private static Connection use(Connection conn, String useTarget) throws SQLException {
+        if (useTarget != null && !useTarget.isEmpty()) {
             try (Statement st = conn.createStatement()) {
-                st.execute("USE " + keyspace);
+                st.execute("USE " + useTarget);
+            } catch (SQLException ex) {
+                conn.close();
+                throw ex;
             }
         }
         return conn;
     }
-}
 
+    private void probeAll() {
+        for (VtgateEndpoint e : endpoints) {
+            boolean wasHealthy = e.healthy();
+            e.probe();
+            if (wasHealthy != e.healthy()) {
+                log.warn("vtgate {} is now {}", e.name(), e.healthy() ? "healthy" : "unhealthy");
+            }
+        }
+    }
+
+    private static Map<String, String> parseMap(String spec) {
+        Map<String, String> out = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] kv = entry.trim().split("=", 2);
+            if (kv.length == 2) {
+                out.put(kv[0], kv[1]);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,109 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Map;
+
+/**
+ * Reserves id blocks from the user_keyspace.id_sequence table.
+ *
+ * The keyspaces are all sharded, so this is not a Vitess sequence (those need an unsharded
+ * keyspace). Instead each entity has one row, routed to a single shard by the xxhash vindex
+ * on name, and a block is reserved with a single-shard SELECT ... FOR UPDATE + UPDATE.
+ * A missing row is seeded from MAX(id) of the entity's table so new ids never collide
+ * with rows that were inserted with client-chosen ids.
+ */
+public class DbIdBlockSource implements IdBlockSource {
+    private static final Logger log = LogManager.getLogger(DbIdBlockSource.class);
+
+    // Entity name -> fully qualified table whose ids it allocates
+    private static final Map<String, String> TABLES = Map.of(
+        "user", "user_keyspace.user",
+        "article", "article_keyspace.article",
+        "read", "read_keyspace.read",
+        "beread", "beread_keyspace.beread",
+        "popularrank", "popularrank_keyspace.popular_rank"
+    );
+
+    private final DB db;
+
+    public DbIdBlockSource(DB db) {
+        this.db = db;
+    }
+
+    @Override
+    public long reserve(String entity, int count) throws Exception {
+        String table = TABLES.get(entity);
+        if (table == null) {
+            throw new IllegalArgumentException("Unknown entity: " + entity);
+        }
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                long start = lockNext(conn, entity);
+                if (start < 0) {
+                    conn.rollback();
+                    seed(conn, entity, table);
+                    start = lockNext(conn, entity);
+                }
+
+                try (PreparedStatement st = conn.prepareStatement(
+                        "UPDATE user_keyspace.id_sequence SET next_id = ? WHERE name = ?")) {
+                    st.setLong(1, start + count);
+                    st.setString(2, entity);
+                    st.executeUpdate();
+                }
+                conn.commit();
+                log.debug("Reserved {} ids for {} starting at {}", count, entity, start);
+                return start;
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Lock the entity's row and return its next id, or -1 if there is no row yet.
+     */
+    private long lockNext(Connection conn, String entity) throws Exception {
+        try (PreparedStatement st = conn.prepareStatement(
+                "SELECT next_id FROM user_keyspace.id_sequence WHERE name = ? FOR UPDATE")) {
+            st.setString(1, entity);
+            ResultSet rs = st.executeQuery();
+            return rs.next() ? rs.getLong(1) : -1;
+        }
+    }
+
+    /**
+     * Create the entity's row starting above the current max id. Concurrent seeders race
+     * harmlessly: INSERT IGNORE keeps whichever row lands first.
+     */
+    private void seed(Connection conn, String entity, String table) throws Exception {
+        long maxId = 0;
+        try (PreparedStatement st = conn.prepareStatement("SELECT MAX(id) FROM " + table)) {
+            ResultSet rs = st.executeQuery();
+            if (rs.next()) {
+                maxId = rs.getLong(1);
+            }
+        }
+        try (PreparedStatement st = conn.prepareStatement(
+                "INSERT IGNORE INTO user_keyspace.id_sequence (name, next_id) VALUES (?, ?)")) {
+            st.setString(1, entity);
+            st.setLong(2, maxId + 1);
+            st.executeUpdate();
+        }
+        conn.commit();
+        log.info("Seeded {} id sequence at {}", entity, maxId + 1);
+    }
+}
@@ -0,0 +1,213 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The deadline of the request being handled on this thread.
+ *
+ * {@link VtgateEndpoint} reads it to bound the pool borrow, set {@code setQueryTimeout} and add
+ * Vitess and MySQL execution-time hints to SELECTs; {@link RedisCache} bounds its socket timeout
+ * with it. A watchdog cancels the request's running statements once the deadline passes or the
+ * client disconnects, so abandoned queries stop consuming tablet capacity.
+ *
+ * Work handed to other threads (scatter fragments, hedged reads) carries the deadline along via
+ * {@link #inherit} and {@link #inheriting}.
+ */
+public final class Deadline {
+    private static final Logger log = LogManager.getLogger(Deadline.class);
+
+    public static final String HEADER = "X-Request-Timeout-Ms";
+
+    private static final long WATCHDOG_INTERVAL_MS = 100;
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+    private static final Set<Deadline> ACTIVE = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "deadline-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        WATCHDOG.scheduleWithFixedDelay(Deadline::sweep, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    private final long timeoutMillis;
+    private final long expiresAtNanos;
+    private final BooleanSupplier clientGone;
+    private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+
+    private Deadline(long timeoutMillis, BooleanSupplier clientGone) {
+        this.timeoutMillis = timeoutMillis;
+        this.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.clientGone = clientGone;
+    }
+
+    /**
+     * Bind a deadline to the current thread and watch it until {@link #end()}.
+     * @param clientGone Reports whether the client has disconnected; polled by the watchdog
+     */
+    public static Deadline start(long timeoutMillis, BooleanSupplier clientGone) {
+        Deadline d = new Deadline(timeoutMillis, clientGone);
+        CURRENT.set(d);
+        ACTIVE.add(d);
+        return d;
+    }
+
+    /**
+     * Start the current deadline over with its original timeout, for requests whose DB work
+     * follows a long transfer (a media upload) that the timeout was never meant to cover.
+     */
+    public static void restart() {
+        Deadline d = CURRENT.get();
+        if (d != null) {
+            end();
+            start(d.timeoutMillis, d.clientGone);
+        }
+    }
+
+    public static void end() {
+        Deadline d = CURRENT.get();
+        if (d != null) {
+            ACTIVE.remove(d);
+            d.statements.clear();
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * @return The current thread's deadline, or null outside a request
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Wrap a task so it runs under the submitting thread's deadline.
+     */
+    public static <T> Callable<T> inherit(Callable<T> task) {
+        Deadline d = CURRENT.get();
+        if (d == null) {
+            return task;
+        }
+        return () -> {
+            Deadline previous = CURRENT.get();
+            CURRENT.set(d);
+            try {
+                return task.call();
+            } finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * An executor whose tasks run under the deadline of the thread that submitted them.
+     */
+    public static Executor inheriting(Executor executor) {
+        return task -> {
+            Callable<Void> wrapped = inherit(() -> {
+                task.run();
+                return null;
+            });
+            executor.execute(() -> {
+                try {
+                    wrapped.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        };
+    }
+
+    public long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime());
+    }
+
+    /**
+     * @return true if the deadline has passed or the request was cancelled
+     */
+    public boolean expired() {
+        return cancelled || System.nanoTime() - expiresAtNanos >= 0;
+    }
+
+    /**
+     * Fail fast instead of starting work the client will not wait for.
+     */
+    public void check() throws SQLTimeoutException {
+        if (expired()) {
+            throw new SQLTimeoutException(cancelled ? "Request cancelled" : "Request deadline exceeded");
+        }
+    }
+
+    /**
+     * Add Vitess and MySQL execution-time hints to a SELECT; other statements are unchanged.
+     */
+    public String hint(String sql) {
+        String trimmed = sql.stripLeading();
+        if (trimmed.length() < 6 || !trimmed.regionMatches(true, 0, "SELECT", 0, 6)) {
+            return sql;
+        }
+        long ms = Math.max(1, remainingMillis());
+        // MySQL only honours optimizer hints directly after SELECT, so that one goes first
+        return "SELECT /*+ MAX_EXECUTION_TIME(" + ms + ") */ /*vt+ QUERY_TIMEOUT_MS=" + ms + " */"
+            + trimmed.substring(6);
+    }
+
+    /**
+     * Bound a statement by the remaining time and register it for cancellation.
+     */
+    public void apply(Statement st) throws SQLException {
+        check();
+        // setQueryTimeout has whole-second resolution; the hints above are exact
+        st.setQueryTimeout((int) Math.max(1, (remainingMillis() + 999) / 1000));
+        statements.add(st);
+    }
+
+    private void cancel(String reason) {
+        cancelled = true;
+        Metrics.counter("helvetia_requests_cancelled_total", "Requests whose queries were cancelled",
+            "reason", reason).inc();
+        for (Statement st : statements) {
+            try {
+                st.cancel();
+            } catch (SQLException e) {
+                // Already closed or finished
+                log.debug("Cancel failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static void sweep() {
+        for (Deadline d : ACTIVE) {
+            if (d.cancelled) {
+                continue;
+            }
+            try {
+                if (System.nanoTime() - d.expiresAtNanos >= 0) {
+                    d.cancel("deadline");
+                } else if (d.clientGone.getAsBoolean()) {
+                    d.cancel("client_gone");
+                }
+            } catch (RuntimeException e) {
+                log.warn("Deadline watchdog failed: {}", e.getMessage());
+            }
+        }
+    }
+}
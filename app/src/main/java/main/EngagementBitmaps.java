@@ -0,0 +1,143 @@
+package helvetia.main;
+
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compressed engagement sets for one article (one beread row).
+ * Each set holds dictionary-encoded user ids (see {@link UidDictionary}) as a roaring bitmap.
+ *
+ * Instances are treated as immutable once built: readers may share them across threads,
+ * and a write to the underlying beread row replaces the instance instead of mutating it.
+ */
+public class EngagementBitmaps {
+
+    /** Serialization format version, stored as the first byte of the blob */
+    private static final byte FORMAT_VERSION = 1;
+
+    public enum Kind {
+        READ, COMMENT, AGREE, SHARE;
+
+        /**
+         * Parse a kind from its path form (e.g. "read", "share").
+         * @throws IllegalArgumentException if the name is not a known kind
+         */
+        public static Kind parse(String name) {
+            return Kind.valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private final Roaring64NavigableMap[] sets;
+
+    public EngagementBitmaps() {
+        this.sets = new Roaring64NavigableMap[Kind.values().length];
+        for (int i = 0; i < sets.length; i++) {
+            sets[i] = new Roaring64NavigableMap();
+        }
+    }
+
+    /**
+     * Get the bitmap for one kind. Callers must not mutate the returned bitmap
+     * once the instance has been published to the cache.
+     */
+    public Roaring64NavigableMap get(Kind kind) {
+        return sets[kind.ordinal()];
+    }
+
+    public void add(Kind kind, long userId) {
+        sets[kind.ordinal()].addLong(userId);
+    }
+
+    public boolean contains(Kind kind, long userId) {
+        return sets[kind.ordinal()].contains(userId);
+    }
+
+    public long cardinality(Kind kind) {
+        return sets[kind.ordinal()].getLongCardinality();
+    }
+
+    /**
+     * Intersect the sets of the given kinds into a new bitmap.
+     * @param kinds Kinds to intersect; an empty list yields an empty bitmap
+     */
+    public Roaring64NavigableMap intersect(List<Kind> kinds) {
+        Roaring64NavigableMap out = new Roaring64NavigableMap();
+        if (kinds.isEmpty()) {
+            return out;
+        }
+        // Start from the smallest set so the intermediate result stays small
+        Kind smallest = kinds.get(0);
+        for (Kind k : kinds) {
+            if (cardinality(k) < cardinality(smallest)) {
+                smallest = k;
+            }
+        }
+        out.or(get(smallest));
+        for (Kind k : kinds) {
+            if (k != smallest) {
+                out.and(get(k));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Collect at most {@code limit} user ids from a bitmap, in ascending order.
+     */
+    public static List<Long> firstIds(Roaring64NavigableMap bitmap, int limit) {
+        List<Long> out = new ArrayList<>(Math.min(limit, 1024));
+        LongIterator it = bitmap.getLongIterator();
+        while (it.hasNext() && out.size() < limit) {
+            out.add(it.next());
+        }
+        return out;
+    }
+
+    /**
+     * Serialize all sets into a single blob for the beread.engagementBitmaps column.
+     * Layout: version byte, then for each kind a 4-byte length followed by the roaring bytes.
+     */
+    public byte[] serialize() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            for (Roaring64NavigableMap set : sets) {
+                set.runOptimize();
+                out.writeInt((int) set.serializedSizeInBytes());
+                set.serialize(out);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Deserialize a blob produced by {@link #serialize()}.
+     * @throws IOException if the blob is truncated or has an unknown version
+     */
+    public static EngagementBitmaps deserialize(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown engagement bitmap version: " + version);
+        }
+        EngagementBitmaps out = new EngagementBitmaps();
+        for (Roaring64NavigableMap set : out.sets) {
+            in.readInt();  // length prefix, lets other readers skip a set
+            set.deserialize(in);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,180 @@
+package helvetia.main;
+
+import helvetia.BeRead;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Membership store for beread engagement lists (readUidList, commentUidList, agreeUidList, shareUidList).
+ *
+ * Lookups go through three tiers: an in-process LRU of deserialized bitmaps, Redis (serialized bytes),
+ * and finally the beread.engagementBitmaps column. Rows written before the column existed are
+ * rebuilt from their JSON lists on first access and backfilled.
+ *
+ * Writes through this instance replace its LRU entry and the Redis copy; writes through other
+ * instances only replace Redis, so LRU entries expire after ENGAGEMENT_HOT_TTL_MS and are then
+ * re-read from there.
+ */
+public class EngagementIndex {
+    private static final Logger log = LogManager.getLogger(EngagementIndex.class);
+
+    private final BeReadDao dao;
+    private final RedisCache cache;
+    private final UidDictionary dictionary;
+    private final long hotTtlMillis;
+    private final Map<Long, Hot> hot;
+
+    private record Hot(EngagementBitmaps bitmaps, long expiresAt) {}
+
+    /**
+     * @param maxArticles Most articles kept deserialized in process
+     * @param hotTtlMillis How long an in-process entry is served before Redis is consulted again
+     */
+    public EngagementIndex(BeReadDao dao, RedisCache cache, UidDictionary dictionary, int maxArticles, long hotTtlMillis) {
+        this.dao = dao;
+        this.cache = cache;
+        this.dictionary = dictionary;
+        this.hotTtlMillis = hotTtlMillis;
+        this.hot = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Hot> eldest) {
+                return size() > maxArticles;
+            }
+        });
+    }
+
+    /**
+     * Create an index sized from the ENGAGEMENT_CACHE_SIZE environment variable, keeping
+     * in-process entries for ENGAGEMENT_HOT_TTL_MS (default 5 s).
+     */
+    public static EngagementIndex fromEnv(BeReadDao dao, RedisCache cache, UidDictionary dictionary) {
+        int size = Integer.parseInt(System.getenv().getOrDefault("ENGAGEMENT_CACHE_SIZE", "10000"));
+        long ttl = Long.parseLong(System.getenv().getOrDefault("ENGAGEMENT_HOT_TTL_MS", "5000"));
+        return new EngagementIndex(dao, cache, dictionary, size, ttl);
+    }
+
+    /**
+     * Get the engagement bitmaps for a beread record.
+     * @param id BeRead id
+     * @return Bitmaps, or null if the beread record does not exist
+     */
+    public EngagementBitmaps get(long id) throws Exception {
+        Hot entry = hot.get(id);
+        if (entry != null && entry.expiresAt() > System.currentTimeMillis()) {
+            return entry.bitmaps();
+        }
+
+        String cacheKey = RedisCache.bereadEngagementKey(id);
+        byte[] data = cache.get(cacheKey);
+        if (data == null) {
+            data = dao.getEngagementBitmaps(id);
+            if (data != null) {
+                cache.set(cacheKey, data);
+            }
+        }
+
+        if (data != null) {
+            EngagementBitmaps bitmaps = EngagementBitmaps.deserialize(data);
+            keep(id, bitmaps);
+            return bitmaps;
+        }
+
+        // No stored bitmaps: either the row is missing or it predates the column
+        BeRead b = dao.get(id);
+        if (b == null) {
+            return null;
+        }
+        log.info("Backfilling engagement bitmaps for beread {}", id);
+        return refresh(b);
+    }
+
+    /**
+     * Check that every uid in the record's engagement lists belongs to a user, so the bitmaps
+     * will hold exactly the listed uids. Call before writing the lists.
+     * @throws IllegalArgumentException naming the uids that have no user row
+     */
+    public void validate(BeRead b) throws Exception {
+        List<String> allUids = allUids(b);
+        if (allUids.isEmpty()) {
+            return;
+        }
+        Map<String, Long> codes = dictionary.encodeAll(allUids);
+        List<String> unknown = allUids.stream().distinct().filter(uid -> !codes.containsKey(uid)).toList();
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Unknown uids in engagement lists: "
+                + unknown.stream().limit(20).collect(Collectors.joining(", "))
+                + (unknown.size() > 20 ? " and " + (unknown.size() - 20) + " more" : ""));
+        }
+    }
+
+    /**
+     * Re-encode the engagement lists of a beread record and persist the result.
+     * Call after the record's uid lists have been written.
+     */
+    public EngagementBitmaps refresh(BeRead b) throws Exception {
+        List<String> allUids = allUids(b);
+        Map<String, Long> codes = dictionary.encodeAll(allUids);
+        long unknown = allUids.stream().distinct().filter(uid -> !codes.containsKey(uid)).count();
+        if (unknown > 0) {
+            // Only rows written before validate() existed, or whose users were since deleted
+            log.warn("Beread {} lists {} uids with no user row; they are left out of its bitmaps", b.getId(), unknown);
+        }
+
+        EngagementBitmaps bitmaps = new EngagementBitmaps();
+        addAll(bitmaps, EngagementBitmaps.Kind.READ, b.getReadUidListList(), codes);
+        addAll(bitmaps, EngagementBitmaps.Kind.COMMENT, b.getCommentUidListList(), codes);
+        addAll(bitmaps, EngagementBitmaps.Kind.AGREE, b.getAgreeUidListList(), codes);
+        addAll(bitmaps, EngagementBitmaps.Kind.SHARE, b.getShareUidListList(), codes);
+
+        byte[] data = bitmaps.serialize();
+        dao.setEngagementBitmaps(b.getId(), data);
+        cache.set(RedisCache.bereadEngagementKey(b.getId()), data);
+        keep(b.getId(), bitmaps);
+        return bitmaps;
+    }
+
+    /**
+     * Drop any cached bitmaps for a beread record (e.g. after delete).
+     */
+    public void evict(long id) {
+        hot.remove(id);
+        cache.delete(RedisCache.bereadEngagementKey(id));
+    }
+
+    /**
+     * Resolve a uid to its dictionary code.
+     * @return The code, or null if no user has this uid
+     */
+    public Long encode(String uid) throws Exception {
+        return dictionary.encode(uid);
+    }
+
+    private void keep(long id, EngagementBitmaps bitmaps) {
+        hot.put(id, new Hot(bitmaps, System.currentTimeMillis() + hotTtlMillis));
+    }
+
+    private static List<String> allUids(BeRead b) {
+        List<String> allUids = new ArrayList<>(b.getReadUidListList());
+        allUids.addAll(b.getCommentUidListList());
+        allUids.addAll(b.getAgreeUidListList());
+        allUids.addAll(b.getShareUidListList());
+        return allUids;
+    }
+
+    private static void addAll(EngagementBitmaps bitmaps, EngagementBitmaps.Kind kind,
+                               List<String> uids, Map<String, Long> codes) {
+        for (String uid : uids) {
+            Long code = codes.get(uid);
+            if (code != null) {
+                bitmaps.add(kind, code);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package helvetia.main;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import helvetia.Article;
+import helvetia.BeRead;
+import helvetia.Expansions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Hydrates ?expand= relations for a page of results.
+ *
+ * The aids referenced by the page are collected once and each requested relation is fetched as a
+ * batch: one Redis MGET, then one "aid IN (...)" query for the misses, whose results are written
+ * back to the per-aid cache. Relations are fetched in parallel on the shared {@link Workers} pool,
+ * so a page costs at most one DB round trip per keyspace whatever its size.
+ */
+public class Expander {
+    /** Articles by aid, from article_keyspace */
+    public static final String ARTICLE = "article";
+    /** Engagement counters (BeRead) by aid, from beread_keyspace */
+    public static final String STATS = "stats";
+
+    @FunctionalInterface
+    private interface BatchLoader<T> {
+        List<T> load(Collection<String> aids) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface Parser<T> {
+        T parse(byte[] bytes) throws InvalidProtocolBufferException;
+    }
+
+    private final ArticleDao articles;
+    private final BeReadDao stats;
+    private final RedisCache cache;
+    private final ExecutorService executor = Workers.shared();
+
+    public Expander(ArticleDao articles, BeReadDao stats, RedisCache cache) {
+        this.articles = articles;
+        this.stats = stats;
+        this.cache = cache;
+    }
+
+    /**
+     * Parse a comma-separated expand parameter.
+     * @param allowed Relations the endpoint supports
+     * @return The requested relations; empty if the parameter is absent
+     * @throws IllegalArgumentException for a relation the endpoint does not support
+     */
+    public static Set<String> parse(String param, String... allowed) {
+        Set<String> kinds = new LinkedHashSet<>();
+        if (param == null || param.isBlank()) {
+            return kinds;
+        }
+        List<String> valid = List.of(allowed);
+        for (String kind : param.split(",")) {
+            String k = kind.trim();
+            if (!valid.contains(k)) {
+                throw new IllegalArgumentException("Unknown expand '" + k + "', expected one of " + valid);
+            }
+            kinds.add(k);
+        }
+        return kinds;
+    }
+
+    /**
+     * Fetch the requested relations for the given aids.
+     */
+    public Expansions expand(Set<String> kinds, Collection<String> aids) throws Exception {
+        Set<String> distinct = new LinkedHashSet<>();
+        for (String aid : aids) {
+            if (aid != null && !aid.isEmpty()) {
+                distinct.add(aid);
+            }
+        }
+        Expansions.Builder out = Expansions.newBuilder();
+        if (distinct.isEmpty()) {
+            return out.build();
+        }
+
+        Future<Map<String, Article>> articleFetch = kinds.contains(ARTICLE)
+            ? executor.submit(Deadline.inherit(() -> fetch(distinct, RedisCache::articleAidKey,
+                articles::getByAids, Article::parseFrom, Article::getAid, Article::toByteArray)))
+            : null;
+        Future<Map<String, BeRead>> statsFetch = kinds.contains(STATS)
+            ? executor.submit(Deadline.inherit(() -> fetch(distinct, RedisCache::bereadAidKey,
+                stats::getByAids, BeRead::parseFrom, BeRead::getAid, BeRead::toByteArray)))
+            : null;
+
+        if (articleFetch != null) {
+            out.putAllArticles(await(articleFetch));
+        }
+        if (statsFetch != null) {
+            out.putAllStats(await(statsFetch));
+        }
+        return out.build();
+    }
+
+    private <T> Map<String, T> fetch(Set<String> aids, Function<String, String> key, BatchLoader<T> loader,
+                                     Parser<T> parser, Function<T, String> aidOf,
+                                     Function<T, byte[]> serialize) throws Exception {
+        List<String> keys = new ArrayList<>(aids.size());
+        for (String aid : aids) {
+            keys.add(key.apply(aid));
+        }
+        Map<String, byte[]> cached = cache.getAll(keys);
+
+        Map<String, T> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String aid : aids) {
+            byte[] bytes = cached.get(key.apply(aid));
+            if (bytes != null) {
+                found.put(aid, parser.parse(bytes));
+            } else {
+                missing.add(aid);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<String, byte[]> fill = new HashMap<>();
+            for (T row : loader.load(missing)) {
+                found.put(aidOf.apply(row), row);
+                fill.put(key.apply(aidOf.apply(row)), serialize.apply(row));
+            }
+            cache.setAll(fill);
+        }
+        return found;
+    }
+
+    private static <T> T await(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ex ? ex : e;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package helvetia.main;
+
+import com.google.protobuf.FieldMask;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the SET part of a partial update (or of ON DUPLICATE KEY UPDATE) from a protobuf FieldMask.
+ *
+ * Each DAO declares its mutable columns as a map from proto field name to a {@link Binder}
+ * that sets the column's parameter from a message. Mask paths must name one of those fields;
+ * id and the primary vindex columns are never in the map, so they cannot be patched.
+ *
+ * Example: mask paths [title, articleTags] produce "`title` = ?, `articleTags` = ?".
+ */
+public final class FieldMaskUpdate<T> {
+
+    /** Binds one column's value from a message */
+    @FunctionalInterface
+    public interface Binder<T> {
+        void bind(PreparedStatement st, int index, T message) throws SQLException;
+    }
+
+    private final List<String> columns;
+    private final List<Binder<T>> binders;
+
+    private FieldMaskUpdate(List<String> columns, List<Binder<T>> binders) {
+        this.columns = columns;
+        this.binders = binders;
+    }
+
+    /**
+     * Resolve a field mask against a DAO's mutable columns.
+     * @throws IllegalArgumentException if the mask is empty or names an unknown or immutable field
+     */
+    public static <T> FieldMaskUpdate<T> of(FieldMask mask, Map<String, Binder<T>> mutableColumns) {
+        if (mask.getPathsCount() == 0) {
+            throw new IllegalArgumentException("updateMask must name at least one field");
+        }
+        List<String> columns = new ArrayList<>();
+        List<Binder<T>> binders = new ArrayList<>();
+        for (String path : new LinkedHashSet<>(mask.getPathsList())) {
+            Binder<T> binder = mutableColumns.get(path);
+            if (binder == null) {
+                throw new IllegalArgumentException("Field cannot be updated: " + path);
+            }
+            columns.add(path);
+            binders.add(binder);
+        }
+        return new FieldMaskUpdate<>(columns, binders);
+    }
+
+    /**
+     * @return "`a` = ?, `b` = ?" for use after SET or ON DUPLICATE KEY UPDATE
+     */
+    public String setClause() {
+        List<String> parts = new ArrayList<>();
+        for (String c : columns) {
+            parts.add("`" + c + "` = ?");
+        }
+        return String.join(", ", parts);
+    }
+
+    /**
+     * Bind the masked columns' values starting at {@code startIdx}.
+     * @return The next free parameter index
+     */
+    public int bind(PreparedStatement st, int startIdx, T message) throws SQLException {
+        int i = startIdx;
+        for (Binder<T> b : binders) {
+            b.bind(st, i++, message);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,503 @@
+package helvetia.main;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Streams article media from WebHDFS to clients, so they never see the namenode or follow its
+ * redirect to a datanode themselves.
+ *
+ * Bytes are copied from the WebHDFS response channel to the servlet response channel through one
+ * bounded buffer per request; nothing is held in full. Requests without a Range header are sent
+ * chunked as the datanode produces them. A single Range ("bytes=a-b", "bytes=a-", "bytes=-n")
+ * is answered with 206 by opening the file at the offset and length (OPEN&offset=&length=), so
+ * video seeking fetches only what is played.
+ *
+ * Uploads go the other way: the request body is streamed to CREATE as a chunked PUT under a
+ * temporary name, then renamed into place.
+ */
+public class HdfsMediaProxy {
+    private static final Logger log = LogManager.getLogger(HdfsMediaProxy.class);
+
+    private final String baseUrl;
+    private final String user;
+    private final int bufferSize;
+    private final String uploadRoot;
+    private final HttpClient http;
+    // For CREATE, whose datanode redirect must be followed by hand: a streamed body cannot be replayed
+    private final HttpClient direct;
+
+    private final Metrics.Counter bytesSent =
+        Metrics.counter("helvetia_media_bytes_total", "Media bytes proxied from WebHDFS");
+    private final Metrics.Counter bytesUploaded =
+        Metrics.counter("helvetia_media_upload_bytes_total", "Media bytes uploaded to WebHDFS");
+    private final Metrics.Timer uploadThroughput = Metrics.distribution(
+        "helvetia_media_upload_bytes_per_second", "Throughput of completed media uploads");
+
+    /** The parts of a WebHDFS FileStatus the proxy and media cache need */
+    public record FileStatus(long length, long modificationTime) {}
+
+    /**
+     * An inclusive byte range; {@code end < start} when the request cannot be satisfied.
+     */
+    public record Range(long start, long end) {
+        public long length() {
+            return end - start + 1;
+        }
+
+        public boolean satisfiable() {
+            return start <= end;
+        }
+
+        /**
+         * Parse a Range header against the file length.
+         * @return The range, or null if the header is absent, malformed or asks for several
+         * ranges, in which case the whole file is sent
+         */
+        public static Range parse(String header, long fileLength) {
+            if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+                return null;
+            }
+            String spec = header.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try {
+                if (first.isEmpty()) {
+                    // Suffix: the last n bytes
+                    long n = Long.parseLong(last);
+                    if (n < 0) {
+                        return null;
+                    }
+                    start = Math.max(0, fileLength - n);
+                    end = n == 0 ? start - 1 : fileLength - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start >= fileLength) {
+                        return new Range(start, start - 1);
+                    }
+                    end = Math.min(end, fileLength - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return new Range(start, end);
+        }
+    }
+
+    /**
+     * @param baseUrl WebHDFS root, e.g. http://namenode:9870/webhdfs/v1
+     * @param user Value for user.name, or null for none
+     * @param bufferSize Copy buffer per request
+     * @param uploadRoot HDFS directory under which uploads are stored
+     */
+    public HdfsMediaProxy(String baseUrl, String user, int bufferSize, String uploadRoot) {
+        this.baseUrl = baseUrl;
+        this.user = user;
+        this.bufferSize = bufferSize;
+        this.uploadRoot = uploadRoot;
+        this.http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            // OPEN answers with a redirect to the datanode holding the data
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+        this.direct = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    }
+
+    public HdfsMediaProxy(String baseUrl, String user, int bufferSize) {
+        this(baseUrl, user, bufferSize, "/articles");
+    }
+
+    /**
+     * Configure from WEBHDFS_BASE_URL, WEBHDFS_USER, MEDIA_BUFFER_BYTES (default 64 KiB) and
+     * MEDIA_UPLOAD_ROOT (default /articles).
+     */
+    public static HdfsMediaProxy fromEnv() {
+        var env = System.getenv();
+        return new HdfsMediaProxy(
+            env.getOrDefault("WEBHDFS_BASE_URL", "http://localhost:9870/webhdfs/v1"),
+            env.get("WEBHDFS_USER"),
+            Integer.parseInt(env.getOrDefault("MEDIA_BUFFER_BYTES", Integer.toString(64 * 1024))),
+            env.getOrDefault("MEDIA_UPLOAD_ROOT", "/articles"));
+    }
+
+    /**
+     * Content type for an article's media file: UTF-8 text for text, otherwise guessed from the
+     * file name.
+     * @param kind text, image or video
+     */
+    public static String contentType(String kind, String path) {
+        if (kind.equals("text")) {
+            return "text/plain; charset=utf-8";
+        }
+        if (path.endsWith(".flv")) {
+            // The seeded videos; unknown to the JDK's table
+            return "video/x-flv";
+        }
+        String guessed = URLConnection.guessContentTypeFromName(path);
+        return guessed != null ? guessed : "application/octet-stream";
+    }
+
+    /**
+     * @return The file's status, or null if it does not exist
+     */
+    public FileStatus status(String path) throws IOException {
+        HttpResponse<String> r = send(uri(path, "GETFILESTATUS", ""), HttpResponse.BodyHandlers.ofString());
+        if (r.statusCode() == 404) {
+            return null;
+        }
+        if (r.statusCode() != 200) {
+            throw new IOException("WebHDFS GETFILESTATUS " + path + " failed: HTTP " + r.statusCode());
+        }
+        JsonObject fs = JsonParser.parseString(r.body()).getAsJsonObject().getAsJsonObject("FileStatus");
+        return new FileStatus(fs.get("length").getAsLong(), fs.get("modificationTime").getAsLong());
+    }
+
+    /**
+     * Open the file for reading.
+     * @param length Bytes to read, or -1 for the rest of the file
+     * @throws FileNotFoundException if the file does not exist
+     */
+    public InputStream open(String path, long offset, long length) throws IOException {
+        String params = (offset > 0 ? "&offset=" + offset : "") + (length >= 0 ? "&length=" + length : "");
+        HttpResponse<InputStream> r = send(uri(path, "OPEN", params), HttpResponse.BodyHandlers.ofInputStream());
+        if (r.statusCode() != 200) {
+            r.body().close();
+            if (r.statusCode() == 404) {
+                throw new FileNotFoundException(path);
+            }
+            throw new IOException("WebHDFS OPEN " + path + " failed: HTTP " + r.statusCode());
+        }
+        return r.body();
+    }
+
+    /**
+     * Copy a stream to a channel through one buffer of the configured size.
+     * @return Bytes copied
+     */
+    public long copy(InputStream in, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        long total = 0;
+        try (ReadableByteChannel source = Channels.newChannel(in)) {
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    total += out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Answer a GET for the file: 200 with the whole file, 206 with the requested range, 416 for
+     * a range past the end, or 404 if the file is missing.
+     */
+    public void serve(String path, String contentType, String rangeHeader, HttpServletResponse res) throws IOException {
+        res.setHeader("Accept-Ranges", "bytes");
+
+        if (rangeHeader == null) {
+            InputStream in;
+            try {
+                in = open(path, 0, -1);
+            } catch (FileNotFoundException e) {
+                res.setStatus(404);
+                return;
+            }
+            // No Content-Length: Jetty sends it chunked as it arrives
+            res.setStatus(200);
+            res.setContentType(contentType);
+            bytesSent.add(copy(in, Channels.newChannel(res.getOutputStream())));
+            return;
+        }
+
+        FileStatus status = status(path);
+        if (status == null) {
+            res.setStatus(404);
+            return;
+        }
+        serve(path, status, contentType, rangeHeader, res);
+    }
+
+    /**
+     * Answer a GET for a file whose status is already known, with an exact Content-Length.
+     */
+    public void serve(String path, FileStatus status, String contentType, String rangeHeader,
+                      HttpServletResponse res) throws IOException {
+        Range range = respond(rangeHeader, status.length(), contentType, res);
+        if (range != null && range.length() > 0) {
+            long copied = copy(open(path, range.start(), range.length()), Channels.newChannel(res.getOutputStream()));
+            bytesSent.add(copied);
+            if (copied != range.length()) {
+                log.warn("WebHDFS returned {} of {} bytes for {}", copied, range.length(), path);
+            }
+        }
+    }
+
+    /**
+     * Set the status and headers for answering a Range header (or its absence) over a file of
+     * the given length.
+     * @return The bytes to send, or null if the response is already complete (416)
+     */
+    static Range respond(String rangeHeader, long fileLength, String contentType, HttpServletResponse res) {
+        res.setHeader("Accept-Ranges", "bytes");
+        Range range = Range.parse(rangeHeader, fileLength);
+        if (range != null && !range.satisfiable()) {
+            res.setStatus(416);
+            res.setHeader("Content-Range", "bytes */" + fileLength);
+            return null;
+        }
+        if (range == null) {
+            range = new Range(0, fileLength - 1);
+            res.setStatus(200);
+        } else {
+            res.setStatus(206);
+            res.setHeader("Content-Range", "bytes " + range.start() + "-" + range.end() + "/" + fileLength);
+        }
+        res.setContentType(contentType);
+        res.setContentLengthLong(range.length());
+        return range;
+    }
+
+    /**
+     * A fresh HDFS path for an uploaded media file, next to the seeded ones
+     * (/articles/article{id}/...). Each upload gets its own random name, so concurrent uploads
+     * never share a file and the article's path column switches from the old file to the new one
+     * in a single update.
+     * @param kind text, image or video
+     * @param contentType The upload's Content-Type, which picks the extension
+     */
+    public String uploadPath(long articleId, String kind, String contentType) {
+        return uploadDirectory(articleId) + kind + "-" + UUID.randomUUID() + extension(kind, contentType);
+    }
+
+    /**
+     * Whether the path was created by {@link #uploadPath} for this article and kind, rather than
+     * loaded out-of-band, and so may be deleted once replaced.
+     */
+    public boolean isUpload(String path, long articleId, String kind) {
+        return path.startsWith(uploadDirectory(articleId) + kind + "-");
+    }
+
+    private String uploadDirectory(long articleId) {
+        return uploadRoot + "/article" + articleId + "/";
+    }
+
+    private static String extension(String kind, String contentType) {
+        if (kind.equals("text")) {
+            return ".txt";
+        }
+        String type = contentType == null ? "" : contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        return switch (type) {
+            case "image/jpeg" -> ".jpg";
+            case "image/png" -> ".png";
+            case "image/gif" -> ".gif";
+            case "image/webp" -> ".webp";
+            case "video/mp4" -> ".mp4";
+            case "video/webm" -> ".webm";
+            case "video/x-flv" -> ".flv";
+            default -> "";
+        };
+    }
+
+    /**
+     * Store a new file from a stream of unknown length. The body is sent to WebHDFS chunked, as
+     * it is read, under a temporary name in the same directory, then renamed to {@code path}, so
+     * the path never holds a partial file. Memory use is one HttpClient buffer regardless of size.
+     * @param maxBytes Largest file accepted
+     * @return Bytes written
+     * @throws ProtoIO.TooLargeException if the stream runs past maxBytes; nothing is stored
+     */
+    public long upload(String path, InputStream in, long maxBytes) throws IOException {
+        long start = System.nanoTime();
+        int slash = path.lastIndexOf('/');
+        String temp = path.substring(0, slash + 1) + "." + path.substring(slash + 1) + "." + UUID.randomUUID() + ".tmp";
+        LimitedInputStream body = new LimitedInputStream(in, maxBytes);
+        try {
+            create(temp, body);
+            if (!rename(temp, path)) {
+                throw new IOException("WebHDFS RENAME " + temp + " to " + path + " failed");
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temp);
+            if (body.exceeded) {
+                throw new ProtoIO.TooLargeException("Upload exceeds " + maxBytes + " bytes");
+            }
+            throw e;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        bytesUploaded.add(body.count);
+        uploadThroughput.record((long) (body.count / Math.max(seconds, 1e-3)));
+        log.info("Uploaded {} bytes to {} in {}s ({} MB/s)", body.count, path, String.format("%.2f", seconds),
+            String.format("%.1f", body.count / 1e6 / Math.max(seconds, 1e-3)));
+        return body.count;
+    }
+
+    /**
+     * CREATE: the namenode answers with a redirect to a datanode, which receives the data.
+     */
+    private void create(String path, InputStream body) throws IOException {
+        HttpRequest ask = HttpRequest.newBuilder(uri(path, "CREATE", "&overwrite=false"))
+            .PUT(HttpRequest.BodyPublishers.noBody())
+            .timeout(Duration.ofSeconds(30))
+            .build();
+        HttpResponse<String> redirect = send(direct, ask, HttpResponse.BodyHandlers.ofString());
+        String location = redirect.headers().firstValue("Location").orElse(null);
+        if (redirect.statusCode() != 307 || location == null) {
+            throw new IOException("WebHDFS CREATE " + path + " failed: HTTP " + redirect.statusCode());
+        }
+
+        // No Content-Length: the publisher streams the body chunked, one buffer at a time
+        HttpRequest put = HttpRequest.newBuilder(URI.create(location))
+            .header("Content-Type", "application/octet-stream")
+            .PUT(HttpRequest.BodyPublishers.ofInputStream(() -> body))
+            .build();
+        HttpResponse<String> r = send(direct, put, HttpResponse.BodyHandlers.ofString());
+        if (r.statusCode() != 201) {
+            throw new IOException("WebHDFS CREATE " + path + " on datanode failed: HTTP " + r.statusCode());
+        }
+    }
+
+    /**
+     * @return Whether the rename happened; false if the destination exists
+     */
+    public boolean rename(String from, String to) throws IOException {
+        String destination = URLEncoder.encode(to, StandardCharsets.UTF_8);
+        return booleanResult("RENAME", from, "PUT", "&destination=" + destination);
+    }
+
+    /**
+     * @return Whether a file was deleted
+     */
+    public boolean delete(String path) throws IOException {
+        return booleanResult("DELETE", path, "DELETE", "");
+    }
+
+    /**
+     * Delete a file that is no longer referenced, logging rather than failing the request.
+     */
+    public void deleteQuietly(String path) {
+        try {
+            delete(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete {} from HDFS", path, e);
+        }
+    }
+
+    private boolean booleanResult(String op, String path, String method, String params) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(uri(path, op, params))
+            .method(method, HttpRequest.BodyPublishers.noBody())
+            .timeout(Duration.ofSeconds(30))
+            .build();
+        HttpResponse<String> r = send(http, request, HttpResponse.BodyHandlers.ofString());
+        if (r.statusCode() != 200) {
+            throw new IOException("WebHDFS " + op + " " + path + " failed: HTTP " + r.statusCode());
+        }
+        return JsonParser.parseString(r.body()).getAsJsonObject().get("boolean").getAsBoolean();
+    }
+
+    /** Counts what is read and fails once more than the limit has been */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        long count;
+        boolean exceeded;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        private void counted(int n) throws IOException {
+            count += n;
+            if (count > limit) {
+                exceeded = true;
+                throw new ProtoIO.TooLargeException("Upload exceeds " + limit + " bytes");
+            }
+        }
+    }
+
+    private URI uri(String path, String op, String params) {
+        StringBuilder sb = new StringBuilder(baseUrl);
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                sb.append('/').append(URLEncoder.encode(segment, StandardCharsets.UTF_8).replace("+", "%20"));
+            }
+        }
+        sb.append("?op=").append(op);
+        if (user != null) {
+            sb.append("&user.name=").append(URLEncoder.encode(user, StandardCharsets.UTF_8));
+        }
+        return URI.create(sb.append(params).toString());
+    }
+
+    private <T> HttpResponse<T> send(URI uri, HttpResponse.BodyHandler<T> handler) throws IOException {
+        return send(http, HttpRequest.newBuilder(uri).GET().timeout(Duration.ofSeconds(30)).build(), handler);
+    }
+
+    private static <T> HttpResponse<T> send(HttpClient client, HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException {
+        try {
+            return client.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted calling WebHDFS");
+        }
+    }
+}
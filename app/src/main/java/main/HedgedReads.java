@@ -0,0 +1,259 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged execution of idempotent point reads.
+ *
+ * The read runs on the request thread against the usual vtgate. If it has not answered within the
+ * recent p95 latency for its route, a duplicate is sent to an alternate target
+ * ({@link DB#alternateFor}) on the shared {@link Workers} pool; the first successful answer wins
+ * and the other attempt's statement is cancelled. When the pool is busy, or HEDGE_MAX_IN_FLIGHT
+ * hedges are already running, the read is simply not hedged.
+ *
+ * Hedges are paid for from a budget: every read earns {@code budgetPercent}/100 of a hedge and
+ * each hedge spends one, so hedging adds at most that share of extra queries (plus a small burst).
+ */
+public class HedgedReads {
+    private static final Logger log = LogManager.getLogger(HedgedReads.class);
+
+    // Hedge budget is tracked in hundredths of a hedge
+    private static final long HEDGE_COST = 100;
+    // At most this many hedges can be saved up for a burst
+    private static final long MAX_CREDITS = 10 * HEDGE_COST;
+    // The p95 is not trusted until the route has this many samples
+    private static final long MIN_SAMPLES = 100;
+
+    /** Maps the result of a point read; called with the cursor before the first row */
+    @FunctionalInterface
+    public interface ResultMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    private final DB db;
+    private final boolean enabled;
+    private final long budgetPercent;
+    private final long minDelayNanos;
+    private final AtomicLong credits = new AtomicLong(MAX_CREDITS);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "hedge-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // Hedges running on the worker pool; one that cannot start at once is skipped
+    private final Semaphore inFlight;
+
+    /**
+     * @param budgetPercent Max extra load from hedges, as a percentage of reads
+     * @param minDelayMillis Lower bound on the hedge delay, so sub-millisecond p95s do not hedge eagerly
+     * @param maxInFlight Most hedges running at once
+     */
+    public HedgedReads(DB db, boolean enabled, long budgetPercent, long minDelayMillis, int maxInFlight) {
+        this.db = db;
+        this.enabled = enabled;
+        this.budgetPercent = budgetPercent;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Configure from HEDGED_READS (default on), HEDGE_BUDGET_PERCENT, HEDGE_MIN_DELAY_MS and
+     * HEDGE_MAX_IN_FLIGHT.
+     */
+    public static HedgedReads fromEnv(DB db) {
+        boolean enabled = Boolean.parseBoolean(System.getenv().getOrDefault("HEDGED_READS", "true"));
+        long budget = Long.parseLong(System.getenv().getOrDefault("HEDGE_BUDGET_PERCENT", "5"));
+        long minDelay = Long.parseLong(System.getenv().getOrDefault("HEDGE_MIN_DELAY_MS", "2"));
+        int maxInFlight = Integer.parseInt(System.getenv().getOrDefault("HEDGE_MAX_IN_FLIGHT", "16"));
+        return new HedgedReads(db, enabled, budget, minDelay, maxInFlight);
+    }
+
+    /**
+     * Run {@code sql} with {@code id} as its only parameter, hedging if it is slow.
+     * @param route Metric label and p95 bucket, e.g. "article_get"
+     * @param readKeyspace Keyspace read, used to decide whether a replica may serve the hedge
+     */
+    public <T> T query(String route, String readKeyspace, String sql, long id, ResultMapper<T> mapper) throws Exception {
+        Metrics.Timer latency = Metrics.timer("helvetia_hedged_read_seconds",
+            "Latency of the first attempt of hedgeable point reads", "route", route);
+
+        long delay = !enabled || latency.count() < MIN_SAMPLES ? -1 : Math.max(minDelayNanos, latency.quantileNanos(0.95));
+        if (enabled) {
+            credits.getAndUpdate(c -> Math.min(MAX_CREDITS, c + budgetPercent));
+        }
+
+        long start = System.nanoTime();
+        if (delay < 0) {
+            try (Connection conn = db.getConnection();
+                 PreparedStatement st = conn.prepareStatement(sql)) {
+                st.setLong(1, id);
+                return mapper.map(st.executeQuery());
+            } finally {
+                latency.recordSince(start);
+            }
+        }
+
+        Race<T> race = new Race<>();
+        DB.Borrowed borrowed = db.borrow();
+        try (Connection conn = borrowed.connection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            // Decided here: the alternate avoids this attempt's vtgate and depends on the request's token
+            DB.ConnectionSource alternate = db.alternateFor(readKeyspace, borrowed.endpoint());
+            race.first = st;
+            // Wrapped here so the hedge runs under this request's deadline
+            Callable<Void> hedge = Deadline.inherit(() -> {
+                race.runHedge(alternate, sql, id, mapper);
+                return null;
+            });
+            ScheduledFuture<?> trigger = timer.schedule(() -> launch(route, race, alternate, hedge),
+                delay - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+            try {
+                st.setLong(1, id);
+                T result = mapper.map(st.executeQuery());
+                latency.recordSince(start);
+                race.finish();
+                return result;
+            } catch (SQLException e) {
+                if (race.hedgeSucceeded()) {
+                    // Cancelled because the hedge answered first; that time says nothing about the route
+                    Metrics.counter("helvetia_hedged_reads_won_total", "Hedged duplicates that answered first",
+                        "route", route).inc();
+                    return race.hedge.join();
+                }
+                latency.recordSince(start);
+                if (race.hedgeStarted) {
+                    // The first attempt failed outright; the hedge may still answer
+                    try {
+                        return race.hedge.get();
+                    } catch (ExecutionException hedgeFailed) {
+                        e.addSuppressed(hedgeFailed.getCause());
+                    } catch (CancellationException hedgeSkipped) {
+                        // Never ran
+                    }
+                }
+                throw e;
+            } finally {
+                race.firstDone = true;
+                trigger.cancel(false);
+            }
+        }
+    }
+
+    /** Runs on the timer once the first attempt is slow: send the hedge if allowed */
+    private <T> void launch(String route, Race<T> race, DB.ConnectionSource alternate, Callable<Void> hedge) {
+        if (race.firstDone) {
+            return;
+        }
+        if (alternate == null || !spendCredit()) {
+            Metrics.counter("helvetia_hedged_reads_skipped_total",
+                "Slow reads not hedged (no alternate target, budget exhausted or pool busy)", "route", route).inc();
+            return;
+        }
+        race.hedgeStarted = true;
+        boolean started = false;
+        if (inFlight.tryAcquire()) {
+            started = Workers.tryExecute(() -> {
+                try {
+                    hedge.call();
+                } catch (Exception e) {
+                    race.hedge.completeExceptionally(e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+            if (!started) {
+                inFlight.release();
+            }
+        }
+        if (!started) {
+            race.hedge.cancel(false);
+            credits.addAndGet(HEDGE_COST);
+            Metrics.counter("helvetia_hedged_reads_skipped_total",
+                "Slow reads not hedged (no alternate target, budget exhausted or pool busy)", "route", route).inc();
+            return;
+        }
+        Metrics.counter("helvetia_hedged_reads_sent_total", "Hedged duplicates sent", "route", route).inc();
+    }
+
+    private boolean spendCredit() {
+        while (true) {
+            long c = credits.get();
+            if (c < HEDGE_COST) {
+                return false;
+            }
+            if (credits.compareAndSet(c, c - HEDGE_COST)) {
+                return true;
+            }
+        }
+    }
+
+    private static void cancelQuietly(PreparedStatement st) {
+        if (st == null) {
+            return;
+        }
+        try {
+            st.cancel();
+        } catch (SQLException e) {
+            log.debug("Cancelling losing hedged read failed: {}", e.getMessage());
+        }
+    }
+
+    /** One read's first attempt (on the request thread) racing its hedge (on the pool) */
+    private static final class Race<T> {
+        final CompletableFuture<T> hedge = new CompletableFuture<>();
+        volatile PreparedStatement first;
+        volatile PreparedStatement hedgeStatement;
+        // Set once the request thread is done with the first attempt, win or lose
+        volatile boolean firstDone;
+        volatile boolean hedgeStarted;
+
+        void runHedge(DB.ConnectionSource alternate, String sql, long id, ResultMapper<T> mapper) {
+            if (firstDone) {
+                hedge.cancel(false);
+                return;
+            }
+            try (Connection conn = alternate.open();
+                 PreparedStatement st = conn.prepareStatement(sql)) {
+                hedgeStatement = st;
+                if (firstDone) {
+                    hedge.cancel(false);
+                    return;
+                }
+                st.setLong(1, id);
+                if (hedge.complete(mapper.map(st.executeQuery())) && !firstDone) {
+                    cancelQuietly(first);
+                }
+            } catch (Exception e) {
+                hedge.completeExceptionally(e);
+            }
+        }
+
+        /** Stop a hedge from starting and abort a running one; its result would be discarded */
+        void finish() {
+            firstDone = true;
+            if (!hedge.isDone()) {
+                cancelQuietly(hedgeStatement);
+            }
+        }
+
+        boolean hedgeSucceeded() {
+            return hedge.isDone() && !hedge.isCompletedExceptionally();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package helvetia.main;
+
+/**
+ * Source of contiguous id ranges for {@link IdAllocator}.
+ */
+public interface IdBlockSource {
+    /**
+     * Reserve {@code count} consecutive ids for an entity. Ranges never overlap,
+     * across calls and across server instances.
+     * @return First id of the reserved range
+     */
+    long reserve(String entity, int count) throws Exception;
+}
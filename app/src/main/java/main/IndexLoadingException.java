@@ -0,0 +1,11 @@
+package helvetia.main;
+
+/**
+ * Thrown by an in-process index asked to answer a query before its first load has finished.
+ * The server answers 503 with Retry-After: the request is fine and will work shortly.
+ */
+public class IndexLoadingException extends IllegalStateException {
+    public IndexLoadingException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,75 @@
+package helvetia.main;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+
+/**
+ * Computes Vitess keyspace ids for the region_json primary vindexes, so the app can tell which
+ * shard owns a row without asking vtgate.
+ *
+ * region_json with region_bytes=1 maps (id, region) to one region byte followed by the Vitess
+ * "hash" of id, which is 3DES-ECB with an all-zero key over the big-endian id.
+ * The region maps mirror docker/vitess/config/*.json and must be kept in sync with them.
+ */
+public final class KeyspaceIds {
+
+    public static final Map<String, Integer> REGION_MAP = Map.of(
+        "Beijing", 64,
+        "HongKong", 192
+    );
+
+    public static final Map<String, Integer> CATEGORY_MAP = Map.of(
+        "science", 64,
+        "technology", 192
+    );
+
+    public static final Map<String, Integer> TEMPORAL_MAP = Map.of(
+        "daily", 64,
+        "weekly", 192,
+        "monthly", 224
+    );
+
+    // Cipher instances are not thread-safe
+    private static final ThreadLocal<Cipher> VHASH = ThreadLocal.withInitial(() -> {
+        try {
+            Cipher c = Cipher.getInstance("DESede/ECB/NoPadding");
+            c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[24], "DESede"));
+            return c;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("DESede is not available", e);
+        }
+    });
+
+    private KeyspaceIds() {}
+
+    /**
+     * Keyspace id of a row in a region_json-sharded table.
+     * @param id Row id (first vindex column)
+     * @param region Region / category / temporal value (second vindex column)
+     * @param regionMap Map the vindex uses for the second column
+     * @return The keyspace id, or null if the region is not in the map
+     */
+    public static byte[] regionJson(long id, String region, Map<String, Integer> regionMap) {
+        Integer regionByte = regionMap.get(region);
+        if (regionByte == null) {
+            return null;
+        }
+        byte[] hash = vhash(id);
+        byte[] ksid = new byte[1 + hash.length];
+        ksid[0] = (byte) (int) regionByte;
+        System.arraycopy(hash, 0, ksid, 1, hash.length);
+        return ksid;
+    }
+
+    /** The Vitess "hash" vindex function */
+    static byte[] vhash(long id) {
+        try {
+            return VHASH.get().doFinal(ByteBuffer.allocate(8).putLong(id).array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Local disk cache of article media in front of {@link HdfsMediaProxy}, so a popular video is
+ * read from the datanodes once rather than on every view.
+ *
+ * Files are kept whole under MEDIA_CACHE_DIR, evicted least recently used once they exceed
+ * MEDIA_CACHE_BYTES, and served (ranges included) from a memory map handed to Jetty, or with
+ * FileChannel.transferTo under other servlet containers. A miss downloads in the background
+ * to a temporary file that is renamed into place only once complete, so the cache never holds a
+ * partial file; meanwhile the request that missed, and any others for the same file, stream from
+ * the temporary file as it grows, so the first byte does not wait for the whole download. At most
+ * MEDIA_CACHE_MAX_FILLS downloads run at once; misses beyond that stream from HDFS. Entries are
+ * revalidated against the HDFS modificationTime at most every MEDIA_CACHE_REVALIDATE_MS, and a
+ * changed file is fetched again. File names carry the path hash and modification time, so the
+ * index is rebuilt from the directory on restart.
+ */
+public class MediaDiskCache {
+    private static final Logger log = LogManager.getLogger(MediaDiskCache.class);
+
+    private static final String SUFFIX = ".media";
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final int DEFAULT_MAX_FILLS = 4;
+
+    private final HdfsMediaProxy hdfs;
+    private final Path dir;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long revalidateMillis;
+
+    /** A cached file; {@code validatedAt} is when its modification time was last confirmed */
+    private static final class Entry {
+        final String key;
+        final Path file;
+        final long length;
+        final long modificationTime;
+        volatile long validatedAt;
+
+        Entry(String key, Path file, long length, long modificationTime, long validatedAt) {
+            this.key = key;
+            this.file = file;
+            this.length = length;
+            this.modificationTime = modificationTime;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    // Access-ordered: iteration starts at the least recently used entry. Guarded by itself.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    /** A download in progress; readers stream {@code partial} up to {@code written} */
+    private static final class Fill {
+        final Path partial;
+        final CompletableFuture<Entry> done = new CompletableFuture<>();
+        private long written;
+
+        Fill(Path partial) {
+            this.partial = partial;
+        }
+
+        synchronized void advance(long bytes) {
+            written += bytes;
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            notifyAll();
+        }
+
+        /**
+         * Wait until the file extends past {@code position} or the download ends.
+         * @return Bytes downloaded so far
+         * @throws IOException if the download failed
+         */
+        synchronized long awaitPast(long position) throws IOException {
+            try {
+                while (written <= position && !done.isDone()) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for media download");
+            }
+            if (done.isCompletedExceptionally()) {
+                try {
+                    done.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+            }
+            return written;
+        }
+    }
+
+    // Downloads in progress, keyed by file name, so concurrent misses share one
+    private final Map<String, Fill> fills = new ConcurrentHashMap<>();
+    private final Semaphore fillSlots;
+    private final ExecutorService downloader;
+
+    private final Metrics.Counter hits =
+        Metrics.counter("helvetia_media_cache_requests_total", "Media cache lookups", "result", "hit");
+    private final Metrics.Counter misses =
+        Metrics.counter("helvetia_media_cache_requests_total", "Media cache lookups", "result", "miss");
+    private final Metrics.Counter bypassed =
+        Metrics.counter("helvetia_media_cache_requests_total", "Media cache lookups", "result", "bypass");
+    private final Metrics.Counter evictions =
+        Metrics.counter("helvetia_media_cache_evictions_total", "Media files evicted from the disk cache");
+
+    /**
+     * @param dir Cache directory, created if missing; files in it from a previous run are reused
+     * @param maxBytes Disk budget for cached files
+     * @param maxEntryBytes Files larger than this are streamed from HDFS without caching
+     * @param revalidateMillis How long a file is served before its modification time is checked again
+     */
+    public MediaDiskCache(HdfsMediaProxy hdfs, Path dir, long maxBytes, long maxEntryBytes, long revalidateMillis)
+            throws IOException {
+        this(hdfs, dir, maxBytes, maxEntryBytes, revalidateMillis, DEFAULT_MAX_FILLS);
+    }
+
+    /**
+     * @param maxFills Downloads run at once; further misses stream from HDFS without caching, and 0
+     * never fills
+     */
+    public MediaDiskCache(HdfsMediaProxy hdfs, Path dir, long maxBytes, long maxEntryBytes, long revalidateMillis,
+                          int maxFills) throws IOException {
+        this.hdfs = hdfs;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.revalidateMillis = revalidateMillis;
+        this.fillSlots = new Semaphore(maxFills);
+        // Never queues: a download is only submitted after taking one of the maxFills slots
+        this.downloader = Executors.newFixedThreadPool(Math.max(1, maxFills), r -> {
+            Thread t = new Thread(r, "media-cache-fill");
+            t.setDaemon(true);
+            return t;
+        });
+        Files.createDirectories(dir);
+        load();
+        Metrics.gauge("helvetia_media_cache_bytes", "Bytes of media in the disk cache", () -> {
+            synchronized (entries) {
+                return totalBytes;
+            }
+        });
+    }
+
+    /**
+     * Configure from MEDIA_CACHE_DIR (default helvetia-media under java.io.tmpdir),
+     * MEDIA_CACHE_BYTES (default 10 GiB, 0 disables the cache), MEDIA_CACHE_MAX_FILE_BYTES
+     * (default a quarter of the budget), MEDIA_CACHE_REVALIDATE_MS (default 10s) and
+     * MEDIA_CACHE_MAX_FILLS (concurrent downloads into the cache, default 4).
+     * @return The cache, or null if disabled
+     */
+    public static MediaDiskCache fromEnv(HdfsMediaProxy hdfs) throws IOException {
+        var env = System.getenv();
+        long maxBytes = Long.parseLong(env.getOrDefault("MEDIA_CACHE_BYTES", Long.toString(10L << 30)));
+        if (maxBytes <= 0) {
+            return null;
+        }
+        return new MediaDiskCache(
+            hdfs,
+            Path.of(env.getOrDefault("MEDIA_CACHE_DIR", Path.of(System.getProperty("java.io.tmpdir"), "helvetia-media").toString())),
+            maxBytes,
+            Long.parseLong(env.getOrDefault("MEDIA_CACHE_MAX_FILE_BYTES", Long.toString(maxBytes / 4))),
+            Long.parseLong(env.getOrDefault("MEDIA_CACHE_REVALIDATE_MS", "10000")),
+            Integer.parseInt(env.getOrDefault("MEDIA_CACHE_MAX_FILLS", Integer.toString(DEFAULT_MAX_FILLS))));
+    }
+
+    /**
+     * Answer a GET for the file from the cache, filling it on a miss: 200, 206 for a range, 416
+     * for a range past the end, or 404 if the file is missing from HDFS.
+     */
+    public void serve(String path, String contentType, String rangeHeader, HttpServletResponse res) throws IOException {
+        String key = key(path);
+        Entry entry = current(key);
+        if (entry == null) {
+            HdfsMediaProxy.FileStatus status = hdfs.status(path);
+            if (status == null) {
+                remove(key);
+                res.setStatus(404);
+                return;
+            }
+            if (status.length() > maxEntryBytes) {
+                bypassed.inc();
+                hdfs.serve(path, status, contentType, rangeHeader, res);
+                return;
+            }
+            entry = validate(key, status);
+            if (entry == null) {
+                Fill fill = fill(path, key, status);
+                if (fill == null) {
+                    // Every download slot is busy
+                    bypassed.inc();
+                    hdfs.serve(path, status, contentType, rangeHeader, res);
+                    return;
+                }
+                misses.inc();
+                try {
+                    entry = serveFilling(fill, status.length(), contentType, rangeHeader, res);
+                } catch (FileNotFoundException e) {
+                    // Deleted from HDFS since the status call
+                    res.setStatus(404);
+                    return;
+                }
+                if (entry == null) {
+                    return;
+                }
+            } else {
+                hits.inc();
+            }
+        } else {
+            hits.inc();
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(entry.file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Evicted since the lookup
+            hdfs.serve(path, contentType, rangeHeader, res);
+            return;
+        }
+        try (channel) {
+            HdfsMediaProxy.Range range = HdfsMediaProxy.respond(rangeHeader, entry.length, contentType, res);
+            if (range == null || range.length() == 0) {
+                return;
+            }
+            ServletOutputStream out = res.getOutputStream();
+            if (out instanceof HttpOutput jetty && range.length() <= Integer.MAX_VALUE) {
+                // Jetty writes the mapped pages to the socket without copying them to the heap
+                jetty.sendContent(channel.map(FileChannel.MapMode.READ_ONLY, range.start(), range.length()));
+                return;
+            }
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = range.start();
+            long remaining = range.length();
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, target);
+                if (sent <= 0) {
+                    throw new IOException("Short read of cached " + entry.file);
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+
+    /**
+     * @return The entry if it was validated recently enough to serve without asking HDFS
+     */
+    private Entry current(String key) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(key);
+        }
+        return e != null && System.currentTimeMillis() - e.validatedAt < revalidateMillis ? e : null;
+    }
+
+    /**
+     * @return The entry if it still matches the file in HDFS, or null if it must be fetched again
+     */
+    private Entry validate(String key, HdfsMediaProxy.FileStatus status) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(key);
+        }
+        if (e == null) {
+            return null;
+        }
+        if (e.modificationTime == status.modificationTime() && e.length == status.length()) {
+            e.validatedAt = System.currentTimeMillis();
+            return e;
+        }
+        // Replaced in HDFS; the new version is stored under a different name
+        remove(key);
+        return null;
+    }
+
+    /**
+     * Stream the file to the client while it is being downloaded.
+     * @return The finished entry if the download completed before this request opened the
+     * temporary file, so the caller serves it from the cache instead; otherwise null
+     * @throws FileNotFoundException if the file is missing from HDFS, before anything is sent
+     */
+    private Entry serveFilling(Fill fill, long length, String contentType, String rangeHeader,
+                               HttpServletResponse res) throws IOException {
+        // Failures before the first byte (a missing file, a dead datanode) can still get a status
+        fill.awaitPast(0);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(fill.partial, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Already renamed into place
+            fill.awaitPast(length);
+            return fill.done.join();
+        }
+        try (channel) {
+            HdfsMediaProxy.Range range = HdfsMediaProxy.respond(rangeHeader, length, contentType, res);
+            if (range == null || range.length() == 0) {
+                return null;
+            }
+            WritableByteChannel target = Channels.newChannel(res.getOutputStream());
+            long position = range.start();
+            long end = range.start() + range.length();
+            while (position < end) {
+                long available = Math.min(fill.awaitPast(position), end);
+                if (available <= position) {
+                    throw new IOException("Short download of " + fill.partial);
+                }
+                long sent = channel.transferTo(position, available - position, target);
+                if (sent <= 0) {
+                    throw new IOException("Short read of " + fill.partial);
+                }
+                position += sent;
+            }
+            if (end == length) {
+                // All that is left of the download is the rename into place; wait for it to be cached
+                fill.awaitPast(length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start downloading the file in the background, or join the download already in progress.
+     * @return The download, or null if all download slots are busy
+     */
+    private Fill fill(String path, String key, HdfsMediaProxy.FileStatus status) throws IOException {
+        String name = fileName(key, status.modificationTime());
+        Fill pending = fills.get(name);
+        if (pending != null) {
+            return pending;
+        }
+        if (!fillSlots.tryAcquire()) {
+            return null;
+        }
+        Fill mine;
+        try {
+            mine = new Fill(Files.createTempFile(dir, key + "-", PARTIAL_SUFFIX));
+        } catch (IOException | RuntimeException e) {
+            fillSlots.release();
+            throw e;
+        }
+        pending = fills.putIfAbsent(name, mine);
+        if (pending != null) {
+            fillSlots.release();
+            delete(mine.partial);
+            return pending;
+        }
+        downloader.execute(() -> {
+            try {
+                mine.done.complete(download(path, key, name, status, mine));
+            } catch (IOException | RuntimeException e) {
+                if (!(e instanceof FileNotFoundException)) {
+                    log.warn("Failed to cache media {}", path, e);
+                }
+                mine.done.completeExceptionally(e);
+            } finally {
+                mine.finish();
+                fills.remove(name, mine);
+                fillSlots.release();
+            }
+        });
+        return mine;
+    }
+
+    private Entry download(String path, String key, String name, HdfsMediaProxy.FileStatus status, Fill fill)
+            throws IOException {
+        Path partial = fill.partial;
+        try {
+            long copied;
+            try (InputStream in = hdfs.open(path, 0, -1);
+                 FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                copied = hdfs.copy(in, new WritableByteChannel() {
+                    @Override
+                    public int write(ByteBuffer src) throws IOException {
+                        int n = out.write(src);
+                        fill.advance(n);
+                        return n;
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        return out.isOpen();
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                });
+            }
+            if (copied != status.length()) {
+                throw new IOException("Read " + copied + " of " + status.length() + " bytes of " + path);
+            }
+            Path file = dir.resolve(name);
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Entry entry = new Entry(key, file, status.length(), status.modificationTime(), System.currentTimeMillis());
+            insert(entry);
+            return entry;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    private void insert(Entry entry) {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Entry old = entries.put(entry.key, entry);
+            if (old != null) {
+                totalBytes -= old.length;
+                if (!old.file.equals(entry.file)) {
+                    evicted.add(old);
+                }
+            }
+            totalBytes += entry.length;
+            Iterator<Entry> it = entries.values().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Entry e = it.next();
+                if (e == entry) {
+                    continue;
+                }
+                it.remove();
+                totalBytes -= e.length;
+                evicted.add(e);
+            }
+        }
+        // Readers that already opened an evicted file keep reading it; the space is freed after
+        for (Entry e : evicted) {
+            evictions.inc();
+            delete(e.file);
+        }
+    }
+
+    private void remove(String key) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.remove(key);
+            if (e != null) {
+                totalBytes -= e.length;
+            }
+        }
+        if (e != null) {
+            delete(e.file);
+        }
+    }
+
+    /**
+     * Index the files left by a previous run, least recently modified first, so they are evicted
+     * first. They are revalidated before their first use. Partial downloads are discarded.
+     */
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(PARTIAL_SUFFIX)) {
+                    delete(p);
+                } else if (name.endsWith(SUFFIX)) {
+                    files.add(p);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(p -> {
+            try {
+                return Files.getLastModifiedTime(p);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            int dash = name.indexOf('-');
+            try {
+                String key = name.substring(0, dash);
+                long modificationTime = Long.parseLong(name.substring(dash + 1, name.length() - SUFFIX.length()));
+                insert(new Entry(key, p, Files.size(p), modificationTime, 0));
+            } catch (RuntimeException e) {
+                delete(p);
+            }
+        }
+        log.info("Media cache at {}: {} files, {} bytes", dir, entries.size(), totalBytes);
+    }
+
+    private static String key(String path) {
+        return String.format("%016x", XxHash64.hash(path.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String fileName(String key, long modificationTime) {
+        return key + "-" + modificationTime + SUFFIX;
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete cached media {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package helvetia.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide metrics registry, rendered in the Prometheus text format at GET /metrics.
+ *
+ * Series are identified by name plus an optional label set, e.g.
+ * {@code Metrics.timer("helvetia_read_ingest_commit_seconds", "Group commit latency", "region", "Beijing")}.
+ * Registering the same series twice returns the existing instance.
+ */
+public final class Metrics {
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    /** A monotonically increasing count */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() { value.increment(); }
+        public void add(long n) { value.add(n); }
+        public long get() { return value.sum(); }
+    }
+
+    /**
+     * Latency recorder. Keeps exact count/sum and a ring of recent samples
+     * from which quantiles are estimated. Also used, unscaled, for non-time
+     * distributions such as bytes; see {@link #distribution}.
+     */
+    public static final class Timer {
+        private static final int WINDOW = 1024;
+        private static final long QUANTILE_REFRESH_NANOS = 1_000_000_000L;
+
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+        private final long[] samples = new long[WINDOW];
+        private final AtomicLong next = new AtomicLong();
+
+        private volatile long[] sorted = new long[0];
+        private volatile long sortedAt;
+
+        // Divisor from recorded units to exported units: nanoseconds to seconds, or 1
+        private final double scale;
+
+        private Timer(double scale) {
+            this.scale = scale;
+        }
+
+        /** Record one observation, in nanoseconds for a timer */
+        public void record(long nanos) {
+            count.increment();
+            sum.add(nanos / scale);
+            samples[(int) (next.getAndIncrement() % WINDOW)] = nanos;
+        }
+
+        /** Record the time elapsed since {@code startNanos} (from System.nanoTime) */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() { return count.sum(); }
+
+        /**
+         * Estimate a quantile over the recent window.
+         * @param q Quantile in [0, 1]
+         * @return Latency in nanoseconds, or 0 if nothing has been recorded
+         */
+        public long quantileNanos(double q) {
+            long[] s = sorted;
+            long now = System.nanoTime();
+            if (now - sortedAt > QUANTILE_REFRESH_NANOS || s.length == 0) {
+                int n = (int) Math.min(next.get(), WINDOW);
+                s = Arrays.copyOf(samples, n);
+                Arrays.sort(s);
+                sorted = s;
+                sortedAt = now;
+            }
+            if (s.length == 0) {
+                return 0;
+            }
+            int idx = (int) Math.min(s.length - 1, Math.round(q * (s.length - 1)));
+            return s[idx];
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Get or create a counter.
+     * @param labels Alternating label names and values
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series
+            .computeIfAbsent(labelString(labels), k -> new Counter());
+    }
+
+    /**
+     * Register a gauge whose value is read at scrape time. Re-registering replaces the supplier.
+     * @param labels Alternating label names and values
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(labelString(labels), value);
+    }
+
+    /**
+     * Get or create a latency timer, exported as a summary in seconds.
+     * @param labels Alternating label names and values
+     */
+    public static Timer timer(String name, String help, String... labels) {
+        return (Timer) family(name, help, "summary").series
+            .computeIfAbsent(labelString(labels), k -> new Timer(1e9));
+    }
+
+    /**
+     * Get or create a summary of plain values (e.g. bytes), exported as recorded.
+     * @param labels Alternating label names and values
+     */
+    public static Timer distribution(String name, String help, String... labels) {
+        return (Timer) family(name, help, "summary").series
+            .computeIfAbsent(labelString(labels), k -> new Timer(1));
+    }
+
+    /**
+     * Render all registered series in the Prometheus text exposition format.
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family f : new TreeMap<>(families).values()) {
+            out.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            out.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> e : new TreeMap<>(f.series).entrySet()) {
+                String labels = e.getKey();
+                Object s = e.getValue();
+                if (s instanceof Counter c) {
+                    line(out, f.name, labels, c.get());
+                } else if (s instanceof DoubleSupplier g) {
+                    line(out, f.name, labels, g.getAsDouble());
+                } else if (s instanceof Timer t) {
+                    for (double q : new double[] {0.5, 0.95, 0.99}) {
+                        String ql = withLabel(labels, "quantile", Double.toString(q));
+                        line(out, f.name, ql, t.quantileNanos(q) / t.scale);
+                    }
+                    line(out, f.name + "_sum", labels, t.sum.sum());
+                    line(out, f.name + "_count", labels, t.count());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!f.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " already registered as " + f.type);
+        }
+        return f;
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String labelString(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        List<String> parts = new ArrayList<>();
+        for (int i = 0; i < labels.length; i += 2) {
+            parts.add(labels[i] + "=\"" + escape(labels[i + 1]) + "\"");
+        }
+        return String.join(",", parts);
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String extra = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? extra : labels + "," + extra;
+    }
+
+    private static String escape(String v) {
+        return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,62 @@
+package helvetia.main;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Power-of-two-choices selection between vtgates of equal standing.
+ *
+ * Two candidates are drawn at random and the one with the lower cost wins, where cost is the
+ * latency EWMA scaled by (in-flight + 1). A gateway that slows down or queues up loses most
+ * comparisons and so sheds its share of traffic, while random sampling avoids the herding of
+ * always picking the single best-looking target. Candidates outside the data's home cell pay a
+ * fixed cost factor, so locality still wins among otherwise similar gateways.
+ */
+public class P2cBalancer {
+    private final double crossCellFactor;
+
+    /**
+     * @param crossCellFactor Cost multiplier for a gateway outside the data's home cell
+     */
+    public P2cBalancer(double crossCellFactor) {
+        this.crossCellFactor = crossCellFactor;
+    }
+
+    /**
+     * Create a balancer with BALANCER_CROSS_CELL_FACTOR (default 1.5).
+     */
+    public static P2cBalancer fromEnv() {
+        return new P2cBalancer(Double.parseDouble(System.getenv().getOrDefault("BALANCER_CROSS_CELL_FACTOR", "1.5")));
+    }
+
+    /**
+     * @param candidates Gateways of equal health and datacenter standing (non-empty)
+     * @param cell Home cell of the data being accessed
+     */
+    public VtgateEndpoint pick(List<VtgateEndpoint> candidates, String cell) {
+        VtgateEndpoint chosen;
+        if (candidates.size() == 1) {
+            chosen = candidates.get(0);
+        } else {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            int i = rnd.nextInt(candidates.size());
+            int j = rnd.nextInt(candidates.size() - 1);
+            if (j >= i) {
+                j++;
+            }
+            VtgateEndpoint a = candidates.get(i);
+            VtgateEndpoint b = candidates.get(j);
+            chosen = cost(a, cell) <= cost(b, cell) ? a : b;
+        }
+        Metrics.counter("helvetia_balancer_picks_total", "Gateways chosen by the balancer",
+            "endpoint", chosen.name()).inc();
+        return chosen;
+    }
+
+    double cost(VtgateEndpoint e, String cell) {
+        // Unmeasured gateways count as 1ms so in-flight still differentiates them
+        double latency = e.latencyNanos() > 0 ? e.latencyNanos() : 1_000_000;
+        double c = latency * (e.inFlight() + 1);
+        return e.cell().equals(cell) ? c : c * crossCellFactor;
+    }
+}
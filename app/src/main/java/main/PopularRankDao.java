@@ -1,5 +1,6 @@
 package helvetia.main;
 
+import com.google.protobuf.FieldMask;
 import helvetia.PopularRank;
 import java.util.List;
 
@@ -26,9 +27,37 @@ public interface PopularRankDao {
      */
     List<PopularRank> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
     
+    /**
+     * The same page as {@link #list(String, int, int, String, String)}, each row encoded
+     * straight from the result set in PopularRank wire format
+     */
+    List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
+    
     /**
      * Count total popular rank records matching filter
      * @param rsqlFilter RSQL filter string, or null for no filtering
      */
     long count(String rsqlFilter) throws Exception;
+    
+    /**
+     * Estimate the total number of popular rank records, unfiltered, from table statistics
+     * @return The estimate, or null if statistics are unavailable
+     */
+    Long estimateCount() throws Exception;
+    
+    /**
+     * Update only the columns named in the field mask
+     * @param p PopularRank carrying the id and the new values
+     * @param mask Proto field names to write; id and the shard key cannot be patched
+     * @return true if a row with this id exists
+     */
+    boolean patch(PopularRank p, FieldMask mask) throws Exception;
+    
+    /**
+     * Insert the popular rank, or update only the masked columns if it already exists
+     * (INSERT ... ON DUPLICATE KEY UPDATE)
+     * @param p Complete PopularRank, including id and shard key
+     * @param mask Proto field names to overwrite when the row already exists
+     */
+    void upsert(PopularRank p, FieldMask mask) throws Exception;
 }
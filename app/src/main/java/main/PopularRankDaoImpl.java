@@ -1,17 +1,22 @@
 package helvetia.main;
 
 import helvetia.PopularRank;
+import com.google.protobuf.FieldMask;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class PopularRankDaoImpl implements PopularRankDao {
 
     private final DB db;
+    private final ScatterGather scatter;
+    private final RowEncoder encoder = new RowEncoder(PopularRank.getDescriptor());
+    private final ShardRouter shards;
     private final Gson gson = new Gson();
     
     // RSQL to SQL converter with allowed columns
@@ -19,8 +24,28 @@ public class PopularRankDaoImpl implements PopularRankDao {
         "id", "timestamp", "temporalGranularity", "rankDate"
     ));
 
+    // Columns PATCH may write, keyed by proto field name.
+    // Id and temporalGranularity form the primary vindex (temporal_vdx) and cannot be patched.
+    private final Map<String, FieldMaskUpdate.Binder<PopularRank>> mutableColumns = Map.of(
+        "articleAidList", (st, i, p) -> st.setString(i, gson.toJson(p.getArticleAidListList())),
+        "rankDate", (st, i, p) -> st.setDate(i, Date.valueOf(p.getRankDate()))
+    );
+
+    private static final String INSERT_SQL = """
+        INSERT INTO popularrank_keyspace.popular_rank (id, temporalGranularity, articleAidList, rankDate)
+        VALUES (?, ?, ?, ?)
+        """;
+
+    // Point read sent straight to the owning shard by ShardRouter (no keyspace qualifier)
+    private static final String SHARD_GET_SQL = "SELECT id, timestamp, temporalGranularity, articleAidList, rankDate FROM popular_rank WHERE id = ?";
+
+    // Per-shard list query for the ScatterGather coordinator (no keyspace qualifier)
+    private static final String SHARD_LIST_SQL = "SELECT id, timestamp, temporalGranularity, articleAidList, rankDate FROM popular_rank";
+
     public PopularRankDaoImpl(DB db) {
         this.db = db;
+        this.scatter = ScatterGather.fromEnv(db, "popularrank_keyspace");
+        this.shards = ShardRouter.fromEnv(db, "popularrank_keyspace");
     }
 
     PopularRank fromResultSet(ResultSet rs) throws SQLException {
@@ -45,6 +70,11 @@ public class PopularRankDaoImpl implements PopularRankDao {
                 .build();
     }
 
+    /** Keyspace id of the row under the temporal-based primary vindex */
+    private byte[] keyspaceId(PopularRank p) {
+        return KeyspaceIds.regionJson(p.getId(), p.getTemporalGranularity(), KeyspaceIds.TEMPORAL_MAP);
+    }
+
     /** Convert null to empty string for protobuf string fields */
     private String nullToEmpty(String s) {
         return s == null ? "" : s;
@@ -52,23 +82,22 @@ public class PopularRankDaoImpl implements PopularRankDao {
 
     @Override
     public void create(PopularRank p) throws Exception {
-        String sql = """
-            INSERT INTO popularrank_keyspace.popular_rank (id, temporalGranularity, articleAidList, rankDate)
-            VALUES (?, ?, ?, ?)
-        """;
-
-        try (Connection conn = db.getConnection();
-            PreparedStatement st = conn.prepareStatement(sql)) {
+        try (Connection conn = db.getConnectionNear(keyspaceId(p));
+            PreparedStatement st = conn.prepareStatement(INSERT_SQL)) {
             st.setLong(1, p.getId());
             st.setString(2, p.getTemporalGranularity());
             st.setString(3, gson.toJson(p.getArticleAidListList()));
             st.setDate(4, Date.valueOf(p.getRankDate()));
             st.executeUpdate();
         }
+        shards.remember(p.getId(), keyspaceId(p));
     }
 
     @Override
     public PopularRank get(long id) throws Exception {
+        PopularRank targeted = shards.get(id, SHARD_GET_SQL, this::fromResultSet);
+        if (targeted != null) return targeted;
+
         String sql = "SELECT id, timestamp, temporalGranularity, articleAidList, rankDate FROM popularrank_keyspace.popular_rank WHERE id = ?";
 
         try (Connection conn = db.getConnection();
@@ -78,7 +107,9 @@ public class PopularRankDaoImpl implements PopularRankDao {
             ResultSet rs = st.executeQuery();
             if (!rs.next()) return null;
 
-            return fromResultSet(rs);
+            PopularRank p = fromResultSet(rs);
+            shards.remember(id, keyspaceId(p));
+            return p;
         }
     }
 
@@ -100,6 +131,36 @@ public class PopularRankDaoImpl implements PopularRankDao {
         }
     }
 
+    @Override
+    public boolean patch(PopularRank p, FieldMask mask) throws Exception {
+        FieldMaskUpdate<PopularRank> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = "UPDATE popularrank_keyspace.popular_rank SET " + update.setClause() + " WHERE id = ?";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            int i = update.bind(st, 1, p);
+            st.setLong(i, p.getId());
+            return st.executeUpdate() > 0;
+        }
+    }
+
+    @Override
+    public void upsert(PopularRank p, FieldMask mask) throws Exception {
+        FieldMaskUpdate<PopularRank> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = INSERT_SQL + " ON DUPLICATE KEY UPDATE " + update.setClause();
+
+        try (Connection conn = db.getConnectionNear(keyspaceId(p));
+            PreparedStatement st = conn.prepareStatement(sql)) {
+            st.setLong(1, p.getId());
+            st.setString(2, p.getTemporalGranularity());
+            st.setString(3, gson.toJson(p.getArticleAidListList()));
+            st.setDate(4, Date.valueOf(p.getRankDate()));
+            update.bind(st, 5, p);
+            st.executeUpdate();
+        }
+        shards.remember(p.getId(), keyspaceId(p));
+    }
+
     @Override
     public boolean delete(long id) throws Exception {
         String sql = "DELETE FROM popularrank_keyspace.popular_rank WHERE id = ?";
@@ -108,6 +169,7 @@ public class PopularRankDaoImpl implements PopularRankDao {
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             st.setLong(1, id);
+            shards.forget(id);
             return st.executeUpdate() > 0;
         }
     }
@@ -124,10 +186,28 @@ public class PopularRankDaoImpl implements PopularRankDao {
     
     @Override
     public List<PopularRank> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, this::fromResultSet);
+    }
+
+    @Override
+    public List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, encoder::encode);
+    }
+
+    private <T> List<T> listPage(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                                 ShardRouter.RowMapper<T> mapper) throws Exception {
         String baseSql = "SELECT id, timestamp, temporalGranularity, articleAidList, rankDate FROM popularrank_keyspace.popular_rank";
         
         // Convert RSQL to SQL WHERE clause
         RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        if (scatter.enabled()) {
+            List<T> page = scatter.list(SHARD_LIST_SQL, filterResult, sortBy, sortDir,
+                rsqlConverter.getAllowedColumns(), limit, offset, mapper);
+            if (page != null) {
+                return page;
+            }
+        }
         
         // Validate and build ORDER BY clause
         String orderBy = buildOrderByClause(sortBy, sortDir);
@@ -135,7 +215,7 @@ public class PopularRankDaoImpl implements PopularRankDao {
         // Build final query with offset-based pagination
         String sql = baseSql + " WHERE " + filterResult.whereClause + orderBy + " LIMIT ? OFFSET ?";
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("popularrank_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -158,26 +238,38 @@ public class PopularRankDaoImpl implements PopularRankDao {
             st.setInt(paramIndex, offset);
 
             ResultSet rs = st.executeQuery();
-            List<PopularRank> out = new ArrayList<>();
+            List<T> out = new ArrayList<>();
 
             while (rs.next()) {
-                out.add(fromResultSet(rs));
+                out.add(mapper.map(rs));
             }
 
             return out;
         }
     }
     
+    @Override
+    public Long estimateCount() throws Exception {
+        return scatter.estimateRows("popular_rank");
+    }
+    
     @Override
     public long count(String rsqlFilter) throws Exception {
         String baseSql = "SELECT COUNT(*) FROM popularrank_keyspace.popular_rank";
         
         // Convert RSQL to SQL WHERE clause
         RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        if (scatter.enabled()) {
+            Long total = scatter.count("SELECT COUNT(*) FROM popular_rank", filterResult);
+            if (total != null) {
+                return total;
+            }
+        }
         
         String sql = baseSql + " WHERE " + filterResult.whereClause;
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("popularrank_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -0,0 +1,102 @@
+package helvetia.main;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Protobuf request parsing and response writing directly against the servlet streams.
+ *
+ * Request bodies are decoded from Jetty's input stream through a CodedInputStream capped at
+ * MAX_REQUEST_BYTES, rather than first being copied into a body-sized array by Spark's
+ * bodyAsBytes() (whose request wrapper caches the whole body as well). Responses are serialized
+ * into the servlet output stream with an exact Content-Length. Jetty holds the output in its
+ * own buffer and only commits once that fills, so headers set before writing are kept; routes
+ * whose after-filters still add headers (non-GET) should keep returning byte arrays.
+ */
+public final class ProtoIO {
+    public static final String CONTENT_TYPE = "application/x-protobuf";
+
+    // Read and write buffer; bodies larger than this are streamed through it
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int MAX_REQUEST_BYTES =
+        Integer.parseInt(System.getenv().getOrDefault("MAX_REQUEST_BYTES", Integer.toString(16 << 20)));
+
+    /** The declared request body is larger than MAX_REQUEST_BYTES */
+    public static class TooLargeException extends IOException {
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private ProtoIO() {}
+
+    /**
+     * Parse the request body.
+     * @throws TooLargeException if Content-Length exceeds MAX_REQUEST_BYTES
+     * @throws InvalidProtocolBufferException for a malformed body, or one that runs past the limit
+     */
+    public static <T extends MessageLite> T parse(HttpServletRequest raw, Parser<T> parser) throws IOException {
+        return parse(bodyStream(raw), raw.getContentLengthLong(), parser, MAX_REQUEST_BYTES);
+    }
+
+    /**
+     * The request body as it arrives from the connection.
+     */
+    public static InputStream bodyStream(HttpServletRequest raw) throws IOException {
+        // Below Spark's wrapper, which would buffer the whole body on getInputStream()
+        org.eclipse.jetty.server.Request base = org.eclipse.jetty.server.Request.getBaseRequest(raw);
+        return base != null ? base.getInputStream() : raw.getInputStream();
+    }
+
+    /**
+     * @param contentLength Declared body length, or -1 if unknown (chunked)
+     * @param maxBytes Largest body accepted
+     */
+    public static <T extends MessageLite> T parse(InputStream in, long contentLength, Parser<T> parser,
+                                                  int maxBytes) throws IOException {
+        if (contentLength > maxBytes) {
+            throw new TooLargeException("Request body of " + contentLength + " bytes exceeds " + maxBytes);
+        }
+        // A known length needs no more buffer than the body itself
+        int bufferSize = contentLength >= 0 ? (int) Math.max(1, Math.min(contentLength, BUFFER_SIZE)) : BUFFER_SIZE;
+        CodedInputStream cis = CodedInputStream.newInstance(in, bufferSize);
+        cis.setSizeLimit(maxBytes);
+        return parser.parseFrom(cis);
+    }
+
+    /**
+     * Serialize a message as the response body.
+     */
+    public static void write(HttpServletResponse raw, MessageLite message) throws IOException {
+        int size = message.getSerializedSize();
+        raw.setContentType(CONTENT_TYPE);
+        raw.setContentLength(size);
+        if (size == 0) {
+            return;
+        }
+        CodedOutputStream out = CodedOutputStream.newInstance(raw.getOutputStream(), Math.min(size, BUFFER_SIZE));
+        message.writeTo(out);
+        // Drains into Jetty's buffer; the servlet stream itself is flushed when the request completes
+        out.flush();
+    }
+
+    /**
+     * Send already-serialized bytes (e.g. from Redis) as the response body.
+     */
+    public static void write(HttpServletResponse raw, byte[] bytes) throws IOException {
+        raw.setContentType(CONTENT_TYPE);
+        raw.setContentLength(bytes.length);
+        OutputStream out = raw.getOutputStream();
+        out.write(bytes);
+    }
+}
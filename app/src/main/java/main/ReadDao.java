@@ -1,5 +1,7 @@
 package helvetia.main;
 
+import com.google.protobuf.FieldMask;
+import helvetia.AggregateResult;
 import helvetia.Read;
 import java.util.List;
 
@@ -26,9 +28,55 @@ public interface ReadDao {
      */
     List<Read> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
     
+    /**
+     * The same page as {@link #list(String, int, int, String, String)}, each row encoded
+     * straight from the result set in Read wire format
+     */
+    List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
+    
     /**
      * Count total reads matching filter
      * @param rsqlFilter RSQL filter string, or null for no filtering
      */
     long count(String rsqlFilter) throws Exception;
+    
+    /**
+     * Estimate the total number of reads, unfiltered, from table statistics
+     * @return The estimate, or null if statistics are unavailable
+     */
+    Long estimateCount() throws Exception;
+    
+    /**
+     * Insert many reads with a single multi-row INSERT ... ON DUPLICATE KEY UPDATE
+     * readTimeLength = readTimeLength, a no-op on a non-vindex column.
+     * Rows that collide on the primary key or idx_uid_aid are skipped, which makes replays idempotent;
+     * any other error, such as a truncated value, fails the whole statement.
+     * Callers should group rows by region so the statement targets a single shard.
+     * @param reads Reads to insert
+     */
+    void createBatch(List<Read> reads) throws Exception;
+    
+    /**
+     * Update only the columns named in the field mask
+     * @param r Read carrying the id and the new values
+     * @param mask Proto field names to write; id and the shard key cannot be patched
+     * @return true if a row with this id exists
+     */
+    boolean patch(Read r, FieldMask mask) throws Exception;
+    
+    /**
+     * Insert the read, or update only the masked columns if it already exists
+     * (INSERT ... ON DUPLICATE KEY UPDATE)
+     * @param r Complete Read, including id and shard key
+     * @param mask Proto field names to overwrite when the row already exists
+     */
+    void upsert(Read r, FieldMask mask) throws Exception;
+    
+    /**
+     * Grouped aggregates over reads matching the filter, computed per shard and merged
+     * @param aggregation Group columns and metrics
+     * @param rsqlFilter RSQL filter string, or null for no filtering
+     * @throws IllegalArgumentException for columns that are not allowed
+     */
+    AggregateResult aggregate(Aggregation aggregation, String rsqlFilter) throws Exception;
 }
@@ -1,15 +1,22 @@
 package helvetia.main;
 
 import helvetia.Read;
+import helvetia.AggregateResult;
+import com.google.protobuf.FieldMask;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ReadDaoImpl implements ReadDao {
 
     private final DB db;
+    private final ScatterGather scatter;
+    private final RowEncoder encoder = new RowEncoder(Read.getDescriptor());
+    private final ShardRouter shards;
     
     // RSQL to SQL converter with allowed columns
     private final RsqlToSql rsqlConverter = new RsqlToSql(Set.of(
@@ -17,8 +24,36 @@ public class ReadDaoImpl implements ReadDao {
         "agreeOrNot", "commentOrNot", "shareOrNot"
     ));
 
+    // Filterable columns that aggregate metrics (sum, avg, min, max) may use
+    private static final Set<String> NUMERIC_COLUMNS = Set.of(
+        "id", "timestamp", "readTimeLength", "agreeOrNot", "commentOrNot", "shareOrNot"
+    );
+
+    // Columns PATCH may write, keyed by proto field name.
+    // Id and region form the primary vindex (region_vdx) and cannot be patched.
+    private final Map<String, FieldMaskUpdate.Binder<Read>> mutableColumns = Map.of(
+        "readTimeLength", (st, i, r) -> st.setInt(i, r.getReadTimeLength()),
+        "agreeOrNot", (st, i, r) -> st.setBoolean(i, r.getAgreeOrNot()),
+        "commentOrNot", (st, i, r) -> st.setBoolean(i, r.getCommentOrNot()),
+        "commentDetail", (st, i, r) -> st.setString(i, emptyToNull(r.getCommentDetail())),
+        "shareOrNot", (st, i, r) -> st.setBoolean(i, r.getShareOrNot())
+    );
+
+    private static final String INSERT_SQL = """
+        INSERT INTO read_keyspace.read (id, timestamp, uid, aid, region, readTimeLength, agreeOrNot, commentOrNot, commentDetail, shareOrNot)
+        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+        """;
+
+    // Point read sent straight to the owning shard by ShardRouter (no keyspace qualifier)
+    private static final String SHARD_GET_SQL = "SELECT id, timestamp, uid, aid, region, readTimeLength, agreeOrNot, commentOrNot, commentDetail, shareOrNot FROM `read` WHERE id = ?";
+
+    // Per-shard list query for the ScatterGather coordinator (no keyspace qualifier)
+    private static final String SHARD_LIST_SQL = "SELECT id, timestamp, uid, aid, region, readTimeLength, agreeOrNot, commentOrNot, commentDetail, shareOrNot FROM `read`";
+
     public ReadDaoImpl(DB db) {
         this.db = db;
+        this.scatter = ScatterGather.fromEnv(db, "read_keyspace");
+        this.shards = ShardRouter.fromEnv(db, "read_keyspace");
     }
 
     Read fromResultSet(ResultSet rs) throws SQLException {
@@ -47,21 +82,48 @@ public class ReadDaoImpl implements ReadDao {
 
     @Override
     public void create(Read r) throws Exception {
-        String sql = """
-            INSERT INTO read_keyspace.read (id, timestamp, uid, aid, region, readTimeLength, agreeOrNot, commentOrNot, commentDetail, shareOrNot)
-            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-        """;
-
-        try (Connection conn = db.getConnection();
-            PreparedStatement st = conn.prepareStatement(sql)) {
+        try (Connection conn = db.getConnectionNear(keyspaceId(r));
+            PreparedStatement st = conn.prepareStatement(INSERT_SQL)) {
             st.setLong(1, r.getId());
             fillStatement(r, st, 2);
             st.executeUpdate();
         }
+        shards.remember(r.getId(), keyspaceId(r));
+    }
+
+    @Override
+    public void createBatch(List<Read> reads) throws Exception {
+        if (reads.isEmpty()) {
+            return;
+        }
+        String row = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        // Not INSERT IGNORE, which would also turn truncation and conversion errors into warnings.
+        // The no-op assignment must not touch id or region: vtgate refuses to update vindex columns.
+        String sql = "INSERT INTO read_keyspace.read (id, timestamp, uid, aid, region, readTimeLength, agreeOrNot, commentOrNot, commentDetail, shareOrNot) VALUES "
+            + String.join(", ", Collections.nCopies(reads.size(), row))
+            + " ON DUPLICATE KEY UPDATE readTimeLength = readTimeLength";
+
+        // Batches are grouped by region, so every row lives on the same shard
+        try (Connection conn = db.getConnectionNear(keyspaceId(reads.get(0)));
+            PreparedStatement st = conn.prepareStatement(sql)) {
+            int i = 1;
+            for (Read r : reads) {
+                st.setLong(i, r.getId());
+                fillStatement(r, st, i + 1);
+                i += 10;
+            }
+            st.executeUpdate();
+        }
+        for (Read r : reads) {
+            shards.remember(r.getId(), keyspaceId(r));
+        }
     }
 
     @Override
     public Read get(long id) throws Exception {
+        Read targeted = shards.get(id, SHARD_GET_SQL, this::fromResultSet);
+        if (targeted != null) return targeted;
+
         String sql = "SELECT id, timestamp, uid, aid, region, readTimeLength, agreeOrNot, commentOrNot, commentDetail, shareOrNot FROM read_keyspace.read WHERE id = ?";
 
         try (Connection conn = db.getConnection();
@@ -71,7 +133,9 @@ public class ReadDaoImpl implements ReadDao {
             ResultSet rs = st.executeQuery();
             if (!rs.next()) return null;
 
-            return fromResultSet(rs);
+            Read r = fromResultSet(rs);
+            shards.remember(id, keyspaceId(r));
+            return r;
         }
     }
 
@@ -108,11 +172,44 @@ public class ReadDaoImpl implements ReadDao {
         st.setBoolean(i++, r.getShareOrNot());
     }
 
+    /** Keyspace id of the row under the region-based primary vindex */
+    private byte[] keyspaceId(Read r) {
+        return KeyspaceIds.regionJson(r.getId(), r.getRegion(), KeyspaceIds.REGION_MAP);
+    }
+
     /** Convert empty strings to null for nullable DB columns */
     private String emptyToNull(String s) {
         return (s == null || s.isEmpty()) ? null : s;
     }
 
+    @Override
+    public boolean patch(Read r, FieldMask mask) throws Exception {
+        FieldMaskUpdate<Read> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = "UPDATE read_keyspace.read SET " + update.setClause() + " WHERE id = ?";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            int i = update.bind(st, 1, r);
+            st.setLong(i, r.getId());
+            return st.executeUpdate() > 0;
+        }
+    }
+
+    @Override
+    public void upsert(Read r, FieldMask mask) throws Exception {
+        FieldMaskUpdate<Read> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = INSERT_SQL + " ON DUPLICATE KEY UPDATE " + update.setClause();
+
+        try (Connection conn = db.getConnectionNear(keyspaceId(r));
+            PreparedStatement st = conn.prepareStatement(sql)) {
+            st.setLong(1, r.getId());
+            fillStatement(r, st, 2);
+            update.bind(st, 11, r);
+            st.executeUpdate();
+        }
+        shards.remember(r.getId(), keyspaceId(r));
+    }
+
     @Override
     public boolean delete(long id) throws Exception {
         String sql = "DELETE FROM read_keyspace.read WHERE id = ?";
@@ -121,6 +218,7 @@ public class ReadDaoImpl implements ReadDao {
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             st.setLong(1, id);
+            shards.forget(id);
             return st.executeUpdate() > 0;
         }
     }
@@ -137,10 +235,28 @@ public class ReadDaoImpl implements ReadDao {
     
     @Override
     public List<Read> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, this::fromResultSet);
+    }
+
+    @Override
+    public List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, encoder::encode);
+    }
+
+    private <T> List<T> listPage(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                                 ShardRouter.RowMapper<T> mapper) throws Exception {
         String baseSql = "SELECT id, timestamp, uid, aid, region, readTimeLength, agreeOrNot, commentOrNot, commentDetail, shareOrNot FROM read_keyspace.read";
         
         // Convert RSQL to SQL WHERE clause
         RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        if (scatter.enabled()) {
+            List<T> page = scatter.list(SHARD_LIST_SQL, filterResult, sortBy, sortDir,
+                rsqlConverter.getAllowedColumns(), limit, offset, mapper);
+            if (page != null) {
+                return page;
+            }
+        }
         
         // Validate and build ORDER BY clause
         String orderBy = buildOrderByClause(sortBy, sortDir);
@@ -148,7 +264,7 @@ public class ReadDaoImpl implements ReadDao {
         // Build final query with offset-based pagination
         String sql = baseSql + " WHERE " + filterResult.whereClause + orderBy + " LIMIT ? OFFSET ?";
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("read_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -171,26 +287,38 @@ public class ReadDaoImpl implements ReadDao {
             st.setInt(paramIndex, offset);
 
             ResultSet rs = st.executeQuery();
-            List<Read> out = new ArrayList<>();
+            List<T> out = new ArrayList<>();
 
             while (rs.next()) {
-                out.add(fromResultSet(rs));
+                out.add(mapper.map(rs));
             }
 
             return out;
         }
     }
     
+    @Override
+    public Long estimateCount() throws Exception {
+        return scatter.estimateRows("read");
+    }
+    
     @Override
     public long count(String rsqlFilter) throws Exception {
         String baseSql = "SELECT COUNT(*) FROM read_keyspace.read";
         
         // Convert RSQL to SQL WHERE clause
         RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        if (scatter.enabled()) {
+            Long total = scatter.count("SELECT COUNT(*) FROM `read`", filterResult);
+            if (total != null) {
+                return total;
+            }
+        }
         
         String sql = baseSql + " WHERE " + filterResult.whereClause;
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("read_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -216,6 +344,25 @@ public class ReadDaoImpl implements ReadDao {
         }
     }
     
+    @Override
+    public AggregateResult aggregate(Aggregation aggregation, String rsqlFilter) throws Exception {
+        aggregation.validate(rsqlConverter.getAllowedColumns(), NUMERIC_COLUMNS);
+        RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        List<Object[]> rows = scatter.gather(aggregation.partialSql("`read`", filterResult.whereClause),
+            filterResult, "aggregate");
+        if (rows == null) {
+            // Shards overlap mid-reshard: let vtgate group across them instead
+            String sql = aggregation.partialSql("read_keyspace.read", filterResult.whereClause);
+            try (Connection conn = db.getReadConnection("read_keyspace");
+                 PreparedStatement st = conn.prepareStatement(sql)) {
+                ScatterGather.bind(st, 1, filterResult.parameters);
+                rows = ScatterGather.rows(st.executeQuery());
+            }
+        }
+        return aggregation.merge(rows);
+    }
+    
     /**
      * Build a safe ORDER BY clause, validating the column name against allowed columns
      */
@@ -0,0 +1,282 @@
+package helvetia.main;
+
+import helvetia.Read;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind ingest path for POST /reads.
+ *
+ * A read is appended to the {@link ReadWal} and acknowledged once the WAL group fsync covers it.
+ * A background worker drains the in-memory queue in batches, groups each batch by region
+ * (the read_keyspace shard key) and issues one multi-row INSERT per region. Only after
+ * a batch is committed does the WAL checkpoint advance, so a crash replays at most the
+ * uncommitted tail; the idx_uid_aid unique key makes that replay idempotent.
+ *
+ * When the database falls behind and the queue is full, a submit waits at most
+ * READ_INGEST_OFFER_MS for room and is then refused before anything reaches the WAL.
+ *
+ * A failed batch is retried with exponential backoff (1 s doubling up to 30 s). After
+ * READ_INGEST_MAX_ATTEMPTS failures its rows are tried one by one and those that still fail are
+ * appended to a dead-letter file ([int length][int crc32][Read], as in the WAL) and counted, so
+ * one permanently failing batch cannot stall ingest forever.
+ */
+public class ReadIngestQueue {
+    private static final Logger log = LogManager.getLogger(ReadIngestQueue.class);
+
+    private static final long RETRY_MIN_MILLIS = 1000;
+    private static final long RETRY_MAX_MILLIS = 30_000;
+
+    private record Entry(Read read, long lsn) {}
+
+    private final ReadDao dao;
+    private final ReadWal wal;
+    private final BlockingQueue<Entry> queue;
+    // Queue slots not yet claimed; a slot is taken before the WAL append and returned when the
+    // worker takes the entry, so the queue itself never blocks an appender holding appendLock
+    private final Semaphore slots;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final long offerMillis;
+    private final int maxAttempts;
+    private final Path deadLetter;
+    private final Thread worker;
+    private final Object appendLock = new Object();
+
+    private final Metrics.Counter committedRows = Metrics.counter(
+        "helvetia_read_ingest_committed_total", "Reads committed by the group-commit worker");
+    private final Metrics.Counter failedBatches = Metrics.counter(
+        "helvetia_read_ingest_failed_batches_total", "Group-commit batches that failed and were retried");
+    private final Metrics.Counter rejectedRows = Metrics.counter(
+        "helvetia_read_ingest_rejected_total", "Acknowledged reads the database refused as invalid data");
+    private final Metrics.Counter deadLettered = Metrics.counter(
+        "helvetia_read_ingest_dead_lettered_total", "Acknowledged reads written to the dead-letter file");
+
+    /**
+     * @param offerMillis How long a submit waits for queue room before it is refused
+     * @param maxAttempts Failures of one batch before its failing rows are dead-lettered
+     * @param deadLetter File the dead-lettered rows are appended to
+     */
+    public ReadIngestQueue(ReadDao dao, ReadWal wal, int capacity, int batchSize, long lingerMillis, long offerMillis,
+                           int maxAttempts, Path deadLetter) {
+        this.dao = dao;
+        this.wal = wal;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.slots = new Semaphore(capacity);
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.offerMillis = offerMillis;
+        this.maxAttempts = maxAttempts;
+        this.deadLetter = deadLetter;
+        this.worker = new Thread(this::drainLoop, "read-ingest-worker");
+        this.worker.setDaemon(true);
+
+        Metrics.gauge("helvetia_read_ingest_queue_depth", "Reads acknowledged but not yet committed",
+            queue::size);
+        Metrics.gauge("helvetia_read_ingest_wal_backlog_bytes", "WAL bytes not yet checkpointed",
+            wal::backlogBytes);
+    }
+
+    /**
+     * Create a queue configured from READ_INGEST_QUEUE_CAPACITY, READ_INGEST_BATCH_SIZE,
+     * READ_INGEST_LINGER_MS, READ_INGEST_OFFER_MS and READ_INGEST_MAX_ATTEMPTS (default 20), backed
+     * by a WAL from {@link ReadWal#fromEnv()}, with dead-letter.log in the WAL directory.
+     */
+    public static ReadIngestQueue fromEnv(ReadDao dao) throws IOException {
+        int capacity = Integer.parseInt(System.getenv().getOrDefault("READ_INGEST_QUEUE_CAPACITY", "100000"));
+        int batchSize = Integer.parseInt(System.getenv().getOrDefault("READ_INGEST_BATCH_SIZE", "500"));
+        long lingerMs = Long.parseLong(System.getenv().getOrDefault("READ_INGEST_LINGER_MS", "5"));
+        long offerMs = Long.parseLong(System.getenv().getOrDefault("READ_INGEST_OFFER_MS", "1000"));
+        int maxAttempts = Integer.parseInt(System.getenv().getOrDefault("READ_INGEST_MAX_ATTEMPTS", "20"));
+        ReadWal wal = ReadWal.fromEnv();
+        return new ReadIngestQueue(dao, wal, capacity, batchSize, lingerMs, offerMs, maxAttempts,
+            wal.directory().resolve("dead-letter.log"));
+    }
+
+    /**
+     * Start the worker and replay uncommitted WAL records into the queue.
+     * The worker runs first so a replay larger than the queue capacity can drain while it loads.
+     */
+    public void start() throws IOException {
+        worker.start();
+        int replayed = wal.recover((payload, lsn) -> {
+            try {
+                slots.acquire();
+                queue.put(new Entry(Read.parseFrom(payload), lsn));
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to replay read WAL record", e);
+            }
+        });
+        log.info("Read ingest worker started ({} records replayed)", replayed);
+    }
+
+    /**
+     * Durably accept a read. Returns once the read is in the WAL and fsynced;
+     * the database insert happens asynchronously.
+     * @return false if the queue stayed full for READ_INGEST_OFFER_MS; the read was not accepted
+     */
+    public boolean submit(Read r) throws IOException, InterruptedException {
+        byte[] payload = r.toByteArray();
+        if (!slots.tryAcquire(offerMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        long lsn;
+        // Enqueue in LSN order so a checkpoint never skips past an uncommitted record
+        synchronized (appendLock) {
+            try {
+                lsn = wal.append(payload);
+            } catch (IOException | RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+            // Cannot block: the slot taken above guarantees room
+            queue.add(new Entry(r, lsn));
+        }
+        wal.awaitDurable(lsn);
+        return true;
+    }
+
+    private void drainLoop() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        int attempts = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (batch.isEmpty()) {
+                    Entry first = queue.take();
+                    slots.release();
+                    batch.add(first);
+                    // Linger briefly so the batch can fill up under load
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                    while (batch.size() < batchSize) {
+                        long wait = deadline - System.nanoTime();
+                        Entry next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (next == null) break;
+                        slots.release();
+                        batch.add(next);
+                    }
+                }
+
+                if (attempts < maxAttempts) {
+                    commit(batch);
+                } else {
+                    salvage(batch);
+                }
+                wal.checkpoint(batch.get(batch.size() - 1).lsn());
+                batch.clear();
+                attempts = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // Keep the batch and retry; the WAL still holds it if we crash meanwhile
+                failedBatches.inc();
+                attempts++;
+                log.warn("Read group commit of {} rows failed (attempt {} of {}): {}",
+                    batch.size(), attempts, maxAttempts, e.getMessage());
+                try {
+                    Thread.sleep(Math.min(RETRY_MAX_MILLIS, RETRY_MIN_MILLIS << Math.min(attempts - 1, 5)));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void commit(List<Entry> batch) throws Exception {
+        Map<String, List<Read>> byRegion = new LinkedHashMap<>();
+        for (Entry e : batch) {
+            byRegion.computeIfAbsent(e.read().getRegion(), k -> new ArrayList<>()).add(e.read());
+        }
+
+        for (var group : byRegion.entrySet()) {
+            long start = System.nanoTime();
+            try {
+                dao.createBatch(group.getValue());
+            } catch (SQLException e) {
+                if (!isDataError(e)) throw e;
+                commitEach(group.getValue());
+                continue;
+            }
+            Metrics.timer("helvetia_read_ingest_commit_seconds", "Latency of one group-commit INSERT per region",
+                "region", group.getKey()).recordSince(start);
+            committedRows.add(group.getValue().size());
+        }
+    }
+
+    /**
+     * Insert rows one at a time after their batch was refused for bad data, so only the bad rows
+     * are dropped. They were already acknowledged, so each is logged in full and counted.
+     */
+    private void commitEach(List<Read> reads) throws Exception {
+        for (Read r : reads) {
+            try {
+                dao.createBatch(List.of(r));
+                committedRows.inc();
+            } catch (SQLException e) {
+                if (!isDataError(e)) throw e;
+                rejectedRows.inc();
+                log.error("Dropping read {} refused by the database ({}): {}", r.getId(), e.getMessage(), r);
+            }
+        }
+    }
+
+    /**
+     * Last resort for a batch that failed {@code maxAttempts} times: insert its rows one at a time
+     * and dead-letter those that still fail, whatever the error. If the dead-letter file cannot
+     * be written the batch is kept and retried, so no acknowledged read is lost.
+     */
+    private void salvage(List<Entry> batch) throws Exception {
+        List<Read> failed = new ArrayList<>();
+        for (Entry e : batch) {
+            try {
+                dao.createBatch(List.of(e.read()));
+                committedRows.inc();
+            } catch (SQLException ex) {
+                log.error("Dead-lettering read {}: {}", e.read().getId(), ex.getMessage());
+                failed.add(e.read());
+            }
+        }
+        if (failed.isEmpty()) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(deadLetter, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (Read r : failed) {
+                byte[] payload = r.toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                ByteBuffer buf = ByteBuffer.allocate(8 + payload.length)
+                    .putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            out.force(true);
+        }
+        deadLettered.add(failed.size());
+    }
+
+    /**
+     * SQLSTATE class 22 (data exception: truncation, out of range, bad conversion) will fail
+     * every retry; anything else is treated as transient.
+     */
+    private static boolean isDataError(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("22");
+    }
+}
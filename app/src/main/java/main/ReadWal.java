@@ -0,0 +1,340 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped, append-only write-ahead log used by the Read ingest queue.
+ *
+ * The log is a sequence of fixed-size segment files (read-wal-000000.log, ...). Each record is
+ * [int length][int crc32][payload]; a zero length marks the end of written data in a segment.
+ * Positions are addressed by a log sequence number: segmentIndex * segmentSize + offset.
+ *
+ * Durability is group-committed: appenders call {@link #awaitDurable(long)} and a single flusher
+ * thread forces the mapped segment every few milliseconds, releasing all waiters at once.
+ * The consumer records how far it has committed with {@link #checkpoint(long)}; segments wholly
+ * below the checkpoint are deleted and replay on restart starts from it.
+ */
+public class ReadWal implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger(ReadWal.class);
+
+    private static final int HEADER_BYTES = 8;
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long syncIntervalMillis;
+
+    private final Object lock = new Object();
+    // Held while forcing or swapping the mapped segment, so the flusher can force without holding
+    // lock; taken after lock when both are needed
+    private final Object swapLock = new Object();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private long writtenLsn;
+    private long durableLsn;
+    private long checkpointLsn;
+    private volatile boolean closed;
+
+    private final Thread flusher;
+
+    /**
+     * Open (or create) a WAL directory.
+     * @param dir Directory holding segment files and the checkpoint
+     * @param segmentSize Segment file size in bytes
+     * @param syncIntervalMillis Max time an append waits for the next group fsync
+     */
+    public ReadWal(Path dir, int segmentSize, long syncIntervalMillis) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncIntervalMillis = syncIntervalMillis;
+        Files.createDirectories(dir);
+
+        this.checkpointLsn = readCheckpoint();
+        this.writtenLsn = checkpointLsn;
+        this.durableLsn = checkpointLsn;
+
+        this.flusher = new Thread(this::flushLoop, "read-wal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Open a WAL configured from READ_WAL_DIR, READ_WAL_SEGMENT_MB and READ_WAL_SYNC_MS.
+     */
+    public static ReadWal fromEnv() throws IOException {
+        Path dir = Path.of(System.getenv().getOrDefault("READ_WAL_DIR", "read-wal"));
+        int segmentMb = Integer.parseInt(System.getenv().getOrDefault("READ_WAL_SEGMENT_MB", "64"));
+        long syncMs = Long.parseLong(System.getenv().getOrDefault("READ_WAL_SYNC_MS", "2"));
+        return new ReadWal(dir, segmentMb * 1024 * 1024, syncMs);
+    }
+
+    /**
+     * Replay every record after the checkpoint, then position the log for appending.
+     * Must be called once before the first append.
+     * @param consumer Receives (payload, end LSN) for each intact record, in log order
+     * @return Number of records replayed
+     */
+    public int recover(BiConsumer<byte[], Long> consumer) throws IOException {
+        synchronized (lock) {
+            int index = (int) (checkpointLsn / segmentSize);
+            int offset = (int) (checkpointLsn % segmentSize);
+            int replayed = 0;
+
+            openSegment(index);
+            while (true) {
+                ByteBuffer buf = segment.duplicate();
+                buf.position(offset);
+                byte[] payload = readRecord(buf);
+                if (payload != null) {
+                    offset = buf.position();
+                    replayed++;
+                    consumer.accept(payload, lsn(index, offset));
+                    continue;
+                }
+                // End of data in this segment: continue into the next one if it exists
+                if (Files.exists(segmentPath(index + 1))) {
+                    index++;
+                    offset = 0;
+                    openSegment(index);
+                    continue;
+                }
+                zeroTail(offset);
+                break;
+            }
+
+            writtenLsn = lsn(index, offset);
+            durableLsn = writtenLsn;
+            segment.position(offset);
+            if (!flusher.isAlive()) {
+                flusher.start();
+            }
+            if (replayed > 0) {
+                log.info("Replayed {} read WAL records from LSN {}", replayed, checkpointLsn);
+            }
+            return replayed;
+        }
+    }
+
+    /**
+     * Append a record to the log. The record is not durable until {@link #awaitDurable(long)} returns.
+     * @return LSN just past the record
+     */
+    public long append(byte[] payload) throws IOException {
+        if (payload.length + HEADER_BYTES > segmentSize) {
+            throw new IllegalArgumentException("WAL record of " + payload.length + " bytes exceeds segment size");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("WAL is closed");
+            }
+            if (segment.remaining() < payload.length + HEADER_BYTES) {
+                // Current segment stays zero-terminated; make it durable before moving on
+                synchronized (swapLock) {
+                    segment.force();
+                    openSegment(segmentIndex + 1);
+                }
+            }
+            segment.putInt(payload.length);
+            segment.putInt((int) crc.getValue());
+            segment.put(payload);
+            writtenLsn = lsn(segmentIndex, segment.position());
+            lock.notifyAll();
+            return writtenLsn;
+        }
+    }
+
+    /**
+     * Block until the log is durable up to {@code lsn}.
+     */
+    public void awaitDurable(long lsn) throws InterruptedException, IOException {
+        synchronized (lock) {
+            while (durableLsn < lsn) {
+                if (closed) {
+                    throw new IOException("WAL closed before record became durable");
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Record that everything up to {@code lsn} has been committed to the database.
+     * Deletes segments that are no longer needed for replay.
+     */
+    public void checkpoint(long lsn) throws IOException {
+        int oldSegment;
+        synchronized (lock) {
+            if (lsn <= checkpointLsn) {
+                return;
+            }
+            oldSegment = (int) (checkpointLsn / segmentSize);
+            checkpointLsn = lsn;
+        }
+
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(8).putLong(lsn);
+            buf.flip();
+            ch.write(buf);
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve(CHECKPOINT_FILE),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        int keepFrom = (int) (lsn / segmentSize);
+        for (int i = oldSegment; i < keepFrom; i++) {
+            Files.deleteIfExists(segmentPath(i));
+        }
+    }
+
+    public Path directory() {
+        return dir;
+    }
+
+    /**
+     * Bytes appended but not yet checkpointed.
+     */
+    public long backlogBytes() {
+        synchronized (lock) {
+            return writtenLsn - checkpointLsn;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+            synchronized (swapLock) {
+                if (segment != null) {
+                    segment.force();
+                }
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            MappedByteBuffer toForce;
+            synchronized (lock) {
+                try {
+                    while (!closed && writtenLsn == durableLsn) {
+                        lock.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    // Let concurrent appenders join this group before forcing
+                    lock.wait(syncIntervalMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                // Segments before this one were forced when appends moved past them
+                target = writtenLsn;
+                toForce = segment;
+            }
+            // Appenders keep writing (and form the next group) while this one syncs
+            synchronized (swapLock) {
+                if (closed) {
+                    return;
+                }
+                toForce.force();
+            }
+            synchronized (lock) {
+                durableLsn = Math.max(durableLsn, target);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void openSegment(int index) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(segmentPath(index),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentIndex = index;
+    }
+
+    /**
+     * Zero the rest of the current segment if it holds leftovers of a torn write,
+     * so they can never be read back as records once appends resume.
+     */
+    private void zeroTail(int offset) {
+        boolean dirty = false;
+        for (int i = offset; i < segmentSize && !dirty; i++) {
+            dirty = segment.get(i) != 0;
+        }
+        if (!dirty) {
+            return;
+        }
+        byte[] zeros = new byte[64 * 1024];
+        ByteBuffer tail = segment.duplicate();
+        tail.position(offset);
+        while (tail.hasRemaining()) {
+            tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+        }
+        segment.force();
+    }
+
+    private byte[] readRecord(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_BYTES) {
+            return null;
+        }
+        int start = buf.position();
+        int length = buf.getInt();
+        int checksum = buf.getInt();
+        if (length <= 0 || length > buf.remaining()) {
+            buf.position(start);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buf.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            log.warn("Torn read WAL record at segment offset {}, truncating", start);
+            buf.position(start);
+            return null;
+        }
+        return payload;
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path p = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(p)) {
+            return 0;
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(p)).getLong();
+    }
+
+    private Path segmentPath(int index) {
+        return dir.resolve(String.format("read-wal-%06d.log", index));
+    }
+
+    private long lsn(int index, int offset) {
+        return (long) index * segmentSize + offset;
+    }
+}
@@ -5,8 +5,13 @@ import org.apache.logging.log4j.Logger;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
 
 import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Redis cache utility for caching API responses.
@@ -21,6 +26,19 @@ public class RedisCache {
     // Cache key prefixes
     public static final String ARTICLE_PREFIX = "article:";
     public static final String ARTICLE_LIST_PREFIX = "article_list:";
+    public static final String BEREAD_ENGAGEMENT_PREFIX = "beread_engagement:";
+    public static final String ARTICLE_AID_PREFIX = "article_aid:";
+    public static final String USER_UID_PREFIX = "user_uid:";
+    public static final String BEREAD_AID_PREFIX = "beread_aid:";
+    public static final String AGGREGATE_PREFIX = "aggregate:";
+    public static final String POPULARRANK_PREFIX = "popularrank:";
+    public static final String POPULARRANK_LIST_PREFIX = "popularrank_list:";
+    
+    // Suffix of the key holding a cached value's ETag, so prefix patterns cover both
+    private static final String ETAG_SUFFIX = ":etag";
+    
+    /** A cached value and its ETag */
+    public record Tagged(byte[] value, String etag) {}
     
     /**
      * Create a Redis cache instance.
@@ -53,13 +71,38 @@ public class RedisCache {
         return new RedisCache(host, port, ttl);
     }
     
+    /**
+     * Borrow a client whose socket timeout is capped by the current request's {@link Deadline},
+     * so a slow Redis cannot hold a request past it.
+     */
+    private Jedis resource() {
+        int timeout = Protocol.DEFAULT_TIMEOUT;
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            long remaining = deadline.remainingMillis();
+            if (remaining <= 0) {
+                throw new IllegalStateException("Request deadline exceeded");
+            }
+            timeout = (int) Math.min(timeout, remaining);
+        }
+        Jedis jedis = jedisPool.getResource();
+        // Set on every borrow, so a shortened timeout never lingers on a pooled client
+        try {
+            jedis.getConnection().setSoTimeout(timeout);
+        } catch (RuntimeException e) {
+            jedis.close();
+            throw e;
+        }
+        return jedis;
+    }
+
     /**
      * Get a cached value by key.
      * @param key Cache key
      * @return Cached byte array, or null if not found
      */
     public byte[] get(String key) {
-        try (Jedis jedis = jedisPool.getResource()) {
+        try (Jedis jedis = resource()) {
             byte[] value = jedis.get(key.getBytes());
             if (value != null) {
                 log.debug("Cache hit: {}", key);
@@ -89,7 +132,7 @@ public class RedisCache {
      * @param ttlSeconds TTL in seconds
      */
     public void set(String key, byte[] value, int ttlSeconds) {
-        try (Jedis jedis = jedisPool.getResource()) {
+        try (Jedis jedis = resource()) {
             jedis.setex(key.getBytes(), ttlSeconds, value);
             log.debug("Cached: {} (TTL: {}s)", key, ttlSeconds);
         } catch (Exception e) {
@@ -98,12 +141,137 @@ public class RedisCache {
     }
     
     /**
-     * Delete a cached value.
+     * Strong ETag of a serialized value: its quoted 64-bit xxHash.
+     * @param value Serialized response bytes
+     * @return ETag header value
+     */
+    public static String etagOf(byte[] value) {
+        return String.format("\"%016x\"", XxHash64.hash(value));
+    }
+    
+    /**
+     * Get a cached value together with its ETag in one round trip.
+     * @param key Cache key
+     * @return The value and ETag, or null if not found
+     */
+    public Tagged getTagged(String key) {
+        try (Jedis jedis = resource()) {
+            List<byte[]> values = jedis.mget(key.getBytes(), (key + ETAG_SUFFIX).getBytes());
+            if (values.get(0) == null) {
+                log.debug("Cache miss: {}", key);
+                return null;
+            }
+            log.debug("Cache hit: {}", key);
+            // Values cached before their ETag was stored get one computed here
+            byte[] etag = values.get(1);
+            return new Tagged(values.get(0), etag != null ? new String(etag) : etagOf(values.get(0)));
+        } catch (Exception e) {
+            log.warn("Redis get failed for key {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Get only the ETag of a cached value, to answer conditional requests without the value.
+     * @param key Cache key
+     * @return ETag, or null if not cached
+     */
+    public String getEtag(String key) {
+        try (Jedis jedis = resource()) {
+            return jedis.get(key + ETAG_SUFFIX);
+        } catch (Exception e) {
+            log.warn("Redis get failed for key {}: {}", key + ETAG_SUFFIX, e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Set a cached value and its ETag with default TTL.
+     * @param key Cache key
+     * @param value Value to cache
+     * @return ETag of the value
+     */
+    public String setTagged(String key, byte[] value) {
+        return setTagged(key, value, defaultTtlSeconds);
+    }
+    
+    /**
+     * Set a cached value and its ETag, both with the same TTL, in one pipelined round trip.
+     * @param key Cache key
+     * @param value Value to cache
+     * @param ttlSeconds TTL in seconds
+     * @return ETag of the value
+     */
+    public String setTagged(String key, byte[] value, int ttlSeconds) {
+        String etag = etagOf(value);
+        try (Jedis jedis = resource()) {
+            Pipeline p = jedis.pipelined();
+            p.setex(key.getBytes(), ttlSeconds, value);
+            p.setex(key + ETAG_SUFFIX, ttlSeconds, etag);
+            p.sync();
+            log.debug("Cached: {} (TTL: {}s, ETag: {})", key, ttlSeconds, etag);
+        } catch (Exception e) {
+            log.warn("Redis set failed for key {}: {}", key, e.getMessage());
+        }
+        return etag;
+    }
+    
+    /**
+     * Get several cached values in one round trip.
+     * @param keys Cache keys
+     * @return Values by key for the hits only; empty if Redis is unavailable
+     */
+    public Map<String, byte[]> getAll(List<String> keys) {
+        Map<String, byte[]> out = new HashMap<>();
+        if (keys.isEmpty()) {
+            return out;
+        }
+        try (Jedis jedis = resource()) {
+            byte[][] raw = new byte[keys.size()][];
+            for (int i = 0; i < raw.length; i++) {
+                raw[i] = keys.get(i).getBytes();
+            }
+            List<byte[]> values = jedis.mget(raw);
+            for (int i = 0; i < values.size(); i++) {
+                if (values.get(i) != null) {
+                    out.put(keys.get(i), values.get(i));
+                }
+            }
+            log.debug("Cache multi-get: {} of {} hit", out.size(), keys.size());
+        } catch (Exception e) {
+            log.warn("Redis multi-get failed for {} keys: {}", keys.size(), e.getMessage());
+        }
+        return out;
+    }
+    
+    /**
+     * Set several values and their ETags with the default TTL in one pipelined round trip.
+     * @param values Values by cache key
+     */
+    public void setAll(Map<String, byte[]> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        try (Jedis jedis = resource()) {
+            Pipeline p = jedis.pipelined();
+            for (Map.Entry<String, byte[]> e : values.entrySet()) {
+                p.setex(e.getKey().getBytes(), defaultTtlSeconds, e.getValue());
+                p.setex(e.getKey() + ETAG_SUFFIX, defaultTtlSeconds, etagOf(e.getValue()));
+            }
+            p.sync();
+            log.debug("Cached {} values", values.size());
+        } catch (Exception e) {
+            log.warn("Redis multi-set failed for {} keys: {}", values.size(), e.getMessage());
+        }
+    }
+    
+    /**
+     * Delete a cached value and its ETag.
      * @param key Cache key
      */
     public void delete(String key) {
-        try (Jedis jedis = jedisPool.getResource()) {
-            jedis.del(key);
+        try (Jedis jedis = resource()) {
+            jedis.del(key, key + ETAG_SUFFIX);
             log.debug("Cache deleted: {}", key);
         } catch (Exception e) {
             log.warn("Redis delete failed for key {}: {}", key, e.getMessage());
@@ -115,7 +283,7 @@ public class RedisCache {
      * @param pattern Key pattern (e.g., "article:*")
      */
     public void deletePattern(String pattern) {
-        try (Jedis jedis = jedisPool.getResource()) {
+        try (Jedis jedis = resource()) {
             var keys = jedis.keys(pattern);
             if (!keys.isEmpty()) {
                 jedis.del(keys.toArray(new String[0]));
@@ -136,7 +304,24 @@ public class RedisCache {
      * @return Cache key
      */
     public static String articleListKey(String filter, int limit, int offset, String sortBy, String sortDir) {
-        return ARTICLE_LIST_PREFIX + 
+        return listKey(ARTICLE_LIST_PREFIX, filter, limit, offset, sortBy, sortDir);
+    }
+    
+    /**
+     * Generate a cache key for popular rank list queries.
+     * @param filter RSQL filter
+     * @param limit Limit
+     * @param offset Offset
+     * @param sortBy Sort column
+     * @param sortDir Sort direction
+     * @return Cache key
+     */
+    public static String popularRankListKey(String filter, int limit, int offset, String sortBy, String sortDir) {
+        return listKey(POPULARRANK_LIST_PREFIX, filter, limit, offset, sortBy, sortDir);
+    }
+    
+    private static String listKey(String prefix, String filter, int limit, int offset, String sortBy, String sortDir) {
+        return prefix + 
                "f:" + (filter == null ? "" : filter) + 
                ":l:" + limit + 
                ":o:" + offset + 
@@ -153,12 +338,68 @@ public class RedisCache {
         return ARTICLE_PREFIX + id;
     }
     
+    /**
+     * Generate a cache key for a single popular rank.
+     * @param id PopularRank ID
+     * @return Cache key
+     */
+    public static String popularRankKey(long id) {
+        return POPULARRANK_PREFIX + id;
+    }
+    
+    /**
+     * Generate a cache key for the serialized engagement bitmaps of a beread record.
+     * @param id BeRead ID
+     * @return Cache key
+     */
+    public static String bereadEngagementKey(long id) {
+        return BEREAD_ENGAGEMENT_PREFIX + id;
+    }
+    
+    /**
+     * Generate a cache key for an article looked up by aid.
+     * @param aid Article aid
+     * @return Cache key
+     */
+    public static String articleAidKey(String aid) {
+        return ARTICLE_AID_PREFIX + aid;
+    }
+    
+    /**
+     * Generate a cache key for a user looked up by uid.
+     * @param uid User uid
+     * @return Cache key
+     */
+    public static String userUidKey(String uid) {
+        return USER_UID_PREFIX + uid;
+    }
+    
+    /**
+     * Generate a cache key for a beread record looked up by article aid.
+     * @param aid Article aid
+     * @return Cache key
+     */
+    public static String bereadAidKey(String aid) {
+        return BEREAD_AID_PREFIX + aid;
+    }
+    
+    /**
+     * Generate a cache key for an aggregate query.
+     * @param collection Collection path, e.g. "/reads"
+     * @param aggregation Canonical group and metric spec
+     * @param filter Canonical RSQL filter
+     * @return Cache key
+     */
+    public static String aggregateKey(String collection, String aggregation, String filter) {
+        return AGGREGATE_PREFIX + collection.substring(1) + ":" + aggregation + ":f:" + filter;
+    }
+    
     /**
      * Check if Redis is available.
      * @return true if Redis is reachable
      */
     public boolean isAvailable() {
-        try (Jedis jedis = jedisPool.getResource()) {
+        try (Jedis jedis = resource()) {
             return "PONG".equals(jedis.ping());
         } catch (Exception e) {
             return false;
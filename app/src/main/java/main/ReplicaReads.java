@@ -0,0 +1,131 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a read may be served by @replica tablets.
+ *
+ * Replication lag is polled from vtgate's SHOW VITESS_REPLICATION_STATUS; a keyspace is usable
+ * while the largest lag among its replicas (aged by the time since the sample) stays within the
+ * staleness bound. A request carrying a {@link ConsistencyToken} additionally needs the replicas
+ * to have applied everything up to the token: a replica lagging L ms at sample time S has applied
+ * all writes that completed before S - L.
+ */
+public class ReplicaReads {
+    private static final Logger log = LogManager.getLogger(ReplicaReads.class);
+
+    // ReplicationLag is reported in whole seconds
+    private static final long LAG_GRANULARITY_MS = 1000;
+
+    /** Worst replica lag of one keyspace at one sample */
+    private record Lag(long lagMillis, long sampledAt) {}
+
+    private final DB db;
+    private final long maxLagMillis;
+    private final long clockSkewMillis;
+    private final long pollMillis;
+    private final Map<String, Lag> lags = new ConcurrentHashMap<>();
+    // Keyspaces whose lag gauge is registered
+    private final Set<String> gauged = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replica-lag-poller");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param maxLagMillis Staleness bound for reads without a token
+     * @param clockSkewMillis Allowance for clock differences between the app instances issuing tokens
+     * @param pollMillis How often replication lag is sampled
+     */
+    public ReplicaReads(DB db, long maxLagMillis, long clockSkewMillis, long pollMillis) {
+        this.db = db;
+        this.maxLagMillis = maxLagMillis;
+        this.clockSkewMillis = clockSkewMillis;
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Configure from REPLICA_MAX_LAG_MS, CONSISTENCY_CLOCK_SKEW_MS and REPLICA_LAG_POLL_MS.
+     */
+    public static ReplicaReads fromEnv(DB db) {
+        long maxLag = Long.parseLong(System.getenv().getOrDefault("REPLICA_MAX_LAG_MS", "5000"));
+        long skew = Long.parseLong(System.getenv().getOrDefault("CONSISTENCY_CLOCK_SKEW_MS", "100"));
+        long poll = Long.parseLong(System.getenv().getOrDefault("REPLICA_LAG_POLL_MS", "1000"));
+        return new ReplicaReads(db, maxLag, skew, poll);
+    }
+
+    public void start() {
+        poller.scheduleWithFixedDelay(this::poll, 0, pollMillis, TimeUnit.MILLISECONDS);
+        log.info("Replica reads enabled (max lag {} ms)", maxLagMillis);
+    }
+
+    /**
+     * @return true if a read of this keyspace, with the current request's token, may go to a replica
+     */
+    public boolean canServe(String keyspace) {
+        Lag lag = lags.get(keyspace);
+        if (lag == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        // A sample we failed to refresh says nothing about the replicas now
+        if (now - lag.sampledAt() > 3 * pollMillis) {
+            return false;
+        }
+        long worstLag = lag.lagMillis() + LAG_GRANULARITY_MS;
+        if (worstLag + (now - lag.sampledAt()) > maxLagMillis) {
+            return false;
+        }
+        long token = ConsistencyToken.current();
+        return token == 0 || token + clockSkewMillis <= lag.sampledAt() - worstLag;
+    }
+
+    private void poll() {
+        Map<String, Long> worst = new HashMap<>();
+        long sampledAt = System.currentTimeMillis();
+        try (Connection conn = db.getConnection();
+             Statement st = conn.createStatement()) {
+            ResultSet rs = st.executeQuery("SHOW VITESS_REPLICATION_STATUS");
+            while (rs.next()) {
+                if (!"REPLICA".equalsIgnoreCase(rs.getString("TabletType"))) {
+                    continue;
+                }
+                String keyspace = rs.getString("Keyspace");
+                long lagSeconds = rs.getLong("ReplicationLag");
+                // An unknown lag (replication stopped or not reported) rules the keyspace out
+                long lagMs = rs.wasNull() || lagSeconds < 0 ? Long.MAX_VALUE / 4 : lagSeconds * 1000;
+                worst.merge(keyspace, lagMs, Math::max);
+            }
+        } catch (Exception e) {
+            log.warn("Polling replication status failed: {}", e.getMessage());
+            return;
+        }
+
+        lags.keySet().retainAll(worst.keySet());
+        for (var e : worst.entrySet()) {
+            lags.put(e.getKey(), new Lag(e.getValue(), sampledAt));
+            if (!gauged.add(e.getKey())) {
+                continue;
+            }
+            String keyspace = e.getKey();
+            Metrics.gauge("helvetia_replica_lag_seconds", "Worst replica lag per keyspace at the last poll",
+                () -> {
+                    Lag l = lags.get(keyspace);
+                    return l == null ? Double.NaN : l.lagMillis() / 1000.0;
+                }, "keyspace", keyspace);
+        }
+    }
+}
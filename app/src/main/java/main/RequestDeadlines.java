@@ -0,0 +1,69 @@
+package helvetia.main;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-route request timeouts. Collection reads and aggregates (GET /reads, GET /reads/aggregate,
+ * ...) scatter to every shard and get a longer default than point reads and writes;
+ * REQUEST_TIMEOUTS overrides single routes. A client may lower, but never raise, its timeout
+ * with the {@link Deadline#HEADER} header.
+ */
+public class RequestDeadlines {
+    private final long defaultMillis;
+    private final long listMillis;
+    private final Map<String, Long> overrides;
+
+    public RequestDeadlines(long defaultMillis, long listMillis, Map<String, Long> overrides) {
+        this.defaultMillis = defaultMillis;
+        this.listMillis = listMillis;
+        this.overrides = overrides;
+    }
+
+    /**
+     * Configure from REQUEST_TIMEOUT_MS (default 3000), LIST_REQUEST_TIMEOUT_MS (default 15000)
+     * and REQUEST_TIMEOUTS, comma-separated "route=millis" entries with routes as in
+     * {@link RouteLimits}, e.g. "GET /reads=5000,GET /articles/:id=500".
+     */
+    public static RequestDeadlines fromEnv() {
+        var env = System.getenv();
+        Map<String, Long> overrides = new LinkedHashMap<>();
+        for (String entry : env.getOrDefault("REQUEST_TIMEOUTS", "").split(",")) {
+            String[] kv = entry.trim().split("=", 2);
+            if (kv.length == 2) {
+                overrides.put(kv[0].trim(), Long.parseLong(kv[1].trim()));
+            }
+        }
+        return new RequestDeadlines(
+            Long.parseLong(env.getOrDefault("REQUEST_TIMEOUT_MS", "3000")),
+            Long.parseLong(env.getOrDefault("LIST_REQUEST_TIMEOUT_MS", "15000")),
+            overrides);
+    }
+
+    /**
+     * @param header Client-requested timeout in milliseconds, or null
+     * @throws IllegalArgumentException if the header is not a positive number
+     */
+    public long timeoutMillis(String method, String path, String header) {
+        String route = RouteLimits.routeOf(method, path);
+        long millis = overrides.getOrDefault(route, isList(route) ? listMillis : defaultMillis);
+        if (header != null) {
+            long requested;
+            try {
+                requested = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(Deadline.HEADER + " must be a number of milliseconds");
+            }
+            if (requested <= 0) {
+                throw new IllegalArgumentException(Deadline.HEADER + " must be positive");
+            }
+            millis = Math.min(millis, requested);
+        }
+        return millis;
+    }
+
+    private static boolean isList(String route) {
+        // "GET /reads" (a bare collection) or "GET /reads/aggregate"
+        return route.startsWith("GET /") && (route.indexOf('/', 5) < 0 || route.endsWith("/aggregate"));
+    }
+}
@@ -0,0 +1,155 @@
+package helvetia.main;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One {@link ConcurrencyLimiter} per route, so cheap routes (cached point reads) and expensive
+ * ones (scatter lists, counts) adapt independently: a slow list query sheds list traffic without
+ * starving GET /articles/:id.
+ *
+ * A route is the method plus the path with numeric segments replaced by ":id", e.g.
+ * "GET /articles/:id", "GET /articles" and "GET /bereads/:id/engagement". Lookup keys
+ * ("/articles/by-aid/N123" becomes "/articles/by-aid/:aid") and segments past the fourth are
+ * folded too.
+ *
+ * Folding alone does not bound the set: scanners and typos produce arbitrary literal paths.
+ * A route only gets its own limiter and metric label once a request to it has succeeded,
+ * which Spark only does for paths it has a handler for; everything else shares {@link #OTHER}.
+ *
+ * Media downloads and uploads are excluded from the gradient: their latency is the client's
+ * bandwidth and the file size, so a few slow phones would shrink the limit for everyone. They
+ * share one fixed cap instead.
+ */
+public class RouteLimits {
+    // Operational endpoints are never shed
+    private static final Set<String> EXEMPT = Set.of("/metrics", "/hello");
+    // Path segments kept verbatim; deeper ones are parameters
+    private static final int MAX_LITERAL_DEPTH = 4;
+    // Bucket for paths no handler has answered yet
+    public static final String OTHER = "other";
+    // Label of the shared media stream limiter
+    public static final String MEDIA = "media";
+    // Upper bound on confirmed routes, well above the number of registered handlers
+    private static final int MAX_ROUTES = 200;
+
+    private final boolean enabled;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int retryAfterSeconds;
+    private final ConcurrencyLimiter media;
+    private final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private final Set<String> confirmed = ConcurrentHashMap.newKeySet();
+
+    public RouteLimits(boolean enabled, int initialLimit, int minLimit, int maxLimit, int retryAfterSeconds,
+                       int mediaLimit) {
+        this.enabled = enabled;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.media = ConcurrencyLimiter.fixed(mediaLimit);
+        Metrics.gauge("helvetia_route_concurrency_limit", "Current adaptive concurrency limit",
+            media::limit, "route", MEDIA);
+        Metrics.gauge("helvetia_route_in_flight", "Requests in flight", media::inFlight, "route", MEDIA);
+    }
+
+    /**
+     * Configure from CONCURRENCY_LIMITS (default on), CONCURRENCY_LIMIT_INITIAL,
+     * CONCURRENCY_LIMIT_MIN, CONCURRENCY_LIMIT_MAX, SHED_RETRY_AFTER_SECONDS and
+     * MEDIA_CONCURRENCY_LIMIT (fixed cap on concurrent media streams, default 64).
+     */
+    public static RouteLimits fromEnv() {
+        var env = System.getenv();
+        return new RouteLimits(
+            Boolean.parseBoolean(env.getOrDefault("CONCURRENCY_LIMITS", "true")),
+            Integer.parseInt(env.getOrDefault("CONCURRENCY_LIMIT_INITIAL", "20")),
+            Integer.parseInt(env.getOrDefault("CONCURRENCY_LIMIT_MIN", "4")),
+            Integer.parseInt(env.getOrDefault("CONCURRENCY_LIMIT_MAX", "200")),
+            Integer.parseInt(env.getOrDefault("SHED_RETRY_AFTER_SECONDS", "1")),
+            Integer.parseInt(env.getOrDefault("MEDIA_CONCURRENCY_LIMIT", "64")));
+    }
+
+    public int retryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @return The limiter for this request, or null if the request is not limited
+     */
+    public ConcurrencyLimiter forRequest(String method, String path) {
+        if (!enabled || EXEMPT.contains(path)) {
+            return null;
+        }
+        if (isMedia(path)) {
+            return media;
+        }
+        String route = bucket(method, path);
+        return limiters.computeIfAbsent(route, r -> {
+            ConcurrencyLimiter l = new ConcurrencyLimiter(initialLimit, minLimit, maxLimit);
+            Metrics.gauge("helvetia_route_concurrency_limit", "Current adaptive concurrency limit",
+                l::limit, "route", r);
+            Metrics.gauge("helvetia_route_in_flight", "Requests in flight", l::inFlight, "route", r);
+            return l;
+        });
+    }
+
+    /**
+     * @return The route label for this request: {@link #MEDIA} for media streams, its folded route
+     * once a handler has answered it successfully, otherwise {@link #OTHER}
+     */
+    public String bucket(String method, String path) {
+        if (isMedia(path)) {
+            return MEDIA;
+        }
+        String route = routeOf(method, path);
+        return confirmed.contains(route) ? route : OTHER;
+    }
+
+    /**
+     * Whether this is /articles/:id/media/:kind, whose time is spent streaming to or from the client
+     */
+    static boolean isMedia(String path) {
+        String[] segments = path.split("/");
+        return segments.length == 5 && segments[1].equals("articles") && segments[3].equals("media");
+    }
+
+    /**
+     * Record a finished request; a success confirms its route as one Spark serves.
+     */
+    public void completed(String method, String path, int status) {
+        if (status >= 200 && status < 400 && confirmed.size() < MAX_ROUTES) {
+            confirmed.add(routeOf(method, path));
+        }
+    }
+
+    static String routeOf(String method, String path) {
+        StringBuilder sb = new StringBuilder(method).append(' ');
+        String previous = "";
+        int depth = 0;
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            sb.append('/');
+            if (previous.startsWith("by-")) {
+                sb.append(':').append(previous.substring(3));
+            } else if (segment.chars().allMatch(Character::isDigit)) {
+                sb.append(":id");
+            } else if (depth >= MAX_LITERAL_DEPTH) {
+                // e.g. the uid in /bereads/:id/engagement/:kind/:uid
+                sb.append('*');
+            } else {
+                sb.append(segment);
+            }
+            previous = segment;
+            depth++;
+        }
+        if (sb.charAt(sb.length() - 1) == ' ') {
+            sb.append('/');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,340 @@
+package helvetia.main;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes result set rows straight to protobuf wire format, without building messages.
+ *
+ * The column mapping is derived from the message descriptor: each field reads the column of the
+ * same name, by index, converted as the DAOs' fromResultSet does. TIMESTAMP columns become epoch
+ * millis in int64 fields, DATE columns become yyyy-mm-dd strings, and JSON array columns are
+ * tokenized directly into repeated string fields. Fields are written in field-number order and
+ * proto3 defaults are skipped, so a row encodes to the same bytes as the equivalent built
+ * message's toByteArray(), and caches and ETags do not depend on which path produced them.
+ */
+public final class RowEncoder {
+    private enum Kind { INT64, MILLIS, INT32, BOOL, DOUBLE, FLOAT, STRING, DATE, JSON_STRINGS, DERIVED }
+
+    /** One field of the plan: where its value comes from and how it is written */
+    private record Slot(int field, Kind kind, int column, Derive derive) {}
+
+    /** Column mapping for one result set layout */
+    private record Plan(List<String> labels, Slot[] slots) {}
+
+    private record Derivation(String column, Derive function) {}
+
+    /** Computes a derived field from its source column's value, with the rest of the row at hand */
+    @FunctionalInterface
+    public interface Derive {
+        String apply(String value, ResultSet row) throws SQLException;
+    }
+
+    private static final int INITIAL_BUFFER = 1024;
+
+    // Per-thread scratch row buffer, grown on demand
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER]);
+
+    private final Descriptor descriptor;
+    private final Map<String, Derivation> derived = new HashMap<>();
+    // The DAOs select the same columns for every list query, so one cached plan is enough
+    private volatile Plan plan;
+
+    public RowEncoder(Descriptor descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * Compute a string field from another column instead of reading a column of its own, e.g.
+     * an article's media URL from its id and HDFS path. The function is skipped for null or
+     * empty column values.
+     */
+    public RowEncoder derive(String field, String column, Derive function) {
+        derived.put(field, new Derivation(column, function));
+        plan = null;
+        return this;
+    }
+
+    /**
+     * Encode the current row as a standalone message.
+     */
+    public byte[] encode(ResultSet rs) throws SQLException {
+        Slot[] slots = plan(rs.getMetaData()).slots();
+        byte[] buf = SCRATCH.get();
+        while (true) {
+            CodedOutputStream out = CodedOutputStream.newInstance(buf);
+            try {
+                for (Slot slot : slots) {
+                    write(out, slot, rs);
+                }
+                return Arrays.copyOf(buf, out.getTotalBytesWritten());
+            } catch (CodedOutputStream.OutOfSpaceException e) {
+                // Row larger than the scratch buffer: grow and re-read the same row
+                buf = new byte[buf.length * 2];
+                SCRATCH.set(buf);
+            } catch (IOException e) {
+                throw new SQLException("Failed to encode row as " + descriptor.getFullName(), e);
+            }
+        }
+    }
+
+    /**
+     * Assemble a list message (e.g. ReadList) from encoded rows: each row as the list's repeated
+     * message field, followed by its int64 totalCount.
+     */
+    public static byte[] page(Descriptor list, List<byte[]> rows, long totalCount) {
+        int rowField = 0;
+        int countField = 0;
+        for (FieldDescriptor f : list.getFields()) {
+            if (f.isRepeated() && f.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+                rowField = f.getNumber();
+            } else if (f.getName().equals("totalCount")) {
+                countField = f.getNumber();
+            }
+        }
+        if (rowField == 0 || countField == 0) {
+            throw new IllegalArgumentException(list.getFullName() + " is not a list message");
+        }
+
+        int size = totalCount != 0 ? CodedOutputStream.computeInt64Size(countField, totalCount) : 0;
+        for (byte[] row : rows) {
+            size += CodedOutputStream.computeByteArraySize(rowField, row);
+        }
+        byte[] bytes = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            for (byte[] row : rows) {
+                out.writeByteArray(rowField, row);
+            }
+            if (totalCount != 0) {
+                out.writeInt64(countField, totalCount);
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // Sized exactly above
+            throw new IllegalStateException(e);
+        }
+        return bytes;
+    }
+
+    private Plan plan(ResultSetMetaData md) throws SQLException {
+        List<String> labels = new ArrayList<>(md.getColumnCount());
+        for (int i = 1; i <= md.getColumnCount(); i++) {
+            labels.add(md.getColumnLabel(i));
+        }
+        Plan p = plan;
+        if (p != null && p.labels().equals(labels)) {
+            return p;
+        }
+
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < labels.size(); i++) {
+            columns.put(labels.get(i).toLowerCase(Locale.ROOT), i + 1);
+        }
+        List<Slot> slots = new ArrayList<>();
+        for (FieldDescriptor f : descriptor.getFields()) {
+            Derivation d = derived.get(f.getName());
+            if (d != null) {
+                Integer col = columns.get(d.column().toLowerCase(Locale.ROOT));
+                if (col != null) {
+                    slots.add(new Slot(f.getNumber(), Kind.DERIVED, col, d.function()));
+                }
+                continue;
+            }
+            Integer col = columns.get(f.getName().toLowerCase(Locale.ROOT));
+            if (col != null) {
+                slots.add(new Slot(f.getNumber(), kind(f, md.getColumnType(col)), col, null));
+            }
+        }
+        slots.sort(Comparator.comparingInt(Slot::field));
+        p = new Plan(labels, slots.toArray(new Slot[0]));
+        plan = p;
+        return p;
+    }
+
+    private Kind kind(FieldDescriptor f, int sqlType) {
+        if (f.isRepeated()) {
+            if (f.getJavaType() != FieldDescriptor.JavaType.STRING) {
+                throw new IllegalArgumentException("Unsupported repeated field " + f.getFullName());
+            }
+            return Kind.JSON_STRINGS;
+        }
+        boolean temporal = sqlType == Types.TIMESTAMP || sqlType == Types.TIMESTAMP_WITH_TIMEZONE;
+        return switch (f.getJavaType()) {
+            case LONG -> temporal ? Kind.MILLIS : Kind.INT64;
+            case INT -> Kind.INT32;
+            case BOOLEAN -> Kind.BOOL;
+            case DOUBLE -> Kind.DOUBLE;
+            case FLOAT -> Kind.FLOAT;
+            case STRING -> sqlType == Types.DATE ? Kind.DATE : Kind.STRING;
+            default -> throw new IllegalArgumentException("Unsupported field type " + f.getFullName());
+        };
+    }
+
+    private static void write(CodedOutputStream out, Slot slot, ResultSet rs) throws SQLException, IOException {
+        int field = slot.field();
+        int col = slot.column();
+        switch (slot.kind()) {
+            case INT64 -> {
+                long v = rs.getLong(col);
+                if (v != 0) out.writeInt64(field, v);
+            }
+            case MILLIS -> {
+                Timestamp ts = rs.getTimestamp(col);
+                if (ts != null && ts.getTime() != 0) out.writeInt64(field, ts.getTime());
+            }
+            case INT32 -> {
+                int v = rs.getInt(col);
+                if (v != 0) out.writeInt32(field, v);
+            }
+            case BOOL -> {
+                if (rs.getBoolean(col)) out.writeBool(field, true);
+            }
+            case DOUBLE -> {
+                double v = rs.getDouble(col);
+                if (Double.doubleToRawLongBits(v) != 0) out.writeDouble(field, v);
+            }
+            case FLOAT -> {
+                float v = rs.getFloat(col);
+                if (Float.floatToRawIntBits(v) != 0) out.writeFloat(field, v);
+            }
+            case STRING -> {
+                String v = rs.getString(col);
+                if (v != null && !v.isEmpty()) out.writeString(field, v);
+            }
+            case DATE -> {
+                Date d = rs.getDate(col);
+                if (d != null) out.writeString(field, d.toString());
+            }
+            case DERIVED -> {
+                String v = rs.getString(col);
+                if (v != null && !v.isEmpty()) out.writeString(field, slot.derive().apply(v, rs));
+            }
+            case JSON_STRINGS -> {
+                String json = rs.getString(col);
+                if (json != null && !json.isEmpty()) writeJsonStrings(out, field, json);
+            }
+        }
+    }
+
+    /**
+     * Write each element of a JSON array as a repeated string field. Strings are unescaped,
+     * other scalars are taken literally, and nulls are skipped.
+     */
+    static void writeJsonStrings(CodedOutputStream out, int field, String json) throws SQLException, IOException {
+        int i = skipSpace(json, 0);
+        if (i >= json.length() || json.charAt(i) != '[') {
+            throw new SQLDataException("Expected a JSON array: " + json);
+        }
+        i = skipSpace(json, i + 1);
+        if (i < json.length() && json.charAt(i) == ']') {
+            return;
+        }
+        while (true) {
+            if (i >= json.length()) {
+                throw new SQLDataException("Unterminated JSON array: " + json);
+            }
+            char c = json.charAt(i);
+            if (c == '"') {
+                int end = i + 1;
+                while (end < json.length() && json.charAt(end) != '"' && json.charAt(end) != '\\') {
+                    end++;
+                }
+                if (end < json.length() && json.charAt(end) == '"') {
+                    out.writeString(field, json.substring(i + 1, end));
+                    i = end + 1;
+                } else {
+                    StringBuilder sb = new StringBuilder(json.substring(i + 1, end));
+                    i = unescape(json, end, sb);
+                    out.writeString(field, sb.toString());
+                }
+            } else if (c == '[' || c == '{') {
+                throw new SQLDataException("Nested JSON values are not strings: " + json);
+            } else {
+                int end = i;
+                while (end < json.length() && json.charAt(end) != ',' && json.charAt(end) != ']'
+                    && !Character.isWhitespace(json.charAt(end))) {
+                    end++;
+                }
+                String literal = json.substring(i, end);
+                if (!literal.equals("null")) {
+                    out.writeString(field, literal);
+                }
+                i = end;
+            }
+            i = skipSpace(json, i);
+            if (i < json.length() && json.charAt(i) == ',') {
+                i = skipSpace(json, i + 1);
+            } else if (i < json.length() && json.charAt(i) == ']') {
+                return;
+            } else {
+                throw new SQLDataException("Malformed JSON array: " + json);
+            }
+        }
+    }
+
+    /**
+     * Decode a string body from {@code i} (inside the quotes) up to its closing quote.
+     * @return Index after the closing quote
+     */
+    private static int unescape(String json, int i, StringBuilder sb) throws SQLDataException {
+        while (i < json.length()) {
+            char c = json.charAt(i++);
+            if (c == '"') {
+                return i;
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (i >= json.length()) {
+                break;
+            }
+            char e = json.charAt(i++);
+            switch (e) {
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'u' -> {
+                    if (i + 4 > json.length()) {
+                        throw new SQLDataException("Truncated \\u escape: " + json);
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw new SQLDataException("Bad \\u escape: " + json);
+                    }
+                    i += 4;
+                }
+                default -> sb.append(e);
+            }
+        }
+        throw new SQLDataException("Unterminated JSON string: " + json);
+    }
+
+    private static int skipSpace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
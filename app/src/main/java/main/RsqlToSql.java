@@ -1,7 +1,10 @@
 package helvetia.main;
 
 import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.RSQLParserException;
 import cz.jirutka.rsql.parser.ast.*;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
 import java.util.*;
 
@@ -20,6 +23,8 @@ import java.util.*;
  * - =like= (SQL LIKE with wildcards)
  * - =notlike= (SQL NOT LIKE)
  * - =isnull= (IS NULL / IS NOT NULL)
+ * - =match= (full-text match, when an index is attached with {@link #withIndex})
+ * - =contains= / =containsAny= (JSON array holds all / any of the values, likewise)
  * 
  * Example RSQL: name==John;age=gt=25;region=in=(Beijing,HongKong)
  * Produces SQL: name = ? AND age > ? AND region IN (?, ?)
@@ -31,6 +36,13 @@ public class RsqlToSql {
     private static final ComparisonOperator LIKE = new ComparisonOperator("=like=", false);
     private static final ComparisonOperator NOT_LIKE = new ComparisonOperator("=notlike=", false);
     private static final ComparisonOperator IS_NULL = new ComparisonOperator("=isnull=", false);
+    // Answered by an in-process index rather than SQL; see withIndex
+    public static final ComparisonOperator MATCH = new ComparisonOperator("=match=", false);
+    public static final ComparisonOperator CONTAINS = new ComparisonOperator("=contains=", true);
+    public static final ComparisonOperator CONTAINS_ANY = new ComparisonOperator("=containsAny=", true);
+    
+    // Most ids an index operator may expand into, to keep the IN list within statement limits
+    private static final int MAX_RESOLVED_IDS = 50_000;
     
     private static final Set<ComparisonOperator> OPERATORS = new HashSet<>(Arrays.asList(
         RSQLOperators.EQUAL,
@@ -43,7 +55,10 @@ public class RsqlToSql {
         RSQLOperators.NOT_IN,
         LIKE,
         NOT_LIKE,
-        IS_NULL
+        IS_NULL,
+        MATCH,
+        CONTAINS,
+        CONTAINS_ANY
     ));
     
     private final RSQLParser parser;
@@ -51,11 +66,36 @@ public class RsqlToSql {
     // Allowed columns to prevent SQL injection
     private final Set<String> allowedColumns;
     
+    // Operators resolved to a set of row ids by an in-process index
+    private final Map<ComparisonOperator, IdResolver> resolvers = new HashMap<>();
+    
     public RsqlToSql(Set<String> allowedColumns) {
         this.parser = new RSQLParser(OPERATORS);
         this.allowedColumns = allowedColumns;
     }
     
+    /**
+     * Looks up the ids of the rows matching a comparison the database cannot answer efficiently
+     */
+    public interface IdResolver {
+        /**
+         * @param field The selector, which need not be an allowed column
+         * @return The matching ids; the caller may modify the bitmap
+         * @throws IllegalArgumentException if the field or arguments are not supported
+         */
+        Roaring64NavigableMap resolve(String field, List<String> args);
+    }
+    
+    /**
+     * Answer an operator from an index: the comparison becomes id IN (...) over the ids it
+     * resolves. Sibling index comparisons under the same AND or OR are combined as bitmaps
+     * first, so they cost one IN list. Operators without a resolver are rejected.
+     */
+    public RsqlToSql withIndex(ComparisonOperator op, IdResolver resolver) {
+        resolvers.put(op, resolver);
+        return this;
+    }
+    
     /**
      * Get the set of allowed column names
      */
@@ -95,6 +135,58 @@ public class RsqlToSql {
         return new SqlResult(sql, params);
     }
     
+    /**
+     * Answer a filter entirely from the attached indexes, when every comparison in it has a
+     * resolver. The caller can then page the ids itself and fetch only that page.
+     *
+     * @return The matching ids, or null if the filter is empty or needs the database
+     * @throws IllegalArgumentException if the RSQL is invalid
+     */
+    public Roaring64NavigableMap resolveIds(String rsql) {
+        if (rsql == null || rsql.isBlank() || resolvers.isEmpty()) {
+            return null;
+        }
+        Node root = parser.parse(rsql);
+        return indexOnly(root) ? resolve(root) : null;
+    }
+    
+    /**
+     * One page of an id set in id order, as an id IN (...) clause.
+     */
+    public static SqlResult idPage(Roaring64NavigableMap ids, int limit, int offset, boolean descending) {
+        List<Object> params = new ArrayList<>();
+        LongIterator it = descending ? ids.getReverseLongIterator() : ids.getLongIterator();
+        for (int skipped = 0; skipped < offset && it.hasNext(); skipped++) {
+            it.next();
+        }
+        while (params.size() < limit && it.hasNext()) {
+            params.add(it.next());
+        }
+        if (params.isEmpty()) {
+            return new SqlResult("1=0", params);
+        }
+        return new SqlResult("`id` IN (" + String.join(", ", Collections.nCopies(params.size(), "?")) + ")", params);
+    }
+    
+    /**
+     * Normalised form of an RSQL expression, e.g. for cache keys: whitespace, redundant
+     * parentheses and quoting differences disappear.
+     *
+     * @param rsql The RSQL query string, or null
+     * @return The canonical expression, or "" for no filter
+     * @throws IllegalArgumentException if the RSQL is invalid
+     */
+    public static String canonical(String rsql) {
+        if (rsql == null || rsql.isBlank()) {
+            return "";
+        }
+        try {
+            return new RSQLParser(OPERATORS).parse(rsql).toString();
+        } catch (RSQLParserException e) {
+            throw new IllegalArgumentException("Invalid filter: " + e.getMessage());
+        }
+    }
+    
     private String nodeToSql(Node node, List<Object> params) {
         if (node instanceof AndNode) {
             return logicalNodeToSql((AndNode) node, " AND ", params);
@@ -107,18 +199,73 @@ public class RsqlToSql {
     }
     
     private String logicalNodeToSql(LogicalNode node, String operator, List<Object> params) {
+        int firstParam = params.size();
         List<String> children = new ArrayList<>();
+        List<Node> indexed = new ArrayList<>();
         for (Node child : node.getChildren()) {
-            children.add(nodeToSql(child, params));
+            if (indexOnly(child)) {
+                indexed.add(child);
+            } else {
+                children.add(nodeToSql(child, params));
+            }
+        }
+        if (!indexed.isEmpty()) {
+            // Combine the index-answered children as bitmaps into a single IN list
+            Roaring64NavigableMap ids = combine(indexed, node instanceof AndNode);
+            List<Object> idParams = new ArrayList<>();
+            children.add(0, idsToSql(ids, idParams));
+            params.addAll(firstParam, idParams);
         }
         return "(" + String.join(operator, children) + ")";
     }
     
+    /** Whether every comparison under the node is answered by an index */
+    private boolean indexOnly(Node node) {
+        if (node instanceof ComparisonNode c) {
+            return resolvers.containsKey(c.getOperator());
+        }
+        for (Node child : ((LogicalNode) node).getChildren()) {
+            if (!indexOnly(child)) return false;
+        }
+        return true;
+    }
+    
+    private Roaring64NavigableMap resolve(Node node) {
+        if (node instanceof ComparisonNode c) {
+            return resolvers.get(c.getOperator()).resolve(c.getSelector(), c.getArguments());
+        }
+        return combine(((LogicalNode) node).getChildren(), node instanceof AndNode);
+    }
+    
+    private Roaring64NavigableMap combine(List<Node> nodes, boolean and) {
+        Roaring64NavigableMap ids = null;
+        for (Node n : nodes) {
+            Roaring64NavigableMap next = resolve(n);
+            if (ids == null) {
+                ids = next;
+            } else if (and) {
+                ids.and(next);
+            } else {
+                ids.or(next);
+            }
+            if (and && ids.isEmpty()) break;
+        }
+        return ids;
+    }
+    
     private String comparisonToSql(ComparisonNode node, List<Object> params) {
         String field = node.getSelector();
         ComparisonOperator op = node.getOperator();
         List<String> args = node.getArguments();
         
+        if (op.equals(MATCH) || op.equals(CONTAINS) || op.equals(CONTAINS_ANY)) {
+            IdResolver resolver = resolvers.get(op);
+            if (resolver == null) {
+                throw new IllegalArgumentException("Operator " + op.getSymbol() + " is not supported here");
+            }
+            return idsToSql(resolver.resolve(field, args), params);
+        }
+        
         // Validate field name to prevent SQL injection
         if (!allowedColumns.contains(field)) {
             throw new IllegalArgumentException("Invalid column: " + field);
@@ -165,6 +312,20 @@ public class RsqlToSql {
         return escapedField + sqlOp + "?";
     }
     
+    private static String idsToSql(Roaring64NavigableMap ids, List<Object> params) {
+        if (ids.isEmpty()) {
+            return "1=0";
+        }
+        if (ids.getLongCardinality() > MAX_RESOLVED_IDS) {
+            throw new IllegalArgumentException("Filter matches more than " + MAX_RESOLVED_IDS
+                + " rows through an index; narrow it");
+        }
+        for (LongIterator it = ids.getLongIterator(); it.hasNext(); ) {
+            params.add(it.next());
+        }
+        return "`id` IN (" + String.join(", ", Collections.nCopies((int) ids.getLongCardinality(), "?")) + ")";
+    }
+    
     /**
      * Convert string arguments to appropriate types based on field
      */
@@ -0,0 +1,381 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * App-side coordinator for sorted, paginated list queries over one keyspace.
+ *
+ * Instead of leaving the scatter to vtgate, the filtered query is sent to every shard in parallel
+ * with "ORDER BY sort, id LIMIT offset+limit"; the sorted per-shard results are then k-way merged
+ * with a priority queue. The merge needs every shard's first row, so it starts once all shards
+ * have answered; it then reads only the sort key and id of each row it skips for the offset, maps
+ * a row only when it goes on the page, and stops reading as soon as the page is full. Counts are
+ * the sum of per-shard counts. Each shard fragment is timed separately so a slow shard stands out.
+ *
+ * When the shard map does not partition the keyspace exactly (a reshard in flight) the methods
+ * return null and the caller falls back to its vtgate-routed query.
+ *
+ * String sort keys are merged on their WEIGHT_STRING, which each shard returns alongside the row:
+ * its byte order is the column collation's order, so the merge agrees with every shard's ORDER BY
+ * for accented, CJK and mixed-case values alike.
+ */
+public class ScatterGather {
+    private static final Logger log = LogManager.getLogger(ScatterGather.class);
+
+    // Alias of the collation weight of the sort column in shard list queries
+    private static final String WEIGHT_COLUMN = "sort_weight_";
+
+    private static final Comparator<Object> KEY_ORDER = Comparator.nullsFirst((a, b) -> {
+        if (a instanceof byte[] x && b instanceof byte[] y) {
+            return Arrays.compareUnsigned(x, y);
+        }
+        @SuppressWarnings("unchecked")
+        Comparable<Object> c = (Comparable<Object>) a;
+        return c.compareTo(b);
+    });
+
+    /**
+     * Read position in one shard's sorted result. Holds the shard connection open until the merge
+     * is done, so rows are mapped straight from the result set only when they are used.
+     */
+    private static final class Cursor implements AutoCloseable {
+        final Connection conn;
+        final PreparedStatement st;
+        final ResultSet rs;
+        final String sortColumn;
+        // Merge key and id of the current row
+        Object key;
+        long id;
+
+        Cursor(Connection conn, PreparedStatement st, ResultSet rs, String sortColumn) {
+            this.conn = conn;
+            this.st = st;
+            this.rs = rs;
+            this.sortColumn = sortColumn;
+        }
+
+        /** Move to the next row, reading only its merge key and id */
+        boolean advance() throws SQLException {
+            if (!rs.next()) {
+                return false;
+            }
+            key = rs.getObject(sortColumn);
+            if (key instanceof String) {
+                key = rs.getBytes(WEIGHT_COLUMN);
+            }
+            id = rs.getLong("id");
+            return true;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try (conn; st; rs) {
+                // closes in reverse order: result set, statement, connection
+            }
+        }
+    }
+
+    private final DB db;
+    private final String keyspace;
+    private final ShardMap shardMap;
+    private final boolean enabled;
+    private final ExecutorService executor;
+
+    public ScatterGather(DB db, String keyspace, boolean enabled, ExecutorService executor, long shardMapRefreshMillis) {
+        this.db = db;
+        this.keyspace = keyspace;
+        this.shardMap = new ShardMap(db, keyspace, shardMapRefreshMillis);
+        this.enabled = enabled;
+        this.executor = executor;
+    }
+
+    /**
+     * Create a coordinator enabled by SCATTER_MODE=coordinator, running shard queries on the
+     * shared {@link Workers} pool.
+     */
+    public static ScatterGather fromEnv(DB db, String keyspace) {
+        boolean enabled = "coordinator".equalsIgnoreCase(System.getenv().getOrDefault("SCATTER_MODE", "vtgate"));
+        long refreshMs = Long.parseLong(System.getenv().getOrDefault("SHARD_MAP_REFRESH_MS", "30000"));
+        return new ScatterGather(db, keyspace, enabled, Workers.shared(), refreshMs);
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * One page of a sorted list.
+     * @param select "SELECT cols FROM table" with an unqualified table name
+     * @param sortBy Sort column, validated against {@code allowedColumns} like the DAOs' ORDER BY
+     * (id ascending if missing or not allowed); ties are broken by id ascending
+     * @return The page, or null if the shard layout is not a clean partition
+     */
+    public <T> List<T> list(String select, RsqlToSql.SqlResult filter, String sortBy, String sortDir,
+                            Set<String> allowedColumns, int limit, int offset,
+                            ShardRouter.RowMapper<T> mapper) throws Exception {
+        List<String> shards = shardMap.partition();
+        if (shards == null) {
+            return null;
+        }
+
+        boolean valid = sortBy != null && allowedColumns.contains(sortBy);
+        String sortColumn = valid ? sortBy : "id";
+        boolean desc = valid && "desc".equalsIgnoreCase(sortDir);
+        // Non-string keys ignore the weight; for strings it replaces the value as the merge key
+        int from = select.indexOf(" FROM ");
+        String withWeight = sortColumn.equals("id") ? select
+            : select.substring(0, from) + ", WEIGHT_STRING(" + sortColumn + ") AS " + WEIGHT_COLUMN + select.substring(from);
+        String sql = withWeight + " WHERE " + filter.whereClause
+            + " ORDER BY " + sortColumn + (desc ? " DESC" : " ASC")
+            + (sortColumn.equals("id") ? "" : ", id ASC")
+            + " LIMIT ?";
+        int perShard = offset + limit;
+        // Decided here: the consistency token is only bound on the request thread
+        boolean replica = db.replicaReadable(keyspace);
+
+        List<Future<Cursor>> parts = new ArrayList<>();
+        for (String shard : shards) {
+            parts.add(executor.submit(Deadline.inherit(() -> timed(shard, "list", () -> {
+                Connection conn = connect(shard, replica);
+                try {
+                    PreparedStatement st = conn.prepareStatement(sql);
+                    int i = bind(st, 1, filter.parameters);
+                    st.setInt(i, perShard);
+                    return new Cursor(conn, st, st.executeQuery(), sortColumn);
+                } catch (Exception e) {
+                    conn.close();
+                    throw e;
+                }
+            }))));
+        }
+
+        Comparator<Cursor> byKey = (a, b) -> KEY_ORDER.compare(a.key, b.key);
+        if (desc) {
+            byKey = byKey.reversed();
+        }
+        Comparator<Cursor> rowOrder = byKey.thenComparingLong(c -> c.id);
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            // Wait for every shard before failing, so no cursor is left open
+            Exception failure = null;
+            for (Future<Cursor> part : parts) {
+                try {
+                    cursors.add(await(part));
+                } catch (Exception e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            PriorityQueue<Cursor> heap = new PriorityQueue<>(rowOrder);
+            for (Cursor c : cursors) {
+                if (c.advance()) {
+                    heap.add(c);
+                }
+            }
+            List<T> page = new ArrayList<>(limit);
+            int skipped = 0;
+            while (!heap.isEmpty() && page.size() < limit) {
+                Cursor c = heap.poll();
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    page.add(mapper.map(c.rs));
+                }
+                if (c.advance()) {
+                    heap.add(c);
+                }
+            }
+            return page;
+        } finally {
+            for (Cursor c : cursors) {
+                try {
+                    c.close();
+                } catch (SQLException e) {
+                    log.warn("Closing scatter cursor on {} failed: {}", keyspace, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sum of per-shard counts.
+     * @param from "SELECT COUNT(*) FROM table" with an unqualified table name
+     * @return The count, or null if the shard layout is not a clean partition
+     */
+    public Long count(String from, RsqlToSql.SqlResult filter) throws Exception {
+        List<String> shards = shardMap.partition();
+        if (shards == null) {
+            return null;
+        }
+
+        String sql = from + " WHERE " + filter.whereClause;
+        boolean replica = db.replicaReadable(keyspace);
+        List<Future<Long>> parts = new ArrayList<>();
+        for (String shard : shards) {
+            parts.add(executor.submit(Deadline.inherit(() -> timed(shard, "count", () -> {
+                try (Connection conn = connect(shard, replica);
+                     PreparedStatement st = conn.prepareStatement(sql)) {
+                    bind(st, 1, filter.parameters);
+                    ResultSet rs = st.executeQuery();
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            }))));
+        }
+
+        long total = 0;
+        for (Future<Long> part : parts) {
+            total += await(part);
+        }
+        return total;
+    }
+
+    /**
+     * Row count of a table from InnoDB statistics (information_schema TABLE_ROWS), summed over
+     * shards. Costs one metadata read per shard, but may be off by tens of percent.
+     * @param table Unqualified table name
+     * @return The estimate, or null if the shard layout is not a clean partition
+     */
+    public Long estimateRows(String table) throws Exception {
+        List<String> shards = shardMap.partition();
+        if (shards == null) {
+            return null;
+        }
+
+        String sql = "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?";
+        boolean replica = db.replicaReadable(keyspace);
+        List<Future<Long>> parts = new ArrayList<>();
+        for (String shard : shards) {
+            parts.add(executor.submit(Deadline.inherit(() -> timed(shard, "estimate", () -> {
+                try (Connection conn = connect(shard, replica);
+                     PreparedStatement st = conn.prepareStatement(sql)) {
+                    st.setString(1, table);
+                    ResultSet rs = st.executeQuery();
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            }))));
+        }
+
+        long total = 0;
+        for (Future<Long> part : parts) {
+            total += await(part);
+        }
+        return total;
+    }
+
+    /**
+     * Run the same query on every shard and return all rows, in no particular order. Used for
+     * per-shard partial aggregates that the caller merges.
+     * @param sql Query with an unqualified table name
+     * @return All shards' rows, or null if the shard layout is not a clean partition
+     */
+    public List<Object[]> gather(String sql, RsqlToSql.SqlResult filter, String query) throws Exception {
+        List<String> shards = shardMap.partition();
+        if (shards == null) {
+            return null;
+        }
+
+        boolean replica = db.replicaReadable(keyspace);
+        List<Future<List<Object[]>>> parts = new ArrayList<>();
+        for (String shard : shards) {
+            parts.add(executor.submit(Deadline.inherit(() -> timed(shard, query, () -> {
+                try (Connection conn = connect(shard, replica);
+                     PreparedStatement st = conn.prepareStatement(sql)) {
+                    bind(st, 1, filter.parameters);
+                    return rows(st.executeQuery());
+                }
+            }))));
+        }
+
+        List<Object[]> all = new ArrayList<>();
+        for (Future<List<Object[]>> part : parts) {
+            all.addAll(await(part));
+        }
+        return all;
+    }
+
+    /**
+     * Materialise a result set as arrays of column values.
+     */
+    static List<Object[]> rows(ResultSet rs) throws SQLException {
+        int columns = rs.getMetaData().getColumnCount();
+        List<Object[]> out = new ArrayList<>();
+        while (rs.next()) {
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                row[i] = rs.getObject(i + 1);
+            }
+            out.add(row);
+        }
+        return out;
+    }
+
+    /**
+     * Bind RSQL parameters the same way the DAOs do.
+     * @return The next free parameter index
+     */
+    static int bind(PreparedStatement st, int startIdx, List<Object> params) throws SQLException {
+        int i = startIdx;
+        for (Object param : params) {
+            if (param instanceof Long) {
+                st.setLong(i, (Long) param);
+            } else if (param instanceof Double) {
+                st.setDouble(i, (Double) param);
+            } else if (param instanceof Integer) {
+                st.setInt(i, (Integer) param);
+            } else {
+                st.setString(i, param.toString());
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private Connection connect(String shard, boolean replica) throws SQLException {
+        String target = keyspace + ":" + shard;
+        return db.getConnection(replica ? target + "@replica" : target);
+    }
+
+    @FunctionalInterface
+    private interface Fragment<R> {
+        R run() throws Exception;
+    }
+
+    private <R> R timed(String shard, String query, Fragment<R> fragment) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return fragment.run();
+        } catch (Exception e) {
+            shardMap.invalidate();
+            log.warn("Scatter {} on {}/{} failed: {}", query, keyspace, shard, e.getMessage());
+            throw e;
+        } finally {
+            Metrics.timer("helvetia_scatter_shard_seconds", "Latency of one shard fragment of a coordinated scatter",
+                "keyspace", keyspace, "shard", shard, "query", query).recordSince(start);
+        }
+    }
+
+    private static <R> R await(Future<R> f) throws Exception {
+        try {
+            return f.get();
+        } catch (java.util.concurrent.ExecutionException e) {
+            throw e.getCause() instanceof Exception ex ? ex : e;
+        }
+    }
+}
@@ -4,65 +4,175 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.zaxxer.hikari.HikariConfig;
 import helvetia.User;
+import helvetia.UserPatch;
 import helvetia.UserList;
 import helvetia.Article;
+import helvetia.ArticlePatch;
 import helvetia.ArticleList;
 import helvetia.Read;
+import helvetia.ReadPatch;
 import helvetia.ReadList;
 import helvetia.BeRead;
+import helvetia.BeReadPatch;
 import helvetia.BeReadList;
+import helvetia.AggregateResult;
+import helvetia.EngagementQuery;
+import helvetia.EngagementStats;
+import helvetia.ExpandedArticleList;
+import helvetia.ExpandedPopularRankList;
+import helvetia.ExpandedReadList;
+import helvetia.IdBlock;
 import helvetia.PopularRank;
+import helvetia.PopularRankPatch;
 import helvetia.PopularRankList;
 
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
 import static spark.Spark.*;
 
 public class Server {
     private final DB db;
     private final RedisCache cache;
+    private final IdAllocator ids;
+    private final Expander expander;
+    private final HdfsMediaProxy media;
+    private final MediaDiskCache mediaCache;
+    private final TotalCounts counts;
+    private final RouteLimits limits;
     private static final Logger log = LogManager.getLogger(Server.class);
 
+    // Cache-Control per entity. Mutable per-user records are private and always revalidated;
+    // articles are shared but edited, so they are revalidated too, which costs a 304 when
+    // unchanged; rankings are recomputed in batches and may be reused for a minute.
+    private static final String USER_CACHE_CONTROL = "private, no-cache";
+    private static final String ARTICLE_CACHE_CONTROL = "public, no-cache";
+    private static final String READ_CACHE_CONTROL = "private, no-cache";
+    private static final String BEREAD_CACHE_CONTROL = "public, no-cache";
+    private static final String POPULARRANK_CACHE_CONTROL = "public, max-age=60";
+
+    // Largest media upload accepted; bodies are streamed to HDFS, so this bounds disk, not heap
+    private static final long MEDIA_MAX_UPLOAD_BYTES =
+        Long.parseLong(System.getenv().getOrDefault("MEDIA_MAX_UPLOAD_BYTES", Long.toString(20L << 30)));
 
     public Server(DB db) {
         this.db = db;
         this.cache = RedisCache.fromEnv();
+        this.ids = IdAllocator.fromEnv(db);
+        this.expander = new Expander(new ArticleDaoImpl(db), new BeReadDaoImpl(db), cache);
+        this.media = HdfsMediaProxy.fromEnv();
+        this.mediaCache = mediaCacheFromEnv(media);
+        this.counts = TotalCounts.fromEnv();
+        this.limits = RouteLimits.fromEnv();
     }
 
 
     void addUserEndpoints() {
-        UserDao dao = new UserDaoImpl(db);
+        TagBitmapIndex tagIndex = TagBitmapIndex.fromEnv("user", UserDaoImpl.TAG_FIELDS);
+        UserDaoImpl dao = new UserDaoImpl(db, tagIndex);
+        if (tagIndex != null) {
+            tagIndex.start(dao::tagEntries);
+        }
 
         post("/users", (req, res) -> {
-            User input = User.parseFrom(req.bodyAsBytes());
+            User input = body(req, User.parser());
+            if (input.getId() == 0) {
+                input = input.toBuilder().setId(ids.next("user")).build();
+            }
             dao.create(input);
+            res.header("Location", "/users/" + input.getId());
 
             return "";
         });
 
+        // Registered ahead of /users/:id, which would otherwise match it
+        addAggregateEndpoint("/users", dao::aggregate);
+
         get("/users/:id", (req, res) -> {
             long id = Long.parseLong(req.params(":id"));
             User u = dao.get(id);
             if (u == null) halt(404);
 
-            res.type("application/x-protobuf");
-            return u.toByteArray();
+            byte[] bytes = u.toByteArray();
+            return conditional(req, res, bytes, RedisCache.etagOf(bytes), USER_CACHE_CONTROL);
+        });
+
+        // Point lookup by uid through the user_lookup vindex, cached under its own key
+        get("/users/by-uid/:uid", (req, res) -> {
+            String uid = req.params(":uid");
+            String cacheKey = RedisCache.userUidKey(uid);
+            if (notModified(req, res, cacheKey, USER_CACHE_CONTROL)) return "";
+
+            RedisCache.Tagged cached = cache.getTagged(cacheKey);
+            if (cached != null) {
+                return conditional(req, res, cached.value(), cached.etag(), USER_CACHE_CONTROL);
+            }
+
+            User u = dao.getByUid(uid);
+            if (u == null) halt(404);
+
+            byte[] bytes = u.toByteArray();
+            String etag = cache.setTagged(cacheKey, bytes);
+            return conditional(req, res, bytes, etag, USER_CACHE_CONTROL);
         });
 
         put("/users/:id", (req, res) -> {
-            User input = User.parseFrom(req.bodyAsBytes());
+            User input = body(req, User.parser());
             dao.update(input);
 //            if (updated == null) halt(404);
+            // The body may omit uid, which the update never changes; take it from the row
+            User current = dao.get(input.getId());
+            if (current != null) cache.delete(RedisCache.userUidKey(current.getUid()));
+            return "";
+        });
+
+        // Partial update of the fields named in updateMask; ?upsert=true inserts the row if missing
+        patch("/users/:id", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            UserPatch patch = body(req, UserPatch.parser());
+            User input = patch.getUser().toBuilder().setId(id).build();
+            try {
+                if ("true".equals(req.queryParams("upsert"))) {
+                    dao.upsert(input, patch.getUpdateMask());
+                } else if (!dao.patch(input, patch.getUpdateMask())) {
+                    halt(404);
+                }
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
+            // uid is immutable, but a patch body need not carry it
+            User current = input.getUid().isEmpty() ? dao.get(id) : input;
+            if (current != null) cache.delete(RedisCache.userUidKey(current.getUid()));
             return "";
         });
 
         delete("/users/:id", (req, res) -> {
             long id = Long.parseLong(req.params(":id"));
+            User existing = dao.get(id);
             boolean ok = dao.delete(id);
+            if (existing != null) cache.delete(RedisCache.userUidKey(existing.getUid()));
 
             res.status(ok ? 200 : 404);
             return "";
         });
 
         get("/users", (req, res) -> {
+            boolean columnar = columnarFormat(req, Set.of());
             // Get optional RSQL filter from query parameter
             String filter = req.queryParams("filter");
             
@@ -84,71 +194,255 @@ public class Server {
             String sortDir = req.queryParams("sortDir");
             
             // Get total count and list
-            final long totalCount = dao.count(filter);
-            final var list = dao.list(filter, limit, offset, sortBy, sortDir);
+            TotalCounts.Mode countMode = countMode(req);
+            final long totalCount = totalCount(res, countMode, "user", filter, dao::count, dao::estimateCount,
+                dao::indexedCount);
+            final var rows = dao.listEncoded(filter, limit, offset, sortBy, sortDir, countMode == TotalCounts.Mode.APPROX);
 
-            final var out = UserList.newBuilder()
-                .addAllUsers(list)
-                .setTotalCount(totalCount)
-                .build();
-            res.type("application/x-protobuf");
-            return out.toByteArray();
+            byte[] page = RowEncoder.page(UserList.getDescriptor(), rows, totalCount);
+            // Columnar output pivots the same page, so it follows the count mode like the rows do
+            if (columnar) {
+                return send(res, Columnar.encode(UserList.parseFrom(page)));
+            }
+            return send(res, page);
         });
     }
 
     void addArticleEndpoints() {
-        ArticleDao dao = new ArticleDaoImpl(db);
+        ArticleSearchIndex searchIndex = ArticleSearchIndex.fromEnv();
+        TagBitmapIndex tagIndex = TagBitmapIndex.fromEnv("article", ArticleDaoImpl.TAG_FIELDS);
+        ArticleDaoImpl dao = new ArticleDaoImpl(db, searchIndex, tagIndex);
+        if (searchIndex != null) {
+            searchIndex.start(dao);
+        }
+        if (tagIndex != null) {
+            tagIndex.start(dao::tagEntries);
+        }
 
         post("/articles", (req, res) -> {
-            Article input = Article.parseFrom(req.bodyAsBytes());
+            Article input = body(req, Article.parser());
+            if (input.getId() == 0) {
+                input = input.toBuilder().setId(ids.next("article")).build();
+            }
             dao.create(input);
+            res.header("Location", "/articles/" + input.getId());
             // Invalidate list cache on create
             cache.deletePattern(RedisCache.ARTICLE_LIST_PREFIX + "*");
             return "";
         });
 
+        // Relevance-ranked full-text search over title, abstract, tags and authors.
+        // Registered before /articles/:id, which would otherwise take "search" as an id.
+        get("/articles/search", (req, res) -> {
+            String q = req.queryParams("q");
+            if (searchIndex == null) halt(404, "Search is disabled");
+            if (q == null || q.isBlank()) halt(400, "Missing q");
+            if (!searchIndex.ready()) halt(503, "Search index is still loading");
+
+            int limit = 20;
+            String limitParam = req.queryParams("limit");
+            if (limitParam != null) {
+                limit = Math.min(Integer.parseInt(limitParam), 1000);
+            }
+            int offset = 0;
+            String offsetParam = req.queryParams("offset");
+            if (offsetParam != null) {
+                offset = Integer.parseInt(offsetParam);
+            }
+
+            ArticleSearchIndex.Result result = searchIndex.search(q, limit, offset);
+            List<Long> ids = result.hits().stream().map(ArticleSearchIndex.Hit::id).toList();
+            Map<Long, Article> byId = new HashMap<>();
+            for (Article a : dao.getByIds(ids)) {
+                byId.put(a.getId(), a);
+            }
+            ArticleList.Builder page = ArticleList.newBuilder().setTotalCount(result.total());
+            for (long id : ids) {
+                // Deleted through another instance since the last index refresh
+                Article a = byId.get(id);
+                if (a != null) page.addArticles(a);
+            }
+            return send(res, page.build());
+        });
+
         get("/articles/:id", (req, res) -> {
+            Set<String> expand = expandParam(req, Expander.STATS);
             long id = Long.parseLong(req.params(":id"));
             String cacheKey = RedisCache.articleKey(id);
+            // The cached ETag is that of the plain article, not of an expanded response
+            if (expand.isEmpty() && notModified(req, res, cacheKey, ARTICLE_CACHE_CONTROL)) return "";
             
             // Try cache first
-            byte[] cached = cache.get(cacheKey);
+            RedisCache.Tagged cached = cache.getTagged(cacheKey);
+            byte[] bytes;
+            String etag;
             if (cached != null) {
-                res.type("application/x-protobuf");
-                return cached;
+                bytes = cached.value();
+                etag = cached.etag();
+            } else {
+                // Cache miss - fetch from database
+                Article a = dao.get(id);
+                if (a == null) halt(404);
+
+                bytes = a.toByteArray();
+                etag = cache.setTagged(cacheKey, bytes);
             }
             
-            // Cache miss - fetch from database
-            Article a = dao.get(id);
+            if (!expand.isEmpty()) {
+                bytes = expanded(ArticleList.newBuilder().addArticles(Article.parseFrom(bytes)).setTotalCount(1).build(), expand);
+                etag = RedisCache.etagOf(bytes);
+            }
+            return conditional(req, res, bytes, etag, ARTICLE_CACHE_CONTROL);
+        });
+
+        // Point lookup by aid through the article_lookup vindex, cached under its own key
+        get("/articles/by-aid/:aid", (req, res) -> {
+            String aid = req.params(":aid");
+            String cacheKey = RedisCache.articleAidKey(aid);
+            if (notModified(req, res, cacheKey, ARTICLE_CACHE_CONTROL)) return "";
+
+            RedisCache.Tagged cached = cache.getTagged(cacheKey);
+            if (cached != null) {
+                return conditional(req, res, cached.value(), cached.etag(), ARTICLE_CACHE_CONTROL);
+            }
+
+            Article a = dao.getByAid(aid);
             if (a == null) halt(404);
 
             byte[] bytes = a.toByteArray();
-            cache.set(cacheKey, bytes);
-            
-            res.type("application/x-protobuf");
-            return bytes;
+            String etag = cache.setTagged(cacheKey, bytes);
+            return conditional(req, res, bytes, etag, ARTICLE_CACHE_CONTROL);
+        });
+
+        // Article text, image or video from the local media cache or WebHDFS, with Range support for seeking
+        get("/articles/:id/media/:kind", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            String kind = req.params(":kind");
+            RedisCache.Tagged cached = cache.getTagged(RedisCache.articleKey(id));
+            Article a;
+            if (cached != null) {
+                a = Article.parseFrom(cached.value());
+            } else {
+                a = dao.get(id);
+                if (a == null) halt(404);
+                cache.setTagged(RedisCache.articleKey(id), a.toByteArray());
+            }
+
+            String path = switch (kind) {
+                case "text" -> a.getTextPath();
+                case "image" -> a.getImagePath();
+                case "video" -> a.getVideoPath();
+                default -> "";
+            };
+            if (path.isEmpty()) halt(404);
+
+            String contentType = HdfsMediaProxy.contentType(kind, path);
+            if (mediaCache != null) {
+                mediaCache.serve(path, contentType, req.headers("Range"), res.raw());
+            } else {
+                media.serve(path, contentType, req.headers("Range"), res.raw());
+            }
+            return "";
+        });
+
+        // Upload an article's text, image or video: the body is streamed to HDFS as it arrives,
+        // then the path column is pointed at the new file and the replaced upload deleted
+        post("/articles/:id/media/:kind", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            String kind = req.params(":kind");
+            String field = switch (kind) {
+                case "text" -> "textPath";
+                case "image" -> "imagePath";
+                case "video" -> "videoPath";
+                default -> null;
+            };
+            if (field == null) halt(404);
+            Article existing = dao.get(id);
+            if (existing == null) halt(404);
+            if (req.raw().getContentLengthLong() > MEDIA_MAX_UPLOAD_BYTES) {
+                halt(413, "Upload exceeds " + MEDIA_MAX_UPLOAD_BYTES + " bytes");
+            }
+
+            String path = media.uploadPath(id, kind, req.contentType());
+            long bytes;
+            try {
+                bytes = media.upload(path, ProtoIO.bodyStream(req.raw()), MEDIA_MAX_UPLOAD_BYTES);
+            } catch (ProtoIO.TooLargeException e) {
+                halt(413, e.getMessage());
+                return "";
+            }
+
+            // The request deadline was for the lookup above, not for the transfer
+            Deadline.restart();
+            // The replaced path is read in the same transaction as the update, so of two racing
+            // uploads each deletes only the file it displaced and the later one's file survives
+            String previous = dao.replaceMediaPath(id, field, path);
+            if (previous == null) {
+                // Deleted while uploading
+                media.deleteQuietly(path);
+                halt(404);
+            }
+            if (!previous.isEmpty() && media.isUpload(previous, id, kind)) {
+                media.deleteQuietly(previous);
+            }
+
+            cache.delete(RedisCache.articleKey(id));
+            cache.delete(RedisCache.articleAidKey(existing.getAid()));
+            cache.deletePattern(RedisCache.ARTICLE_LIST_PREFIX + "*");
+            log.info("Article {} {} replaced by {} ({} bytes)", id, kind, path, bytes);
+            res.status(201);
+            res.header("Location", "/articles/" + id + "/media/" + kind);
+            return dao.get(id).toByteArray();
         });
 
         put("/articles/:id", (req, res) -> {
-            Article input = Article.parseFrom(req.bodyAsBytes());
+            Article input = body(req, Article.parser());
             dao.update(input);
-            // Invalidate caches on update
+            // Invalidate caches on update; the body may omit aid, which the update never changes
             cache.delete(RedisCache.articleKey(input.getId()));
+            Article current = dao.get(input.getId());
+            if (current != null) cache.delete(RedisCache.articleAidKey(current.getAid()));
+            cache.deletePattern(RedisCache.ARTICLE_LIST_PREFIX + "*");
+            return "";
+        });
+
+        // Partial update of the fields named in updateMask; ?upsert=true inserts the row if missing
+        patch("/articles/:id", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            ArticlePatch patch = body(req, ArticlePatch.parser());
+            Article input = patch.getArticle().toBuilder().setId(id).build();
+            try {
+                if ("true".equals(req.queryParams("upsert"))) {
+                    dao.upsert(input, patch.getUpdateMask());
+                } else if (!dao.patch(input, patch.getUpdateMask())) {
+                    halt(404);
+                }
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
+            cache.delete(RedisCache.articleKey(id));
+            // aid is immutable, but a patch body need not carry it
+            Article current = input.getAid().isEmpty() ? dao.get(id) : input;
+            if (current != null) cache.delete(RedisCache.articleAidKey(current.getAid()));
             cache.deletePattern(RedisCache.ARTICLE_LIST_PREFIX + "*");
             return "";
         });
 
         delete("/articles/:id", (req, res) -> {
             long id = Long.parseLong(req.params(":id"));
+            Article existing = dao.get(id);
             boolean ok = dao.delete(id);
             // Invalidate caches on delete
             cache.delete(RedisCache.articleKey(id));
+            if (existing != null) cache.delete(RedisCache.articleAidKey(existing.getAid()));
             cache.deletePattern(RedisCache.ARTICLE_LIST_PREFIX + "*");
             res.status(ok ? 200 : 404);
             return "";
         });
 
         get("/articles", (req, res) -> {
+            Set<String> expand = expandParam(req, Expander.STATS);
+            boolean columnar = columnarFormat(req, expand);
             String filter = req.queryParams("filter");
             
             // Pagination parameters
@@ -168,58 +462,121 @@ public class Server {
             String sortBy = req.queryParams("sortBy");
             String sortDir = req.queryParams("sortDir");
             
-            // Generate cache key for this query
-            String cacheKey = RedisCache.articleListKey(filter, limit, offset, sortBy, sortDir);
+            TotalCounts.Mode countMode = countMode(req);
             
-            // Try cache first
-            byte[] cached = cache.get(cacheKey);
-            if (cached != null) {
-                res.type("application/x-protobuf");
-                return cached;
-            }
+            // Generate cache key for this query; pages counted differently are cached apart
+            String cacheKey = RedisCache.articleListKey(filter, limit, offset, sortBy, sortDir) + countMode.keySuffix();
+            // Requests with a consistency token never use the shared page cache (see ConsistencyToken)
+            boolean cacheable = ConsistencyToken.cacheable();
+            if (cacheable && expand.isEmpty() && !columnar && notModified(req, res, cacheKey, ARTICLE_CACHE_CONTROL)) return "";
             
-            // Cache miss - fetch from database
-            final long totalCount = dao.count(filter);
-            final var list = dao.list(filter, limit, offset, sortBy, sortDir);
+            // Try cache first; the cached page never includes expansions, which have their own per-aid cache
+            RedisCache.Tagged cached = cacheable ? cache.getTagged(cacheKey) : null;
+            byte[] bytes;
+            String etag;
+            if (cached != null) {
+                bytes = cached.value();
+                etag = cached.etag();
+                // The count is as old as the cached page
+                if (countMode == TotalCounts.Mode.APPROX) res.header(TotalCounts.ESTIMATED_HEADER, "true");
+            } else {
+                // Cache miss - fetch from database
+                final long totalCount = totalCount(res, countMode, "article", filter, dao::count, dao::estimateCount,
+                    dao::indexedCount);
+                final var rows = dao.listEncoded(filter, limit, offset, sortBy, sortDir,
+                    countMode == TotalCounts.Mode.APPROX);
 
-            final var out = ArticleList.newBuilder()
-                .addAllArticles(list)
-                .setTotalCount(totalCount)
-                .build();
-            
-            byte[] bytes = out.toByteArray();
-            cache.set(cacheKey, bytes);
+                bytes = RowEncoder.page(ArticleList.getDescriptor(), rows, totalCount);
+                // A page read from replicas may predate a write that just invalidated the cache
+                etag = ConsistencyToken.cacheable() ? cache.setTagged(cacheKey, bytes) : RedisCache.etagOf(bytes);
+            }
             
-            res.type("application/x-protobuf");
-            return bytes;
+            if (!expand.isEmpty()) {
+                bytes = expanded(ArticleList.parseFrom(bytes), expand);
+                etag = RedisCache.etagOf(bytes);
+            } else if (columnar) {
+                bytes = Columnar.encode(ArticleList.parseFrom(bytes)).toByteArray();
+                etag = RedisCache.etagOf(bytes);
+            }
+            return conditional(req, res, bytes, etag, ARTICLE_CACHE_CONTROL);
         });
     }
 
     void addReadEndpoints() {
         ReadDao dao = new ReadDaoImpl(db);
 
+        // Optional write-behind ingest: READ_INGEST_MODE=wal acknowledges after the local WAL fsync
+        ReadIngestQueue ingest = null;
+        if ("wal".equalsIgnoreCase(System.getenv("READ_INGEST_MODE"))) {
+            try {
+                ingest = ReadIngestQueue.fromEnv(dao);
+                ingest.start();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to open read WAL", e);
+            }
+            log.info("Read ingest mode: wal");
+        }
+        final ReadIngestQueue readIngest = ingest;
+
         post("/reads", (req, res) -> {
-            Read input = Read.parseFrom(req.bodyAsBytes());
+            Read input = body(req, Read.parser());
+            if (input.getId() == 0) {
+                // Assigned before the WAL append so a replay re-inserts the same id
+                input = input.toBuilder().setId(ids.next("read")).build();
+            }
+            res.header("Location", "/reads/" + input.getId());
+            if (readIngest != null) {
+                if (!readIngest.submit(input)) {
+                    // The database is behind and the queue is full; nothing was written
+                    res.header("Retry-After", "1");
+                    halt(503, "Read ingest queue is full, retry later");
+                }
+                res.status(202);
+                return "";
+            }
             dao.create(input);
 
             return "";
         });
 
+        // Registered ahead of /reads/:id, which would otherwise match it
+        addAggregateEndpoint("/reads", dao::aggregate);
+
         get("/reads/:id", (req, res) -> {
+            Set<String> expand = expandParam(req, Expander.ARTICLE, Expander.STATS);
             long id = Long.parseLong(req.params(":id"));
             Read r = dao.get(id);
             if (r == null) halt(404);
 
-            res.type("application/x-protobuf");
-            return r.toByteArray();
+            byte[] bytes = expand.isEmpty()
+                ? r.toByteArray()
+                : expanded(ReadList.newBuilder().addReads(r).setTotalCount(1).build(), expand);
+            return conditional(req, res, bytes, RedisCache.etagOf(bytes), READ_CACHE_CONTROL);
         });
 
         put("/reads/:id", (req, res) -> {
-            Read input = Read.parseFrom(req.bodyAsBytes());
+            Read input = body(req, Read.parser());
             dao.update(input);
             return "";
         });
 
+        // Partial update of the fields named in updateMask; ?upsert=true inserts the row if missing
+        patch("/reads/:id", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            ReadPatch patch = body(req, ReadPatch.parser());
+            Read input = patch.getRead().toBuilder().setId(id).build();
+            try {
+                if ("true".equals(req.queryParams("upsert"))) {
+                    dao.upsert(input, patch.getUpdateMask());
+                } else if (!dao.patch(input, patch.getUpdateMask())) {
+                    halt(404);
+                }
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
+            return "";
+        });
+
         delete("/reads/:id", (req, res) -> {
             long id = Long.parseLong(req.params(":id"));
             boolean ok = dao.delete(id);
@@ -229,6 +586,8 @@ public class Server {
         });
 
         get("/reads", (req, res) -> {
+            Set<String> expand = expandParam(req, Expander.ARTICLE, Expander.STATS);
+            boolean columnar = columnarFormat(req, expand);
             String filter = req.queryParams("filter");
             
             // Pagination parameters
@@ -249,52 +608,207 @@ public class Server {
             String sortDir = req.queryParams("sortDir");
             
             // Get total count and list
-            final long totalCount = dao.count(filter);
-            final var list = dao.list(filter, limit, offset, sortBy, sortDir);
+            final long totalCount = totalCount(res, countMode(req), "read", filter, dao::count, dao::estimateCount);
+            if (expand.isEmpty() && !columnar) {
+                final var rows = dao.listEncoded(filter, limit, offset, sortBy, sortDir);
+                return send(res, RowEncoder.page(ReadList.getDescriptor(), rows, totalCount));
+            }
 
+            // Expansion needs the aids and columnar output the fields, so these paths build messages
+            final var list = dao.list(filter, limit, offset, sortBy, sortDir);
             final var out = ReadList.newBuilder()
                 .addAllReads(list)
                 .setTotalCount(totalCount)
                 .build();
-            res.type("application/x-protobuf");
-            return out.toByteArray();
+            if (columnar) {
+                return send(res, Columnar.encode(out));
+            }
+            return send(res, expanded(out, expand));
         });
     }
 
     void addBeReadEndpoints() {
         BeReadDao dao = new BeReadDaoImpl(db);
+        EngagementIndex engagement = EngagementIndex.fromEnv(dao, cache, UidDictionary.fromEnv(db));
 
         post("/bereads", (req, res) -> {
-            BeRead input = BeRead.parseFrom(req.bodyAsBytes());
+            BeRead input = body(req, BeRead.parser());
+            if (input.getId() == 0) {
+                input = input.toBuilder().setId(ids.next("beread")).build();
+            }
+            try {
+                engagement.validate(input);
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
             dao.create(input);
+            res.header("Location", "/bereads/" + input.getId());
+            engagement.refresh(input);
 
             return "";
         });
 
+        // Registered ahead of /bereads/:id, which would otherwise match it
+        addAggregateEndpoint("/bereads", dao::aggregate);
+
         get("/bereads/:id", (req, res) -> {
             long id = Long.parseLong(req.params(":id"));
             BeRead b = dao.get(id);
             if (b == null) halt(404);
 
-            res.type("application/x-protobuf");
-            return b.toByteArray();
+            byte[] bytes = b.toByteArray();
+            return conditional(req, res, bytes, RedisCache.etagOf(bytes), BEREAD_CACHE_CONTROL);
+        });
+
+        // Point lookup by article aid through the beread_aid_lookup vindex, cached under its own key
+        get("/bereads/by-aid/:aid", (req, res) -> {
+            String aid = req.params(":aid");
+            String cacheKey = RedisCache.bereadAidKey(aid);
+            if (notModified(req, res, cacheKey, BEREAD_CACHE_CONTROL)) return "";
+
+            RedisCache.Tagged cached = cache.getTagged(cacheKey);
+            if (cached != null) {
+                return conditional(req, res, cached.value(), cached.etag(), BEREAD_CACHE_CONTROL);
+            }
+
+            BeRead b = dao.getByAid(aid);
+            if (b == null) halt(404);
+
+            byte[] bytes = b.toByteArray();
+            String etag = cache.setTagged(cacheKey, bytes);
+            return conditional(req, res, bytes, etag, BEREAD_CACHE_CONTROL);
         });
 
         put("/bereads/:id", (req, res) -> {
-            BeRead input = BeRead.parseFrom(req.bodyAsBytes());
+            BeRead input = body(req, BeRead.parser());
+            try {
+                engagement.validate(input);
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
+            // An update of a missing id writes nothing, and must not leave bitmaps behind for it
+            BeRead existing = dao.get(input.getId());
             dao.update(input);
+            if (existing != null) {
+                engagement.refresh(input);
+                // The body may omit aid, which the update never changes
+                cache.delete(RedisCache.bereadAidKey(existing.getAid()));
+            }
+            return "";
+        });
+
+        // Partial update of the fields named in updateMask; ?upsert=true inserts the row if missing
+        patch("/bereads/:id", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            BeReadPatch patch = body(req, BeReadPatch.parser());
+            BeRead input = patch.getBeRead().toBuilder().setId(id).build();
+            boolean upsert = "true".equals(req.queryParams("upsert"));
+            try {
+                if (upsert || patch.getUpdateMask().getPathsList().stream().anyMatch(p -> p.endsWith("UidList"))) {
+                    engagement.validate(input);
+                }
+                if (upsert) {
+                    dao.upsert(input, patch.getUpdateMask());
+                } else if (!dao.patch(input, patch.getUpdateMask())) {
+                    halt(404);
+                }
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
+            BeRead current = dao.get(id);
+            if (current != null) {
+                cache.delete(RedisCache.bereadAidKey(current.getAid()));
+                // Only the uid lists feed the engagement bitmaps
+                if (patch.getUpdateMask().getPathsList().stream().anyMatch(p -> p.endsWith("UidList"))) {
+                    engagement.refresh(current);
+                }
+            }
             return "";
         });
 
         delete("/bereads/:id", (req, res) -> {
             long id = Long.parseLong(req.params(":id"));
+            BeRead existing = dao.get(id);
             boolean ok = dao.delete(id);
+            engagement.evict(id);
+            if (existing != null) cache.delete(RedisCache.bereadAidKey(existing.getAid()));
 
             res.status(ok ? 200 : 404);
             return "";
         });
 
+        // Engagement cardinalities from the compressed uid bitmaps
+        get("/bereads/:id/engagement", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            EngagementBitmaps bitmaps = engagement.get(id);
+            if (bitmaps == null) halt(404);
+
+            final var out = EngagementStats.newBuilder()
+                .setId(id)
+                .setReadCount(bitmaps.cardinality(EngagementBitmaps.Kind.READ))
+                .setCommentCount(bitmaps.cardinality(EngagementBitmaps.Kind.COMMENT))
+                .setAgreeCount(bitmaps.cardinality(EngagementBitmaps.Kind.AGREE))
+                .setShareCount(bitmaps.cardinality(EngagementBitmaps.Kind.SHARE))
+                .build();
+            return send(res, out);
+        });
+
+        // Intersection of engagement sets, e.g. ?kinds=read,share&limit=100
+        get("/bereads/:id/engagement/intersect", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            String kindsParam = req.queryParams("kinds");
+            if (kindsParam == null || kindsParam.isBlank()) halt(400, "kinds is required");
+
+            List<EngagementBitmaps.Kind> kinds = new ArrayList<>();
+            try {
+                for (String k : kindsParam.split(",")) {
+                    kinds.add(EngagementBitmaps.Kind.parse(k));
+                }
+            } catch (IllegalArgumentException e) {
+                halt(400, "Unknown engagement kind in: " + kindsParam);
+            }
+
+            // Number of user ids to return; 0 returns only the cardinality
+            int limit = 0;
+            String limitParam = req.queryParams("limit");
+            if (limitParam != null) {
+                limit = Math.min(Integer.parseInt(limitParam), 10000);
+            }
+
+            EngagementBitmaps bitmaps = engagement.get(id);
+            if (bitmaps == null) halt(404);
+
+            var both = bitmaps.intersect(kinds);
+            final var out = EngagementQuery.newBuilder()
+                .setCardinality(both.getLongCardinality())
+                .addAllUserIds(EngagementBitmaps.firstIds(both, limit))
+                .build();
+            return send(res, out);
+        });
+
+        // Membership test, e.g. /bereads/7/engagement/agree/u42
+        get("/bereads/:id/engagement/:kind/:uid", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            EngagementBitmaps.Kind kind = null;
+            try {
+                kind = EngagementBitmaps.Kind.parse(req.params(":kind"));
+            } catch (IllegalArgumentException e) {
+                halt(400, "Unknown engagement kind: " + req.params(":kind"));
+            }
+
+            EngagementBitmaps bitmaps = engagement.get(id);
+            if (bitmaps == null) halt(404);
+
+            Long code = engagement.encode(req.params(":uid"));
+            final var out = EngagementQuery.newBuilder()
+                .setMember(code != null && bitmaps.contains(kind, code))
+                .setCardinality(bitmaps.cardinality(kind))
+                .build();
+            return send(res, out);
+        });
+
         get("/bereads", (req, res) -> {
+            boolean columnar = columnarFormat(req, Set.of());
             String filter = req.queryParams("filter");
             
             // Pagination parameters
@@ -315,15 +829,16 @@ public class Server {
             String sortDir = req.queryParams("sortDir");
             
             // Get total count and list
-            final long totalCount = dao.count(filter);
-            final var list = dao.list(filter, limit, offset, sortBy, sortDir);
+            final long totalCount = totalCount(res, countMode(req), "beread", filter, dao::count, dao::estimateCount);
+            final var rows = dao.listEncoded(filter, limit, offset, sortBy, sortDir);
 
-            final var out = BeReadList.newBuilder()
-                .addAllBereads(list)
-                .setTotalCount(totalCount)
-                .build();
-            res.type("application/x-protobuf");
-            return out.toByteArray();
+            // Bereads have no in-process index, so either format lists exactly; only the count
+            // follows the count mode
+            byte[] page = RowEncoder.page(BeReadList.getDescriptor(), rows, totalCount);
+            if (columnar) {
+                return send(res, Columnar.encode(BeReadList.parseFrom(page)));
+            }
+            return send(res, page);
         });
     }
 
@@ -331,36 +846,84 @@ public class Server {
         PopularRankDao dao = new PopularRankDaoImpl(db);
 
         post("/popularranks", (req, res) -> {
-            PopularRank input = PopularRank.parseFrom(req.bodyAsBytes());
+            PopularRank input = body(req, PopularRank.parser());
+            if (input.getId() == 0) {
+                input = input.toBuilder().setId(ids.next("popularrank")).build();
+            }
             dao.create(input);
+            res.header("Location", "/popularranks/" + input.getId());
+            cache.deletePattern(RedisCache.POPULARRANK_LIST_PREFIX + "*");
 
             return "";
         });
 
         get("/popularranks/:id", (req, res) -> {
+            Set<String> expand = expandParam(req, Expander.ARTICLE, Expander.STATS);
             long id = Long.parseLong(req.params(":id"));
-            PopularRank p = dao.get(id);
-            if (p == null) halt(404);
+            String cacheKey = RedisCache.popularRankKey(id);
+            if (expand.isEmpty() && notModified(req, res, cacheKey, POPULARRANK_CACHE_CONTROL)) return "";
 
-            res.type("application/x-protobuf");
-            return p.toByteArray();
+            RedisCache.Tagged cached = cache.getTagged(cacheKey);
+            byte[] bytes;
+            String etag;
+            if (cached != null) {
+                bytes = cached.value();
+                etag = cached.etag();
+            } else {
+                PopularRank p = dao.get(id);
+                if (p == null) halt(404);
+
+                bytes = p.toByteArray();
+                etag = cache.setTagged(cacheKey, bytes);
+            }
+
+            if (!expand.isEmpty()) {
+                bytes = expanded(PopularRankList.newBuilder().addPopularRanks(PopularRank.parseFrom(bytes)).setTotalCount(1).build(), expand);
+                etag = RedisCache.etagOf(bytes);
+            }
+            return conditional(req, res, bytes, etag, POPULARRANK_CACHE_CONTROL);
         });
 
         put("/popularranks/:id", (req, res) -> {
-            PopularRank input = PopularRank.parseFrom(req.bodyAsBytes());
+            PopularRank input = body(req, PopularRank.parser());
             dao.update(input);
+            cache.delete(RedisCache.popularRankKey(input.getId()));
+            cache.deletePattern(RedisCache.POPULARRANK_LIST_PREFIX + "*");
+            return "";
+        });
+
+        // Partial update of the fields named in updateMask; ?upsert=true inserts the row if missing
+        patch("/popularranks/:id", (req, res) -> {
+            long id = Long.parseLong(req.params(":id"));
+            PopularRankPatch patch = body(req, PopularRankPatch.parser());
+            PopularRank input = patch.getPopularRank().toBuilder().setId(id).build();
+            try {
+                if ("true".equals(req.queryParams("upsert"))) {
+                    dao.upsert(input, patch.getUpdateMask());
+                } else if (!dao.patch(input, patch.getUpdateMask())) {
+                    halt(404);
+                }
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
+            cache.delete(RedisCache.popularRankKey(id));
+            cache.deletePattern(RedisCache.POPULARRANK_LIST_PREFIX + "*");
             return "";
         });
 
         delete("/popularranks/:id", (req, res) -> {
             long id = Long.parseLong(req.params(":id"));
             boolean ok = dao.delete(id);
+            cache.delete(RedisCache.popularRankKey(id));
+            cache.deletePattern(RedisCache.POPULARRANK_LIST_PREFIX + "*");
 
             res.status(ok ? 200 : 404);
             return "";
         });
 
         get("/popularranks", (req, res) -> {
+            Set<String> expand = expandParam(req, Expander.ARTICLE, Expander.STATS);
+            boolean columnar = columnarFormat(req, expand);
             String filter = req.queryParams("filter");
             
             // Pagination parameters
@@ -380,20 +943,457 @@ public class Server {
             String sortBy = req.queryParams("sortBy");
             String sortDir = req.queryParams("sortDir");
             
-            // Get total count and list
-            final long totalCount = dao.count(filter);
-            final var list = dao.list(filter, limit, offset, sortBy, sortDir);
+            TotalCounts.Mode countMode = countMode(req);
+            // Pages counted differently are cached apart
+            String cacheKey = RedisCache.popularRankListKey(filter, limit, offset, sortBy, sortDir) + countMode.keySuffix();
+            // Requests with a consistency token never use the shared page cache (see ConsistencyToken)
+            boolean cacheable = ConsistencyToken.cacheable();
+            if (cacheable && expand.isEmpty() && !columnar && notModified(req, res, cacheKey, POPULARRANK_CACHE_CONTROL)) return "";
 
-            final var out = PopularRankList.newBuilder()
-                .addAllPopularRanks(list)
-                .setTotalCount(totalCount)
+            RedisCache.Tagged cached = cacheable ? cache.getTagged(cacheKey) : null;
+            byte[] bytes;
+            String etag;
+            if (cached != null) {
+                bytes = cached.value();
+                etag = cached.etag();
+                // The count is as old as the cached page
+                if (countMode == TotalCounts.Mode.APPROX) res.header(TotalCounts.ESTIMATED_HEADER, "true");
+            } else {
+                // Get total count and list
+                final long totalCount = totalCount(res, countMode, "popular_rank", filter, dao::count, dao::estimateCount);
+                final var rows = dao.listEncoded(filter, limit, offset, sortBy, sortDir);
+
+                bytes = RowEncoder.page(PopularRankList.getDescriptor(), rows, totalCount);
+                // A page read from replicas may predate a write that just invalidated the cache
+                etag = ConsistencyToken.cacheable() ? cache.setTagged(cacheKey, bytes) : RedisCache.etagOf(bytes);
+            }
+
+            if (!expand.isEmpty()) {
+                bytes = expanded(PopularRankList.parseFrom(bytes), expand);
+                etag = RedisCache.etagOf(bytes);
+            } else if (columnar) {
+                bytes = Columnar.encode(PopularRankList.parseFrom(bytes)).toByteArray();
+                etag = RedisCache.etagOf(bytes);
+            }
+            return conditional(req, res, bytes, etag, POPULARRANK_CACHE_CONTROL);
+        });
+    }
+
+    void addIdEndpoints() {
+        // Reserve a contiguous id range for bulk loaders, e.g. POST /ids/read?count=10000
+        post("/ids/:entity", (req, res) -> {
+            String entity = req.params(":entity");
+            int count = 1000;
+            String countParam = req.queryParams("count");
+            if (countParam != null) {
+                count = Math.min(Integer.parseInt(countParam), 1000000);
+            }
+            if (count <= 0) halt(400, "count must be positive");
+
+            long start;
+            try {
+                start = ids.reserve(entity, count);
+            } catch (IllegalArgumentException e) {
+                halt(404, e.getMessage());
+                return "";
+            }
+
+            final var out = IdBlock.newBuilder()
+                .setEntity(entity)
+                .setStart(start)
+                .setCount(count)
                 .build();
             res.type("application/x-protobuf");
             return out.toByteArray();
         });
     }
 
+    /** An entity DAO's aggregate method */
+    @FunctionalInterface
+    private interface Aggregator {
+        AggregateResult aggregate(Aggregation aggregation, String rsqlFilter) throws Exception;
+    }
+
+    /**
+     * GET {collection}/aggregate?groupBy=..&metrics=..&filter=..: grouped metrics computed as
+     * per-shard partial aggregates and merged here, cached under the canonical query.
+     */
+    void addAggregateEndpoint(String collection, Aggregator aggregator) {
+        int ttl = Integer.parseInt(System.getenv().getOrDefault("AGGREGATE_CACHE_TTL", "60"));
+
+        get(collection + "/aggregate", (req, res) -> {
+            String filter = req.queryParams("filter");
+
+            // Maximum number of groups returned
+            int limit = 1000;
+            String limitParam = req.queryParams("limit");
+            if (limitParam != null) {
+                limit = Math.min(Integer.parseInt(limitParam), 10000);
+            }
+
+            Aggregation aggregation = null;
+            String cacheKey = null;
+            try {
+                aggregation = Aggregation.parse(req.queryParams("groupBy"), req.queryParams("metrics"), limit);
+                cacheKey = RedisCache.aggregateKey(collection, aggregation.canonical(), RsqlToSql.canonical(filter));
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
+
+            String cacheControl = "public, max-age=" + ttl;
+            if (notModified(req, res, cacheKey, cacheControl)) return "";
+
+            RedisCache.Tagged cached = cache.getTagged(cacheKey);
+            if (cached != null) {
+                return conditional(req, res, cached.value(), cached.etag(), cacheControl);
+            }
+
+            AggregateResult result = null;
+            try {
+                result = aggregator.aggregate(aggregation, filter);
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+            }
+
+            byte[] bytes = result.toByteArray();
+            String etag = cache.setTagged(cacheKey, bytes, ttl);
+            return conditional(req, res, bytes, etag, cacheControl);
+        });
+    }
+
+    /**
+     * Send a protobuf body with its ETag and Cache-Control, or an empty 304 if the client's
+     * If-None-Match already names that ETag.
+     */
+    private static Object conditional(Request req, Response res, byte[] bytes, String etag, String cacheControl) {
+        res.header("ETag", etag);
+        res.header("Cache-Control", cacheControl);
+        if (etagMatches(req.headers("If-None-Match"), etag)) {
+            res.status(304);
+            return "";
+        }
+        return send(res, bytes);
+    }
+
+    /**
+     * Serialize a message straight into the response; see {@link ProtoIO}.
+     * @return The empty route result, the body having been written
+     */
+    private static Object send(Response res, MessageLite message) throws IOException {
+        ProtoIO.write(res.raw(), message);
+        return "";
+    }
+
+    private static Object send(Response res, byte[] bytes) throws IOException {
+        ProtoIO.write(res.raw(), bytes);
+        return "";
+    }
+
+    /**
+     * Parse the request body from the input stream, halting with 413 if it is declared larger
+     * than allowed and 400 if it is malformed.
+     */
+    private static <T extends MessageLite> T body(Request req, Parser<T> parser) throws IOException {
+        try {
+            return ProtoIO.parse(req.raw(), parser);
+        } catch (ProtoIO.TooLargeException e) {
+            halt(413, e.getMessage());
+        } catch (InvalidProtocolBufferException e) {
+            halt(400, "Malformed request body: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Answer a conditional GET with 304 from the ETag cached next to {@code cacheKey}, without
+     * loading the value or touching the DB.
+     * @return true if the 304 was set up and the route should return an empty body
+     */
+    private boolean notModified(Request req, Response res, String cacheKey, String cacheControl) {
+        String ifNoneMatch = req.headers("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String etag = cache.getEtag(cacheKey);
+        if (etag == null || !etagMatches(ifNoneMatch, etag)) {
+            return false;
+        }
+        res.header("ETag", etag);
+        res.header("Cache-Control", cacheControl);
+        res.status(304);
+        return true;
+    }
+
+    /**
+     * If-None-Match uses weak comparison: a W/ prefix is ignored and "*" matches anything.
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String c = candidate.trim();
+            if (c.startsWith("W/")) {
+                c = c.substring(2);
+            }
+            if (c.equals("*") || c.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The ?count= mode of a list request, halting with 400 for an unknown one.
+     */
+    private static TotalCounts.Mode countMode(Request req) {
+        try {
+            return TotalCounts.Mode.parse(req.queryParams("count"));
+        } catch (IllegalArgumentException e) {
+            halt(400, e.getMessage());
+            return TotalCounts.Mode.EXACT;
+        }
+    }
+
+    /**
+     * totalCount for a list page in the requested mode (see {@link TotalCounts}), setting
+     * X-Total-Count-Estimated when it is not a fresh exact count.
+     * @return The count, or 0 for count=none, which leaves totalCount out of the page
+     */
+    private long totalCount(Response res, TotalCounts.Mode mode, String table, String filter,
+                            TotalCounts.Exact exact, TotalCounts.Statistics statistics) throws Exception {
+        return totalCount(res, mode, table, filter, exact, statistics, null);
+    }
+
+    /**
+     * The same, for entities whose in-process indexes can count some filters on their own.
+     */
+    private long totalCount(Response res, TotalCounts.Mode mode, String table, String filter,
+                            TotalCounts.Exact exact, TotalCounts.Statistics statistics,
+                            TotalCounts.Indexed indexed) throws Exception {
+        if (mode == TotalCounts.Mode.NONE) {
+            return 0;
+        }
+        TotalCounts.Count count = counts.count(mode, table, filter, exact, statistics, indexed);
+        if (count.estimated()) {
+            res.header(TotalCounts.ESTIMATED_HEADER, "true");
+        }
+        return count.value();
+    }
+
+    /**
+     * The ?expand= relations requested, halting with 400 if the route does not support one.
+     */
+    private static Set<String> expandParam(Request req, String... allowed) {
+        try {
+            return Expander.parse(req.queryParams("expand"), allowed);
+        } catch (IllegalArgumentException e) {
+            halt(400, e.getMessage());
+            return Set.of();
+        }
+    }
+
+    /**
+     * Whether ?format=columnar asks for the page as a {@link helvetia.ColumnarPage}, halting with
+     * 400 for an unknown format or one combined with ?expand=.
+     */
+    private static boolean columnarFormat(Request req, Set<String> expand) {
+        String format = req.queryParams("format");
+        if (format == null || format.equals("rows")) {
+            return false;
+        }
+        if (!format.equals("columnar")) {
+            halt(400, "Unknown format '" + format + "', expected rows or columnar");
+        }
+        if (!expand.isEmpty()) {
+            halt(400, "expand is not supported with format=columnar");
+        }
+        return true;
+    }
+
+    /**
+     * A page plus its expansions. Single-record GETs with ?expand= answer with a one-element
+     * page too, so the expansions have somewhere to go.
+     */
+    private byte[] expanded(ReadList page, Set<String> expand) throws Exception {
+        return ExpandedReadList.newBuilder()
+            .addAllReads(page.getReadsList())
+            .setTotalCount(page.getTotalCount())
+            .setExpansions(expander.expand(expand, page.getReadsList().stream().map(Read::getAid).toList()))
+            .build()
+            .toByteArray();
+    }
+
+    private byte[] expanded(PopularRankList page, Set<String> expand) throws Exception {
+        List<String> aids = new ArrayList<>();
+        for (PopularRank p : page.getPopularRanksList()) {
+            aids.addAll(p.getArticleAidListList());
+        }
+        return ExpandedPopularRankList.newBuilder()
+            .addAllPopularRanks(page.getPopularRanksList())
+            .setTotalCount(page.getTotalCount())
+            .setExpansions(expander.expand(expand, aids))
+            .build()
+            .toByteArray();
+    }
+
+    private byte[] expanded(ArticleList page, Set<String> expand) throws Exception {
+        return ExpandedArticleList.newBuilder()
+            .addAllArticles(page.getArticlesList())
+            .setTotalCount(page.getTotalCount())
+            .setExpansions(expander.expand(expand, page.getArticlesList().stream().map(Article::getAid).toList()))
+            .build()
+            .toByteArray();
+    }
+
+    /**
+     * Bind each request's read-your-writes token and hand one back on successful writes.
+     */
+    void addConsistencyFilters() {
+        before((req, res) -> ConsistencyToken.set(req.headers(ConsistencyToken.HEADER)));
+
+        after((req, res) -> {
+            // 202 (write-behind ingest) is not applied anywhere yet, so it gets no token
+            if (!"GET".equals(req.requestMethod()) && res.status() < 300 && res.status() != 202) {
+                res.header(ConsistencyToken.HEADER, Long.toString(ConsistencyToken.issue()));
+            }
+        });
+
+        afterAfter((req, res) -> ConsistencyToken.clear());
+    }
+
+    /**
+     * Shed load per route once its adaptive concurrency limit is reached: excess requests get an
+     * immediate 503 with Retry-After instead of queueing for a DB connection.
+     */
+    void addConcurrencyLimits() {
+        String retryAfter = Integer.toString(limits.retryAfterSeconds());
+
+        before((req, res) -> {
+            ConcurrencyLimiter limiter = limits.forRequest(req.requestMethod(), req.pathInfo());
+            if (limiter == null) {
+                return;
+            }
+            if (!limiter.tryAcquire()) {
+                Metrics.counter("helvetia_requests_shed_total", "Requests rejected by the concurrency limit",
+                    "route", limits.bucket(req.requestMethod(), req.pathInfo())).inc();
+                res.header("Retry-After", retryAfter);
+                halt(503, "Overloaded, retry later");
+            }
+            req.attribute("limiter", limiter);
+            req.attribute("limiterStart", System.nanoTime());
+        });
+
+        // afterAfter also runs for halted and failed requests, so every admitted request is released
+        afterAfter((req, res) -> {
+            ConcurrencyLimiter limiter = req.attribute("limiter");
+            if (limiter != null) {
+                long start = req.attribute("limiterStart");
+                limiter.release(System.nanoTime() - start);
+            }
+            limits.completed(req.requestMethod(), req.pathInfo(), res.status());
+        });
+
+        // Filters on an index that is still loading (=match=, =contains=) are retried like shed requests
+        exception(IndexLoadingException.class, (e, req, res) -> {
+            res.status(503);
+            res.header("Retry-After", retryAfter);
+            res.body(e.getMessage());
+        });
+    }
+
+    /**
+     * Give each request a deadline (per-route default, lowered by the client's header) that bounds
+     * its DB and Redis work, and cancel its queries if it expires or the client goes away.
+     */
+    void addDeadlines() {
+        RequestDeadlines deadlines = RequestDeadlines.fromEnv();
+
+        before((req, res) -> {
+            long timeout;
+            try {
+                timeout = deadlines.timeoutMillis(req.requestMethod(), req.pathInfo(), req.headers(Deadline.HEADER));
+            } catch (IllegalArgumentException e) {
+                halt(400, e.getMessage());
+                return;
+            }
+            Deadline.start(timeout, clientGone(req.raw()));
+        });
+
+        // Queries stopped by the deadline surface as SQL errors; report them as timeouts
+        exception(SQLException.class, (e, req, res) -> {
+            Deadline deadline = Deadline.current();
+            if (deadline != null && deadline.expired()) {
+                res.status(504);
+                res.body("Request deadline exceeded");
+            } else {
+                log.error("Request {} {} failed", req.requestMethod(), req.pathInfo(), e);
+                res.status(500);
+                res.body("Internal Server Error");
+            }
+        });
+
+        afterAfter((req, res) -> Deadline.end());
+    }
+
+    /**
+     * Record the bytes each request allocates on its Jetty thread, per route, as
+     * helvetia_request_allocated_bytes. Work handed to other threads (shard scatters, expansions,
+     * hedged reads) is not counted. Disabled with REQUEST_ALLOCATION_METRICS=false or on JVMs
+     * without per-thread allocation counters.
+     */
+    void addAllocationMetrics() {
+        if (!Boolean.parseBoolean(System.getenv().getOrDefault("REQUEST_ALLOCATION_METRICS", "true"))
+            || !(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)
+            || !threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        before((req, res) -> req.attribute("allocStart", threads.getCurrentThreadAllocatedBytes()));
+
+        afterAfter((req, res) -> {
+            Long start = req.attribute("allocStart");
+            if (start != null) {
+                Metrics.distribution("helvetia_request_allocated_bytes", "Bytes allocated by the request thread",
+                    "route", limits.bucket(req.requestMethod(), req.pathInfo()))
+                    .record(threads.getCurrentThreadAllocatedBytes() - start);
+            }
+        });
+    }
+
+    /**
+     * The local media cache, or null if it is disabled or its directory is unusable, in which
+     * case media is streamed from HDFS on every request.
+     */
+    private static MediaDiskCache mediaCacheFromEnv(HdfsMediaProxy media) {
+        try {
+            return MediaDiskCache.fromEnv(media);
+        } catch (IOException e) {
+            log.warn("Media disk cache disabled", e);
+            return null;
+        }
+    }
+
+    /**
+     * Whether Jetty has seen the client's connection close. Jetty only notices while it is
+     * reading or writing, so this catches resets and idle timeouts, not every silent disconnect;
+     * the deadline bounds the rest.
+     */
+    private static BooleanSupplier clientGone(HttpServletRequest raw) {
+        org.eclipse.jetty.server.Request base = org.eclipse.jetty.server.Request.getBaseRequest(raw);
+        if (base == null || base.getHttpChannel() == null) {
+            return () -> false;
+        }
+        return () -> !base.getHttpChannel().getEndPoint().isOpen();
+    }
+
     public void run() {
+        // First, so its before filter sees the allocations of all the others
+        addAllocationMetrics();
+        addConcurrencyLimits();
+        addDeadlines();
+        addConsistencyFilters();
+        addIdEndpoints();
         addUserEndpoints();
         addArticleEndpoints();
         addReadEndpoints();
@@ -433,7 +1433,7 @@ public class Server {
         cfg.setJdbcUrl(dbUrl);
         cfg.setUsername(dbUser);
         cfg.setPassword(dbPass);
-        DB db = new DB(cfg, "user_keyspace");
+        DB db = DB.fromEnv(cfg, "user_keyspace");
 
         Server server = new Server(db);
         ipAddress(bindAddr);
@@ -441,6 +1441,12 @@ public class Server {
 
         get("/hello", (req, res) -> "Hello from SparkJava!");
 
+        // Prometheus scrape endpoint
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.scrape();
+        });
+
         server.run();
     }
 }
\ No newline at end of file
@@ -0,0 +1,130 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Key ranges of one keyspace's shards, as reported by vtgate's SHOW VITESS_SHARDS.
+ *
+ * The map is reloaded when it is older than the refresh interval or after {@link #invalidate()},
+ * which callers use when a shard-targeted query fails (e.g. the shard was retired by a reshard).
+ */
+public class ShardMap {
+    private static final Logger log = LogManager.getLogger(ShardMap.class);
+
+    /** A shard and its key range [start, end); empty bounds are unbounded */
+    record Shard(String name, byte[] start, byte[] end) {
+        boolean contains(byte[] ksid) {
+            return (start.length == 0 || Arrays.compareUnsigned(ksid, start) >= 0)
+                && (end.length == 0 || Arrays.compareUnsigned(ksid, end) < 0);
+        }
+    }
+
+    private final DB db;
+    private final String keyspace;
+    private final long refreshNanos;
+
+    private volatile List<Shard> shards = List.of();
+    private volatile long loadedAt;
+
+    public ShardMap(DB db, String keyspace, long refreshMillis) {
+        this.db = db;
+        this.keyspace = keyspace;
+        this.refreshNanos = refreshMillis * 1_000_000L;
+    }
+
+    /**
+     * @return The only shard whose range contains the keyspace id, or null if none does or
+     * several do (overlapping source and target shards while a reshard is in flight)
+     */
+    public String shardFor(byte[] ksid) throws Exception {
+        String found = null;
+        for (Shard s : current()) {
+            if (s.contains(ksid)) {
+                if (found != null) {
+                    return null;
+                }
+                found = s.name();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return Shard names ordered by key range if they partition the whole keyspace exactly,
+     * or null if ranges overlap or leave gaps (a reshard in flight), so callers can fall back
+     * to vtgate routing rather than read a row twice or miss it
+     */
+    public List<String> partition() throws Exception {
+        List<Shard> sorted = new ArrayList<>(current());
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.start(), b.start()));
+        if (sorted.isEmpty() || sorted.get(0).start().length != 0) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            Shard s = sorted.get(i);
+            boolean last = i == sorted.size() - 1;
+            if (last ? s.end().length != 0 : !Arrays.equals(s.end(), sorted.get(i + 1).start())) {
+                return null;
+            }
+            names.add(s.name());
+        }
+        return names;
+    }
+
+    /**
+     * Force a reload on the next lookup.
+     */
+    public void invalidate() {
+        loadedAt = 0;
+    }
+
+    private List<Shard> current() throws Exception {
+        if (loadedAt == 0 || System.nanoTime() - loadedAt > refreshNanos) {
+            synchronized (this) {
+                if (loadedAt == 0 || System.nanoTime() - loadedAt > refreshNanos) {
+                    shards = load();
+                    loadedAt = System.nanoTime();
+                }
+            }
+        }
+        return shards;
+    }
+
+    private List<Shard> load() throws Exception {
+        List<Shard> out = new ArrayList<>();
+        String prefix = keyspace + "/";
+        try (Connection conn = db.getConnection();
+             Statement st = conn.createStatement()) {
+            ResultSet rs = st.executeQuery("SHOW VITESS_SHARDS");
+            while (rs.next()) {
+                // Rows look like "read_keyspace/-80"
+                String row = rs.getString(1);
+                if (row.startsWith(prefix)) {
+                    out.add(parse(row.substring(prefix.length())));
+                }
+            }
+        }
+        log.debug("Loaded {} shards for {}", out.size(), keyspace);
+        return out;
+    }
+
+    static Shard parse(String name) {
+        // "0" or "-" is the single unsharded range; otherwise "<start>-<end>" in hex
+        int dash = name.indexOf('-');
+        if (dash < 0) {
+            return new Shard(name, new byte[0], new byte[0]);
+        }
+        HexFormat hex = HexFormat.of();
+        return new Shard(name, hex.parseHex(name.substring(0, dash)), hex.parseHex(name.substring(dash + 1)));
+    }
+}
@@ -0,0 +1,126 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shard-targeted point reads by id for one keyspace.
+ *
+ * A query by id alone makes vtgate consult the *_lookup table before it can route to the owning
+ * shard. This keeps a bounded in-process id -> keyspace id cache, filled on create and after the
+ * first routed read, and sends cached ids straight to the shard whose range contains the
+ * keyspace id (see {@link ShardMap}).
+ *
+ * Keyspace ids never change for a row, only the shard layout does. Any targeted read that fails
+ * or finds no row drops the cache entry and, on error, the shard map; the caller then falls back
+ * to the normal vtgate-routed query, so a row moved by a reshard is found again.
+ */
+public class ShardRouter {
+    private static final Logger log = LogManager.getLogger(ShardRouter.class);
+
+    /** Maps the current row of a targeted query */
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    private final DB db;
+    private final String keyspace;
+    private final ShardMap shardMap;
+    private final Map<Long, byte[]> keyspaceIds;
+
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+    private final Metrics.Counter fallbacks;
+
+    public ShardRouter(DB db, String keyspace, int maxEntries, long shardMapRefreshMillis) {
+        this.db = db;
+        this.keyspace = keyspace;
+        this.shardMap = new ShardMap(db, keyspace, shardMapRefreshMillis);
+        this.keyspaceIds = Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        });
+
+        this.hits = Metrics.counter("helvetia_shard_target_hits_total",
+            "Point reads sent straight to the owning shard", "keyspace", keyspace);
+        this.misses = Metrics.counter("helvetia_shard_target_misses_total",
+            "Point reads with no cached keyspace id", "keyspace", keyspace);
+        this.fallbacks = Metrics.counter("helvetia_shard_target_fallbacks_total",
+            "Targeted point reads that failed or found no row and fell back to vtgate routing",
+            "keyspace", keyspace);
+    }
+
+    /**
+     * Create a router sized from KSID_CACHE_SIZE, reloading shard ranges every SHARD_MAP_REFRESH_MS.
+     */
+    public static ShardRouter fromEnv(DB db, String keyspace) {
+        int size = Integer.parseInt(System.getenv().getOrDefault("KSID_CACHE_SIZE", "100000"));
+        long refreshMs = Long.parseLong(System.getenv().getOrDefault("SHARD_MAP_REFRESH_MS", "30000"));
+        return new ShardRouter(db, keyspace, size, refreshMs);
+    }
+
+    /**
+     * Record a row's keyspace id. A null keyspace id (unmapped region) is ignored.
+     */
+    public void remember(long id, byte[] ksid) {
+        if (ksid != null) {
+            keyspaceIds.put(id, ksid);
+        }
+    }
+
+    public void forget(long id) {
+        keyspaceIds.remove(id);
+    }
+
+    /**
+     * Run a single-row query by id on the owning shard.
+     * @param sql Query with one "?" for the id; table names must not be keyspace-qualified
+     * @return The mapped row, or null if the id is not cached or the targeted read did not find
+     * it; the caller must then run its vtgate-routed query
+     */
+    public <T> T get(long id, String sql, RowMapper<T> mapper) {
+        byte[] ksid = keyspaceIds.get(id);
+        if (ksid == null) {
+            misses.inc();
+            return null;
+        }
+
+        try {
+            String shard = shardMap.shardFor(ksid);
+            if (shard == null) {
+                // Mid-reshard overlap or unknown range; let vtgate decide
+                fallbacks.inc();
+                return null;
+            }
+
+            try (Connection conn = db.getConnection(keyspace + ":" + shard);
+                 PreparedStatement st = conn.prepareStatement(sql)) {
+                st.setLong(1, id);
+                ResultSet rs = st.executeQuery();
+                if (rs.next()) {
+                    hits.inc();
+                    return mapper.map(rs);
+                }
+            }
+            // Deleted, or not on this shard any more
+            forget(id);
+        } catch (Exception e) {
+            log.debug("Targeted read of {} id {} failed, falling back: {}", keyspace, id, e.getMessage());
+            forget(id);
+            shardMap.invalidate();
+        }
+        fallbacks.inc();
+        return null;
+    }
+}
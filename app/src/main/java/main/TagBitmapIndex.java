@@ -0,0 +1,283 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory secondary index over JSON array columns (articleTags, authors, preferTags): for
+ * each field and value, a roaring bitmap of the ids of the rows whose array holds that value.
+ * It answers the RSQL =contains= (all values) and =containsAny= (any value) operators, which
+ * the database could only answer with a scan of every shard.
+ *
+ * Values match exactly, as JSON_CONTAINS would. The owning DAO updates the index after its own
+ * writes; {@link #start} loads it at startup and reloads it every TAG_INDEX_REFRESH_MS to pick
+ * up writes made through other instances, replaying writes that race a reload onto the new copy.
+ */
+public class TagBitmapIndex {
+    private static final Logger log = LogManager.getLogger(TagBitmapIndex.class);
+
+    private static final int REBUILD_PAGE = 5000;
+    private static final long RETRY_MILLIS = 30_000;
+
+    /** The indexed values of one row, by field */
+    public record Entry(long id, Map<String, List<String>> values) {}
+
+    /** Reads rows for a rebuild, in id order */
+    public interface Source {
+        /**
+         * @param afterId Exclusive lower bound, Long.MIN_VALUE for the first page
+         * @return Up to limit rows with ids above afterId, ascending
+         */
+        List<Entry> page(long afterId, int limit) throws Exception;
+    }
+
+    private final String name;
+    private final List<String> fields;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Generation live;
+    // Writes made while a rebuild is loading (an Entry to put or a Long id to remove); null otherwise
+    private List<Object> pending;
+    private volatile boolean ready;
+
+    /**
+     * @param name Index name for logs and metrics, e.g. "article"
+     * @param fields The indexed columns
+     */
+    public TagBitmapIndex(String name, List<String> fields) {
+        this.name = name;
+        this.fields = List.copyOf(fields);
+        this.live = new Generation(this.fields);
+        Metrics.gauge("helvetia_tag_index_rows", "Rows with at least one value in the tag bitmap index",
+            () -> live.rows.size(), "index", name);
+        Metrics.gauge("helvetia_tag_index_values", "Distinct values in the tag bitmap index",
+            () -> live.bitmaps.values().stream().mapToInt(Map::size).sum(), "index", name);
+    }
+
+    /**
+     * Create an index unless TAG_INDEX=false.
+     * @return The index, or null if disabled
+     */
+    public static TagBitmapIndex fromEnv(String name, List<String> fields) {
+        if (!Boolean.parseBoolean(System.getenv().getOrDefault("TAG_INDEX", "true"))) {
+            return null;
+        }
+        return new TagBitmapIndex(name, fields);
+    }
+
+    public List<String> fields() {
+        return fields;
+    }
+
+    /**
+     * Load the index in the background, then reload it every TAG_INDEX_REFRESH_MS (default
+     * 5 minutes; 0 loads once).
+     */
+    public void start(Source source) {
+        long refreshMillis = Long.parseLong(System.getenv().getOrDefault("TAG_INDEX_REFRESH_MS", "300000"));
+        ScheduledExecutorService loader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-tag-index");
+            t.setDaemon(true);
+            return t;
+        });
+        loader.scheduleWithFixedDelay(() -> {
+            if (ready && refreshMillis <= 0) return;
+            try {
+                long start = System.nanoTime();
+                rebuild(source);
+                log.info("Tag index {} loaded {} rows in {} ms", name, live.rows.size(),
+                    (System.nanoTime() - start) / 1_000_000);
+            } catch (Exception e) {
+                log.error("Tag index {} rebuild failed", name, e);
+            }
+        }, 0, refreshMillis > 0 ? refreshMillis : RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Whether the first load has completed; until then lookups would be incomplete
+     */
+    public boolean ready() {
+        return ready;
+    }
+
+    /**
+     * Replace the contents with every row the source returns.
+     */
+    public void rebuild(Source source) throws Exception {
+        lock.writeLock().lock();
+        try {
+            if (pending != null) {
+                throw new IllegalStateException("Rebuild already running");
+            }
+            pending = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            Generation fresh = new Generation(fields);
+            long after = Long.MIN_VALUE;
+            List<Entry> page;
+            do {
+                page = source.page(after, REBUILD_PAGE);
+                for (Entry e : page) {
+                    fresh.put(e);
+                    after = e.id();
+                }
+            } while (page.size() == REBUILD_PAGE);
+            fresh.optimize();
+
+            lock.writeLock().lock();
+            try {
+                for (Object write : pending) {
+                    if (write instanceof Entry e) {
+                        fresh.put(e);
+                    } else {
+                        fresh.remove((Long) write);
+                    }
+                }
+                live = fresh;
+                ready = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            lock.writeLock().lock();
+            pending = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index a row's values, replacing whatever was indexed for its id.
+     */
+    public void put(long id, Map<String, List<String>> values) {
+        Entry e = new Entry(id, values);
+        lock.writeLock().lock();
+        try {
+            live.put(e);
+            if (pending != null) pending.add(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            live.remove(id);
+            if (pending != null) pending.add(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Resolver for the RSQL =contains= (all = true) or =containsAny= operator.
+     */
+    public RsqlToSql.IdResolver resolver(boolean all) {
+        return (field, args) -> {
+            if (!ready) {
+                throw new IndexLoadingException("Tag index " + name + " is still loading");
+            }
+            return lookup(field, args, all);
+        };
+    }
+
+    /**
+     * Ids of the rows whose field holds every value (all = true) or at least one of them.
+     * @return A new bitmap the caller may modify
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public Roaring64NavigableMap lookup(String field, Collection<String> values, boolean all) {
+        if (!fields.contains(field)) {
+            throw new IllegalArgumentException("Field " + field + " has no tag index");
+        }
+        Roaring64NavigableMap out = new Roaring64NavigableMap();
+        lock.readLock().lock();
+        try {
+            Map<String, Roaring64NavigableMap> byValue = live.bitmaps.get(field);
+            boolean first = true;
+            for (String value : values) {
+                Roaring64NavigableMap ids = byValue.get(value);
+                if (ids == null) {
+                    if (all) return new Roaring64NavigableMap();
+                    continue;
+                }
+                if (first || !all) {
+                    out.or(ids);
+                } else {
+                    out.and(ids);
+                }
+                first = false;
+                if (all && out.isEmpty()) break;
+            }
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * One loaded copy of the index. The per-row values are kept so that an update or delete
+     * can clear the row's bits without scanning every bitmap.
+     */
+    private static final class Generation {
+        final List<String> fields;
+        final Map<String, Map<String, Roaring64NavigableMap>> bitmaps = new HashMap<>();
+        final Map<Long, Map<String, List<String>>> rows = new HashMap<>();
+
+        Generation(List<String> fields) {
+            this.fields = fields;
+            for (String f : fields) {
+                bitmaps.put(f, new HashMap<>());
+            }
+        }
+
+        void put(Entry e) {
+            remove(e.id());
+            Map<String, List<String>> kept = new HashMap<>();
+            for (String f : fields) {
+                List<String> values = e.values().getOrDefault(f, List.of());
+                if (values.isEmpty()) continue;
+                kept.put(f, List.copyOf(values));
+                Map<String, Roaring64NavigableMap> byValue = bitmaps.get(f);
+                for (String v : values) {
+                    byValue.computeIfAbsent(v, k -> new Roaring64NavigableMap()).addLong(e.id());
+                }
+            }
+            if (!kept.isEmpty()) {
+                rows.put(e.id(), kept);
+            }
+        }
+
+        void remove(long id) {
+            Map<String, List<String>> old = rows.remove(id);
+            if (old == null) return;
+            for (Map.Entry<String, List<String>> f : old.entrySet()) {
+                Map<String, Roaring64NavigableMap> byValue = bitmaps.get(f.getKey());
+                for (String v : f.getValue()) {
+                    Roaring64NavigableMap ids = byValue.get(v);
+                    if (ids == null) continue;
+                    ids.removeLong(id);
+                    if (ids.isEmpty()) byValue.remove(v);
+                }
+            }
+        }
+
+        void optimize() {
+            for (Map<String, Roaring64NavigableMap> byValue : bitmaps.values()) {
+                byValue.values().forEach(Roaring64NavigableMap::runOptimize);
+            }
+        }
+    }
+}
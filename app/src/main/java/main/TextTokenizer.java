@@ -0,0 +1,118 @@
+package helvetia.main;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits article text into search terms for {@link ArticleSearchIndex}.
+ *
+ * Text is NFKC-normalised (folding full-width Latin and digits) and lowercased. Latin-script
+ * words are split on anything that is not a letter or digit, stop words are dropped and plurals
+ * reduced to their singular. Chinese, Japanese and Korean have no word separators, so each run
+ * of those characters becomes overlapping bigrams (ABCD gives AB, BC, CD), and a single
+ * isolated character is kept as is. Queries and documents go through the same path, so
+ * a two-character query matches wherever it appears inside a longer run.
+ */
+public final class TextTokenizer {
+    private static final Set<String> STOP_WORDS = Set.of(
+        "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "is", "it",
+        "of", "on", "or", "that", "the", "this", "to", "was", "were", "with");
+
+    private TextTokenizer() {}
+
+    /**
+     * @return The terms of the text in order, with repeats; empty for null or blank text
+     */
+    public static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null || text.isBlank()) {
+            return out;
+        }
+        String s = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder word = new StringBuilder();
+        // Previous character of the current CJK run, and the run's length
+        int cjkPrev = -1;
+        int cjkRun = 0;
+        for (int i = 0; i < s.length(); ) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            if (isCjk(cp)) {
+                addWord(word, out);
+                if (cjkPrev >= 0) {
+                    out.add(new StringBuilder(4).appendCodePoint(cjkPrev).appendCodePoint(cp).toString());
+                }
+                cjkPrev = cp;
+                cjkRun++;
+                continue;
+            }
+            endCjkRun(cjkPrev, cjkRun, out);
+            cjkPrev = -1;
+            cjkRun = 0;
+            if (Character.isLetterOrDigit(cp)) {
+                word.appendCodePoint(cp);
+            } else {
+                addWord(word, out);
+            }
+        }
+        endCjkRun(cjkPrev, cjkRun, out);
+        addWord(word, out);
+        return out;
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+            || script == Character.UnicodeScript.HIRAGANA
+            || script == Character.UnicodeScript.KATAKANA
+            || script == Character.UnicodeScript.HANGUL;
+    }
+
+    private static void endCjkRun(int last, int length, List<String> out) {
+        if (length == 1) {
+            out.add(new String(Character.toChars(last)));
+        }
+    }
+
+    private static void addWord(StringBuilder word, List<String> out) {
+        if (word.length() == 0) {
+            return;
+        }
+        String w = word.toString();
+        word.setLength(0);
+        if (!STOP_WORDS.contains(w)) {
+            out.add(stem(w));
+        }
+    }
+
+    /**
+     * Plural-only English stemming ("queries" to "query", "tags" to "tag", "glass" unchanged).
+     * Anything heavier conflates too much for short titles.
+     */
+    static String stem(String w) {
+        int n = w.length();
+        if (n < 3 || w.charAt(n - 1) != 's') {
+            return w;
+        }
+        switch (w.charAt(n - 2)) {
+            case 'u', 's' -> {
+                return w;
+            }
+            case 'e' -> {
+                if (n > 3 && w.charAt(n - 3) == 'i' && w.charAt(n - 4) != 'a' && w.charAt(n - 4) != 'e') {
+                    return w.substring(0, n - 3) + "y";
+                }
+                char c = w.charAt(n - 3);
+                if (c == 'i' || c == 'a' || c == 'o' || c == 'e') {
+                    return w;
+                }
+                return w.substring(0, n - 1);
+            }
+            default -> {
+                return w.substring(0, n - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package helvetia.main;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * totalCount for list pages, chosen per request with ?count=:
+ *
+ * - exact (default): COUNT(*) with the filter on every request
+ * - approx: unfiltered lists take the row count from table statistics; filtered ones are counted
+ *   from an in-process index when it answers the whole filter, else exactly, and the result is
+ *   reused for COUNT_CACHE_TTL_MS per table and canonical filter
+ * - none: no count at all, for clients that page with "next" links only
+ *
+ * Small tables are counted exactly even in approx mode: the count is cheap there and InnoDB
+ * statistics for them are at their least accurate.
+ */
+public class TotalCounts {
+    /** Response header set to "true" when the page's totalCount is an estimate or reused */
+    public static final String ESTIMATED_HEADER = "X-Total-Count-Estimated";
+
+    public enum Mode {
+        EXACT, APPROX, NONE;
+
+        /**
+         * Parse the ?count= parameter.
+         * @param value The parameter, or null for the default (exact)
+         * @throws IllegalArgumentException if the value is not a known mode
+         */
+        public static Mode parse(String value) {
+            if (value == null || value.isEmpty()) {
+                return EXACT;
+            }
+            for (Mode m : values()) {
+                if (m.name().equalsIgnoreCase(value)) return m;
+            }
+            throw new IllegalArgumentException("count must be exact, approx or none");
+        }
+
+        /**
+         * Suffix for list cache keys, so pages counted differently are cached apart;
+         * empty for exact, which keeps the existing keys.
+         */
+        public String keySuffix() {
+            return this == EXACT ? "" : ":c:" + name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * @param estimated Whether the value came from statistics or the cache rather than a count
+     * made for this request
+     */
+    public record Count(long value, boolean estimated) {}
+
+    @FunctionalInterface
+    public interface Exact {
+        long count(String filter) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Statistics {
+        /** @return The estimated table size, or null if unavailable */
+        Long estimate() throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Indexed {
+        /** @return The count from in-process indexes alone, or null if the filter needs the database */
+        Long count(String filter) throws Exception;
+    }
+
+    private record Cached(long value, long expiresAt) {}
+
+    private final long ttlMillis;
+    private final long exactBelow;
+    private final Map<String, Cached> cache;
+
+    private final Metrics.Counter hits = Metrics.counter("helvetia_count_cache_requests_total",
+        "Approximate totalCount lookups", "result", "hit");
+    private final Metrics.Counter misses = Metrics.counter("helvetia_count_cache_requests_total",
+        "Approximate totalCount lookups", "result", "miss");
+
+    /**
+     * @param ttlMillis How long an approximate count is reused
+     * @param maxEntries Most (table, filter) counts kept
+     * @param exactBelow Unfiltered tables whose statistics report fewer rows are counted exactly
+     */
+    public TotalCounts(long ttlMillis, int maxEntries, long exactBelow) {
+        this.ttlMillis = ttlMillis;
+        this.exactBelow = exactBelow;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Create from COUNT_CACHE_TTL_MS (default 10 s), COUNT_CACHE_SIZE (10000 entries) and
+     * COUNT_APPROX_EXACT_BELOW (10000 rows).
+     */
+    public static TotalCounts fromEnv() {
+        long ttl = Long.parseLong(System.getenv().getOrDefault("COUNT_CACHE_TTL_MS", "10000"));
+        int size = Integer.parseInt(System.getenv().getOrDefault("COUNT_CACHE_SIZE", "10000"));
+        long exactBelow = Long.parseLong(System.getenv().getOrDefault("COUNT_APPROX_EXACT_BELOW", "10000"));
+        return new TotalCounts(ttl, size, exactBelow);
+    }
+
+    /**
+     * Count a list for an exact or approx request; count=none never gets here.
+     * @param table Cache namespace, e.g. the table name
+     * @throws IllegalArgumentException if the filter is invalid
+     */
+    public Count count(Mode mode, String table, String filter, Exact exact, Statistics statistics) throws Exception {
+        return count(mode, table, filter, exact, statistics, null);
+    }
+
+    /**
+     * Like {@link #count(Mode, String, String, Exact, Statistics)}, trying {@code indexed} (may be
+     * null) for filtered approx counts before counting in the database.
+     */
+    public Count count(Mode mode, String table, String filter, Exact exact, Statistics statistics,
+                       Indexed indexed) throws Exception {
+        if (mode != Mode.APPROX) {
+            return new Count(exact.count(filter), false);
+        }
+        String canonical = RsqlToSql.canonical(filter);
+        String key = table + "|" + canonical;
+        long now = System.currentTimeMillis();
+        Cached cached = cache.get(key);
+        if (cached != null && cached.expiresAt() > now) {
+            hits.inc();
+            return new Count(cached.value(), true);
+        }
+        misses.inc();
+
+        Count fresh = null;
+        if (canonical.isEmpty()) {
+            Long estimate = statistics.estimate();
+            if (estimate != null && estimate >= exactBelow) {
+                fresh = new Count(estimate, true);
+            }
+        } else if (indexed != null) {
+            Long fromIndex = indexed.count(filter);
+            if (fromIndex != null) {
+                fresh = new Count(fromIndex, true);
+            }
+        }
+        if (fresh == null) {
+            fresh = new Count(exact.count(filter), false);
+        }
+        cache.put(key, new Cached(fresh.value(), now + ttlMillis));
+        return fresh;
+    }
+}
@@ -0,0 +1,100 @@
+package helvetia.main;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary encoding of user uids to integer codes for the engagement bitmaps.
+ *
+ * The user table is already the dictionary: every uid has a unique numeric id, and
+ * "WHERE uid IN (...)" is routed by vtgate through the user_lookup vindex instead of
+ * scattering. Resolved codes are kept in a bounded in-process LRU.
+ */
+public class UidDictionary {
+    private static final Logger log = LogManager.getLogger(UidDictionary.class);
+
+    // Max uids per IN (...) batch sent to vtgate
+    private static final int BATCH_SIZE = 500;
+
+    private final DB db;
+    private final Map<String, Long> codes;
+
+    public UidDictionary(DB db, int maxEntries) {
+        this.db = db;
+        this.codes = Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Create a dictionary sized from the ENGAGEMENT_DICT_SIZE environment variable.
+     */
+    public static UidDictionary fromEnv(DB db) {
+        int size = Integer.parseInt(System.getenv().getOrDefault("ENGAGEMENT_DICT_SIZE", "1000000"));
+        return new UidDictionary(db, size);
+    }
+
+    /**
+     * Resolve a single uid.
+     * @return The user's id, or null if no user has this uid
+     */
+    public Long encode(String uid) throws Exception {
+        return encodeAll(List.of(uid)).get(uid);
+    }
+
+    /**
+     * Resolve a batch of uids. Uids without a user row are absent from the result.
+     */
+    public Map<String, Long> encodeAll(Collection<String> uids) throws Exception {
+        Map<String, Long> out = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String uid : new LinkedHashSet<>(uids)) {
+            Long code = codes.get(uid);
+            if (code != null) {
+                out.put(uid, code);
+            } else {
+                missing.add(uid);
+            }
+        }
+
+        for (int from = 0; from < missing.size(); from += BATCH_SIZE) {
+            List<String> batch = missing.subList(from, Math.min(from + BATCH_SIZE, missing.size()));
+            String sql = "SELECT uid, id FROM user_keyspace.user WHERE uid IN ("
+                + String.join(", ", Collections.nCopies(batch.size(), "?")) + ")";
+
+            try (Connection conn = db.getConnection();
+                 PreparedStatement st = conn.prepareStatement(sql)) {
+                for (int i = 0; i < batch.size(); i++) {
+                    st.setString(i + 1, batch.get(i));
+                }
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    String uid = rs.getString(1);
+                    long code = rs.getLong(2);
+                    codes.put(uid, code);
+                    out.put(uid, code);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            log.debug("Resolved {} uids from the user table ({} requested)", missing.size(), uids.size());
+        }
+        return out;
+    }
+}
@@ -1,5 +1,7 @@
 package helvetia.main;
 
+import com.google.protobuf.FieldMask;
+import helvetia.AggregateResult;
 import helvetia.User;
 import java.util.List;
 
@@ -26,10 +28,67 @@ public interface UserDao {
      */
     List<User> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
     
+    /**
+     * The same page as {@link #list(String, int, int, String, String)}, each row encoded
+     * straight from the result set in User wire format
+     */
+    List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception;
+    
+    /**
+     * The same page as {@link #listEncoded(String, int, int, String, String)}, except that with
+     * {@code fromIndex} a filter the tag index answers on its own is paged in memory, so only
+     * the page's ids reach the database. Such a page may lag writes made on other instances by up
+     * to TAG_INDEX_REFRESH_MS; only for callers that accept estimates (?count=approx).
+     */
+    List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                             boolean fromIndex) throws Exception;
+    
     /**
      * Count total users matching filter
      * @param rsqlFilter RSQL filter string, or null for no filtering
      */
     long count(String rsqlFilter) throws Exception;
+    
+    /**
+     * Estimate the total number of users, unfiltered, from table statistics
+     * @return The estimate, or null if statistics are unavailable
+     */
+    Long estimateCount() throws Exception;
+    
+    /**
+     * Count users matching the filter from the tag index alone, with the same lag as
+     * {@link #listEncoded(String, int, int, String, String, boolean)}
+     * @return The count, or null if the filter needs the database
+     */
+    Long indexedCount(String rsqlFilter) throws Exception;
+    
+    /**
+     * Update only the columns named in the field mask
+     * @param u User carrying the id and the new values
+     * @param mask Proto field names to write; id and the shard key cannot be patched
+     * @return true if a row with this id exists
+     */
+    boolean patch(User u, FieldMask mask) throws Exception;
+    
+    /**
+     * Insert the user, or update only the masked columns if it already exists
+     * (INSERT ... ON DUPLICATE KEY UPDATE)
+     * @param u Complete User, including id and shard key
+     * @param mask Proto field names to overwrite when the row already exists
+     */
+    void upsert(User u, FieldMask mask) throws Exception;
+    
+    /**
+     * Point lookup by uid, routed through the uid lookup vindex
+     * @return The matching User, or null if none
+     */
+    User getByUid(String uid) throws Exception;
+    
+    /**
+     * Grouped aggregates over users matching the filter, computed per shard and merged
+     * @param aggregation Group columns and metrics
+     * @param rsqlFilter RSQL filter string, or null for no filtering
+     * @throws IllegalArgumentException for columns that are not allowed
+     */
+    AggregateResult aggregate(Aggregation aggregation, String rsqlFilter) throws Exception;
 }
-
@@ -1,27 +1,75 @@
 package helvetia.main;
 
 import helvetia.User;
+import helvetia.AggregateResult;
+import com.google.protobuf.FieldMask;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class UserDaoImpl implements UserDao {
 
     private final DB db;
+    private final ScatterGather scatter;
+    private final RowEncoder encoder = new RowEncoder(User.getDescriptor());
     private final Gson gson = new Gson();
     
-    // RSQL to SQL converter with allowed columns
+    // RSQL to SQL converter with allowed columns; =contains=/=containsAny= use the tag index
     private final RsqlToSql rsqlConverter = new RsqlToSql(Set.of(
         "id", "timestamp", "uid", "name", "gender", "email", "phone",
         "dept", "grade", "language", "region", "role", "obtainedCredits"
     ));
 
+    // Filterable columns that aggregate metrics (sum, avg, min, max) may use
+    private static final Set<String> NUMERIC_COLUMNS = Set.of(
+        "id", "timestamp", "obtainedCredits"
+    );
+
+    // Bitmap index over preferTags, or null if disabled
+    private final TagBitmapIndex tagIndex;
+    public static final List<String> TAG_FIELDS = List.of("preferTags");
+
+    // Columns PATCH may write, keyed by proto field name.
+    // Id and region form the primary vindex (region_vdx) and cannot be patched.
+    private final Map<String, FieldMaskUpdate.Binder<User>> mutableColumns = Map.of(
+        "name", (st, i, u) -> st.setString(i, u.getName()),
+        "gender", (st, i, u) -> st.setString(i, emptyToNull(u.getGender())),
+        "email", (st, i, u) -> st.setString(i, emptyToNull(u.getEmail())),
+        "phone", (st, i, u) -> st.setString(i, emptyToNull(u.getPhone())),
+        "dept", (st, i, u) -> st.setString(i, emptyToNull(u.getDept())),
+        "grade", (st, i, u) -> st.setString(i, emptyToNull(u.getGrade())),
+        "language", (st, i, u) -> st.setString(i, emptyToNull(u.getLanguage())),
+        "role", (st, i, u) -> st.setString(i, emptyToNull(u.getRole())),
+        "preferTags", (st, i, u) -> st.setString(i, gson.toJson(u.getPreferTagsList())),
+        "obtainedCredits", (st, i, u) -> st.setInt(i, u.getObtainedCredits())
+    );
+
+    private static final String INSERT_SQL = """
+        INSERT INTO user_keyspace.user (id, timestamp, uid, name, gender, email, phone, dept, grade, language, region, role, preferTags, obtainedCredits)
+        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+        """;
+
+    // Per-shard list query for the ScatterGather coordinator (no keyspace qualifier)
+    private static final String SHARD_LIST_SQL = "SELECT id, timestamp, uid, name, gender, email, phone, dept, grade, language, region, role, preferTags, obtainedCredits FROM user";
+
     public UserDaoImpl(DB db) {
+        this(db, null);
+    }
+
+    public UserDaoImpl(DB db, TagBitmapIndex tagIndex) {
         this.db = db;
+        this.scatter = ScatterGather.fromEnv(db, "user_keyspace");
+        this.tagIndex = tagIndex;
+        if (tagIndex != null) {
+            rsqlConverter.withIndex(RsqlToSql.CONTAINS, tagIndex.resolver(true));
+            rsqlConverter.withIndex(RsqlToSql.CONTAINS_ANY, tagIndex.resolver(false));
+        }
     }
 
     User fromResultSet(ResultSet rs) throws SQLException {
@@ -62,27 +110,33 @@ public class UserDaoImpl implements UserDao {
     public void create(User u) throws Exception {
         // Vitess sharded tables require the sharding key (id, region) to be provided explicitly
         // AUTO_INCREMENT cannot be used for the primary vindex column in sharded keyspaces
-        String sql = """
-            INSERT INTO user_keyspace.user (id, timestamp, uid, name, gender, email, phone, dept, grade, language, region, role, preferTags, obtainedCredits)
-            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-        """;
-
         try (Connection conn = db.getConnection();
-            PreparedStatement st = conn.prepareStatement(sql)) {
+            PreparedStatement st = conn.prepareStatement(INSERT_SQL)) {
             st.setLong(1, u.getId());
             fillStatement(u, st, 2);  // start from parameter index 2
             st.executeUpdate();
         }
+        if (tagIndex != null) tagIndex.put(u.getId(), Map.of("preferTags", u.getPreferTagsList()));
     }
 
     @Override
     public User get(long id) throws Exception {
         String sql = "SELECT id, timestamp, uid, name, gender, email, phone, dept, grade, language, region, role, preferTags, obtainedCredits FROM user_keyspace.user WHERE id = ?";
 
+        // Idempotent point read: hedge to another vtgate if this one is slow
+        return db.hedgedReads().query("user_get", "user_keyspace", sql, id,
+            rs -> rs.next() ? fromResultSet(rs) : null);
+    }
+
+    @Override
+    public User getByUid(String uid) throws Exception {
+        // The user_lookup vindex on uid routes this to a single shard
+        String sql = "SELECT id, timestamp, uid, name, gender, email, phone, dept, grade, language, region, role, preferTags, obtainedCredits FROM user_keyspace.user WHERE uid = ?";
+
         try (Connection conn = db.getConnection();
              PreparedStatement st = conn.prepareStatement(sql)) {
 
-            st.setLong(1, id);
+            st.setString(1, uid);
             ResultSet rs = st.executeQuery();
             if (!rs.next()) return null;
 
@@ -112,7 +166,9 @@ public class UserDaoImpl implements UserDao {
             st.setString(9, gson.toJson(u.getPreferTagsList()));
             st.setInt(10, u.getObtainedCredits());
             st.setLong(11, u.getId());
-            st.executeUpdate();
+            if (st.executeUpdate() > 0 && tagIndex != null) {
+                tagIndex.put(u.getId(), Map.of("preferTags", u.getPreferTagsList()));
+            }
         }
     }
 
@@ -138,6 +194,46 @@ public class UserDaoImpl implements UserDao {
         return (s == null || s.isEmpty()) ? null : s;
     }
 
+    @Override
+    public boolean patch(User u, FieldMask mask) throws Exception {
+        FieldMaskUpdate<User> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = "UPDATE user_keyspace.user SET " + update.setClause() + " WHERE id = ?";
+
+        try (Connection conn = db.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            int i = update.bind(st, 1, u);
+            st.setLong(i, u.getId());
+            if (st.executeUpdate() == 0) {
+                return false;
+            }
+        }
+        if (mask.getPathsList().contains("preferTags") && tagIndex != null) {
+            tagIndex.put(u.getId(), Map.of("preferTags", u.getPreferTagsList()));
+        }
+        return true;
+    }
+
+    @Override
+    public void upsert(User u, FieldMask mask) throws Exception {
+        FieldMaskUpdate<User> update = FieldMaskUpdate.of(mask, mutableColumns);
+        String sql = INSERT_SQL + " ON DUPLICATE KEY UPDATE " + update.setClause();
+
+        try (Connection conn = db.getConnection();
+            PreparedStatement st = conn.prepareStatement(sql)) {
+            st.setLong(1, u.getId());
+            fillStatement(u, st, 2);
+            update.bind(st, 15, u);
+            st.executeUpdate();
+        }
+        if (tagIndex != null) {
+            // Inserted with every field or updated through the mask; re-read rather than guess
+            User current = get(u.getId());
+            if (current != null) {
+                tagIndex.put(current.getId(), Map.of("preferTags", current.getPreferTagsList()));
+            }
+        }
+    }
+
     @Override
     public boolean delete(long id) throws Exception {
         String sql = "DELETE FROM user_keyspace.user WHERE id = ?";
@@ -146,7 +242,33 @@ public class UserDaoImpl implements UserDao {
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             st.setLong(1, id);
-            return st.executeUpdate() > 0;
+            boolean deleted = st.executeUpdate() > 0;
+            if (deleted && tagIndex != null) {
+                tagIndex.remove(id);
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * Tag index rows for a rebuild: only preferTags, in id order.
+     */
+    public List<TagBitmapIndex.Entry> tagEntries(long afterId, int limit) throws Exception {
+        String sql = "SELECT id, preferTags FROM user_keyspace.user WHERE id > ? ORDER BY id LIMIT ?";
+
+        try (Connection conn = db.getReadConnection("user_keyspace");
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            st.setLong(1, afterId);
+            st.setInt(2, limit);
+            ResultSet rs = st.executeQuery();
+            List<TagBitmapIndex.Entry> out = new ArrayList<>();
+            while (rs.next()) {
+                String json = rs.getString("preferTags");
+                List<String> tags = json == null || json.isEmpty()
+                    ? List.of() : gson.fromJson(json, new TypeToken<List<String>>(){}.getType());
+                out.add(new TagBitmapIndex.Entry(rs.getLong("id"), Map.of("preferTags", tags)));
+            }
+            return out;
         }
     }
 
@@ -162,11 +284,45 @@ public class UserDaoImpl implements UserDao {
     
     @Override
     public List<User> list(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, false, this::fromResultSet);
+    }
+
+    @Override
+    public List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, false, encoder::encode);
+    }
+
+    @Override
+    public List<byte[]> listEncoded(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                                    boolean fromIndex) throws Exception {
+        return listPage(rsqlFilter, limit, offset, sortBy, sortDir, fromIndex, encoder::encode);
+    }
+
+    private <T> List<T> listPage(String rsqlFilter, int limit, int offset, String sortBy, String sortDir,
+                                 boolean fromIndex, ShardRouter.RowMapper<T> mapper) throws Exception {
         // Base query
         String baseSql = "SELECT id, timestamp, uid, name, gender, email, phone, dept, grade, language, region, role, preferTags, obtainedCredits FROM user_keyspace.user";
         
-        // Convert RSQL to SQL WHERE clause
-        RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+        // Convert RSQL to SQL WHERE clause. Index comparisons become an id IN list, so the page and
+        // its count come from the same rows; with fromIndex a filter the tag index answers on its
+        // own is paged here in id order, so only that page's ids are sent to the database.
+        RsqlToSql.SqlResult filterResult;
+        Roaring64NavigableMap ids = fromIndex && idOrdered(sortBy) ? rsqlConverter.resolveIds(rsqlFilter) : null;
+        if (ids != null) {
+            boolean descending = "id".equals(sortBy) && "desc".equalsIgnoreCase(sortDir);
+            filterResult = RsqlToSql.idPage(ids, limit, offset, descending);
+            offset = 0;
+        } else {
+            filterResult = rsqlConverter.convert(rsqlFilter);
+        }
+
+        if (scatter.enabled()) {
+            List<T> page = scatter.list(SHARD_LIST_SQL, filterResult, sortBy, sortDir,
+                rsqlConverter.getAllowedColumns(), limit, offset, mapper);
+            if (page != null) {
+                return page;
+            }
+        }
         
         // Validate and build ORDER BY clause
         String orderBy = buildOrderByClause(sortBy, sortDir);
@@ -174,7 +330,7 @@ public class UserDaoImpl implements UserDao {
         // Build final query with offset-based pagination
         String sql = baseSql + " WHERE " + filterResult.whereClause + orderBy + " LIMIT ? OFFSET ?";
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("user_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
@@ -197,16 +353,41 @@ public class UserDaoImpl implements UserDao {
             st.setInt(paramIndex, offset);
 
             ResultSet rs = st.executeQuery();
-            List<User> out = new ArrayList<>();
+            List<T> out = new ArrayList<>();
 
             while (rs.next()) {
-                out.add(fromResultSet(rs));
+                out.add(mapper.map(rs));
             }
 
             return out;
         }
     }
     
+    @Override
+    public AggregateResult aggregate(Aggregation aggregation, String rsqlFilter) throws Exception {
+        aggregation.validate(rsqlConverter.getAllowedColumns(), NUMERIC_COLUMNS);
+        RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        List<Object[]> rows = scatter.gather(aggregation.partialSql("user", filterResult.whereClause),
+            filterResult, "aggregate");
+        if (rows == null) {
+            // Shards overlap mid-reshard: let vtgate group across them instead
+            String sql = aggregation.partialSql("user_keyspace.user", filterResult.whereClause);
+            try (Connection conn = db.getReadConnection("user_keyspace");
+                 PreparedStatement st = conn.prepareStatement(sql)) {
+                ScatterGather.bind(st, 1, filterResult.parameters);
+                rows = ScatterGather.rows(st.executeQuery());
+            }
+        }
+        return aggregation.merge(rows);
+    }
+    
+    /** Whether buildOrderByClause sorts by id */
+    private boolean idOrdered(String sortBy) {
+        return sortBy == null || sortBy.isEmpty() || sortBy.equals("id")
+            || !rsqlConverter.getAllowedColumns().contains(sortBy);
+    }
+    
     /**
      * Build a safe ORDER BY clause, validating the column name against allowed columns
      */
@@ -230,16 +411,34 @@ public class UserDaoImpl implements UserDao {
         return " ORDER BY " + sortBy + " " + direction;
     }
     
+    @Override
+    public Long estimateCount() throws Exception {
+        return scatter.estimateRows("user");
+    }
+    
+    @Override
+    public Long indexedCount(String rsqlFilter) throws Exception {
+        Roaring64NavigableMap ids = rsqlConverter.resolveIds(rsqlFilter);
+        return ids == null ? null : ids.getLongCardinality();
+    }
+    
     @Override
     public long count(String rsqlFilter) throws Exception {
         String baseSql = "SELECT COUNT(*) FROM user_keyspace.user";
         
         // Convert RSQL to SQL WHERE clause
         RsqlToSql.SqlResult filterResult = rsqlConverter.convert(rsqlFilter);
+
+        if (scatter.enabled()) {
+            Long total = scatter.count("SELECT COUNT(*) FROM user", filterResult);
+            if (total != null) {
+                return total;
+            }
+        }
         
         String sql = baseSql + " WHERE " + filterResult.whereClause;
 
-        try (Connection conn = db.getConnection();
+        try (Connection conn = db.getReadConnection("user_keyspace");
              PreparedStatement st = conn.prepareStatement(sql)) {
 
             // Set parameters from RSQL conversion
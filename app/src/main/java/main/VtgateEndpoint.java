@@ -0,0 +1,155 @@
+package helvetia.main;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.pool.HikariPool;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One vtgate the app can connect to: its own connection pool, its datacenter/cell tags,
+ * and the health, latency and load state {@link DB} uses to choose between gateways.
+ *
+ * Latency is an EWMA over health probes and over how long each borrowed connection is held,
+ * so a gateway whose queries slow down is noticed by the requests themselves.
+ */
+public class VtgateEndpoint {
+    // Weight of the newest sample in the latency EWMA
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final String name;
+    private final String dc;
+    private final String cell;
+    private final HikariDataSource ds;
+
+    private volatile boolean healthy = true;
+    private volatile double ewmaNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Metrics.Counter failures;
+
+    /**
+     * @param name Endpoint label, e.g. "dc1/cell2"
+     * @param base Pool settings shared by all endpoints (credentials, sizes, timeouts)
+     * @param jdbcUrl This vtgate's JDBC URL
+     */
+    public VtgateEndpoint(String name, String dc, String cell, HikariConfig base, String jdbcUrl) {
+        this.name = name;
+        this.dc = dc;
+        this.cell = cell;
+
+        HikariConfig cfg = new HikariConfig();
+        base.copyStateTo(cfg);
+        cfg.setJdbcUrl(jdbcUrl);
+        cfg.setPoolName("vtgate-" + name);
+        this.ds = new HikariDataSource(cfg);
+
+        this.failures = Metrics.counter("helvetia_vtgate_failures_total",
+            "Failed connection attempts and health probes", "endpoint", name);
+        Metrics.gauge("helvetia_vtgate_healthy", "1 if the vtgate passed its last health probe",
+            () -> healthy ? 1 : 0, "endpoint", name);
+        Metrics.gauge("helvetia_vtgate_latency_seconds", "EWMA of probe round trips and connection hold times",
+            () -> ewmaNanos / 1e9, "endpoint", name);
+        Metrics.gauge("helvetia_vtgate_in_flight", "Connections currently borrowed from this vtgate",
+            inFlight::get, "endpoint", name);
+    }
+
+    public String name() { return name; }
+    public String dc() { return dc; }
+    public String cell() { return cell; }
+    public boolean healthy() { return healthy; }
+    public double latencyNanos() { return ewmaNanos; }
+    public int inFlight() { return inFlight.get(); }
+
+    /**
+     * Borrow a pooled connection. A failure marks the endpoint unhealthy until the next
+     * successful probe or borrow. Within a request the wait is bounded by its {@link Deadline};
+     * running out of request time is not held against the endpoint.
+     */
+    Connection borrow() throws SQLException {
+        Deadline deadline = Deadline.current();
+        long timeout = ds.getConnectionTimeout();
+        if (deadline != null) {
+            deadline.check();
+            timeout = Math.min(timeout, Math.max(1, deadline.remainingMillis()));
+        }
+        try {
+            Connection conn = timeout < ds.getConnectionTimeout()
+                ? ((HikariPool) ds.getHikariPoolMXBean()).getConnection(timeout)
+                : ds.getConnection();
+            healthy = true;
+            return track(conn);
+        } catch (SQLException e) {
+            if (deadline == null || !deadline.expired()) {
+                markDown();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Run a trivial query and fold its round-trip time into the latency estimate.
+     */
+    void probe() {
+        long start = System.nanoTime();
+        try (Connection conn = ds.getConnection();
+             Statement st = conn.createStatement()) {
+            st.execute("SELECT 1");
+            recordLatency(System.nanoTime() - start);
+            healthy = true;
+        } catch (SQLException e) {
+            markDown();
+        }
+    }
+
+    /**
+     * Count the connection as in flight until it is closed, then fold its hold time into the EWMA.
+     * Statements created under a request {@link Deadline} get its timeout, hints and cancellation.
+     */
+    private Connection track(Connection conn) {
+        inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+                if ("close".equals(method.getName()) && released.compareAndSet(false, true)) {
+                    inFlight.decrementAndGet();
+                    recordLatency(System.nanoTime() - start);
+                }
+                Deadline deadline = Deadline.current();
+                boolean statement = deadline != null && method.getName().matches("prepareStatement|prepareCall|createStatement");
+                if (statement && args != null && args[0] instanceof String sql) {
+                    args[0] = deadline.hint(sql);
+                }
+                try {
+                    Object result = method.invoke(conn, args);
+                    if (statement) {
+                        deadline.apply((Statement) result);
+                    }
+                    return result;
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+
+    void recordLatency(long nanos) {
+        double current = ewmaNanos;
+        ewmaNanos = current == 0 ? nanos : current + EWMA_ALPHA * (nanos - current);
+    }
+
+    private void markDown() {
+        healthy = false;
+        failures.inc();
+    }
+
+    void close() {
+        ds.close();
+    }
+}
@@ -0,0 +1,76 @@
+package helvetia.main;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one pool for work a request fans out: scatter-gather shard queries, ?expand= batch fetches
+ * and hedged reads. Sharing it bounds the threads the process spends on fan-out however the load
+ * is split between them.
+ *
+ * When every worker is busy and the queue is full, submitted work runs on the submitting request
+ * thread instead, which slows that request rather than growing the pool. Work that is only worth
+ * doing at once (a hedge) uses {@link #tryExecute} and is dropped instead.
+ */
+public final class Workers {
+    private static ThreadPoolExecutor shared;
+
+    private Workers() {}
+
+    /** Marks work that is skipped rather than run by the caller when the pool is saturated */
+    private record Optional(Runnable task) implements Runnable {
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * The process's pool, created on first use with WORKER_THREADS threads (default 32) and a
+     * queue of WORKER_QUEUE tasks (default 256).
+     */
+    public static synchronized ThreadPoolExecutor shared() {
+        if (shared == null) {
+            var env = System.getenv();
+            int threads = Integer.parseInt(env.getOrDefault("WORKER_THREADS", "32"));
+            int queue = Integer.parseInt(env.getOrDefault("WORKER_QUEUE", "256"));
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    Thread t = new Thread(r, "worker");
+                    t.setDaemon(true);
+                    return t;
+                }, (r, p) -> {
+                    if (r instanceof Optional || p.isShutdown()) {
+                        throw new RejectedExecutionException("Worker pool saturated");
+                    }
+                    Metrics.counter("helvetia_worker_caller_runs_total",
+                        "Fan-out tasks run on the request thread because the worker pool was full").inc();
+                    r.run();
+                });
+            pool.allowCoreThreadTimeOut(true);
+            Metrics.gauge("helvetia_worker_active", "Worker threads running a task", pool::getActiveCount);
+            Metrics.gauge("helvetia_worker_queued", "Tasks waiting for a worker", () -> pool.getQueue().size());
+            shared = pool;
+        }
+        return shared;
+    }
+
+    /**
+     * Run the task on the pool if it can start without waiting behind queued work.
+     * @return false if the task was not run
+     */
+    public static boolean tryExecute(Runnable task) {
+        ThreadPoolExecutor pool = shared();
+        if (!pool.getQueue().isEmpty()) {
+            return false;
+        }
+        try {
+            pool.execute(new Optional(task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package helvetia.main;
+
+/**
+ * XXH64, a fast non-cryptographic 64-bit hash (https://github.com/Cyan4973/xxHash), used to
+ * fingerprint serialized responses for ETags.
+ */
+public final class XxHash64 {
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private XxHash64() {}
+
+    public static long hash(byte[] data) {
+        return hash(data, 0, data.length, 0);
+    }
+
+    public static long hash(byte[] data, int off, int len, long seed) {
+        int end = off + len;
+        int p = off;
+        long h;
+
+        if (len >= 32) {
+            long v1 = seed + P1 + P2;
+            long v2 = seed + P2;
+            long v3 = seed;
+            long v4 = seed - P1;
+            int limit = end - 32;
+            do {
+                v1 = round(v1, getLong(data, p));
+                v2 = round(v2, getLong(data, p + 8));
+                v3 = round(v3, getLong(data, p + 16));
+                v4 = round(v4, getLong(data, p + 24));
+                p += 32;
+            } while (p <= limit);
+
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + P5;
+        }
+
+        h += len;
+
+        while (p + 8 <= end) {
+            h ^= round(0, getLong(data, p));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+            p += 8;
+        }
+        if (p + 4 <= end) {
+            h ^= (getInt(data, p) & 0xFFFFFFFFL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            p += 4;
+        }
+        while (p < end) {
+            h ^= (data[p] & 0xFFL) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+            p++;
+        }
+
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * P1 + P4;
+    }
+
+    // Little-endian reads, as the reference implementation specifies
+    private static long getLong(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+            | (b[i + 1] & 0xFFL) << 8
+            | (b[i + 2] & 0xFFL) << 16
+            | (b[i + 3] & 0xFFL) << 24
+            | (b[i + 4] & 0xFFL) << 32
+            | (b[i + 5] & 0xFFL) << 40
+            | (b[i + 6] & 0xFFL) << 48
+            | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xFF)
+            | (b[i + 1] & 0xFF) << 8
+            | (b[i + 2] & 0xFF) << 16
+            | (b[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,76 @@
+package helvetia;
+
+import helvetia.main.Aggregation;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Partial aggregates from several shards must merge to what one GROUP BY over all rows gives;
+ * in particular avg is derived from merged sums and counts, not averaged per shard.
+ */
+public class AggregationTest {
+
+    @Test
+    public void buildsPartialQuery() {
+        Aggregation agg = Aggregation.parse("region", "count, AVG(readTimeLength), sum(readTimeLength)", 100);
+        Assert.assertEquals(
+            "SELECT `region`, COUNT(*), SUM(`readTimeLength`), COUNT(`readTimeLength`),"
+                + " WEIGHT_STRING(`region`) AS group_weight_0 FROM `read` WHERE 1=1"
+                + " GROUP BY `region` ORDER BY `region` LIMIT 101",
+            agg.partialSql("`read`", "1=1"));
+        Assert.assertEquals("g=region:m=count,avg(readTimeLength),sum(readTimeLength):l=100", agg.canonical());
+    }
+
+    @Test
+    public void mergesShardPartials() {
+        Aggregation agg = Aggregation.parse("region", "count,avg(readTimeLength),max(readTimeLength)", 100);
+        // region, COUNT(*), SUM, COUNT(col), MAX per shard
+        List<Object[]> rows = List.of(
+            new Object[] {"Beijing", 1L, 10L, 1L, 10},
+            new Object[] {"Beijing", 3L, 30L, 3L, 20},
+            new Object[] {"HongKong", 2L, null, 0L, null});
+
+        AggregateResult result = agg.merge(rows);
+        Assert.assertEquals(2, result.getRowsCount());
+        AggregateRow beijing = result.getRows(0);
+        Assert.assertEquals(List.of("Beijing"), beijing.getKeysList());
+        Assert.assertEquals(4.0, beijing.getValues(0), 0);
+        Assert.assertEquals(10.0, beijing.getValues(1), 0);
+        Assert.assertEquals(20.0, beijing.getValues(2), 0);
+        Assert.assertTrue(Double.isNaN(result.getRows(1).getValues(1)));
+    }
+
+    @Test
+    public void mergesByCollationWeightAndTruncates() {
+        Aggregation agg = Aggregation.parse("region", "count", 2);
+        // region, COUNT(*), weight; each shard sends its first limit+1 groups
+        byte[] a = {0x1c, 0x47};
+        byte[] b = {0x1c, 0x60};
+        byte[] c = {0x1c, 0x7a};
+        List<Object[]> rows = List.of(
+            new Object[] {"beijing", 1L, a},
+            new Object[] {"Chengdu", 2L, b},
+            new Object[] {"Dalian", 1L, c},
+            new Object[] {"Beijing", 5L, a});
+
+        AggregateResult result = agg.merge(rows);
+        Assert.assertTrue(result.getTruncated());
+        Assert.assertEquals(2, result.getRowsCount());
+        Assert.assertEquals(List.of("beijing"), result.getRows(0).getKeysList());
+        Assert.assertEquals(6.0, result.getRows(0).getValues(0), 0);
+        Assert.assertEquals(List.of("Chengdu"), result.getRows(1).getKeysList());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownColumns() {
+        Aggregation.parse("password", "count", 100).validate(Set.of("region"), Set.of());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonNumericMetricColumns() {
+        Aggregation.parse("region", "max(uid)", 100).validate(Set.of("region", "uid"), Set.of("readTimeLength"));
+    }
+}
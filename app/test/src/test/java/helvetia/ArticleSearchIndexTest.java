@@ -0,0 +1,146 @@
+package helvetia;
+
+import helvetia.main.ArticleDao;
+import helvetia.main.ArticleSearchIndex;
+import helvetia.main.TextTokenizer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ArticleSearchIndexTest {
+    // "search engine" and "sharding" in Chinese
+    private static final String SEARCH_ENGINE = "\u641c\u7d22\u5f15\u64ce";
+    private static final String SHARDING = "\u5206\u7247";
+
+    private static Article article(long id, String title, String abstractText, List<String> tags, List<String> authors) {
+        return Article.newBuilder()
+            .setId(id)
+            .setTitle(title)
+            .setAbstract(abstractText)
+            .addAllArticleTags(tags)
+            .addAllAuthors(authors)
+            .build();
+    }
+
+    private static List<Long> ids(ArticleSearchIndex.Result result) {
+        return result.hits().stream().map(ArticleSearchIndex.Hit::id).toList();
+    }
+
+    @Test
+    public void tokenizesEnglishAndChinese() {
+        Assert.assertEquals(List.of("search", "engine", "query"), TextTokenizer.tokenize("The Search ENGINES, queries"));
+        Assert.assertEquals(List.of("\u641c\u7d22", "\u7d22\u5f15", "\u5f15\u64ce"), TextTokenizer.tokenize(SEARCH_ENGINE));
+        Assert.assertEquals(List.of("vitess", SHARDING, "\u7247"), TextTokenizer.tokenize("Vitess" + SHARDING + " \u7247"));
+        // Full-width Latin folds to ASCII
+        Assert.assertEquals(List.of("mysql"), TextTokenizer.tokenize("\uff2d\uff59\uff33\uff31\uff2c"));
+    }
+
+    @Test
+    public void ranksTitleMatchesFirst() {
+        ArticleSearchIndex index = new ArticleSearchIndex();
+        index.put(article(1, "Operating MySQL", "Notes on sharding with Vitess", List.of(), List.of()));
+        index.put(article(2, "Vitess sharding in practice", "", List.of(), List.of()));
+        index.put(article(3, "Unrelated", "Nothing to see", List.of("mysql"), List.of()));
+
+        ArticleSearchIndex.Result result = index.search("vitess sharding", 10, 0);
+        Assert.assertEquals(List.of(2L, 1L), ids(result));
+        Assert.assertEquals(2, result.total());
+
+        // A title match outweighs a tag match
+        Assert.assertEquals(List.of(1L, 3L), ids(index.search("mysql", 10, 0)));
+        Assert.assertEquals(List.of(3L), ids(index.search("mysql", 1, 1)));
+        Assert.assertEquals(0, index.search("the", 10, 0).total());
+    }
+
+    @Test
+    public void matchesChineseText() {
+        ArticleSearchIndex index = new ArticleSearchIndex();
+        index.put(article(1, SEARCH_ENGINE + "\u539f\u7406", "", List.of(), List.of()));
+        index.put(article(2, "Vitess", SHARDING + "\u65b9\u6848", List.of(), List.of()));
+
+        Assert.assertEquals(List.of(1L), ids(index.search("\u5f15\u64ce", 10, 0)));
+        Assert.assertEquals(List.of(2L), index.matchIds("abstract", SHARDING));
+        Assert.assertEquals(List.of(), index.matchIds("title", SHARDING));
+    }
+
+    @Test
+    public void matchRequiresEveryTermInTheField() {
+        ArticleSearchIndex index = new ArticleSearchIndex();
+        index.put(article(1, "Redis caching", "", List.of("database"), List.of("Ada Lovelace")));
+        index.put(article(2, "Redis", "caching layer", List.of(), List.of()));
+
+        Assert.assertEquals(List.of(1L), index.matchIds("title", "caching redis"));
+        Assert.assertEquals(List.of(1L, 2L), index.matchIds("text", "caching redis"));
+        Assert.assertEquals(List.of(1L), index.matchIds("authors", "lovelace"));
+        Assert.assertEquals(List.of(1L), index.matchIds("articleTags", "databases"));
+        Assert.assertEquals(List.of(), index.matchIds("title", "redis missing"));
+        try {
+            index.matchIds("category", "redis");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void followsUpdatesAndDeletes() {
+        ArticleSearchIndex index = new ArticleSearchIndex();
+        index.put(article(1, "Kafka streams", "", List.of(), List.of()));
+        index.put(article(1, "Flink streams", "", List.of(), List.of()));
+        Assert.assertEquals(List.of(), index.matchIds("title", "kafka"));
+        Assert.assertEquals(List.of(1L), index.matchIds("title", "flink"));
+
+        index.remove(1);
+        Assert.assertEquals(0, index.search("flink streams", 10, 0).total());
+    }
+
+    @Test
+    public void rebuildsFromTheDao() throws Exception {
+        List<Article> rows = new ArrayList<>();
+        for (int i = 1; i <= 2500; i++) {
+            rows.add(article(i, i % 2 == 0 ? "even article" : "odd article", "", List.of(), List.of()));
+        }
+        // Only list(filter, limit, offset, sortBy, sortDir) is used: id-ordered pages after id=gt=
+        ArticleDao dao = (ArticleDao) Proxy.newProxyInstance(ArticleDao.class.getClassLoader(),
+            new Class<?>[] {ArticleDao.class}, (p, method, args) -> {
+                long after = args[0] == null ? 0 : Long.parseLong(((String) args[0]).substring("id=gt=".length()));
+                return rows.stream().filter(a -> a.getId() > after).limit((Integer) args[1]).toList();
+            });
+
+        ArticleSearchIndex index = new ArticleSearchIndex();
+        index.put(article(9999, "stale even", "", List.of(), List.of()));
+        Assert.assertFalse(index.ready());
+        index.rebuild(dao);
+        Assert.assertTrue(index.ready());
+        Assert.assertEquals(1250, index.search("even", 10, 0).total());
+        Assert.assertEquals(2500, index.matchIds("title", "article").size());
+    }
+
+    @Test
+    public void searchesTwentyThousandArticlesWithinMillis() {
+        Random random = new Random(42);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+        }
+        ArticleSearchIndex index = new ArticleSearchIndex();
+        for (int id = 1; id <= 20_000; id++) {
+            StringBuilder title = new StringBuilder();
+            StringBuilder abstractText = new StringBuilder();
+            for (int i = 0; i < 8; i++) title.append(words[random.nextInt(200)]).append(' ');
+            for (int i = 0; i < 60; i++) abstractText.append(words[random.nextInt(words.length)]).append(' ');
+            index.put(article(id, title.toString(), abstractText.toString(), List.of(words[random.nextInt(50)]), List.of()));
+        }
+
+        int queries = 200;
+        long start = System.nanoTime();
+        for (int q = 0; q < queries; q++) {
+            index.search(words[random.nextInt(200)] + " " + words[random.nextInt(words.length)], 20, 0);
+        }
+        double avgMillis = (System.nanoTime() - start) / 1e6 / queries;
+        Assert.assertTrue("average " + avgMillis + " ms", avgMillis < 10);
+    }
+}
@@ -0,0 +1,72 @@
+package helvetia;
+
+import helvetia.main.Columnar;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A columnar page must decode back to the rows it was built from, and be markedly smaller than
+ * the row-oriented list for a typical table page. ColumnarBenchmark compares encode/decode times.
+ */
+public class ColumnarTest {
+    private static final String[] REGIONS = {"Beijing", "Hong Kong", "Shanghai", "Shenzhen", "Chengdu"};
+
+    private static ReadList reads(int n) {
+        Random random = new Random(7);
+        ReadList.Builder page = ReadList.newBuilder().setTotalCount(n * 3L);
+        long id = 1_234_567_890_123L;
+        long timestamp = 1_700_000_000_000L;
+        for (int i = 0; i < n; i++) {
+            id += 1 + random.nextInt(5);
+            timestamp += random.nextInt(60_000);
+            page.addReads(Read.newBuilder()
+                .setId(id)
+                .setTimestamp(timestamp)
+                .setUid("u" + random.nextInt(1_000_000))
+                .setAid("a" + random.nextInt(100_000))
+                .setRegion(REGIONS[random.nextInt(REGIONS.length)])
+                .setReadTimeLength(random.nextInt(3600))
+                .setAgreeOrNot(random.nextBoolean())
+                .setCommentOrNot(random.nextInt(10) == 0)
+                .setShareOrNot(random.nextInt(20) == 0));
+        }
+        return page.build();
+    }
+
+    @Test
+    public void roundTripsRows() {
+        ReadList page = reads(200);
+        ColumnarPage columnar = Columnar.encode(page);
+        Assert.assertEquals(200, columnar.getRowCount());
+        Assert.assertEquals(600, columnar.getTotalCount());
+        Assert.assertEquals(page.getReadsList(), Columnar.decode(columnar, Read.getDefaultInstance()));
+
+        Column region = columnar.getColumnsList().stream().filter(c -> c.getName().equals("region")).findFirst().get();
+        Assert.assertEquals(REGIONS.length, region.getDictionaryCount());
+        Assert.assertEquals(0, region.getStringsCount());
+    }
+
+    @Test
+    public void roundTripsRepeatedStrings() {
+        BeReadList page = BeReadList.newBuilder()
+            .addBereads(BeRead.newBuilder().setId(1).setAid("a1").addReadUidList("u1").addReadUidList("u2").setReadNum(2))
+            .addBereads(BeRead.newBuilder().setId(2).setAid("a2"))
+            .addBereads(BeRead.newBuilder().setId(3).setAid("a3").addReadUidList("u2").addReadUidList("").setCategory("tech"))
+            .setTotalCount(3)
+            .build();
+        ColumnarPage columnar = Columnar.encode(page);
+        Assert.assertEquals(page.getBereadsList(), Columnar.decode(columnar, BeRead.getDefaultInstance()));
+        Assert.assertEquals(List.of(), Columnar.decode(Columnar.encode(BeReadList.getDefaultInstance()), BeRead.getDefaultInstance()));
+    }
+
+    @Test
+    public void columnarIsSmallerForTenThousandRows() {
+        ReadList page = reads(10_000);
+        int rows = page.getSerializedSize();
+        int columns = Columnar.encode(page).getSerializedSize();
+        Assert.assertTrue("columnar " + columns + " vs rows " + rows, columns < rows * 0.75);
+    }
+}
@@ -0,0 +1,49 @@
+package helvetia;
+
+import helvetia.main.ConcurrencyLimiter;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The limit must refuse work beyond it, shrink when latency rises over the baseline and
+ * recover once latency returns to normal.
+ */
+public class ConcurrencyLimiterTest {
+
+    private static void saturate(ConcurrencyLimiter l, int requests, long rttNanos) {
+        for (int i = 0; i < requests; i++) {
+            int n = l.limit();
+            for (int j = 0; j < n; j++) {
+                l.tryAcquire();
+            }
+            for (int j = 0; j < n; j++) {
+                l.release(rttNanos);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsAboveLimit() {
+        ConcurrencyLimiter l = new ConcurrencyLimiter(2, 1, 10);
+        Assert.assertTrue(l.tryAcquire());
+        Assert.assertTrue(l.tryAcquire());
+        Assert.assertFalse(l.tryAcquire());
+        l.release(1_000_000);
+        Assert.assertTrue(l.tryAcquire());
+    }
+
+    @Test
+    public void shrinksWhenLatencyRisesAndRecovers() {
+        ConcurrencyLimiter l = new ConcurrencyLimiter(20, 4, 200);
+        saturate(l, 50, 5_000_000);
+        int steady = l.limit();
+        Assert.assertTrue(steady >= 20);
+
+        saturate(l, 50, 100_000_000);
+        int slowed = l.limit();
+        Assert.assertTrue("limit should drop when latency spikes: " + slowed, slowed < steady);
+
+        saturate(l, 200, 5_000_000);
+        Assert.assertTrue("limit should recover: " + l.limit(), l.limit() > slowed);
+    }
+}
@@ -0,0 +1,47 @@
+package helvetia;
+
+import helvetia.main.EngagementBitmaps;
+import helvetia.main.EngagementBitmaps.Kind;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class EngagementBitmapsTest {
+
+    @Test
+    public void serializeRoundTrip() throws Exception {
+        EngagementBitmaps in = new EngagementBitmaps();
+        for (long id = 0; id < 100_000; id++) {
+            in.add(Kind.READ, id);
+            if (id % 3 == 0) in.add(Kind.SHARE, id);
+        }
+        in.add(Kind.AGREE, 5_000_000_000L);  // ids beyond 32 bits
+
+        EngagementBitmaps out = EngagementBitmaps.deserialize(in.serialize());
+        Assert.assertEquals(100_000, out.cardinality(Kind.READ));
+        Assert.assertEquals(0, out.cardinality(Kind.COMMENT));
+        Assert.assertTrue(out.contains(Kind.AGREE, 5_000_000_000L));
+        Assert.assertTrue(out.contains(Kind.SHARE, 99_999));
+        Assert.assertFalse(out.contains(Kind.SHARE, 99_998));
+    }
+
+    @Test
+    public void intersectKinds() {
+        EngagementBitmaps b = new EngagementBitmaps();
+        b.add(Kind.READ, 1);
+        b.add(Kind.READ, 2);
+        b.add(Kind.READ, 3);
+        b.add(Kind.SHARE, 2);
+        b.add(Kind.SHARE, 3);
+        b.add(Kind.SHARE, 4);
+
+        var both = b.intersect(List.of(Kind.READ, Kind.SHARE));
+        Assert.assertEquals(2, both.getLongCardinality());
+        Assert.assertEquals(List.of(2L, 3L), EngagementBitmaps.firstIds(both, 10));
+        Assert.assertEquals(List.of(2L), EngagementBitmaps.firstIds(both, 1));
+
+        // The source sets are left untouched
+        Assert.assertEquals(3, b.cardinality(Kind.READ));
+    }
+}
@@ -0,0 +1,58 @@
+package helvetia;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records what a handler writes to an HttpServletResponse.
+ */
+public class FakeResponse {
+    public int status = 200;
+    public long contentLength = -1;
+    public String contentType;
+    public final Map<String, String> headers = new HashMap<>();
+    public final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    public HttpServletResponse proxy() {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                body.write(b, off, len);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {}
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(
+            FakeResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+            (p, method, args) -> {
+                switch (method.getName()) {
+                    case "setStatus" -> status = (Integer) args[0];
+                    case "setHeader" -> headers.put((String) args[0], (String) args[1]);
+                    case "setContentType" -> contentType = (String) args[0];
+                    case "setContentLengthLong" -> contentLength = (Long) args[0];
+                    case "setContentLength" -> contentLength = (Integer) args[0];
+                    case "getOutputStream" -> {
+                        return out;
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                }
+                return null;
+            });
+    }
+}
@@ -0,0 +1,145 @@
+package helvetia;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local WebHDFS stand-in for media tests: a namenode that answers GETFILESTATUS, RENAME and
+ * DELETE and redirects OPEN and CREATE to a datanode context, which serves the requested offset
+ * and length or stores the body, over an in-memory file map.
+ */
+public class FakeWebHdfs implements AutoCloseable {
+    private record File(byte[] data, long modificationTime) {}
+
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+    private final HttpServer server;
+
+    /** Bytes sent by the datanode */
+    public final AtomicLong datanodeBytes = new AtomicLong();
+    /** OPEN requests answered by the datanode */
+    public final AtomicInteger opens = new AtomicInteger();
+    /** For each CREATE body received, whether it was sent chunked */
+    public final List<Boolean> chunkedUploads = new CopyOnWriteArrayList<>();
+
+    public FakeWebHdfs() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        String datanode = "http://127.0.0.1:" + server.getAddress().getPort() + "/datanode";
+
+        server.createContext("/webhdfs/v1", ex -> {
+            String path = ex.getRequestURI().getPath().substring("/webhdfs/v1".length());
+            Map<String, String> query = query(ex);
+            File f = files.get(path);
+            switch (query.get("op")) {
+                case "CREATE" -> {
+                    ex.getResponseHeaders().set("Location", datanode + path + "?" + ex.getRequestURI().getRawQuery());
+                    respond(ex, 307, new byte[0]);
+                }
+                case "RENAME" -> {
+                    String destination = URLDecoder.decode(query.get("destination"), StandardCharsets.UTF_8);
+                    boolean ok = f != null && !files.containsKey(destination);
+                    if (ok) {
+                        files.put(destination, files.remove(path));
+                    }
+                    respond(ex, 200, ("{\"boolean\":" + ok + "}").getBytes());
+                }
+                case "DELETE" -> respond(ex, 200, ("{\"boolean\":" + (files.remove(path) != null) + "}").getBytes());
+                default -> {
+                    if (f == null) {
+                        respond(ex, 404, "{\"RemoteException\":{\"exception\":\"FileNotFoundException\"}}".getBytes());
+                    } else if (query.get("op").equals("GETFILESTATUS")) {
+                        respond(ex, 200, ("{\"FileStatus\":{\"length\":" + f.data().length + ",\"modificationTime\":"
+                            + f.modificationTime() + ",\"type\":\"FILE\"}}").getBytes());
+                    } else {
+                        ex.getResponseHeaders().set("Location", datanode + path + "?" + ex.getRequestURI().getRawQuery());
+                        respond(ex, 307, new byte[0]);
+                    }
+                }
+            }
+        });
+        server.createContext("/datanode", ex -> {
+            String path = ex.getRequestURI().getPath().substring("/datanode".length());
+            if (ex.getRequestMethod().equals("PUT")) {
+                chunkedUploads.add("chunked".equalsIgnoreCase(ex.getRequestHeaders().getFirst("Transfer-Encoding")));
+                byte[] data = ex.getRequestBody().readAllBytes();
+                if (files.putIfAbsent(path, new File(data, System.currentTimeMillis())) != null) {
+                    respond(ex, 403, new byte[0]);
+                } else {
+                    respond(ex, 201, new byte[0]);
+                }
+                return;
+            }
+            File f = files.get(path);
+            if (f == null) {
+                respond(ex, 404, new byte[0]);
+                return;
+            }
+            Map<String, String> query = query(ex);
+            int offset = Integer.parseInt(query.getOrDefault("offset", "0"));
+            int length = Integer.parseInt(query.getOrDefault("length", Integer.toString(f.data().length - offset)));
+            byte[] slice = Arrays.copyOfRange(f.data(), offset, Math.min(f.data().length, offset + length));
+            opens.incrementAndGet();
+            datanodeBytes.addAndGet(slice.length);
+            respond(ex, 200, slice);
+        });
+        server.start();
+    }
+
+    /** Base URL to configure the client with, ending in /webhdfs/v1 */
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/webhdfs/v1";
+    }
+
+    public void put(String path, byte[] data, long modificationTime) {
+        files.put(path, new File(data, modificationTime));
+    }
+
+    public void delete(String path) {
+        files.remove(path);
+    }
+
+    /** @return The file's contents, or null if it does not exist */
+    public byte[] get(String path) {
+        File f = files.get(path);
+        return f == null ? null : f.data();
+    }
+
+    public Set<String> paths() {
+        return Set.copyOf(files.keySet());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private static Map<String, String> query(HttpExchange ex) {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : ex.getRequestURI().getRawQuery().split("&")) {
+            int eq = pair.indexOf('=');
+            params.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange ex, int status, byte[] body) throws IOException {
+        ex.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
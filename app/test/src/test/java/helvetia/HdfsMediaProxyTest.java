@@ -0,0 +1,166 @@
+package helvetia;
+
+import helvetia.main.HdfsMediaProxy;
+import helvetia.main.ProtoIO;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the proxy against a local WebHDFS stand-in.
+ */
+public class HdfsMediaProxyTest {
+    private static final String PATH = "/media/42/clip.mp4";
+    private static final long MTIME = 1_700_000_000_000L;
+
+    private final byte[] file = new byte[300_000];
+    private FakeWebHdfs hdfs;
+    private HdfsMediaProxy proxy;
+
+    @Before
+    public void startWebHdfs() throws IOException {
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) (i * 31);
+        }
+        hdfs = new FakeWebHdfs();
+        hdfs.put(PATH, file, MTIME);
+        // A small buffer, so every response takes many reads
+        proxy = new HdfsMediaProxy(hdfs.baseUrl(), "hdfs", 4096);
+    }
+
+    @After
+    public void stopWebHdfs() {
+        hdfs.close();
+    }
+
+    @Test
+    public void readsFileStatus() throws Exception {
+        Assert.assertEquals(new HdfsMediaProxy.FileStatus(file.length, MTIME), proxy.status(PATH));
+        Assert.assertNull(proxy.status("/media/missing.mp4"));
+    }
+
+    @Test
+    public void streamsWholeFileWithoutLength() throws Exception {
+        FakeResponse res = new FakeResponse();
+        proxy.serve(PATH, "video/mp4", null, res.proxy());
+
+        Assert.assertEquals(200, res.status);
+        Assert.assertEquals("bytes", res.headers.get("Accept-Ranges"));
+        Assert.assertEquals("video/mp4", res.contentType);
+        // Left to Jetty's chunked encoding
+        Assert.assertEquals(-1, res.contentLength);
+        Assert.assertArrayEquals(file, res.body.toByteArray());
+    }
+
+    @Test
+    public void servesRangesFromTheirOffset() throws Exception {
+        FakeResponse res = new FakeResponse();
+        proxy.serve(PATH, "video/mp4", "bytes=100000-149999", res.proxy());
+
+        Assert.assertEquals(206, res.status);
+        Assert.assertEquals("bytes 100000-149999/300000", res.headers.get("Content-Range"));
+        Assert.assertEquals(50_000, res.contentLength);
+        Assert.assertArrayEquals(Arrays.copyOfRange(file, 100_000, 150_000), res.body.toByteArray());
+        // Only the range was read from the datanode
+        Assert.assertEquals(50_000, hdfs.datanodeBytes.get());
+
+        res = new FakeResponse();
+        proxy.serve(PATH, "video/mp4", "bytes=-10", res.proxy());
+        Assert.assertEquals(206, res.status);
+        Assert.assertEquals("bytes 299990-299999/300000", res.headers.get("Content-Range"));
+        Assert.assertArrayEquals(Arrays.copyOfRange(file, 299_990, 300_000), res.body.toByteArray());
+    }
+
+    @Test
+    public void rejectsRangesPastTheEnd() throws Exception {
+        FakeResponse res = new FakeResponse();
+        proxy.serve(PATH, "video/mp4", "bytes=300000-", res.proxy());
+
+        Assert.assertEquals(416, res.status);
+        Assert.assertEquals("bytes */300000", res.headers.get("Content-Range"));
+        Assert.assertEquals(0, res.body.size());
+    }
+
+    @Test
+    public void missingFilesAre404() throws Exception {
+        FakeResponse res = new FakeResponse();
+        proxy.serve("/media/missing.mp4", "video/mp4", null, res.proxy());
+        Assert.assertEquals(404, res.status);
+
+        res = new FakeResponse();
+        proxy.serve("/media/missing.mp4", "video/mp4", "bytes=0-", res.proxy());
+        Assert.assertEquals(404, res.status);
+    }
+
+    @Test
+    public void parsesRangeHeaders() {
+        Assert.assertEquals(new HdfsMediaProxy.Range(0, 99), HdfsMediaProxy.Range.parse("bytes=0-99", 1000));
+        Assert.assertEquals(new HdfsMediaProxy.Range(500, 999), HdfsMediaProxy.Range.parse("bytes=500-", 1000));
+        Assert.assertEquals(new HdfsMediaProxy.Range(900, 999), HdfsMediaProxy.Range.parse("bytes=900-5000", 1000));
+        Assert.assertEquals(new HdfsMediaProxy.Range(0, 999), HdfsMediaProxy.Range.parse("bytes=-5000", 1000));
+        Assert.assertFalse(HdfsMediaProxy.Range.parse("bytes=1000-", 1000).satisfiable());
+        Assert.assertFalse(HdfsMediaProxy.Range.parse("bytes=-0", 1000).satisfiable());
+
+        // Ignored: the whole file is sent instead
+        Assert.assertNull(HdfsMediaProxy.Range.parse("bytes=5-2", 1000));
+        Assert.assertNull(HdfsMediaProxy.Range.parse("bytes=0-1,5-6", 1000));
+        Assert.assertNull(HdfsMediaProxy.Range.parse("bytes=x-", 1000));
+        Assert.assertNull(HdfsMediaProxy.Range.parse("items=0-1", 1000));
+    }
+
+    /** A generated stream of n bytes, so large uploads need no array of their own */
+    private static InputStream generated(long n) {
+        return new InputStream() {
+            long i;
+
+            @Override
+            public int read() {
+                return i < n ? (int) (i++ * 7 & 0xff) : -1;
+            }
+        };
+    }
+
+    @Test
+    public void uploadsStreamChunkedAndRenamesIntoPlace() throws Exception {
+        String path = proxy.uploadPath(7, "video", "video/mp4");
+        Assert.assertTrue(path.startsWith("/articles/article7/video-"));
+        Assert.assertTrue(path.endsWith(".mp4"));
+        Assert.assertTrue(proxy.isUpload(path, 7, "video"));
+        // Back-to-back uploads, usually within one millisecond, still get their own files
+        Assert.assertNotEquals(path, proxy.uploadPath(7, "video", "video/mp4"));
+        Assert.assertFalse(proxy.isUpload("/articles/article7/video.flv", 7, "video"));
+        Assert.assertFalse(proxy.isUpload(path, 8, "video"));
+
+        long size = 5_000_000;
+        Assert.assertEquals(size, proxy.upload(path, new BufferedInputStream(generated(size)), size));
+        Assert.assertArrayEquals(generated(size).readAllBytes(), hdfs.get(path));
+        Assert.assertEquals(List.of(true), hdfs.chunkedUploads);
+        // Only the final name remains
+        Assert.assertEquals(Set.of(PATH, path), hdfs.paths());
+
+        // The uploaded file is served like any other
+        FakeResponse res = new FakeResponse();
+        proxy.serve(path, "video/mp4", "bytes=0-9", res.proxy());
+        Assert.assertArrayEquals(Arrays.copyOf(hdfs.get(path), 10), res.body.toByteArray());
+    }
+
+    @Test
+    public void rejectsUploadsOverTheLimit() throws Exception {
+        String path = proxy.uploadPath(7, "image", "image/png");
+        Assert.assertTrue(path.endsWith(".png"));
+        try {
+            proxy.upload(path, generated(100_000), 50_000);
+            Assert.fail("Expected TooLargeException");
+        } catch (ProtoIO.TooLargeException expected) {
+        }
+        Assert.assertEquals(Set.of(PATH), hdfs.paths());
+    }
+}
@@ -0,0 +1,49 @@
+package helvetia;
+
+import helvetia.main.IdAllocator;
+import helvetia.main.IdBlockSource;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of IdAllocator at 1 to 64 threads against a block source with a simulated 2 ms
+ * round trip. Run by hand with bazel run //app/test/src/test/java:IdAllocatorBenchmark; it is
+ * not part of the test suite.
+ */
+public class IdAllocatorBenchmark {
+
+    /** In-memory block source that sleeps to mimic a vtgate round trip */
+    static class SlowSource implements IdBlockSource {
+        final AtomicLong next = new AtomicLong(1);
+
+        @Override
+        public long reserve(String entity, int count) throws Exception {
+            Thread.sleep(2);
+            return next.getAndAdd(count);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[] {1, 4, 16, 64}) {
+            IdAllocator ids = new IdAllocator(new SlowSource(), 10_000);
+            int perThread = 2_000_000 / threads;
+
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        ids.next("read");
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread w : workers) {
+                w.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("IdAllocator: %2d threads, %,.0f ids/sec%n",
+                threads, threads * (double) perThread / seconds);
+        }
+    }
+}
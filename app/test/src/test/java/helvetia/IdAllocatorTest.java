@@ -0,0 +1,72 @@
+package helvetia;
+
+import helvetia.main.IdAllocator;
+import helvetia.main.IdBlockSource;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uniqueness check for IdAllocator under thread contention; IdAllocatorBenchmark measures throughput.
+ * The block source simulates a database round trip per reservation.
+ */
+public class IdAllocatorTest {
+
+    /** In-memory block source that sleeps to mimic a vtgate round trip */
+    static class SlowSource implements IdBlockSource {
+        final AtomicLong next = new AtomicLong(1);
+        final AtomicLong calls = new AtomicLong();
+        final long delayMillis;
+
+        SlowSource(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public long reserve(String entity, int count) throws Exception {
+            calls.incrementAndGet();
+            Thread.sleep(delayMillis);
+            return next.getAndAdd(count);
+        }
+    }
+
+    @Test
+    public void idsAreUniqueUnderContention() throws Exception {
+        SlowSource source = new SlowSource(1);
+        IdAllocator ids = new IdAllocator(source, 1000);
+        int threads = 16;
+        int perThread = 50_000;
+
+        var seen = ConcurrentHashMap.<Long>newKeySet();
+        runThreads(threads, () -> {
+            for (int i = 0; i < perThread; i++) {
+                Assert.assertTrue(seen.add(ids.next("read")));
+            }
+        });
+
+        Assert.assertEquals(threads * perThread, seen.size());
+        // One reservation per block, plus at most one prefetched block left over
+        Assert.assertTrue(source.calls.get() <= threads * perThread / 1000 + 2);
+    }
+
+    private static void runThreads(int n, Runnable body) throws Exception {
+        CountDownLatch done = new CountDownLatch(n);
+        AtomicLong failures = new AtomicLong();
+        for (int t = 0; t < n; t++) {
+            new Thread(() -> {
+                try {
+                    body.run();
+                } catch (Throwable e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        Assert.assertEquals(0, failures.get());
+    }
+}
@@ -0,0 +1,30 @@
+package helvetia;
+
+import helvetia.main.KeyspaceIds;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HexFormat;
+
+/**
+ * Keyspace ids computed in-process must match what vtgate's region_json vindex produces,
+ * otherwise shard-targeted reads miss and fall back to routed queries.
+ */
+public class KeyspaceIdsTest {
+
+    @Test
+    public void matchesVitessHashVindex() {
+        // Vitess "hash" vindex maps 1 -> 166b40b44aba4bd6
+        byte[] ksid = KeyspaceIds.regionJson(1, "Beijing", KeyspaceIds.REGION_MAP);
+        Assert.assertEquals("40166b40b44aba4bd6", HexFormat.of().formatHex(ksid));
+    }
+
+    @Test
+    public void regionByteSelectsShard() {
+        byte[] science = KeyspaceIds.regionJson(42, "science", KeyspaceIds.CATEGORY_MAP);
+        byte[] technology = KeyspaceIds.regionJson(42, "technology", KeyspaceIds.CATEGORY_MAP);
+        Assert.assertEquals((byte) 0x40, science[0]);   // shard -80
+        Assert.assertEquals((byte) 0xc0, technology[0]); // shard 80-
+        Assert.assertNull(KeyspaceIds.regionJson(42, "history", KeyspaceIds.CATEGORY_MAP));
+    }
+}
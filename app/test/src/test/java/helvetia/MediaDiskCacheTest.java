@@ -0,0 +1,176 @@
+package helvetia;
+
+import helvetia.main.HdfsMediaProxy;
+import helvetia.main.MediaDiskCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+public class MediaDiskCacheTest {
+    private static final int SIZE = 100_000;
+
+    private FakeWebHdfs hdfs;
+    private HdfsMediaProxy proxy;
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        hdfs = new FakeWebHdfs();
+        proxy = new HdfsMediaProxy(hdfs.baseUrl(), null, 4096);
+        dir = Files.createTempDirectory("media-cache-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        hdfs.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private static byte[] file(int seed) {
+        byte[] data = new byte[SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static FakeResponse get(MediaDiskCache cache, String path, String range) throws IOException {
+        FakeResponse res = new FakeResponse();
+        cache.serve(path, "video/mp4", range, res.proxy());
+        return res;
+    }
+
+    private long cachedFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void servesRepeatViewsFromDisk() throws Exception {
+        byte[] video = file(1);
+        hdfs.put("/v/1.mp4", video, 1000);
+        MediaDiskCache cache = new MediaDiskCache(proxy, dir, 10 * SIZE, 10 * SIZE, 60_000);
+
+        FakeResponse first = get(cache, "/v/1.mp4", null);
+        Assert.assertEquals(200, first.status);
+        Assert.assertEquals(SIZE, first.contentLength);
+        Assert.assertArrayEquals(video, first.body.toByteArray());
+
+        FakeResponse seek = get(cache, "/v/1.mp4", "bytes=50000-50099");
+        Assert.assertEquals(206, seek.status);
+        Assert.assertEquals("bytes 50000-50099/100000", seek.headers.get("Content-Range"));
+        Assert.assertArrayEquals(Arrays.copyOfRange(video, 50_000, 50_100), seek.body.toByteArray());
+
+        Assert.assertEquals(416, get(cache, "/v/1.mp4", "bytes=100000-").status);
+        Assert.assertEquals(1, hdfs.opens.get());
+    }
+
+    @Test
+    public void coalescesConcurrentMisses() throws Exception {
+        byte[] video = file(2);
+        hdfs.put("/v/2.mp4", video, 1000);
+        MediaDiskCache cache = new MediaDiskCache(proxy, dir, 10 * SIZE, 10 * SIZE, 60_000);
+
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<FakeResponse>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(pool.submit(() -> {
+                start.await();
+                return get(cache, "/v/2.mp4", null);
+            }));
+        }
+        start.countDown();
+        for (Future<FakeResponse> r : results) {
+            Assert.assertArrayEquals(video, r.get().body.toByteArray());
+        }
+        pool.shutdown();
+
+        Assert.assertEquals(1, hdfs.opens.get());
+        Assert.assertEquals(1, cachedFiles());
+    }
+
+    @Test
+    public void refetchesFilesChangedInHdfs() throws Exception {
+        hdfs.put("/v/3.mp4", file(3), 1000);
+        // Revalidate on every request
+        MediaDiskCache cache = new MediaDiskCache(proxy, dir, 10 * SIZE, 10 * SIZE, 0);
+        get(cache, "/v/3.mp4", null);
+        get(cache, "/v/3.mp4", null);
+        Assert.assertEquals(1, hdfs.opens.get());
+
+        byte[] replaced = file(4);
+        hdfs.put("/v/3.mp4", replaced, 2000);
+        Assert.assertArrayEquals(replaced, get(cache, "/v/3.mp4", null).body.toByteArray());
+        Assert.assertEquals(2, hdfs.opens.get());
+        Assert.assertEquals(1, cachedFiles());
+
+        hdfs.delete("/v/3.mp4");
+        Assert.assertEquals(404, get(cache, "/v/3.mp4", null).status);
+        Assert.assertEquals(0, cachedFiles());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            hdfs.put("/v/" + i + ".mp4", file(i), 1000);
+        }
+        MediaDiskCache cache = new MediaDiskCache(proxy, dir, 2 * SIZE + SIZE / 2, SIZE, 60_000);
+        get(cache, "/v/0.mp4", null);
+        get(cache, "/v/1.mp4", null);
+        get(cache, "/v/0.mp4", null);
+        // Over budget: 1 is the least recently used
+        get(cache, "/v/2.mp4", null);
+        Assert.assertEquals(3, hdfs.opens.get());
+        Assert.assertEquals(2, cachedFiles());
+
+        get(cache, "/v/0.mp4", null);
+        Assert.assertEquals(3, hdfs.opens.get());
+        Assert.assertArrayEquals(file(1), get(cache, "/v/1.mp4", null).body.toByteArray());
+        Assert.assertEquals(4, hdfs.opens.get());
+    }
+
+    @Test
+    public void streamsFilesOverTheEntryLimit() throws Exception {
+        byte[] video = file(5);
+        hdfs.put("/v/5.mp4", video, 1000);
+        MediaDiskCache cache = new MediaDiskCache(proxy, dir, 10 * SIZE, SIZE / 2, 60_000);
+
+        Assert.assertArrayEquals(video, get(cache, "/v/5.mp4", null).body.toByteArray());
+        Assert.assertArrayEquals(Arrays.copyOfRange(video, 10, 20), get(cache, "/v/5.mp4", "bytes=10-19").body.toByteArray());
+        Assert.assertEquals(0, cachedFiles());
+    }
+
+    @Test
+    public void reusesFilesAfterRestart() throws Exception {
+        byte[] video = file(6);
+        hdfs.put("/v/6.mp4", video, 1000);
+        get(new MediaDiskCache(proxy, dir, 10 * SIZE, 10 * SIZE, 60_000), "/v/6.mp4", null);
+        Files.createFile(dir.resolve("leftover.part"));
+
+        MediaDiskCache restarted = new MediaDiskCache(proxy, dir, 10 * SIZE, 10 * SIZE, 60_000);
+        Assert.assertArrayEquals(video, get(restarted, "/v/6.mp4", null).body.toByteArray());
+        Assert.assertEquals(1, hdfs.opens.get());
+        Assert.assertEquals(1, cachedFiles());
+    }
+}
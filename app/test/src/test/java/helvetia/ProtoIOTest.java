@@ -0,0 +1,69 @@
+package helvetia;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import helvetia.main.ProtoIO;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Streaming parse must decode the same message as parseFrom(byte[]), enforce the size limit,
+ * and allocate less than the bodyAsBytes() path it replaces, which copies the whole body first.
+ */
+public class ProtoIOTest {
+    private static final int LIMIT = 4 << 20;
+
+    private static Article largeArticle() {
+        return Article.newBuilder()
+            .setId(42)
+            .setAid("a42")
+            .setTitle("title")
+            .setAbstract("x".repeat(1 << 20))
+            .addArticleTags("tag")
+            .build();
+    }
+
+    @Test
+    public void parsesTheSameMessage() throws Exception {
+        Article a = largeArticle();
+        byte[] body = a.toByteArray();
+        Assert.assertEquals(a, ProtoIO.parse(new ByteArrayInputStream(body), body.length, Article.parser(), LIMIT));
+        // Chunked: no declared length
+        Assert.assertEquals(a, ProtoIO.parse(new ByteArrayInputStream(body), -1, Article.parser(), LIMIT));
+    }
+
+    @Test(expected = ProtoIO.TooLargeException.class)
+    public void rejectsDeclaredLengthOverLimit() throws Exception {
+        byte[] body = largeArticle().toByteArray();
+        ProtoIO.parse(new ByteArrayInputStream(body), body.length, Article.parser(), 1024);
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void rejectsUndeclaredBodyOverLimit() throws Exception {
+        byte[] body = largeArticle().toByteArray();
+        ProtoIO.parse(new ByteArrayInputStream(body), -1, Article.parser(), 1024);
+    }
+
+    @Test
+    public void allocatesLessThanCopyingTheBody() throws Exception {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        byte[] body = largeArticle().toByteArray();
+
+        long copied = Long.MAX_VALUE;
+        long streamed = Long.MAX_VALUE;
+        // Minimum over several rounds, so warm-up and class loading do not count
+        for (int i = 0; i < 20; i++) {
+            long start = threads.getCurrentThreadAllocatedBytes();
+            Article.parseFrom(new ByteArrayInputStream(body).readAllBytes());
+            copied = Math.min(copied, threads.getCurrentThreadAllocatedBytes() - start);
+
+            start = threads.getCurrentThreadAllocatedBytes();
+            ProtoIO.parse(new ByteArrayInputStream(body), body.length, Article.parser(), LIMIT);
+            streamed = Math.min(streamed, threads.getCurrentThreadAllocatedBytes() - start);
+        }
+        Assert.assertTrue("streamed " + streamed + " vs copied " + copied, streamed + body.length / 2 < copied);
+    }
+}
@@ -0,0 +1,137 @@
+package helvetia;
+
+import helvetia.main.ReadDao;
+import helvetia.main.ReadIngestQueue;
+import helvetia.main.ReadWal;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+public class ReadIngestQueueTest {
+    private Path dir;
+    private ReadWal wal;
+
+    // Rows the fake DAO has inserted, by id
+    private final Set<Long> inserted = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("read-ingest-test");
+        wal = new ReadWal(dir.resolve("wal"), 64 * 1024, 1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        wal.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * A DAO whose createBatch throws {@code error} for any batch {@code fails} matches, and
+     * otherwise records the rows. Only createBatch is used by the queue.
+     */
+    @SuppressWarnings("unchecked")
+    private ReadDao dao(Predicate<List<Read>> fails, SQLException error) {
+        return (ReadDao) Proxy.newProxyInstance(ReadDao.class.getClassLoader(),
+            new Class<?>[] {ReadDao.class}, (p, method, args) -> {
+                List<Read> reads = (List<Read>) args[0];
+                calls.incrementAndGet();
+                if (fails.test(reads)) {
+                    throw error;
+                }
+                reads.forEach(r -> inserted.add(r.getId()));
+                return null;
+            });
+    }
+
+    private static Read read(long id) {
+        return Read.newBuilder().setId(id).setUid("u" + id).setAid("a1").setRegion("Beijing").build();
+    }
+
+    private void awaitBacklogDrained() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (wal.backlogBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, wal.backlogBytes());
+    }
+
+    @Test
+    public void retriesABatchThatFailedOnce() throws Exception {
+        AtomicInteger failures = new AtomicInteger();
+        ReadDao dao = dao(reads -> failures.getAndIncrement() == 0, new SQLException("Connection reset", "08S01"));
+        ReadIngestQueue queue = new ReadIngestQueue(dao, wal, 100, 10, 50, 1000, 5, dir.resolve("dead-letter.log"));
+        queue.start();
+
+        for (long id = 1; id <= 3; id++) {
+            Assert.assertTrue(queue.submit(read(id)));
+        }
+        awaitBacklogDrained();
+
+        Assert.assertEquals(Set.of(1L, 2L, 3L), inserted);
+        Assert.assertTrue(calls.get() >= 2);
+        Assert.assertFalse(Files.exists(dir.resolve("dead-letter.log")));
+    }
+
+    @Test
+    public void deadLettersRowsThatKeepFailing() throws Exception {
+        ReadDao dao = dao(reads -> reads.stream().anyMatch(r -> r.getId() == 2),
+            new SQLException("Lookup vindex failed", "HY000"));
+        Path deadLetter = dir.resolve("dead-letter.log");
+        ReadIngestQueue queue = new ReadIngestQueue(dao, wal, 100, 10, 50, 1000, 1, deadLetter);
+        queue.start();
+
+        for (long id = 1; id <= 3; id++) {
+            Assert.assertTrue(queue.submit(read(id)));
+        }
+        awaitBacklogDrained();
+
+        Assert.assertEquals(Set.of(1L, 3L), inserted);
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(deadLetter));
+        byte[] payload = new byte[buf.getInt()];
+        buf.getInt();
+        buf.get(payload);
+        Assert.assertEquals(read(2), Read.parseFrom(payload));
+        Assert.assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void replaysUncommittedReadsOnStart() throws Exception {
+        wal.recover((payload, lsn) -> {});
+        List<Long> lsns = new ArrayList<>();
+        for (long id = 1; id <= 3; id++) {
+            lsns.add(wal.append(read(id).toByteArray()));
+        }
+        wal.awaitDurable(lsns.get(2));
+        wal.close();
+
+        wal = new ReadWal(dir.resolve("wal"), 64 * 1024, 1);
+        ReadIngestQueue queue = new ReadIngestQueue(dao(reads -> false, null), wal, 100, 10, 50, 1000, 5,
+            dir.resolve("dead-letter.log"));
+        queue.start();
+        awaitBacklogDrained();
+
+        Assert.assertEquals(Set.of(1L, 2L, 3L), inserted);
+    }
+}
@@ -0,0 +1,151 @@
+package helvetia;
+
+import helvetia.main.ReadWal;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ReadWalTest {
+    private static final int SEGMENT_SIZE = 256;
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("read-wal-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private static byte[] record(int i) {
+        // 40 bytes, so five 48-byte records fit in a segment
+        return String.format("read-%035d", i).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private List<String> replay(ReadWal wal) throws IOException {
+        List<String> seen = new ArrayList<>();
+        wal.recover((payload, lsn) -> seen.add(new String(payload, StandardCharsets.US_ASCII)));
+        return seen;
+    }
+
+    private static List<String> records(int from, int to) {
+        List<String> expected = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            expected.add(new String(record(i), StandardCharsets.US_ASCII));
+        }
+        return expected;
+    }
+
+    @Test
+    public void replaysAppendedRecordsAfterReopen() throws Exception {
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            Assert.assertEquals(List.of(), replay(wal));
+            long lsn = 0;
+            for (int i = 0; i < 12; i++) {
+                lsn = wal.append(record(i));
+            }
+            wal.awaitDurable(lsn);
+            Assert.assertEquals(12 * 48 + 2 * (SEGMENT_SIZE - 5 * 48), lsn);
+        }
+
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            Assert.assertEquals(records(0, 12), replay(wal));
+            // Appends resume after the replayed records
+            wal.awaitDurable(wal.append(record(12)));
+        }
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            Assert.assertEquals(records(0, 13), replay(wal));
+        }
+    }
+
+    @Test
+    public void stopsReplayAtACorruptTail() throws Exception {
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            replay(wal);
+            long lsn = 0;
+            for (int i = 0; i < 3; i++) {
+                lsn = wal.append(record(i));
+            }
+            wal.awaitDurable(lsn);
+        }
+        // Flip a payload byte of the last record, as a torn write would leave it
+        try (FileChannel ch = FileChannel.open(dir.resolve("read-wal-000000.log"), StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[] {'X'}), 2 * 48 + 8 + 10);
+        }
+
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            Assert.assertEquals(records(0, 2), replay(wal));
+            wal.awaitDurable(wal.append(record(7)));
+        }
+        // The torn record was zeroed, so the new one follows the intact ones and nothing else
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            List<String> expected = records(0, 2);
+            expected.addAll(records(7, 8));
+            Assert.assertEquals(expected, replay(wal));
+        }
+    }
+
+    @Test
+    public void stopsReplayAtATruncatedRecord() throws Exception {
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            replay(wal);
+            wal.awaitDurable(wal.append(record(0)));
+        }
+        // A header whose payload never made it to disk
+        try (FileChannel ch = FileChannel.open(dir.resolve("read-wal-000000.log"), StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.allocate(8).putInt(40).putInt(12345).flip(), 48);
+        }
+
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            Assert.assertEquals(records(0, 1), replay(wal));
+        }
+    }
+
+    @Test
+    public void checkpointSkipsCommittedRecordsAndDeletesSegments() throws Exception {
+        List<Long> lsns = new ArrayList<>();
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            replay(wal);
+            for (int i = 0; i < 14; i++) {
+                lsns.add(wal.append(record(i)));
+            }
+            wal.awaitDurable(lsns.get(13));
+            Assert.assertEquals(lsns.get(13).longValue(), wal.backlogBytes());
+
+            // Records 0-11 committed: the first two segments are no longer needed
+            wal.checkpoint(lsns.get(11));
+            Assert.assertEquals(lsns.get(13) - lsns.get(11), wal.backlogBytes());
+            Assert.assertFalse(Files.exists(dir.resolve("read-wal-000000.log")));
+            Assert.assertFalse(Files.exists(dir.resolve("read-wal-000001.log")));
+            Assert.assertTrue(Files.exists(dir.resolve("read-wal-000002.log")));
+
+            // An older checkpoint never moves it back
+            wal.checkpoint(lsns.get(3));
+            Assert.assertEquals(lsns.get(13) - lsns.get(11), wal.backlogBytes());
+        }
+
+        try (ReadWal wal = new ReadWal(dir, SEGMENT_SIZE, 1)) {
+            Assert.assertEquals(records(12, 14), replay(wal));
+        }
+    }
+}
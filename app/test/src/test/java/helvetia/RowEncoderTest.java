@@ -0,0 +1,113 @@
+package helvetia;
+
+import helvetia.main.RowEncoder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Rows encoded straight from a result set must be byte-for-byte what the DAOs' builders produce,
+ * so cached pages and ETags do not depend on which path serialized them.
+ */
+public class RowEncoderTest {
+
+    /** A one-row result set over parallel arrays of labels, SQL types and values */
+    private static ResultSet row(String[] labels, int[] types, Object[] values) {
+        ResultSetMetaData md = (ResultSetMetaData) Proxy.newProxyInstance(
+            RowEncoderTest.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class},
+            (proxy, method, args) -> switch (method.getName()) {
+                case "getColumnCount" -> labels.length;
+                case "getColumnLabel", "getColumnName" -> labels[(Integer) args[0] - 1];
+                case "getColumnType" -> types[(Integer) args[0] - 1];
+                default -> throw new UnsupportedOperationException(method.getName());
+            });
+        return (ResultSet) Proxy.newProxyInstance(
+            RowEncoderTest.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+            (proxy, method, args) -> {
+                if (method.getName().equals("getMetaData")) {
+                    return md;
+                }
+                Object v = values[(Integer) args[0] - 1];
+                return switch (method.getName()) {
+                    case "getLong" -> v == null ? 0L : ((Number) v).longValue();
+                    case "getInt" -> v == null ? 0 : ((Number) v).intValue();
+                    case "getBoolean" -> v != null && (Boolean) v;
+                    case "getString" -> v == null ? null : v.toString();
+                    case "getTimestamp" -> (Timestamp) v;
+                    case "getDate" -> (Date) v;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                };
+            });
+    }
+
+    @Test
+    public void encodesLikeTheBuilder() throws Exception {
+        Timestamp ts = new Timestamp(1_700_000_000_123L);
+        ResultSet rs = row(
+            new String[] {"id", "timestamp", "uid", "aid", "region", "readTimeLength", "agreeOrNot", "commentOrNot", "commentDetail", "shareOrNot"},
+            new int[] {Types.BIGINT, Types.TIMESTAMP, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.BIT, Types.BIT, Types.VARCHAR, Types.BIT},
+            new Object[] {7L, ts, "u1", "a1", "Beijing", 30, true, false, null, true});
+
+        Read expected = Read.newBuilder()
+            .setId(7).setTimestamp(ts.getTime()).setUid("u1").setAid("a1").setRegion("Beijing")
+            .setReadTimeLength(30).setAgreeOrNot(true).setShareOrNot(true)
+            .build();
+        Assert.assertArrayEquals(expected.toByteArray(), new RowEncoder(Read.getDescriptor()).encode(rs));
+    }
+
+    @Test
+    public void tokenizesJsonArraysIntoRepeatedStrings() throws Exception {
+        ResultSet rs = row(
+            new String[] {"id", "uid", "preferTags", "obtainedCredits"},
+            new int[] {Types.BIGINT, Types.VARCHAR, Types.LONGVARCHAR, Types.INTEGER},
+            new Object[] {1L, "u1", " [\"sci\\\"fi\", \"\", null, 42, \"\\u4e2d\\n\"] ", 0});
+
+        User expected = User.newBuilder()
+            .setId(1).setUid("u1")
+            .addPreferTags("sci\"fi").addPreferTags("").addPreferTags("42").addPreferTags("\u4e2d\n")
+            .build();
+        Assert.assertArrayEquals(expected.toByteArray(), new RowEncoder(User.getDescriptor()).encode(rs));
+    }
+
+    @Test
+    public void formatsDatesAndDerivesFields() throws Exception {
+        ResultSet rs = row(
+            new String[] {"id", "rankDate", "articleAidList"},
+            new int[] {Types.BIGINT, Types.DATE, Types.LONGVARCHAR},
+            new Object[] {3L, Date.valueOf("2024-05-01"), "[]"});
+        PopularRank rank = PopularRank.newBuilder().setId(3).setRankDate("2024-05-01").build();
+        Assert.assertArrayEquals(rank.toByteArray(), new RowEncoder(PopularRank.getDescriptor()).encode(rs));
+
+        ResultSet article = row(
+            new String[] {"id", "title", "textPath", "imagePath"},
+            new int[] {Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR},
+            new Object[] {9L, "t".repeat(5000), "/a/9.txt", ""});
+        Article expected = Article.newBuilder()
+            .setId(9).setTitle("t".repeat(5000)).setTextPath("/a/9.txt").setTextUrl("/articles/9/media/text")
+            .build();
+        RowEncoder encoder = new RowEncoder(Article.getDescriptor())
+            .derive("textUrl", "textPath", (p, row) -> "/articles/" + row.getLong(1) + "/media/text")
+            .derive("imageUrl", "imagePath", (p, row) -> "hdfs:" + p);
+        // Larger than the initial scratch buffer
+        Assert.assertArrayEquals(expected.toByteArray(), encoder.encode(article));
+    }
+
+    @Test
+    public void assemblesListPages() throws Exception {
+        Read a = Read.newBuilder().setId(1).setUid("u1").build();
+        Read b = Read.newBuilder().setId(2).setUid("u2").build();
+        ReadList expected = ReadList.newBuilder().addReads(a).addReads(b).setTotalCount(12).build();
+
+        byte[] page = RowEncoder.page(ReadList.getDescriptor(), List.of(a.toByteArray(), b.toByteArray()), 12);
+        Assert.assertArrayEquals(expected.toByteArray(), page);
+        Assert.assertArrayEquals(ReadList.getDefaultInstance().toByteArray(),
+            RowEncoder.page(ReadList.getDescriptor(), List.of(), 0));
+    }
+}
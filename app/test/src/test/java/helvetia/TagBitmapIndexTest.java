@@ -0,0 +1,117 @@
+package helvetia;
+
+import helvetia.main.RsqlToSql;
+import helvetia.main.TagBitmapIndex;
+import org.junit.Assert;
+import org.junit.Test;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class TagBitmapIndexTest {
+
+    private static List<Long> ids(Roaring64NavigableMap bitmap) {
+        List<Long> out = new ArrayList<>();
+        for (LongIterator it = bitmap.getLongIterator(); it.hasNext(); ) {
+            out.add(it.next());
+        }
+        return out;
+    }
+
+    private static TagBitmapIndex articles() {
+        TagBitmapIndex index = new TagBitmapIndex("test", List.of("articleTags", "authors"));
+        index.put(1, Map.of("articleTags", List.of("db", "vitess"), "authors", List.of("ada")));
+        index.put(2, Map.of("articleTags", List.of("db"), "authors", List.of("grace")));
+        index.put(3, Map.of("articleTags", List.of("ml"), "authors", List.of("ada", "grace")));
+        return index;
+    }
+
+    @Test
+    public void looksUpAllOrAnyValues() {
+        TagBitmapIndex index = articles();
+        Assert.assertEquals(List.of(1L, 2L), ids(index.lookup("articleTags", List.of("db"), true)));
+        Assert.assertEquals(List.of(1L), ids(index.lookup("articleTags", List.of("db", "vitess"), true)));
+        Assert.assertEquals(List.of(1L, 3L), ids(index.lookup("articleTags", List.of("vitess", "ml"), false)));
+        Assert.assertEquals(List.of(), ids(index.lookup("articleTags", List.of("db", "missing"), true)));
+        Assert.assertEquals(List.of(3L), ids(index.lookup("authors", List.of("ada", "grace"), true)));
+        try {
+            index.lookup("preferTags", List.of("db"), true);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void replacesValuesOnUpdateAndDelete() {
+        TagBitmapIndex index = articles();
+        index.put(1, Map.of("articleTags", List.of("ml")));
+        Assert.assertEquals(List.of(2L), ids(index.lookup("articleTags", List.of("db"), true)));
+        Assert.assertEquals(List.of(1L, 3L), ids(index.lookup("articleTags", List.of("ml"), true)));
+        Assert.assertEquals(List.of(3L), ids(index.lookup("authors", List.of("ada"), true)));
+
+        index.remove(3);
+        Assert.assertEquals(List.of(1L), ids(index.lookup("articleTags", List.of("ml"), false)));
+    }
+
+    @Test
+    public void rebuildReplaysRacingWrites() throws Exception {
+        TagBitmapIndex index = new TagBitmapIndex("test", List.of("preferTags"));
+        List<TagBitmapIndex.Entry> rows = new ArrayList<>();
+        for (long id = 1; id <= 12_000; id++) {
+            rows.add(new TagBitmapIndex.Entry(id, Map.of("preferTags", List.of(id % 3 == 0 ? "db" : "ml"))));
+        }
+        index.rebuild((after, limit) -> {
+            if (after == Long.MIN_VALUE) {
+                // Written while the first page is being read: both must survive the swap
+                index.put(20_000, Map.of("preferTags", List.of("db")));
+                index.remove(3);
+            }
+            return rows.stream().filter(e -> e.id() > after).limit(limit).toList();
+        });
+
+        Assert.assertTrue(index.ready());
+        Roaring64NavigableMap db = index.lookup("preferTags", List.of("db"), true);
+        Assert.assertEquals(4000, db.getLongCardinality());
+        Assert.assertFalse(db.contains(3));
+        Assert.assertTrue(db.contains(20_000));
+    }
+
+    @Test
+    public void combinesIndexComparisonsAsBitmaps() {
+        TagBitmapIndex index = articles();
+        List<String> lookups = new ArrayList<>();
+        RsqlToSql rsql = new RsqlToSql(Set.of("id", "title"))
+            .withIndex(RsqlToSql.CONTAINS, (field, args) -> {
+                lookups.add(field + args);
+                return index.lookup(field, args, true);
+            })
+            .withIndex(RsqlToSql.CONTAINS_ANY, (field, args) -> {
+                lookups.add(field + args);
+                return index.lookup(field, args, false);
+            });
+        Assert.assertThrows(IllegalStateException.class, () -> index.resolver(true).resolve("articleTags", List.of("db")));
+
+        RsqlToSql.SqlResult sql = rsql.convert("title==x;articleTags=contains=db;authors=containsAny=(grace)");
+        Assert.assertEquals("(`id` IN (?) AND `title` = ?)", sql.whereClause);
+        Assert.assertEquals(List.of(2L, "x"), sql.parameters);
+
+        sql = rsql.convert("id=gt=1;(articleTags=contains=ml,title==y)");
+        Assert.assertEquals("(`id` > ? AND (`id` IN (?) OR `title` = ?))", sql.whereClause);
+        Assert.assertEquals(List.of(1L, 3L, "y"), sql.parameters);
+
+        Assert.assertEquals("1=0", rsql.convert("articleTags=contains=none").whereClause);
+
+        Assert.assertEquals(List.of(1L, 3L), ids(rsql.resolveIds("articleTags=contains=vitess,authors=contains=(ada,grace)")));
+        Assert.assertNull(rsql.resolveIds("articleTags=contains=db;title==x"));
+        Assert.assertNull(rsql.resolveIds(null));
+
+        RsqlToSql.SqlResult page = RsqlToSql.idPage(index.lookup("authors", List.of("ada", "grace"), false), 2, 1, true);
+        Assert.assertEquals(List.of(2L, 1L), page.parameters);
+        // Each comparison is looked up once per call, never again for the SQL it becomes
+        Assert.assertEquals(6, lookups.size());
+    }
+}
@@ -0,0 +1,62 @@
+package helvetia;
+
+import helvetia.main.TotalCounts;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TotalCountsTest {
+
+    @Test
+    public void parsesModes() {
+        Assert.assertEquals(TotalCounts.Mode.EXACT, TotalCounts.Mode.parse(null));
+        Assert.assertEquals(TotalCounts.Mode.APPROX, TotalCounts.Mode.parse("approx"));
+        Assert.assertEquals(TotalCounts.Mode.NONE, TotalCounts.Mode.parse("NONE"));
+        Assert.assertEquals("", TotalCounts.Mode.EXACT.keySuffix());
+        Assert.assertEquals(":c:approx", TotalCounts.Mode.APPROX.keySuffix());
+        Assert.assertThrows(IllegalArgumentException.class, () -> TotalCounts.Mode.parse("fast"));
+    }
+
+    @Test
+    public void reusesApproximateCounts() throws Exception {
+        TotalCounts counts = new TotalCounts(60_000, 100, 10);
+        AtomicInteger queries = new AtomicInteger();
+        TotalCounts.Exact exact = filter -> {
+            queries.incrementAndGet();
+            return 42;
+        };
+
+        Assert.assertEquals(new TotalCounts.Count(42, false), counts.count(TotalCounts.Mode.APPROX, "user", "id=gt=5", exact, () -> null));
+        Assert.assertEquals(new TotalCounts.Count(42, true), counts.count(TotalCounts.Mode.APPROX, "user", "id=gt=5", exact, () -> null));
+        Assert.assertEquals(1, queries.get());
+        // Exact always counts, and other tables are cached apart
+        Assert.assertEquals(new TotalCounts.Count(42, false), counts.count(TotalCounts.Mode.EXACT, "user", "id=gt=5", exact, () -> null));
+        counts.count(TotalCounts.Mode.APPROX, "read", "id=gt=5", exact, () -> null);
+        Assert.assertEquals(3, queries.get());
+    }
+
+    @Test
+    public void estimatesOnlyLargeUnfilteredTables() throws Exception {
+        TotalCounts counts = new TotalCounts(60_000, 100, 10);
+        TotalCounts.Exact exact = filter -> 7;
+
+        Assert.assertEquals(new TotalCounts.Count(1000, true), counts.count(TotalCounts.Mode.APPROX, "article", null, exact, () -> 1000L));
+        Assert.assertEquals(new TotalCounts.Count(7, false), counts.count(TotalCounts.Mode.APPROX, "user", null, exact, () -> 3L));
+        Assert.assertEquals(new TotalCounts.Count(7, false), counts.count(TotalCounts.Mode.APPROX, "read", null, exact, () -> null));
+    }
+
+    @Test
+    public void countsFromTheIndexOnlyWhenApproximate() throws Exception {
+        TotalCounts counts = new TotalCounts(60_000, 100, 10);
+        TotalCounts.Exact exact = filter -> 7;
+        TotalCounts.Indexed indexed = filter -> filter.contains("=contains=") ? 9L : null;
+
+        Assert.assertEquals(new TotalCounts.Count(7, false),
+            counts.count(TotalCounts.Mode.EXACT, "user", "preferTags=contains=ai", exact, () -> null, indexed));
+        Assert.assertEquals(new TotalCounts.Count(9, true),
+            counts.count(TotalCounts.Mode.APPROX, "user", "preferTags=contains=ai", exact, () -> null, indexed));
+        Assert.assertEquals(new TotalCounts.Count(7, false),
+            counts.count(TotalCounts.Mode.APPROX, "user", "region==Beijing", exact, () -> null, indexed));
+    }
+}
@@ -0,0 +1,32 @@
+package helvetia;
+
+import helvetia.main.XxHash64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ETags must stay stable across releases, so the hash must match the reference XXH64 for inputs
+ * that exercise the short tail path and the 32-byte stripe loop.
+ */
+public class XxHash64Test {
+
+    private static long hash(String s) {
+        return XxHash64.hash(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void matchesReferenceVectors() {
+        Assert.assertEquals(0xef46db3751d8e999L, hash(""));
+        Assert.assertEquals(0xd24ec4f1a98c6e5bL, hash("a"));
+        Assert.assertEquals(0x44bc2cf5ad770999L, hash("abc"));
+        Assert.assertEquals(0xfbcea83c8a378bf1L, hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void hashesOnlyTheGivenRange() {
+        byte[] padded = "xxabcxx".getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(hash("abc"), XxHash64.hash(padded, 2, 3, 0));
+    }
+}
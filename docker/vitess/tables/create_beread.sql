@@ -14,6 +14,7 @@ CREATE TABLE IF NOT EXISTS `beread` (
   `agreeUidList` JSON COMMENT 'List of user UIDs who agreed/liked',
   `shareNum` INT DEFAULT 0,
   `shareUidList` JSON COMMENT 'List of user UIDs who shared',
+  `engagementBitmaps` LONGBLOB COMMENT 'Serialized uid bitmaps (read/comment/agree/share), keyed by user.id',
   PRIMARY KEY (`id`),
   UNIQUE KEY `idx_aid` (`aid`),
   KEY `idx_category` (`category`),
@@ -26,3 +27,10 @@ CREATE TABLE IF NOT EXISTS `beread_lookup` (
   `keyspace_id` VARBINARY(128),
   PRIMARY KEY (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Lookup table for beread aid vindex (point lookups by aid without knowing category)
+CREATE TABLE IF NOT EXISTS `beread_aid_lookup` (
+  `aid` VARCHAR(64) NOT NULL,
+  `keyspace_id` VARBINARY(128),
+  PRIMARY KEY (`aid`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
@@ -27,3 +27,11 @@ CREATE TABLE IF NOT EXISTS `user_lookup` (
   `keyspace_id` VARBINARY(128),
   PRIMARY KEY (`uid`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Id block reservations for server-side id allocation (one row per entity)
+-- Routed by xxhash on name; see DbIdBlockSource
+CREATE TABLE IF NOT EXISTS `id_sequence` (
+  `name` VARCHAR(64) NOT NULL,
+  `next_id` BIGINT NOT NULL,
+  PRIMARY KEY (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;